@@ -0,0 +1,401 @@
+package fcampos.rawengine3D.bsp.quake3;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.zip.CRC32;
+
+// This is the .bspc sidecar that sits next to a .bsp file.  It holds the level
+// the way Quake3BSP keeps it in memory: the vertices already turned Y up, the
+// texture names with their extensions found, the brush bevels added.  The
+// lightmaps are kept as they are in the .bsp, since the gamma is cheap to
+// apply and changes more often than the level does.  Every section is stored
+// in the native byte order and aligned, so after mapping the file the arrays
+// come out of it with a bulk copy.
+//
+// The header records the size and modification time of the .bsp.  If either of
+// them doesn't match, or the CRC of the sections is wrong, open() returns null
+// and the cache is built again.
+public class BSPCache 
+{
+	
+	public static final String CACHE_ID = "BSPC";		// The magic number of our cache files
+	public static final int CACHE_VERSION = 4;			// Bump this whenever the layout below changes
+	public static final String CACHE_EXTENSION = ".bspc";
+	
+	private static final int ALIGNMENT = 16;			// Every section starts on this boundary
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	
+	// The header is: id, version, byte order, .bsp length, .bsp modification time,
+	// CRC of everything after the header, then the offset and length of every section.
+	private static final int HEADER_SIZE = 4 + 4 + 4 + 8 + 8 + 8 + Section.values().length * 8;
+	
+	// These are the sections of the cache, in the order they are written
+	public enum Section
+	{
+		kVertPositions,				// The (x, y, z) vertex positions, Y up
+		kVertTexCoords,				// The (u, v) texture coordinates
+		kVertLightmapCoords,		// The (u, v) lightmap coordinates
+		kVertNormals,				// The (x, y, z) vertex normals
+		kVertColors,				// The RGBA vertex colors
+		kIndices,					// The vertex indices
+		kFaces,						// The face lump, as it is in the .bsp
+		kTextureNames,				// The texture names as they are in the .bsp, without extension
+		kTextureFlags,				// The surface flags of each texture
+		kTextureTypes,				// The content flags of each texture
+		kLightmaps,					// The 128x128 RGB lightmaps, before the gamma
+		kNodePlanes,				// The plane of each node
+		kNodeChildren,				// The front and back child of each node
+		kLeafClusters,				// The cluster of each leaf
+		kLeafBounds,				// The min and max of each leaf, Y up
+		kLeafFirstFace,				// The first leaf face of each leaf
+		kLeafNumFaces,				// The leaf face count of each leaf
+		kLeafFirstBrush,			// The first leaf brush of each leaf
+		kLeafNumBrushes,			// The leaf brush count of each leaf
+		kLeafFaces,					// The leaf's indices into the faces
+		kPlaneNormals,				// The plane normals, Y up
+		kPlaneDistances,			// The plane distances
+		kVisData,					// The vis lump, as it is in the .bsp
+		kBrushFirstSide,			// The first side of each brush
+		kBrushNumSides,				// The side count of each brush, bevels included
+		kBrushTextureIDs,			// The texture of each brush
+		kBrushSidePlanes,			// The plane of each brush side
+		kLeafBrushes				// The leaf's indices into the brushes
+	}
+	
+	private MappedByteBuffer buffer;	// The whole cache, mapped read only
+	private int[] sectionOffsets;		// The offset of each section into the file
+	private int[] sectionLengths;		// The length in bytes of each section
+	
+	private BSPCache(MappedByteBuffer buffer, int[] sectionOffsets, int[] sectionLengths)
+	{
+		this.buffer = buffer;
+		this.sectionOffsets = sectionOffsets;
+		this.sectionLengths = sectionLengths;
+	}
+	
+	// This returns where the cache of a .bsp file goes
+	public static File getCacheFile(File bspFile)
+	{
+		String name = bspFile.getPath();
+		
+		if(name.toLowerCase().endsWith(".bsp"))
+		{
+			name = name.substring(0, name.length() - 4);
+		}
+		
+		return new File(name + CACHE_EXTENSION);
+	}
+	
+	//////////////////////////// OPEN \\\\\\\\\\\\\\\\\\\\\\\\\\\*
+	/////
+	/////	This maps a cache file, or returns null if it is missing or out of date
+	/////
+	//////////////////////////// OPEN \\\\\\\\\\\\\\\\\\\\\\\\\\\*
+	
+	public static BSPCache open(File cacheFile, File bspFile) throws IOException
+	{
+		if(!cacheFile.exists() || cacheFile.length() < HEADER_SIZE)
+		{
+			return null;
+		}
+		
+		MappedByteBuffer buffer;
+		RandomAccessFile raf = new RandomAccessFile(cacheFile, "r");
+		
+		try
+		{
+			FileChannel channel = raf.getChannel();
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		finally
+		{
+			// The mapping stays valid after the channel is closed
+			raf.close();
+		}
+		
+		// The header itself is always little-endian
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		
+		byte[] id = new byte[4];
+		buffer.get(id);
+		int version = buffer.getInt();
+		int littleEndian = buffer.getInt();
+		long sourceLength = buffer.getLong();
+		long sourceModified = buffer.getLong();
+		
+		if(!CACHE_ID.equals(new String(id, UTF8)) || version != CACHE_VERSION ||
+		   (littleEndian == 1) != (ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN) ||
+		   sourceLength != bspFile.length() || sourceModified != bspFile.lastModified())
+		{
+			return null;
+		}
+		
+		long crc = buffer.getLong();
+		
+		int[] sectionOffsets = new int[Section.values().length];
+		int[] sectionLengths = new int[Section.values().length];
+		
+		for(int i = 0; i < sectionOffsets.length; i++)
+		{
+			sectionOffsets[i] = buffer.getInt();
+			sectionLengths[i] = buffer.getInt();
+			
+			if(sectionOffsets[i] < HEADER_SIZE || sectionLengths[i] < 0 || 
+			   (long)sectionOffsets[i] + sectionLengths[i] > buffer.capacity())
+			{
+				return null;
+			}
+		}
+		
+		// Make sure the file wasn't cut short or damaged since we wrote it
+		if(getChecksum(buffer, HEADER_SIZE, buffer.capacity()) != crc)
+		{
+			return null;
+		}
+		
+		buffer.order(ByteOrder.nativeOrder());
+		
+		return new BSPCache(buffer, sectionOffsets, sectionLengths);
+	}
+	
+	// This returns the CRC32 of a range of the buffer
+	private static long getChecksum(ByteBuffer buffer, int start, int end)
+	{
+		ByteBuffer view = buffer.duplicate();
+		view.limit(end);
+		view.position(start);
+		
+		CRC32 crc = new CRC32();
+		byte[] chunk = new byte[64 * 1024];
+		
+		while(view.hasRemaining())
+		{
+			int length = Math.min(chunk.length, view.remaining());
+			view.get(chunk, 0, length);
+			crc.update(chunk, 0, length);
+		}
+		
+		return crc.getValue();
+	}
+	
+	// This returns a view over the bytes of a section, in the native byte order
+	public ByteBuffer getSection(Section section)
+	{
+		ByteBuffer view = buffer.duplicate();
+		view.limit(sectionOffsets[section.ordinal()] + sectionLengths[section.ordinal()]);
+		view.position(sectionOffsets[section.ordinal()]);
+		
+		return view.slice().order(ByteOrder.nativeOrder());
+	}
+	
+	public int getSectionLength(Section section)
+	{
+		return sectionLengths[section.ordinal()];
+	}
+	
+	// This returns a section as floats that point straight into the mapping
+	public FloatBuffer getFloatBuffer(Section section)
+	{
+		return getSection(section).asFloatBuffer();
+	}
+	
+	// This returns a section as ints that point straight into the mapping
+	public IntBuffer getIntBuffer(Section section)
+	{
+		return getSection(section).asIntBuffer();
+	}
+	
+	// These copy a whole section into a new array
+	public float[] getFloats(Section section)
+	{
+		FloatBuffer view = getFloatBuffer(section);
+		float[] values = new float[view.remaining()];
+		view.get(values);
+		
+		return values;
+	}
+	
+	public int[] getInts(Section section)
+	{
+		IntBuffer view = getIntBuffer(section);
+		int[] values = new int[view.remaining()];
+		view.get(values);
+		
+		return values;
+	}
+	
+	public byte[] getBytes(Section section)
+	{
+		ByteBuffer view = getSection(section);
+		byte[] values = new byte[view.remaining()];
+		view.get(values);
+		
+		return values;
+	}
+	
+	// This reads back strings written by Writer.putStrings(), empty ones are null
+	public String[] getStrings(Section section)
+	{
+		ByteBuffer view = getSection(section);
+		String[] values = new String[view.getInt()];
+		
+		for(int i = 0; i < values.length; i++)
+		{
+			byte[] chars = new byte[view.getInt()];
+			view.get(chars);
+			
+			values[i] = (chars.length == 0) ? null : new String(chars, UTF8);
+		}
+		
+		return values;
+	}
+	
+	
+	//////////////////////////// WRITER \\\\\\\\\\\\\\\\\\\\\\\\\\\*
+	/////
+	/////	This collects the sections of a cache and writes them out in one go
+	/////
+	//////////////////////////// WRITER \\\\\\\\\\\\\\\\\\\\\\\\\\\*
+	
+	public static class Writer
+	{
+		private ByteBuffer[] sections = new ByteBuffer[Section.values().length];
+		
+		private ByteBuffer allocate(Section section, int size)
+		{
+			ByteBuffer data = ByteBuffer.allocate(size).order(ByteOrder.nativeOrder());
+			sections[section.ordinal()] = data;
+			
+			return data;
+		}
+		
+		public void putFloats(Section section, float[] values)
+		{
+			allocate(section, values.length * 4).asFloatBuffer().put(values);
+		}
+		
+		public void putInts(Section section, int[] values)
+		{
+			allocate(section, values.length * 4).asIntBuffer().put(values);
+		}
+		
+		public void putBytes(Section section, byte[] values)
+		{
+			allocate(section, values.length).put(values);
+		}
+		
+		// This copies the remaining bytes of a buffer, like a lump of the .bsp
+		public void putBytes(Section section, ByteBuffer values)
+		{
+			allocate(section, values.remaining()).put(values.duplicate());
+		}
+		
+		// Null strings are written as empty ones
+		public void putStrings(Section section, String[] values)
+		{
+			byte[][] chars = new byte[values.length][];
+			int size = 4;
+			
+			for(int i = 0; i < values.length; i++)
+			{
+				chars[i] = (values[i] == null) ? new byte[0] : values[i].getBytes(UTF8);
+				size += 4 + chars[i].length;
+			}
+			
+			ByteBuffer data = allocate(section, size);
+			data.putInt(values.length);
+			
+			for(int i = 0; i < values.length; i++)
+			{
+				data.putInt(chars[i].length);
+				data.put(chars[i]);
+			}
+		}
+		
+		// This writes the cache for a .bsp file.  It goes to a temporary
+		// file first, so a crash never leaves half a cache behind.
+		public void write(File cacheFile, File bspFile) throws IOException
+		{
+			// Lay out the sections one after the other on aligned offsets
+			int[] offsets = new int[sections.length];
+			int size = HEADER_SIZE;
+			
+			for(int i = 0; i < sections.length; i++)
+			{
+				size = (size + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+				offsets[i] = size;
+				size += (sections[i] == null) ? 0 : sections[i].capacity();
+			}
+			
+			ByteBuffer file = ByteBuffer.allocate(size);
+			
+			for(int i = 0; i < sections.length; i++)
+			{
+				if(sections[i] != null)
+				{
+					file.position(offsets[i]);
+					ByteBuffer section = sections[i].duplicate();
+					section.clear();
+					file.put(section);
+				}
+			}
+			
+			// Now the header, which is always little-endian
+			file.order(ByteOrder.LITTLE_ENDIAN);
+			file.position(0);
+			file.put(CACHE_ID.getBytes(UTF8));
+			file.putInt(CACHE_VERSION);
+			file.putInt(ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN ? 1 : 0);
+			file.putLong(bspFile.length());
+			file.putLong(bspFile.lastModified());
+			file.putLong(getChecksum(file, HEADER_SIZE, size));
+			
+			for(int i = 0; i < sections.length; i++)
+			{
+				file.putInt(offsets[i]);
+				file.putInt((sections[i] == null) ? 0 : sections[i].capacity());
+			}
+			
+			file.clear();
+			
+			File tempFile = new File(cacheFile.getPath() + ".tmp");
+			RandomAccessFile raf = new RandomAccessFile(tempFile, "rw");
+			
+			try
+			{
+				raf.setLength(0);
+				FileChannel channel = raf.getChannel();
+				
+				while(file.hasRemaining())
+				{
+					channel.write(file);
+				}
+			}
+			finally
+			{
+				raf.close();
+			}
+			
+			// Swap the new cache in, removing the old one first for platforms
+			// that won't rename over an existing file
+			if(!tempFile.renameTo(cacheFile))
+			{
+				cacheFile.delete();
+				
+				if(!tempFile.renameTo(cacheFile))
+				{
+					tempFile.delete();
+					throw new IOException("Could not write the BSP cache: " + cacheFile.getPath());
+				}
+			}
+		}
+	}
+}
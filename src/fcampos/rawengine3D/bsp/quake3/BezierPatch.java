@@ -0,0 +1,274 @@
+package fcampos.rawengine3D.bsp.quake3;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+import fcampos.rawengine3D.resource.Conversion;
+
+// This is a Quake 3 curved surface.  The face stores a grid of control points,
+// and every 3x3 block of them (sharing their edges) is a biquadratic Bezier
+// patch.  We turn the grid into triangles at a few levels of detail, more of
+// them when the camera is close.  Each level is only tessellated the first time
+// it's asked for and then kept, so walking around a curve only costs picking
+// the level, and the buffers are handed to OpenGL like a normal face.
+public class BezierPatch
+{
+
+	public static final int NUM_OF_LEVELS = 4;			// Levels 0 to 3 have 2, 4, 8 and 16 rows per patch
+	public static final float LOD_DISTANCE = 256.0f;	// Closer than this gets the highest level
+
+	private int width;				// The control points across the grid
+	private int height;				// The control points down the grid
+	private float[] positions;		// The (x, y, z) of each control point
+	private float[] texCoords;		// The (u, v) texture coordinate of each control point
+	private float[] lightmapCoords;	// The (u, v) lightmap coordinate of each control point
+	private float[] bounds;			// The min (x, y, z) and max (x, y, z) of the control points
+
+	private FloatBuffer[] vertBuffers;	// The tessellated positions of each level, once built
+	private FloatBuffer[] texBuffers;	// The tessellated texture coordinates of each level
+	private FloatBuffer[] lightBuffers;	// The tessellated lightmap coordinates of each level
+	private IntBuffer[] indexBuffers;	// The triangles of each level
+
+	// The grid is copied out of the buffers, width * height points starting at
+	// their positions.  The width and height have to be odd and at least 3.
+	public BezierPatch(int width, int height, FloatBuffer positions, FloatBuffer texCoords, FloatBuffer lightmapCoords)
+	{
+		if(width < 3 || height < 3 || (width & 1) == 0 || (height & 1) == 0)
+		{
+			throw new IllegalArgumentException("Bad patch size: " + width + "x" + height);
+		}
+
+		this.width = width;
+		this.height = height;
+
+		int count = width * height;
+		this.positions = new float[count * 3];
+		this.texCoords = new float[count * 2];
+		this.lightmapCoords = new float[count * 2];
+
+		positions.duplicate().get(this.positions);
+		texCoords.duplicate().get(this.texCoords);
+		lightmapCoords.duplicate().get(this.lightmapCoords);
+
+		// A Bezier patch always stays inside its control points
+		bounds = new float[6];
+		for(int axis = 0; axis < 3; axis++)
+		{
+			bounds[axis] = bounds[axis + 3] = this.positions[axis];
+		}
+		for(int i = 1; i < count; i++)
+		{
+			for(int axis = 0; axis < 3; axis++)
+			{
+				bounds[axis] = Math.min(bounds[axis], this.positions[i*3 + axis]);
+				bounds[axis + 3] = Math.max(bounds[axis + 3], this.positions[i*3 + axis]);
+			}
+		}
+
+		vertBuffers = new FloatBuffer[NUM_OF_LEVELS];
+		texBuffers = new FloatBuffer[NUM_OF_LEVELS];
+		lightBuffers = new FloatBuffer[NUM_OF_LEVELS];
+		indexBuffers = new IntBuffer[NUM_OF_LEVELS];
+	}
+
+	// This returns the number of rows of triangles each 3x3 patch gets at a level
+	public static int getTessellation(int level)
+	{
+		return 2 << level;
+	}
+
+	//////////////////////////// CHOOSE LEVEL \\\\\\\\\\\\\\\\\\\\\\\\\\\*
+	/////
+	/////	This picks the level of detail for a camera at (x, y, z)
+	/////
+	//////////////////////////// CHOOSE LEVEL \\\\\\\\\\\\\\\\\\\\\\\\\\\*
+
+	public int chooseLevel(float x, float y, float z)
+	{
+		// Find how far the camera is from the closest point of the bounds
+		float dx = Math.max(0.0f, Math.max(bounds[0] - x, x - bounds[3]));
+		float dy = Math.max(0.0f, Math.max(bounds[1] - y, y - bounds[4]));
+		float dz = Math.max(0.0f, Math.max(bounds[2] - z, z - bounds[5]));
+		float distance = (float)Math.sqrt(dx*dx + dy*dy + dz*dz);
+
+		// Every time the distance doubles we drop a level
+		int level = NUM_OF_LEVELS - 1;
+		float limit = LOD_DISTANCE;
+
+		while(level > 0 && distance > limit)
+		{
+			level--;
+			limit *= 2.0f;
+		}
+
+		return level;
+	}
+
+	public FloatBuffer getVertBuffer(int level)
+	{
+		buildLevel(level);
+		return vertBuffers[level];
+	}
+
+	public FloatBuffer getTexBuffer(int level)
+	{
+		buildLevel(level);
+		return texBuffers[level];
+	}
+
+	public FloatBuffer getLightBuffer(int level)
+	{
+		buildLevel(level);
+		return lightBuffers[level];
+	}
+
+	public IntBuffer getIndexBuffer(int level)
+	{
+		buildLevel(level);
+		return indexBuffers[level];
+	}
+
+	// This builds the buffers of a level the first time they are used
+	private void buildLevel(int level)
+	{
+		if(vertBuffers[level] != null)
+		{
+			return;
+		}
+
+		int count = getNumOfVerts(level);
+		float[] vertPositions = new float[count * 3];
+		float[] vertTexCoords = new float[count * 2];
+		float[] vertLightmapCoords = new float[count * 2];
+
+		tessellate(level, vertPositions, vertTexCoords, vertLightmapCoords);
+
+		texBuffers[level] = Conversion.allocFloats(vertTexCoords);
+		lightBuffers[level] = Conversion.allocFloats(vertLightmapCoords);
+		indexBuffers[level] = Conversion.allocInts(getIndices(level));
+
+		// This one goes last, it's what says the level is ready
+		vertBuffers[level] = Conversion.allocFloats(vertPositions);
+	}
+
+	// This returns how many vertices the grid has at a level
+	public int getNumOfVerts(int level)
+	{
+		int tess = getTessellation(level);
+
+		return ((width - 1) / 2 * tess + 1) * ((height - 1) / 2 * tess + 1);
+	}
+
+	// This returns the positions at a level without keeping them, for the collision brushes
+	public float[] getPositions(int level)
+	{
+		float[] vertPositions = new float[getNumOfVerts(level) * 3];
+		tessellate(level, vertPositions, null, null);
+
+		return vertPositions;
+	}
+
+	//////////////////////////// TESSELLATE \\\\\\\\\\\\\\\\\\\\\\\\\\\*
+	/////
+	/////	This evaluates the whole grid at a level into one sheet of vertices
+	/////
+	//////////////////////////// TESSELLATE \\\\\\\\\\\\\\\\\\\\\\\\\\\*
+
+	private void tessellate(int level, float[] vertPositions, float[] vertTexCoords, float[] vertLightmapCoords)
+	{
+		int tess = getTessellation(level);
+		int patchesX = (width - 1) / 2;
+		int patchesY = (height - 1) / 2;
+		int columns = patchesX * tess + 1;
+		int rows = patchesY * tess + 1;
+
+		// The patches share their edge rows, so we walk one sheet of vertices
+		// and find the 3x3 patch and its (u, v) for each of them.
+		for(int row = 0; row < rows; row++)
+		{
+			int patchY = Math.min(row / tess, patchesY - 1);
+			float v = (float)(row - patchY * tess) / tess;
+
+			// The quadratic Bernstein weights down the patch
+			float bv0 = (1.0f - v) * (1.0f - v);
+			float bv1 = 2.0f * v * (1.0f - v);
+			float bv2 = v * v;
+
+			for(int column = 0; column < columns; column++)
+			{
+				int patchX = Math.min(column / tess, patchesX - 1);
+				float u = (float)(column - patchX * tess) / tess;
+
+				// And across the patch
+				float bu0 = (1.0f - u) * (1.0f - u);
+				float bu1 = 2.0f * u * (1.0f - u);
+				float bu2 = u * u;
+
+				// The first control point of this 3x3 patch
+				int first = patchY * 2 * width + patchX * 2;
+				int vertex = row * columns + column;
+
+				for(int i = 0; i < 3; i++)
+				{
+					float bv = (i == 0) ? bv0 : (i == 1) ? bv1 : bv2;
+					int point = first + i * width;
+
+					float w0 = bv * bu0, w1 = bv * bu1, w2 = bv * bu2;
+
+					blend(positions, 3, point, w0, w1, w2, vertPositions, vertex, i == 0);
+
+					if(vertTexCoords != null)
+					{
+						blend(texCoords, 2, point, w0, w1, w2, vertTexCoords, vertex, i == 0);
+						blend(lightmapCoords, 2, point, w0, w1, w2, vertLightmapCoords, vertex, i == 0);
+					}
+				}
+			}
+		}
+	}
+
+	// This adds 3 control points in a row, weighted, to a tessellated vertex
+	private static void blend(float[] source, int size, int point, float w0, float w1, float w2,
+							  float[] dest, int vertex, boolean first)
+	{
+		int s = point * size;
+		int d = vertex * size;
+
+		for(int k = 0; k < size; k++)
+		{
+			float value = source[s + k] * w0 + source[s + size + k] * w1 + source[s + size*2 + k] * w2;
+			dest[d + k] = first ? value : dest[d + k] + value;
+		}
+	}
+
+	// This returns 2 triangles for every quad of the sheet at a level
+	public int[] getIndices(int level)
+	{
+		int tess = getTessellation(level);
+		int columns = (width - 1) / 2 * tess + 1;
+		int rows = (height - 1) / 2 * tess + 1;
+		int[] indices = new int[(columns - 1) * (rows - 1) * 6];
+		int count = 0;
+
+		for(int row = 0; row < rows - 1; row++)
+		{
+			for(int column = 0; column < columns - 1; column++)
+			{
+				int a = row * columns + column;
+				int b = a + 1;
+				int c = a + columns;
+				int d = c + 1;
+
+				// Wound the same way as the polygon faces of the level
+				indices[count++] = a;
+				indices[count++] = c;
+				indices[count++] = b;
+				indices[count++] = b;
+				indices[count++] = c;
+				indices[count++] = d;
+			}
+		}
+
+		return indices;
+	}
+}
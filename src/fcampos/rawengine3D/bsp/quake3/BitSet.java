@@ -1,66 +1,79 @@
 package fcampos.rawengine3D.bsp.quake3;
 
+import java.util.Arrays;
+
 // This is our bitset class for storing which face has already been drawn.
-// The bitset functionality isn't really taken advantage of in this version
-// since we aren't rendering by leafs and nodes.
+// Instead of real bits every face keeps the generation it was last set in,
+// and a face counts as set only while that matches the current generation.
+// clearAll() just starts a new generation, so a frame never has to touch the
+// faces it doesn't draw.
 public class BitSet 
 {
 
-	// Our private bit data that holds the bits and size
-	private int[] m_bits;
+	// Our private stamp data that holds the generation of each slot, and size
+	private int[] m_stamps;
+	private int m_generation;
 	private int m_size;
 	
 	public BitSet() 
 	{
-		m_bits = null;
+		m_stamps = null;
 		m_size = 0;
 	}
 
 	
-	// This resizes our bitset to a size so each face has a bit associated with it
+	// This resizes our bitset to a size so each face has a stamp associated with it
 	public void resize(int count) 
 	{ 
-		// Get the size of integers we need
-		m_size = (count-1)/32 + 1;
+		m_size = count;
 
-		// Make sure we haven't already allocated memory for the bits
-		if(m_bits != null)
-		{
-			if(m_bits.length > 0) 
-			{
-				m_bits = null;
-			}
-		}
-
-		// Allocate the bits and initialize them
-		m_bits = new int[m_size];
-		clearAll();
+		// Allocate the stamps, generation 0 is never current so they all start cleared
+		m_stamps = new int[m_size];
+		m_generation = 1;
 	}
 
-	// This does the binary math to set the desired bit
+	// This sets the desired slot
 	public void set(int i) 
 	{
-		m_bits[i >> 5] |= (1 << (i & 31));
+		m_stamps[i] = m_generation;
 	}
 
-	// This returns if the desired bit slot is a 1 or a 0
+	// This returns if the desired slot is a 1 or a 0.  Note that, as it
+	// always has, this returns true when the slot is still 0.
 	public boolean on(int i) 
 	{
-		return (m_bits[i >> 5] & (1 << (i & 31 ))) == 0;
+		return m_stamps[i] != m_generation;
+	}
+	
+	// This sets a slot and returns true if it was 0 before, so callers only
+	// need a single access per face
+	public boolean testAndSet(int i)
+	{
+		if(m_stamps[i] == m_generation)
+		{
+			return false;
+		}
+		
+		m_stamps[i] = m_generation;
+		return true;
 	}
 
-	// This clears a bit to 0
+	// This clears a slot to 0
 	public void clear(int i) 
 	{
-		m_bits[i >> 5] = m_bits[i >> 5] & ~(1 << (i & 31));
+		m_stamps[i] = 0;
 	}
 
-	// This initializes the bits to 0
+	// This clears every slot to 0 by starting a new generation
 	public void clearAll() 
 	{
-		for (int i=0; i<m_bits.length; i++)
+		m_generation++;
+		
+		// Only after 2^32 clears do we have to wipe the stamps for real
+		if(m_generation == 0)
 		{
-			m_bits[i] = 0;
+			Arrays.fill(m_stamps, 0);
+			m_generation = 1;
 		}
 	}
 
@@ -0,0 +1,138 @@
+package fcampos.rawengine3D.bsp.quake3;
+
+// These work on sets of clusters packed 64 to a long, the same way the rows of
+// the level's visibility are kept.  Cluster i is bit (i & 63) of word i / 64,
+// and a set is a run of words starting at some offset in an array, so a row
+// can be used straight out of the visibility without copying it.  Whole words
+// are handled at a time, so finding which of a few hundred clusters one
+// cluster can see takes a handful of ANDs instead of a bit test for each.
+public final class ClusterBits
+{
+
+	private ClusterBits()
+	{
+	}
+
+	// This returns how many words a set of count clusters needs
+	public static int getNumOfWords(int count)
+	{
+		return (count + 63) >>> 6;
+	}
+
+	public static void set(long[] bits, int offset, int cluster)
+	{
+		bits[offset + (cluster >>> 6)] |= 1L << cluster;
+	}
+
+	public static void clear(long[] bits, int offset, int cluster)
+	{
+		bits[offset + (cluster >>> 6)] &= ~(1L << cluster);
+	}
+
+	public static boolean get(long[] bits, int offset, int cluster)
+	{
+		return (bits[offset + (cluster >>> 6)] & (1L << cluster)) != 0;
+	}
+
+	// This writes a AND b into out and returns how many clusters are left
+	public static int and(long[] a, int aOffset, long[] b, int bOffset, long[] out, int outOffset, int words)
+	{
+		int count = 0;
+
+		for(int i = 0; i < words; i++)
+		{
+			long word = a[aOffset + i] & b[bOffset + i];
+			out[outOffset + i] = word;
+			count += Long.bitCount(word);
+		}
+
+		return count;
+	}
+
+	// This returns how many clusters are in both sets without writing them anywhere
+	public static int andCount(long[] a, int aOffset, long[] b, int bOffset, int words)
+	{
+		int count = 0;
+
+		for(int i = 0; i < words; i++)
+		{
+			count += Long.bitCount(a[aOffset + i] & b[bOffset + i]);
+		}
+
+		return count;
+	}
+
+	// This returns true if the sets have any cluster in common
+	public static boolean intersects(long[] a, int aOffset, long[] b, int bOffset, int words)
+	{
+		for(int i = 0; i < words; i++)
+		{
+			if((a[aOffset + i] & b[bOffset + i]) != 0)
+			{
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	// This returns how many clusters are in the set
+	public static int count(long[] bits, int offset, int words)
+	{
+		int count = 0;
+
+		for(int i = 0; i < words; i++)
+		{
+			count += Long.bitCount(bits[offset + i]);
+		}
+
+		return count;
+	}
+
+	// This returns the first cluster in the set at or after from, or -1 if
+	// there are no more.  To go through a set:
+	//
+	//		for(int c = nextSetBit(bits, 0, words, 0); c >= 0; c = nextSetBit(bits, 0, words, c + 1))
+	public static int nextSetBit(long[] bits, int offset, int words, int from)
+	{
+		int i = from >>> 6;
+		if(i >= words)
+		{
+			return -1;
+		}
+
+		// Drop the clusters before from in the first word, then skip empty words
+		long word = bits[offset + i] & (-1L << from);
+
+		while(word == 0)
+		{
+			if(++i == words)
+			{
+				return -1;
+			}
+			word = bits[offset + i];
+		}
+
+		return (i << 6) + Long.numberOfTrailingZeros(word);
+	}
+
+	// This writes the clusters of the set into clusters and returns how many there were
+	public static int toArray(long[] bits, int offset, int words, int[] clusters)
+	{
+		int count = 0;
+
+		for(int i = 0; i < words; i++)
+		{
+			long word = bits[offset + i];
+
+			// Take the lowest cluster off the word until it's empty
+			while(word != 0)
+			{
+				clusters[count++] = (i << 6) + Long.numberOfTrailingZeros(word);
+				word &= word - 1;
+			}
+		}
+
+		return count;
+	}
+}
@@ -0,0 +1,282 @@
+package fcampos.rawengine3D.bsp.quake3;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+// This is the list of draws for one frame of the level.  The visible faces are
+// added in whatever order the leafs give them, then build() sorts them by
+// texture and lightmap page and joins the triangles of every run of faces with
+// the same pair into one draw.  Nothing in here touches OpenGL, so the number
+// of draws and of texture changes can be checked without a window.
+public class DrawList
+{
+
+	private static final int NO_LIGHTMAP = -1;		// The page of a face without a lightmap
+
+	// The sort key of a face is texture + 1, page + 1 and the face's slot packed
+	// into a long, so each of them has to fit in it's bits
+	private static final int TEXTURE_BITS = 23;		// Keeps the key positive, so it sorts by texture first
+	private static final int PAGE_BITS = 16;
+	private static final int SLOT_BITS = 24;
+	public static final int MAX_TEXTURE = (1 << TEXTURE_BITS) - 2;
+	public static final int MAX_LIGHTMAP_PAGE = (1 << PAGE_BITS) - 2;
+	public static final int MAX_FACES = 1 << SLOT_BITS;
+
+	// The faces added this frame
+	private int numOfFaces;
+	private long[] sortKeys;		// (texture, page) in the high bits, the face slot in the low SLOT_BITS
+	private int[] faceFirstIndex;	// Where the triangles of each face start in the source indices
+	private int[] faceNumIndices;	// How many indices each face has
+	private int[] faceFirstVertex;	// The first vertex each face uses
+	private int[] faceNumVerts;		// How many vertices each face uses
+
+	// The draws made by build()
+	private int numOfDraws;
+	private int[] drawTextures;		// The texture of each draw
+	private int[] drawPages;		// The lightmap page of each draw, or NO_LIGHTMAP
+	private int[] drawFirstIndex;	// Where the indices of each draw start in getIndices()
+	private int[] drawNumIndices;	// How many indices each draw has
+	private int[] drawMinVertex;	// The lowest vertex each draw uses
+	private int[] drawMaxVertex;	// The highest vertex each draw uses
+	private IntBuffer indices;		// The triangles of every draw, one draw after the other
+
+	private int numOfTextureChanges;	// The texture binds the draws need, in order
+	private int numOfLightmapChanges;	// The lightmap page binds the draws need, in order
+
+	public DrawList()
+	{
+		sortKeys = new long[256];
+		faceFirstIndex = new int[256];
+		faceNumIndices = new int[256];
+		faceFirstVertex = new int[256];
+		faceNumVerts = new int[256];
+
+		drawTextures = new int[64];
+		drawPages = new int[64];
+		drawFirstIndex = new int[64];
+		drawNumIndices = new int[64];
+		drawMinVertex = new int[64];
+		drawMaxVertex = new int[64];
+		indices = allocIndices(4096);
+	}
+
+	// This empties the list for a new frame.  The arrays are kept.
+	public void clear()
+	{
+		numOfFaces = 0;
+		numOfDraws = 0;
+		numOfTextureChanges = 0;
+		numOfLightmapChanges = 0;
+	}
+
+	// This adds a visible face.  The texture is from -1, for a missing one, to
+	// MAX_TEXTURE.  The page is the face's lightmap page up to MAX_LIGHTMAP_PAGE,
+	// or -1 for no lightmap, and the ranges are into the level's index and
+	// vertex buffers.
+	public void add(int texture, int lightmapPage, int firstIndex, int numIndices, int firstVertex, int numVerts)
+	{
+		// Anything out of range would spill into the other fields of the key
+		// and join faces that don't belong together
+		if(texture < -1 || texture > MAX_TEXTURE)
+		{
+			throw new IllegalArgumentException("Texture " + texture + " is out of the draw list's range");
+		}
+		if(lightmapPage < NO_LIGHTMAP || lightmapPage > MAX_LIGHTMAP_PAGE)
+		{
+			throw new IllegalArgumentException("Lightmap page " + lightmapPage + " is out of the draw list's range");
+		}
+		if(numOfFaces == MAX_FACES)
+		{
+			throw new IllegalStateException("A draw list can't hold more than " + MAX_FACES + " faces");
+		}
+
+		if(numOfFaces == sortKeys.length)
+		{
+			int size = numOfFaces * 2;
+			sortKeys = Arrays.copyOf(sortKeys, size);
+			faceFirstIndex = Arrays.copyOf(faceFirstIndex, size);
+			faceNumIndices = Arrays.copyOf(faceNumIndices, size);
+			faceFirstVertex = Arrays.copyOf(faceFirstVertex, size);
+			faceNumVerts = Arrays.copyOf(faceNumVerts, size);
+		}
+
+		// The texture sorts first since it's the most expensive bind, then the
+		// page.  Both are moved up one so a missing texture and no lightmap
+		// sort before the first real ones.
+		long key = ((long)(texture + 1) << PAGE_BITS) | (lightmapPage + 1);
+
+		sortKeys[numOfFaces] = (key << SLOT_BITS) | numOfFaces;
+		faceFirstIndex[numOfFaces] = firstIndex;
+		faceNumIndices[numOfFaces] = numIndices;
+		faceFirstVertex[numOfFaces] = firstVertex;
+		faceNumVerts[numOfFaces] = numVerts;
+		numOfFaces++;
+	}
+
+	//////////////////////////// BUILD \\\\\\\\\\\\\\\\\\\\\\\\\\\*
+	/////
+	/////	This sorts the faces and joins every run with the same state into one draw
+	/////
+	//////////////////////////// BUILD \\\\\\\\\\\\\\\\\\\\\\\\\\\*
+
+	public void build(IntBuffer sourceIndices)
+	{
+		numOfDraws = 0;
+		numOfTextureChanges = 0;
+		numOfLightmapChanges = 0;
+
+		// Sorting the packed keys keeps the faces in the order they were added
+		// within a run, and doesn't make any objects
+		Arrays.sort(sortKeys, 0, numOfFaces);
+
+		int totalIndices = 0;
+		for(int i = 0; i < numOfFaces; i++)
+		{
+			totalIndices += faceNumIndices[i];
+		}
+
+		if(indices.capacity() < totalIndices)
+		{
+			indices = allocIndices(Math.max(totalIndices, indices.capacity() * 2));
+		}
+
+		indices.clear();
+
+		long lastKey = -1;
+		int lastTexture = -1;
+		int lastPage = NO_LIGHTMAP;
+
+		for(int i = 0; i < numOfFaces; i++)
+		{
+			long key = sortKeys[i] >>> SLOT_BITS;
+			int face = (int)(sortKeys[i] & (MAX_FACES - 1));
+
+			// A new texture or page starts a new draw
+			if(key != lastKey)
+			{
+				int texture = (int)(key >>> PAGE_BITS) - 1;
+				int page = (int)(key & ((1 << PAGE_BITS) - 1)) - 1;
+
+				if(texture != lastTexture)
+				{
+					numOfTextureChanges++;
+					lastTexture = texture;
+				}
+
+				// A face without a lightmap just leaves the last page bound
+				if(page != NO_LIGHTMAP && page != lastPage)
+				{
+					numOfLightmapChanges++;
+					lastPage = page;
+				}
+
+				startDraw(texture, page, indices.position());
+				lastKey = key;
+			}
+
+			// Copy the face's triangles onto the end of the draw
+			int first = faceFirstIndex[face];
+			int count = faceNumIndices[face];
+
+			for(int k = 0; k < count; k++)
+			{
+				indices.put(sourceIndices.get(first + k));
+			}
+
+			int draw = numOfDraws - 1;
+			drawNumIndices[draw] += count;
+			drawMinVertex[draw] = Math.min(drawMinVertex[draw], faceFirstVertex[face]);
+			drawMaxVertex[draw] = Math.max(drawMaxVertex[draw], faceFirstVertex[face] + faceNumVerts[face] - 1);
+		}
+
+		indices.flip();
+	}
+
+	// This adds an empty draw for a texture and page
+	private void startDraw(int texture, int page, int firstIndex)
+	{
+		if(numOfDraws == drawTextures.length)
+		{
+			int size = numOfDraws * 2;
+			drawTextures = Arrays.copyOf(drawTextures, size);
+			drawPages = Arrays.copyOf(drawPages, size);
+			drawFirstIndex = Arrays.copyOf(drawFirstIndex, size);
+			drawNumIndices = Arrays.copyOf(drawNumIndices, size);
+			drawMinVertex = Arrays.copyOf(drawMinVertex, size);
+			drawMaxVertex = Arrays.copyOf(drawMaxVertex, size);
+		}
+
+		drawTextures[numOfDraws] = texture;
+		drawPages[numOfDraws] = page;
+		drawFirstIndex[numOfDraws] = firstIndex;
+		drawNumIndices[numOfDraws] = 0;
+		drawMinVertex[numOfDraws] = Integer.MAX_VALUE;
+		drawMaxVertex[numOfDraws] = Integer.MIN_VALUE;
+		numOfDraws++;
+	}
+
+	private static IntBuffer allocIndices(int size)
+	{
+		return ByteBuffer.allocateDirect(size * 4).order(ByteOrder.nativeOrder()).asIntBuffer();
+	}
+
+	public int getNumOfFaces()
+	{
+		return numOfFaces;
+	}
+
+	public int getNumOfDraws()
+	{
+		return numOfDraws;
+	}
+
+	public int getNumOfTextureChanges()
+	{
+		return numOfTextureChanges;
+	}
+
+	public int getNumOfLightmapChanges()
+	{
+		return numOfLightmapChanges;
+	}
+
+	public int getTexture(int draw)
+	{
+		return drawTextures[draw];
+	}
+
+	// This returns the lightmap page of a draw, or -1 if its faces have no lightmap
+	public int getLightmapPage(int draw)
+	{
+		return drawPages[draw];
+	}
+
+	public int getFirstIndex(int draw)
+	{
+		return drawFirstIndex[draw];
+	}
+
+	public int getNumOfIndices(int draw)
+	{
+		return drawNumIndices[draw];
+	}
+
+	public int getMinVertex(int draw)
+	{
+		return drawMinVertex[draw];
+	}
+
+	public int getMaxVertex(int draw)
+	{
+		return drawMaxVertex[draw];
+	}
+
+	// This returns the joined triangles of all the draws.  Move its position
+	// and limit to a draw's range before handing it to OpenGL.
+	public IntBuffer getIndices()
+	{
+		return indices;
+	}
+}
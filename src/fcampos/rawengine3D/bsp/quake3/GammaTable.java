@@ -0,0 +1,75 @@
+package fcampos.rawengine3D.bsp.quake3;
+
+// This is the lightmap gamma correction as a lookup table.  The math most
+// likely originated from the Aftershock engine.  The gamma scales
+// every channel of a pixel by the factor, and if that pushes any channel past
+// 255 the whole pixel is scaled back down by its brightest channel, so the
+// color keeps its hue.  That means each output channel only depends on the
+// channel itself and on the brightest channel of the pixel, so we work it out
+// once for every (brightest, channel) pair and the per pixel work is a max and
+// three lookups.  The table gives exactly the bytes the float math did.
+public class GammaTable 
+{
+	
+	private final float factor;		// The gamma factor the table was built for
+	private final byte[] table;		// The output for [brightest channel * 256 + channel]
+	
+	public GammaTable(float factor)
+	{
+		this.factor = factor;
+		table = new byte[256 * 256];
+		
+		// The channel times the factor, kept to a 255 ratio
+		float[] scaled = new float[256];
+		for(int i = 0; i < 256; i++)
+		{
+			scaled[i] = (float)i * factor / 255.0f;
+		}
+		
+		for(int max = 0; max < 256; max++)
+		{
+			// If the brightest channel went past the highest value, scale the pixel by it
+			float scale = 1.0f;
+			if(scaled[max] > 1.0f)
+			{
+				scale = 1.0f / scaled[max];
+			}
+			scale *= 255.0f;
+			
+			// Only channels up to the brightest one can show up with it
+			for(int channel = 0; channel <= max; channel++)
+			{
+				table[(max << 8) + channel] = (byte)(scaled[channel] * scale);
+			}
+		}
+	}
+	
+	// This parses the [Gamma] value from Config.ini
+	public static GammaTable parse(String factorGamma)
+	{
+		return new GammaTable(Float.parseFloat(factorGamma.trim()));
+	}
+	
+	public float getFactor()
+	{
+		return factor;
+	}
+	
+	// This gamma corrects length bytes of RGB pixels from source into dest.
+	// The two can be the same array.
+	public void apply(byte[] source, int sourceOffset, byte[] dest, int destOffset, int length)
+	{
+		for(int i = 0; i < length; i += 3) 
+		{
+			int r = source[sourceOffset + i] & 0xff;
+			int g = source[sourceOffset + i+1] & 0xff;
+			int b = source[sourceOffset + i+2] & 0xff;
+			
+			int row = Math.max(r, Math.max(g, b)) << 8;
+			
+			dest[destOffset + i]   = table[row + r];
+			dest[destOffset + i+1] = table[row + g];
+			dest[destOffset + i+2] = table[row + b];
+		}
+	}
+}
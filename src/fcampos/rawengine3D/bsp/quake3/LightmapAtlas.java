@@ -0,0 +1,181 @@
+package fcampos.rawengine3D.bsp.quake3;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+// This packs the 128x128 lightmaps of a level into a few big pages, so the
+// renderer only has to switch lightmap textures when it moves to another page
+// instead of on nearly every face.  Every lightmap gets a cell on a grid with
+// a one pixel border copied from its edges, which keeps the filtering from
+// pulling in the neighbouring lightmap.  Nothing in here touches OpenGL, the
+// pages are plain RGB images and the UVs are remapped on the CPU.
+public class LightmapAtlas 
+{
+	
+	public static final int LIGHTMAP_SIZE = 128;		// Quake 3 lightmaps are always 128x128
+	public static final int DEFAULT_PAGE_SIZE = 1024;	// A page size every card can take
+	
+	private static final int BORDER = 1;				// The pixels copied around each lightmap
+	private static final int CELL_SIZE = LIGHTMAP_SIZE + BORDER * 2;
+	
+	private int numOfLightmaps;
+	private int pageWidth;
+	private int cellsPerRow;
+	private int cellsPerPage;
+	private int numOfPages;
+	private int[] pageHeights;
+	
+	public LightmapAtlas(int numOfLightmaps)
+	{
+		this(numOfLightmaps, DEFAULT_PAGE_SIZE);
+	}
+	
+	// The page size must be a power of two that fits at least one lightmap cell
+	public LightmapAtlas(int numOfLightmaps, int pageSize)
+	{
+		if(pageSize < CELL_SIZE || Integer.bitCount(pageSize) != 1)
+		{
+			throw new IllegalArgumentException("Bad lightmap page size: " + pageSize);
+		}
+		
+		this.numOfLightmaps = numOfLightmaps;
+		pageWidth = pageSize;
+		
+		// Small levels don't need a full page, so shrink it while the lightmaps still fit
+		while(pageWidth / 2 >= CELL_SIZE && 
+			  (pageWidth / 2 / CELL_SIZE) * (pageWidth / 2 / CELL_SIZE) >= numOfLightmaps)
+		{
+			pageWidth /= 2;
+		}
+		
+		cellsPerRow = pageWidth / CELL_SIZE;
+		cellsPerPage = cellsPerRow * cellsPerRow;
+		numOfPages = (numOfLightmaps + cellsPerPage - 1) / cellsPerPage;
+		pageHeights = new int[numOfPages];
+		
+		// Every page is full height except maybe the last one, which only needs
+		// enough rows for what is left over, rounded up to a power of two.
+		for(int i = 0; i < numOfPages; i++)
+		{
+			int cells = Math.min(cellsPerPage, numOfLightmaps - i * cellsPerPage);
+			int rows = (cells + cellsPerRow - 1) / cellsPerRow;
+			
+			pageHeights[i] = Integer.highestOneBit(rows * CELL_SIZE - 1) << 1;
+		}
+	}
+	
+	public int getNumOfLightmaps()
+	{
+		return numOfLightmaps;
+	}
+	
+	public int getNumOfPages()
+	{
+		return numOfPages;
+	}
+	
+	public int getPageWidth()
+	{
+		return pageWidth;
+	}
+	
+	public int getPageHeight(int page)
+	{
+		return pageHeights[page];
+	}
+	
+	// This returns the page that holds a lightmap
+	public int getPage(int lightmapID)
+	{
+		return lightmapID / cellsPerPage;
+	}
+	
+	// These return the corner of a lightmap on its page, inside the border
+	public int getX(int lightmapID)
+	{
+		return ((lightmapID % cellsPerPage) % cellsPerRow) * CELL_SIZE + BORDER;
+	}
+	
+	public int getY(int lightmapID)
+	{
+		return ((lightmapID % cellsPerPage) / cellsPerRow) * CELL_SIZE + BORDER;
+	}
+	
+	//////////////////////////// REMAP \\\\\\\\\\\\\\\\\\\\\\\\\\\*
+	/////
+	/////	This turns (u, v) pairs of a lightmap into (u, v) pairs of its page
+	/////
+	//////////////////////////// REMAP \\\\\\\\\\\\\\\\\\\\\\\\\\\*
+	
+	public void remap(int lightmapID, float[] source, int sourceOffset, float[] dest, int destOffset, int count)
+	{
+		int page = getPage(lightmapID);
+		float scaleU = (float)LIGHTMAP_SIZE / pageWidth;
+		float scaleV = (float)LIGHTMAP_SIZE / pageHeights[page];
+		float offsetU = (float)getX(lightmapID) / pageWidth;
+		float offsetV = (float)getY(lightmapID) / pageHeights[page];
+		
+		for(int i = 0; i < count; i++)
+		{
+			dest[destOffset + i*2]   = offsetU + source[sourceOffset + i*2] * scaleU;
+			dest[destOffset + i*2+1] = offsetV + source[sourceOffset + i*2+1] * scaleV;
+		}
+	}
+	
+	//////////////////////////// BUILD PAGES \\\\\\\\\\\\\\\\\\\\\\\\\\\*
+	/////
+	/////	This copies the RGB lightmap images into new RGB page images
+	/////
+	//////////////////////////// BUILD PAGES \\\\\\\\\\\\\\\\\\\\\\\\\\\*
+	
+	public ByteBuffer[] buildPages(ByteBuffer[] lightmapImages)
+	{
+		ByteBuffer[] pages = new ByteBuffer[numOfPages];
+		
+		for(int i = 0; i < numOfPages; i++)
+		{
+			pages[i] = ByteBuffer.allocateDirect(pageWidth * pageHeights[i] * 3).order(ByteOrder.nativeOrder());
+		}
+		
+		for(int i = 0; i < numOfLightmaps; i++)
+		{
+			copyLightmap(lightmapImages[i], pages[getPage(i)], getX(i), getY(i));
+		}
+		
+		return pages;
+	}
+	
+	// This copies one lightmap into its cell, repeating the edge pixels into the border
+	private void copyLightmap(ByteBuffer image, ByteBuffer page, int x, int y)
+	{
+		int rowBytes = LIGHTMAP_SIZE * 3;
+		byte[] row = new byte[rowBytes];
+		
+		for(int j = -BORDER; j < LIGHTMAP_SIZE + BORDER; j++)
+		{
+			// Rows above and below the lightmap repeat its first and last row
+			int sourceRow = Math.min(Math.max(j, 0), LIGHTMAP_SIZE - 1);
+			
+			for(int k = 0; k < rowBytes; k++)
+			{
+				row[k] = image.get(image.position() + sourceRow * rowBytes + k);
+			}
+			
+			int start = ((y + j) * pageWidth + x) * 3;
+			
+			page.position(start);
+			page.put(row);
+			
+			// Then the columns to the left and right repeat its first and last pixel
+			for(int b = 1; b <= BORDER; b++)
+			{
+				page.position(start - b * 3);
+				page.put(row, 0, 3);
+				page.position(start + rowBytes + (b - 1) * 3);
+				page.put(row, rowBytes - 3, 3);
+			}
+		}
+		
+		page.clear();
+	}
+}
@@ -0,0 +1,96 @@
+package fcampos.rawengine3D.bsp.quake3;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import fcampos.rawengine3D.loader.BufferLoader;
+
+// This maps a whole .bsp file into memory with FileChannel.map() and hands out
+// little-endian views of each lump.  Nothing is copied onto the heap until a
+// lump is actually decoded, so the operating system only pages in what we use.
+public class MappedBSPFile 
+{
+	
+	public static final String BSP_ID = "IBSP";	// The magic number of Quake 3 maps
+	public static final int BSP_VERSION = 0x2e;	// The version of Quake 3 maps
+	
+	private MappedByteBuffer buffer;	// The whole file, mapped read only
+	private int[] lumpOffsets;			// The offset of each lump into the file
+	private int[] lumpLengths;			// The length in bytes of each lump
+	
+	public MappedBSPFile(File file) throws IOException
+	{
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		
+		try
+		{
+			FileChannel channel = raf.getChannel();
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		finally
+		{
+			// The mapping stays valid after the channel is closed
+			raf.close();
+		}
+		
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		
+		// Read and check the header
+		byte[] id = new byte[4];
+		buffer.get(id);
+		int version = buffer.getInt();
+		
+		if(!BSP_ID.equals(new String(id)) || version != BSP_VERSION)
+		{
+			throw new IOException("Not a Quake 3 BSP file: " + file.getPath());
+		}
+		
+		// Read the lump directory that follows the header
+		lumpOffsets = new int[Lumps.kMaxLumps.ordinal()];
+		lumpLengths = new int[Lumps.kMaxLumps.ordinal()];
+		
+		for(int i=0; i < lumpOffsets.length; i++)
+		{
+			lumpOffsets[i] = buffer.getInt();
+			lumpLengths[i] = buffer.getInt();
+			
+			if(lumpOffsets[i] < 0 || lumpLengths[i] < 0 || 
+			   (long)lumpOffsets[i] + lumpLengths[i] > buffer.capacity())
+			{
+				throw new IOException("Corrupt lump " + Lumps.values()[i] + " in " + file.getPath());
+			}
+		}
+	}
+	
+	// This returns a little-endian view over the bytes of a single lump
+	public ByteBuffer getLump(Lumps lump)
+	{
+		ByteBuffer view = buffer.duplicate();
+		view.limit(lumpOffsets[lump.ordinal()] + lumpLengths[lump.ordinal()]);
+		view.position(lumpOffsets[lump.ordinal()]);
+		
+		return view.slice().order(ByteOrder.LITTLE_ENDIAN);
+	}
+	
+	// This returns a loader positioned at the start of a lump
+	public BufferLoader getLoader(Lumps lump)
+	{
+		return new BufferLoader(getLump(lump));
+	}
+	
+	public int getLumpLength(Lumps lump)
+	{
+		return lumpLengths[lump.ordinal()];
+	}
+	
+	// This returns how many structures of the given size fit in the lump
+	public int getCount(Lumps lump, int structSize)
+	{
+		return lumpLengths[lump.ordinal()] / structSize;
+	}
+}
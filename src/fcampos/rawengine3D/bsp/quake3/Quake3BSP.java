@@ -1,6 +1,7 @@
 package fcampos.rawengine3D.bsp.quake3;
 
 import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL12.*;
 import static org.lwjgl.opengl.ARBMultitexture.*;
 
 
@@ -12,24 +13,48 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
 
 
 import fcampos.rawengine3D.MathUtil.Vector3f;
-import fcampos.rawengine3D.MathUtil.VectorMath;
 import fcampos.rawengine3D.gamecore.GameCore;
+import fcampos.rawengine3D.graficos.Frustum;
+import fcampos.rawengine3D.graficos.OcclusionBuffer;
 import fcampos.rawengine3D.graficos.Texture;
 import fcampos.rawengine3D.graficos.TextureCoord;
 import fcampos.rawengine3D.loader.BinaryLoader;
+import fcampos.rawengine3D.loader.BufferLoader;
 import fcampos.rawengine3D.resource.Conversion;
 import fcampos.rawengine3D.resource.TextureManager;
 
 public class Quake3BSP {
 	
 	public final static int FACE_POLYGON = 1;
+	public final static int FACE_PATCH = 2;
 	private static final float EPSILON =  0.03125f;		// This is our small number to compensate for float errors
 	
 	private static final int TYPE_RAY =	0;				// This is the type for tracing a RAY
 	private static final int TYPE_SPHERE = 1;				// This is the type for tracing a SPHERE
+	private static final int TYPE_BOX = 2;				// This is the type for tracing a BOX
+	
+	private static final int FACE_VERTEX_SIZE = 7;		// The floats of one vertex in faceVertices
+	
+	private static final int PATCH_COLLISION_LEVEL = 2;		// The BezierPatch level the curves collide at
+	private static final float PATCH_THICKNESS = 4.0f;		// How far the patch brushes reach behind the curve
+	
+	private static final int CONTENTS_SOLID = 1;					// The content flag of solid brushes
+	private static final int CONTENTS_TRANSLUCENT = 0x20000000;		// The content flag of brushes you can see through
+	private static final int SURF_SKY = 0x4;						// The surface flag of the sky
+	private static final int SURF_NODRAW = 0x80;					// The surface flag of faces that are never drawn
+	
+	private static final float LEAF_HINT_MARGIN = 1.0f;		// How far inside a plane the leaf bounds must be to skip it
+	
+	private static final int MAX_OCCLUDERS = 16;				// The faces drawn into the occlusion buffer each frame
+	private static final float OCCLUDER_MIN_AREA = 64 * 64;	// The smallest face worth drawing as an occluder
 	
 	public static int visibleFaces;
 
@@ -51,24 +76,111 @@ public class Quake3BSP {
 	private float traceRadius;		// This stores the sphere's radius for a collision offset
 
 	private boolean collided;			// This tells if we just collided or not
+	
+	// The result the old single threaded traces use, so they don't make a new one
+	// (and a new stamp for every brush) each time they are called
+	private final TraceResult legacyTrace = new TraceResult();
 
 	private int[] indices;	// The object's indices for rendering
-	private BSPVertex[]  verts;		// The object's vertices
 	private BSPFace[]	 faces;		// The faces information of the object
-	private BSPNode[]    nodes;		// The nodes in the bsp tree
-	private BSPLeaf[]    leafs;		// The leafs in the bsp tree
-	private BSPPlane[]   planes;		// The planes stored in the bsp tree
 	private int[]        leafFaces;	// The leaf's faces in the bsp tree
 	private BSPVisData   clusters;	// The clusters in the bsp tree for space partitioning
 	private BSPTexture[] textures;		// This stores our texture info for each brush
-	private BSPBrush[]	 brushes;		// This is our brushes
-	private BSPBrushSide[] brushSides;	// This holds the brush sides
 	private int[] leafBrushes;  // The indices into the brush array
+	
+	// The vertices, nodes, leafs, planes and brushes are stored as flat arrays
+	// instead of arrays of small objects.  The tree walks and traces touch these
+	// every frame, so keeping them packed saves the pointer chasing and the
+	// object headers.  Vectors are stored as consecutive x, y, z values.
+	private float[] vertPositions;		// (x, y, z) position of each vertex
+	private float[] vertTexCoords;		// (u, v) texture coordinate of each vertex
+	private float[] vertLightmapCoords;	// (u, v) lightmap coordinate of each vertex
+	private float[] vertNormals;		// (x, y, z) normal of each vertex
+	private byte[]  vertColors;			// RGBA color of each vertex
+	
+	private int[]   nodePlanes;			// The index into the planes for each node
+	private int[]   nodeChildren;		// The front and back child of each node, 2 per node
+	
+	private int[]   leafClusters;		// The visibility cluster of each leaf
+	private float[] leafBounds;			// The min (x, y, z) and max (x, y, z) of each leaf, 6 per leaf
+	private int[]   leafFirstFace;		// The first index into the leaf faces for each leaf
+	private int[]   leafNumFaces;		// The number of faces for each leaf
+	private int[]   leafFirstBrush;		// The first index into the leaf brushes for each leaf
+	private int[]   leafNumBrushes;		// The number of brushes for each leaf
+	
+	private float[] planeNormals;		// The (x, y, z) normal of each plane
+	private float[] planeDistances;		// The distance from the origin of each plane
+	
+	private int[]   brushFirstSide;		// The first brush side of each brush
+	private int[]   brushNumSides;		// The number of sides of each brush
+	private int[]   brushTextureIDs;	// The texture index of each brush
+	private int[]   brushSidePlanes;	// The plane index of each brush side
 								
 								
 	private BitSet facesDrawn;		// The bitset for the faces that have/haven't been drawn
 	
-	private BinaryLoader loader;
+	private BezierPatch[] patches;			// The tessellations of the curved faces, made when first drawn
+	
+	// The vertices of every face are packed one face after the other in a
+	// single interleaved buffer, (x, y, z, u, v, lightmap u, lightmap v) per
+	// vertex, and all of their triangles in a single index buffer that points
+	// straight into it.  A face is just its offsets and counts into these, so
+	// the arrays are set once per frame and each face draws a range.
+	private FloatBuffer faceVertices;		// The interleaved vertices of all the faces
+	private FloatBuffer faceTexCoords;		// faceVertices seen from the first texture coordinate
+	private FloatBuffer faceLightmapCoords;	// faceVertices seen from the first lightmap coordinate
+	private IntBuffer faceIndices;			// The triangles of all the faces
+	private boolean faceArraysBound;		// True while the vertex arrays point into faceVertices
+	
+	private boolean batching;				// True to sort the visible polygons into draws instead of drawing them one by one
+	
+	private VisibleFaceList frontVisibility;	// The visible faces being drawn this frame
+	private VisibleFaceList backVisibility;		// The visible faces the worker is filling for the next frame
+	private ForkJoinTask<?> pendingVisibility;	// The job filling backVisibility, or null
+	private boolean asyncVisibility;			// True to find the visible faces on the pool a frame ahead
+	
+	private LightmapAtlas lightmapAtlas;	// Where each lightmap sits on the lightmap pages
+	private byte[] lightmapBits;			// The RGB of every lightmap before the gamma, kept for setGamma()
+	private GammaTable gammaTable;			// The gamma the lightmap pages were corrected with
+	private int boundLightmapPage;			// The lightmap page bound while rendering, or -1
+	
+	private int[] visibleLeafs;			// The leafs in the PVS of visibleLeafsCluster
+	private int numOfVisibleLeafs;		// How many entries of visibleLeafs are used
+	private int visibleLeafsCluster;	// The camera cluster visibleLeafs was built for
+	private int[] frustumLeafs;			// The visible leafs that are also in the frustum this frame
+	private int cameraLeaf;				// The leaf the camera was in last frame, the hint for this one
+	
+	// A point inside a leaf's bounding box is only in the leaf if it is also on
+	// the right side of the node planes above it that cut through the box.  The
+	// rest of the planes have the whole box on the leaf's side, so they don't
+	// need to be checked.  Those few planes are all a hinted findLeaf() looks at,
+	// and they are copied next to each other so checking them stays in the cache.
+	private int[] leafHintFirst;		// Where each leaf's planes start in leafHintPlanes, or -1
+	private int[] leafHintCount;		// How many planes each leaf has to check
+	private float[] leafHintPlanes;		// (x, y, z, distance, behind) of each plane, facing into the leaf
+	private int numOfLeafHintPlanes;	// How many planes leafHintPlanes holds
+	private int numOfFrustumLeafs;		// How many entries of frustumLeafs are used
+	
+	// Leafs behind big walls pass the PVS and the frustum, so the walls closest
+	// to the camera are drawn into a small software depth buffer and the leafs
+	// are tested against it before any of their faces are drawn.
+	private OcclusionBuffer occlusionBuffer;	// The depth of the occluders of this frame
+	private boolean occlusionCulling;			// True to skip the leafs hidden behind the occluders
+	private float[] occluderAreas;				// The area of each face that can be an occluder, else 0
+	private float[] occluderCenters;			// The center of each face that can be an occluder
+	private float[] occluderOutlines;			// The corners of the occluders, going around each one
+	private int[] occluderOutlineFirst;			// The first corner of each occluder in occluderOutlines
+	private int[] occluderOutlineCount;			// How many corners each occluder has
+	private int[] occluderFaces;				// The faces picked as occluders this frame
+	private float[] occluderScores;				// How much of the screen each picked face covers, roughly
+	private BitSet occludersSeen;				// The faces already looked at as occluders this frame
+	private float[] clipMatrix;					// The modelview * projection matrix of this frame
+	private int occludedLeafs;					// The leafs skipped by the occlusion test last frame
+	
+	private MappedBSPFile mappedFile;		// The mapped .bsp file when the lumps are decoded lazily
+	private boolean[] lumpDecoded;			// Which lumps have been decoded from the mapped file
+	private volatile boolean renderLumpsLoaded;		// True once everything renderLevel() needs is decoded
+	private volatile boolean collisionLumpsLoaded;	// True once everything trace() needs is decoded
 	private TextureManager texManager;
 	private TextureManager texManagerLight;
 	
@@ -90,7 +202,7 @@ public class Quake3BSP {
 		numOfTextures = 0;
 		setNumOfLightmaps(0);
 
-		verts = null;
+		vertPositions = null;
 		faces = null;
 		indices = null;
 		
@@ -100,29 +212,26 @@ public class Quake3BSP {
 		lightBuffer = ByteBuffer.allocateDirect(4*100).order(ByteOrder.nativeOrder()).asIntBuffer();
 		
 			
-		setHasTextures(true);
-		setHasLightmaps(true);
+		frontVisibility = new VisibleFaceList();
+		backVisibility = new VisibleFaceList();
 		
-	}
-	
-
-	// This is our integer vector structure
-	public class Vector3i
-	{
-		int x;
-		int y;
-		int z;				// The x y and z position of our integer vector
+		occlusionBuffer = new OcclusionBuffer();
+		occluderFaces = new int[MAX_OCCLUDERS];
+		occluderScores = new float[MAX_OCCLUDERS];
+		occludersSeen = new BitSet();
+		clipMatrix = new float[16];
 		
-		public Vector3i()
-		{
-			x = loader.readInt();
-			y = loader.readInt();
-			z = loader.readInt();
-		}
+		setHasTextures(true);
+		setHasLightmaps(true);
+		setBatching(true);
 		
+		// The occluders cost a few hundred us of the render thread each frame,
+		// more than the faces they hide save on the bundled maps, so a level
+		// has to ask for them
+		setOcclusionCulling(false);
 		
 	}
-
+	
 
 	// This is our BSP header structure
 	public class BSPHeader
@@ -130,10 +239,10 @@ public class Quake3BSP {
 	    String nameID;				// This should always be 'IBSP'
 	    int version;				// This should be 0x2e for Quake 3 files
 	    
-	    public BSPHeader()
+	    public BSPHeader(BinaryLoader in)
 	    {
-	    	nameID = loader.readString(4);
-	    	version = loader.readInt();
+	    	nameID = in.readString(4);
+	    	version = in.readInt();
 	    }
 	} 
 
@@ -144,10 +253,10 @@ public class Quake3BSP {
 		int offset;					// The offset into the file for the start of this lump
 		int length;					// The length in bytes for this lump
 		
-		public BSPLump()
+		public BSPLump(BinaryLoader in)
 		{
-			offset = loader.readInt();
-			length = loader.readInt();
+			offset = in.readInt();
+			length = in.readInt();
 		}
 
 	}
@@ -157,7 +266,7 @@ public class Quake3BSP {
 	{
 	   byte[] imageBits = new byte[128*128*3];   // The RGB data in a 128x128 image
 	   	   
-	   public BSPLightMap()
+	   public BSPLightMap(BinaryLoader in)
 	   {
 		   int count = 0;
 		   for(int i=0; i < 128; i++)
@@ -166,7 +275,7 @@ public class Quake3BSP {
 			   {
 				   for(int k=0; k<3; k++)
 				   {
-					   imageBits[count] = (byte) loader.readByte();
+					   imageBits[count] = (byte) in.readByte();
 					   count++;
 				   }
 			   }
@@ -186,16 +295,17 @@ public class Quake3BSP {
 	    Vector3f normal;				// (x, y, z) normal vector
 	    byte[] color = new byte[4];		// RGBA color for the vertex 
 	    
-	    public BSPVertex()
+	    // This copies a vertex out of the packed vertex arrays
+	    public BSPVertex(int index)
 	    {
-	    	position = new Vector3f(loader.readFloat(), loader.readFloat(), loader.readFloat());
-	    	textureCoord = new TextureCoord(loader.readFloat(), loader.readFloat());
-	    	lightmapCoord = new TextureCoord(loader.readFloat(), loader.readFloat());
-	    	normal = new Vector3f(loader.readFloat(), loader.readFloat(), loader.readFloat());
+	    	position = new Vector3f(vertPositions[index*3], vertPositions[index*3+1], vertPositions[index*3+2]);
+	    	textureCoord = new TextureCoord(vertTexCoords[index*2], vertTexCoords[index*2+1]);
+	    	lightmapCoord = new TextureCoord(vertLightmapCoords[index*2], vertLightmapCoords[index*2+1]);
+	    	normal = new Vector3f(vertNormals[index*3], vertNormals[index*3+1], vertNormals[index*3+2]);
 	    	
 	    	for(int i=0; i<color.length; i++)
 	    	{
-	    		color[i] = (byte) loader.readByte();
+	    		color[i] = vertColors[index*4+i];
 	    	}
 	    }
 	}
@@ -218,100 +328,40 @@ public class Quake3BSP {
 	    Vector3f normal;			// The face normal. 
 	    int[] size = new int[2];				// The bezier patch dimensions. 
 	    	   
-	    FloatBuffer vertFloatBuffer;
-	    FloatBuffer texFloatBuffer;
-	    FloatBuffer lightFloatBuffer;
-	    
-	    IntBuffer indiceIntBuffer;
+	    int vertexOffset;			// The first vertex of this face in faceVertices
+	    int indexOffset;			// The first index of this face in faceIndices
 	    
-	    public BSPFace()
+	    public BSPFace(BinaryLoader in)
 	    {
-	    	textureID = loader.readInt();
-		    effect = loader.readInt();
-		    type = loader.readInt();
-		    startVertIndex = loader.readInt();
-		    numOfVerts = loader.readInt();
-		    startIndex = loader.readInt();
-		    numOfIndices = loader.readInt();
-		    lightmapID = loader.readInt();
-		    lMapCorner[0] = loader.readInt();
-		    lMapCorner[1] = loader.readInt();
-		    lMapSize[0] = loader.readInt();
-		    lMapSize[1] = loader.readInt();
-		    lMapPos = new Vector3f(loader.readFloat(), loader.readFloat(), loader.readFloat());
-		    lMapVecs[0] = new Vector3f(loader.readFloat(), loader.readFloat(), loader.readFloat());
-		    lMapVecs[1] = new Vector3f(loader.readFloat(), loader.readFloat(), loader.readFloat());
-		    normal = new Vector3f(loader.readFloat(), loader.readFloat(), loader.readFloat());
-		    size[0] = loader.readInt();
-		    size[1] = loader.readInt();
-		    
-		    vertFloatBuffer = getVertFloatBuffer();
-		    texFloatBuffer = getTexFloatBuffer();
-			lightFloatBuffer = getLightFloatBuffer();
-			indiceIntBuffer = getIndiceIntBuffer();
-			
-			
-	    }
-	    
-	    private FloatBuffer getVertFloatBuffer()
-	    {
-	    	int b = 0;
-	    	float[] tempVertFloat = new float[numOfVerts*3];
-			for(int a=startVertIndex; a < startVertIndex+numOfVerts; a++)
-			{
-				tempVertFloat[b]   = verts[a].position.x;
-				tempVertFloat[b+1] = verts[a].position.y;
-				tempVertFloat[b+2] = verts[a].position.z;
-				b +=3;
-				
-			}
-			
-			return Conversion.allocFloats(tempVertFloat);
-	    }
-	    
-	    private FloatBuffer getTexFloatBuffer()
-	    {
-	    	int c = 0;
-	    	float[] tempTexFloat = new float[numOfVerts * 2];
-			for(int a=startVertIndex; a < startVertIndex+numOfVerts; a++)
-			{
-				tempTexFloat[c] = verts[a].textureCoord.s;
-				tempTexFloat[c+1] = verts[a].textureCoord.t;
-				c +=2;
-				
-			}
-			
-			return Conversion.allocFloats(tempTexFloat);
-	    	
-	    }
-	    
-	    private FloatBuffer getLightFloatBuffer()
-	    {
-	    	float[] tempLightFloat = new float[numOfVerts * 2];
-			int c = 0;
-			for(int a=startVertIndex; a < startVertIndex+numOfVerts; a++)
-			{
-				tempLightFloat[c] = verts[a].lightmapCoord.s;
-				tempLightFloat[c+1] = verts[a].lightmapCoord.t;
-				c +=2;
-				
-			}
-			
-			return Conversion.allocFloats(tempLightFloat);
-	    }
-	    
-	    private IntBuffer getIndiceIntBuffer()
-	    {
-	    	int[] tempIndicesInt = new int[numOfIndices]; 
-			
-			for(int a=0; a < tempIndicesInt.length; a++)
-			{
-				tempIndicesInt[a] = indices[a+startIndex];
-			}
-			
-			return  Conversion.allocInts(tempIndicesInt);
+	    	textureID = in.readInt();
+		    effect = in.readInt();
+		    type = in.readInt();
+		    startVertIndex = in.readInt();
+		    numOfVerts = in.readInt();
+		    startIndex = in.readInt();
+		    numOfIndices = in.readInt();
+		    lightmapID = in.readInt();
+		    lMapCorner[0] = in.readInt();
+		    lMapCorner[1] = in.readInt();
+		    lMapSize[0] = in.readInt();
+		    lMapSize[1] = in.readInt();
+		    lMapPos = new Vector3f(in.readFloat(), in.readFloat(), in.readFloat());
+		    lMapVecs[0] = new Vector3f(in.readFloat(), in.readFloat(), in.readFloat());
+		    lMapVecs[1] = new Vector3f(in.readFloat(), in.readFloat(), in.readFloat());
+		    normal = new Vector3f(in.readFloat(), in.readFloat(), in.readFloat());
+		    size[0] = in.readInt();
+		    size[1] = in.readInt();
 	    }
 	    
+	    // These let code outside the level, like the tests, look at the faces
+	    // the visible face lists and draw lists point to
+	    public int getType()			{ return type; }
+	    public int getTextureID()		{ return textureID; }
+	    public int getLightmapID()		{ return lightmapID; }
+	    public int getVertexOffset()	{ return vertexOffset; }
+	    public int getNumOfVerts()		{ return numOfVerts; }
+	    public int getIndexOffset()		{ return indexOffset; }
+	    public int getNumOfIndices()	{ return numOfIndices; }
 	}
 
 
@@ -321,123 +371,66 @@ public class Quake3BSP {
 	    String textureName;				// The name of the texture w/o the extension 
 	    int flags;					// The surface flags (unknown) 
 	    int textureType;				// The content flags (unknown)
+	    String fileName;				// The image file found for the name, or null
 	    
-	    public BSPTexture()
-	    {
-	    	textureName = loader.readString(64);
-	    	flags = loader.readInt();
-	    	textureType = loader.readInt();
-	    }
-	}
-	
-	// This stores a node in the BSP tree
-	public class BSPNode
-	{
-	    int plane;					// The index into the planes array 
-	    int front;					// The child index for the front node 
-	    int back;					// The child index for the back node 
-	    Vector3i min;				// The bounding box min position. 
-	    Vector3i max;				// The bounding box max position. 
-	    
-	    public BSPNode()
+	    public BSPTexture(BinaryLoader in)
 	    {
-	    	plane = loader.readInt();
-	    	front = loader.readInt();
-	    	back = loader.readInt();
-	    	min = new Vector3i();
-	    	max = new Vector3i();
+	    	textureName = in.readString(64);
+	    	flags = in.readInt();
+	    	textureType = in.readInt();
 	    }
-	} 
-	
-	// This stores a leaf (end node) in the BSP tree
-	public class BSPLeaf
-	{
-	    int cluster;				// The visibility cluster 
-	    int area;					// The area portal 
-	    Vector3i min;				// The bounding box min position 
-	    Vector3i max;				// The bounding box max position 
-	    int leafFace;				// The first index into the face array 
-	    int numOfLeafFaces;			// The number of faces for this leaf 
-	    int leafBrush;				// The first index for into the brushes 
-	    int numOfLeafBrushes;		// The number of brushes for this leaf
 	    
-	    public BSPLeaf()
+	    public BSPTexture(String textureName, int flags, int textureType)
 	    {
-	    	cluster = loader.readInt();
-	    	area = loader.readInt();
-	    	min = new Vector3i();
-	    	max = new Vector3i();
-	    	leafFace = loader.readInt();
-	    	numOfLeafFaces = loader.readInt();
-	    	leafBrush = loader.readInt();
-	    	numOfLeafBrushes = loader.readInt();
+	    	this.textureName = textureName;
+	    	this.flags = flags;
+	    	this.textureType = textureType;
 	    }
 	}
 	
-	// This stores a splitter plane in the BSP tree
-	public class BSPPlane
-	{
-	    Vector3f normal;			// Plane normal. 
-	    float distance;				// The plane distance from origin
-	    
-	    public BSPPlane()
-	    {
-	    	normal = new Vector3f(loader.readFloat(), loader.readFloat(), loader.readFloat());
-	    	distance = loader.readFloat();
-	    }
-	}
-
 	// This stores the cluster data for the PVS's
 	public class BSPVisData
 	{
 		int numOfClusters;			// The number of clusters
 		int bytesPerCluster;		// The amount of bytes (8 bits) in the cluster's bitset
 		byte[] bitSets = null;			// The array of bytes that holds the cluster bitsets
+		int wordsPerCluster;		// The amount of longs (64 bits) in each row of rows
+		long[] rows = null;			// The same bitsets packed 64 clusters to a long, for ClusterBits
 		
-		public BSPVisData()
+		public BSPVisData(BinaryLoader in)
 		{
-			numOfClusters = loader.readInt();
-			bytesPerCluster = loader.readInt();
+			numOfClusters = in.readInt();
+			bytesPerCluster = in.readInt();
 			
 			int size = numOfClusters * bytesPerCluster;
 			bitSets = new byte[size];
 			for(int i=0; i<bitSets.length; i++)
 			{
-				bitSets[i] = (byte) loader.readByte();
+				bitSets[i] = (byte) in.readByte();
+			}
+			
+			// Pack every row into longs.  Byte b of a row lands in bits (b & 7) * 8
+			// of word b / 8, so cluster i is still bit i of the row.
+			wordsPerCluster = ClusterBits.getNumOfWords(numOfClusters);
+			rows = new long[numOfClusters * wordsPerCluster];
+			
+			int bytes = Math.min(bytesPerCluster, wordsPerCluster * 8);
+			for(int c = 0; c < numOfClusters; c++)
+			{
+				for(int b = 0; b < bytes; b++)
+				{
+					rows[c*wordsPerCluster + (b >> 3)] |= (bitSets[c*bytesPerCluster + b] & 0xffL) << ((b & 7) * 8);
+				}
+				
+				// The padding past the last cluster doesn't count as anything
+				if((numOfClusters & 63) != 0)
+				{
+					rows[c*wordsPerCluster + wordsPerCluster - 1] &= (1L << numOfClusters) - 1;
+				}
 			}
 		}
 	}
 	
-	// This stores the brush data
-	public class BSPBrush 
-	{
-		int brushSide;				// The starting brush side for the brush 
-		int numOfBrushSides;		// Number of brush sides for the brush
-		int textureID;				// The texture index for the brush
-		
-		public BSPBrush()
-		{
-			brushSide = loader.readInt();
-			numOfBrushSides = loader.readInt();
-			textureID = loader.readInt();
-		}
-	}
-
-	// This stores the brush side data, which stores indices for the normal and texture ID
-	public class BSPBrushSide 
-	{
-		int plane;					// The plane index
-		int textureID;				// The texture index
-		
-		public BSPBrushSide()
-		{
-			plane = loader.readInt();
-			textureID = loader.readInt();
-		}
-	}
-
-	
-	
 	////////////////////////////FIND TEXTURE EXTENSION \\\\\\\\\\\\\\\\\\\\\\\\\\\*
 	/////
 	/////	This attaches the image extension to the texture name, if found
@@ -492,12 +485,22 @@ public class Quake3BSP {
 	
 	public boolean loadBSP(String fileName, String factorGamma) throws IOException
 	{
+		return loadBSP(fileName, factorGamma, false);
+	}
+	
+	// When memoryMapped is true the file is mapped with FileChannel.map() instead
+	// of being read into a byte array.  Only the textures and lightmaps are created
+	// here; every other lump is decoded from its mapped view the first time it is used.
+	public boolean loadBSP(String fileName, String factorGamma, boolean memoryMapped) throws IOException
+	{
+		// The visibility job of the old level may still be reading it
+		waitForVisibility();
+		
 		File file = new File(fileName);
 		
 		if(file.exists())
 		{
 			System.out.println(file.getAbsolutePath());
-			loader = new BinaryLoader(file);
 		}
 		
 		// This is the bread and butter of our tutorial.  All the level
@@ -524,6 +527,14 @@ public class Quake3BSP {
 			System.out.println("Could not find BSP file!");
 			return false;
 		}
+		
+		if(memoryMapped)
+		{
+			return loadMappedBSP(file, factorGamma);
+		}
+		
+		BinaryLoader loader = new BinaryLoader(file);
+		mappedFile = null;
 	
 		// Initialize the header and lump structures
 		@SuppressWarnings("unused")
@@ -531,358 +542,1677 @@ public class Quake3BSP {
 		BSPLump[] lumps = new BSPLump[Lumps.kMaxLumps.ordinal()];
 	
 		// Read in the header and lump data
-		header = new BSPHeader();
+		header = new BSPHeader(loader);
 		
 		for(int j=0; j<lumps.length; j++)
 		{
-			lumps[j] = new BSPLump();
+			lumps[j] = new BSPLump(loader);
 		}
 		
 		// Now we know all the information about our file.  We can
 		// then allocate the needed memory for our member variables.
-	
-		// Allocate the vertex memory
 		numOfVerts = lumps[Lumps.kVertices.ordinal()].length / 44;
-		verts     = new BSPVertex [numOfVerts];
-	
-		// Allocate the face memory
 		numOfFaces = lumps[Lumps.kFaces.ordinal()].length / 104;
-		faces     = new BSPFace [numOfFaces];
-	
-		// Allocate the index memory
 		numOfIndices = lumps[Lumps.kIndices.ordinal()].length / 4;
-		indices     = new int[numOfIndices];
-	
-		// Allocate memory to read in the texture information.
-		// We create a local pointer of BSPTextures because we don't need
-		// that information once we create texture maps from it.
 		numOfTextures = lumps[Lumps.kTextures.ordinal()].length / 72;
-		textures = new BSPTexture[numOfTextures];
-
-		// Allocate memory to read in the lightmap data.  Like the texture
-		// data, we just need to create a local array to be destroyed real soon.
 		numOfLightmaps = lumps[Lumps.kLightmaps.ordinal()].length / 49152;
-		BSPLightMap[] lightmaps = new BSPLightMap[numOfLightmaps];
-	
+		numOfNodes = lumps[Lumps.kNodes.ordinal()].length / 36;
+		numOfLeafs = lumps[Lumps.kLeafs.ordinal()].length / 48;
+		numOfLeafFaces = lumps[Lumps.kLeafFaces.ordinal()].length / 4;
+		numOfPlanes = lumps[Lumps.kPlanes.ordinal()].length / 16;
+		numOfBrushes = lumps[Lumps.kBrushes.ordinal()].length / 12;
+		numOfBrushSides = lumps[Lumps.kBrushSides.ordinal()].length / 8;
+		numOfLeafBrushes = lumps[Lumps.kLeafBrushes.ordinal()].length / 4;
+		
 		// Seek to the position in the file that stores the vertex information
 		loader.seekMarkOffset(lumps[Lumps.kVertices.ordinal()].offset);
-		
-		// Since Quake has the Z-axis pointing up, we want to convert the data so
-		// that Y-axis is pointing up (like normal!) :)
-	
-		// Go through all of the vertices that need to be read
-		for(int i = 0; i < numOfVerts; i++)
-		{
-			// Read in the current vertex
-			verts[i] = new BSPVertex();
-			// Swap the y and z values, and negate the new z so Y is up.
-			float temp = verts[i].position.y;
-			verts[i].position.y = verts[i].position.z;
-			verts[i].position.z = -temp;
-		}	
+		readVertices(loader);
 	
 		// Seek to the position in the file that stores the index information
 		loader.seekMarkOffset(lumps[Lumps.kIndices.ordinal()].offset);
-		
-		// Read in all the index information
-		for(int i=0; i < indices.length; i++)
-		{
-			indices[i] = loader.readInt();
-		}
+		readIndices(loader);
 
 		// Seek to the position in the file that stores the face information
 		loader.seekMarkOffset(lumps[Lumps.kFaces.ordinal()].offset);
-		
-		// Read in all the face information
-		for(int i=0; i < numOfFaces; i++)
-		{
-			faces[i] = new BSPFace();
-			
-		}
-		
+		readFaces(loader);
 	
 		// Seek to the position in the file that stores the texture information
 		loader.seekMarkOffset(lumps[Lumps.kTextures.ordinal()].offset);
-		
-		// Read in all the texture information
-		for(int i=0; i < numOfTextures; i++)
-		{
-			textures[i] = new BSPTexture();
-		}
-
-		// Now that we have the texture information, we need to load the
-		// textures.  Since the texture names don't have an extension, we need
-		// to find it first.
-	
-		// Go through all of the textures
-		for(int i = 0; i < numOfTextures; i++)
-		{
-			// Find the extension if any and append it to the file name
-			textures[i].textureName = findTextureExtension(textures[i].textureName);
-			
-			// Create a texture from the image
-						
-			// If there is a valid texture name passed in, we want to set the texture data
-			if(textures[i].textureName != null)
-			{
-				texManager.getLoader().setPosition(i);
-				texManager.getNormalImage(textures[i].textureName, false, false);
-			}else{
-			//int id = texManager.getTexture(i-1).getTexID();
-				texManager.setTexture(new Texture(GL_TEXTURE_2D,1));
-			}
-				
-		}
+		readTextures(loader);
 		
 		// Seek to the position in the file that stores the lightmap information
-		//fseek(fp, lumps[kLightmaps].offset, SEEK_SET);
 		loader.seekMarkOffset(lumps[Lumps.kLightmaps.ordinal()].offset);
-		// Go through all of the lightmaps and read them in
-		for(int i = 0; i < numOfLightmaps ; i++)
-		{
-			// Read in the RGB data for each lightmap
-			lightmaps[i] = new BSPLightMap();
-			// Create a texture map for each lightmap that is read in.  The lightmaps
-			// are always 128 by 128.
-			createLightmapTexture(lightBuffer, i, lightmaps[i], 128, 128, factorGamma);
-		}
+		readLightmaps(loader, factorGamma);
 		
 		// In this function we read from a bunch of new lumps.  These include
 		// the BSP nodes, the leafs, the leaf faces, BSP splitter planes and
 		// visibility data (clusters).
 
-		// Store the number of nodes and allocate the memory to hold them
-		numOfNodes = lumps[Lumps.kNodes.ordinal()].length / 36;
-		nodes     = new BSPNode[numOfNodes];
-
 		// Seek to the position in the file that hold the nodes and store them in m_pNodes
 		loader.seekMarkOffset(lumps[Lumps.kNodes.ordinal()].offset);
-		for(int i=0; i < numOfNodes; i++)
-		{
-			nodes[i] = new BSPNode();
-		}
+		readNodes(loader);
 		
-		// Store the number of leafs and allocate the memory to hold them
-		numOfLeafs = lumps[Lumps.kLeafs.ordinal()].length / 48;
-		leafs     = new BSPLeaf[numOfLeafs];
-
 		// Seek to the position in the file that holds the leafs and store them in m_pLeafs
 		loader.seekMarkOffset(lumps[Lumps.kLeafs.ordinal()].offset);
-		// Now we need to go through and convert all the leaf bounding boxes
-		// to the normal OpenGL Y up axis.
-		for(int i=0; i < numOfLeafs; i++)
-		{
-			leafs[i] = new BSPLeaf();
-			
-			int temp = leafs[i].min.y;
-			leafs[i].min.y = leafs[i].min.z;
-			leafs[i].min.z = -temp;
-
-			// Swap the max y and z values, then negate the new Z
-			temp = leafs[i].max.y;
-			leafs[i].max.y = leafs[i].max.z;
-			leafs[i].max.z = -temp;
-		}
-
+		readLeafs(loader);
 	
-		// Store the number of leaf faces and allocate the memory for them
-		numOfLeafFaces = lumps[Lumps.kLeafFaces.ordinal()].length / 4;
-		leafFaces     = new int[numOfLeafFaces];
-
 		// Seek to the leaf faces lump, then read it's data
-		//fseek(fp, lumps[kLeafFaces].offset, SEEK_SET);
 		loader.seekMarkOffset(lumps[Lumps.kLeafFaces.ordinal()].offset);
-
-		// Read in all the index information
-		for(int i=0; i < leafFaces.length; i++)
-		{
-			leafFaces[i] = loader.readInt();
-		}
-
-		// Store the number of planes, then allocate memory to hold them
-		numOfPlanes = lumps[Lumps.kPlanes.ordinal()].length / 16;
-		planes     = new BSPPlane[numOfPlanes];
+		readLeafFaces(loader);
 
 		// Seek to the planes lump in the file, then read them into m_pPlanes
 		loader.seekMarkOffset(lumps[Lumps.kPlanes.ordinal()].offset);
-		
-		// Go through every plane and convert it's normal to the Y-axis being up
-		for(int i = 0; i < numOfPlanes; i++)
-		{
-			planes[i] = new BSPPlane();
-			
-			float temp = planes[i].normal.y;
-			planes[i].normal.y = planes[i].normal.z;
-			planes[i].normal.z = -temp;
-		}
+		readPlanes(loader);
 
 		// Seek to the position in the file that holds the visibility lump
 		loader.seekMarkOffset(lumps[Lumps.kVisData.ordinal()].offset);
 		// Check if there is any visibility information first
 		if(lumps[Lumps.kVisData.ordinal()].length > 0) 
 		{
-						
-			clusters = new BSPVisData();
-			
+			clusters = new BSPVisData(loader);
 		}
 		
-		// Like we do for other data, we read get the size of brushes and allocate memory
-		numOfBrushes = lumps[Lumps.kBrushes.ordinal()].length / 4;
-		brushes     = new BSPBrush [numOfBrushes];
-		
 		// Here we read in the brush information from the BSP file
-		//fseek(fp, lumps[kBrushes].offset, SEEK_SET);
 		loader.seekMarkOffset(lumps[Lumps.kBrushes.ordinal()].offset);
-		//fread(m_pBrushes, m_numOfBrushes, sizeof(tBSPBrush), fp);
-		
-		for(int i=0; i< numOfBrushes; i++)
-		{
-			brushes[i] = new BSPBrush();
-		}
-
-		// Get the size of brush sides, then allocate memory for it
-		numOfBrushSides = lumps[Lumps.kBrushSides.ordinal()].length / 4;
-		brushSides     = new BSPBrushSide [numOfBrushSides];
+		readBrushes(loader);
 
 		// Read in the brush sides data
-		//fseek(fp, lumps[kBrushSides].offset, SEEK_SET);
 		loader.seekMarkOffset(lumps[Lumps.kBrushSides.ordinal()].offset);
-		//fread(m_pBrushSides, m_numOfBrushSides, sizeof(tBSPBrushSide), fp);
-		for(int i=0; i< numOfBrushSides; i++)
-		{
-			brushSides[i] = new BSPBrushSide();
-		}
-
-		// Read in the number of leaf brushes and allocate memory for it
-		numOfLeafBrushes = lumps[Lumps.kLeafBrushes.ordinal()].length / 4;
-		leafBrushes     = new int [numOfLeafBrushes];
+		readBrushSides(loader);
 
 		// Finally, read in the leaf brushes for traversing the bsp tree with brushes
-		//fseek(fp, lumps[kLeafBrushes].offset, SEEK_SET);
 		loader.seekMarkOffset(lumps[Lumps.kLeafBrushes.ordinal()].offset);
-		//fread(m_pLeafBrushes, m_numOfLeafBrushes, sizeof(int), fp);
-		for(int i=0; i< numOfLeafBrushes; i++)
-		{
-			leafBrushes[i] = loader.readInt();
-		}
+		readLeafBrushes(loader);
 		
-	
-		// I decided to put in a really big optimization for rendering.
-		// I create a bitset that holds a bit slot for every face in the level.
-		// Once the face is drawn, the slot saved for that face is set to 1.
-		// If we try and draw it again, it checks first to see if it has already
-		// been drawn.  We need to do this because many leafs stores faces that
-		// are the same in other leafs.  If we don't check if it's already been drawn,
-		// you can sometimes draw double the faces that you need to.  In this first
-		// tutorial we draw every face once, so it doesn't matter, but when we get
-		// into leafs we will need this.  I just choose to add it in the beginning
-		// so I don't cram a ton of code down your throat when we get to the 
-		// BSP nodes/leafs.
-	
-		// Here we allocate enough bits to store all the faces for our bitset
+		addPatchBrushes();
+		addBrushBevels();
 		
-			facesDrawn = new BitSet();
-			facesDrawn.resize(numOfFaces);
+		// Everything is in memory, so there is nothing left to decode lazily
+		renderLumpsLoaded = true;
+		collisionLumpsLoaded = true;
+		
+		createFacesDrawn();
+		visibleLeafs = null;
+		patches = null;
+		occluderAreas = null;
+		leafHintFirst = null;
+		cameraLeaf = -1;
 	
 		// Return a success
 		return true;
 	}
 	
-	//////////////////////////////CREATE LIGHTMAP TEXTURE \\\\\\\\\\\\\\\\\\\\\\\\\\\\\*
+	//////////////////////////// LOAD MAPPED BSP \\\\\\\\\\\\\\\\\\\\\\\\\\\*
 	/////
-	/////	This creates a texture map from the light map image bits
+	/////	This maps the .bsp file and only creates the textures and lightmaps
 	/////
-	////////////////////////////// CREATE LIGHTMAP TEXTURE \\\\\\\\\\\\\\\\\\\\\\\\\\\\\*
+	//////////////////////////// LOAD MAPPED BSP \\\\\\\\\\\\\\\\\\\\\\\\\\\*
 	
-	private void createLightmapTexture(IntBuffer texture, int position, BSPLightMap imageBits, int width, int height, String factorGamma) throws IOException
+	private boolean loadMappedBSP(File file, String factorGamma) throws IOException
 	{
-		// This function takes in the lightmap image bits and creates a texture map
-		// from them.  The width and height is usually 128x128 anyway....
+		mapLevel(file);
 		
-		// Generate a texture with the associative texture ID stored in the array
-		//IntBuffer temp = ByteBuffer.allocateDirect(4).order(ByteOrder.nativeOrder()).asIntBuffer();
+		// The textures and lightmaps have to be uploaded to OpenGL from this thread,
+		// so they are the only lumps that we decode right away.
+		readTextures(mappedFile.getLoader(Lumps.kTextures));
+		lumpDecoded[Lumps.kTextures.ordinal()] = true;
 		
-		glGenTextures(lightBuffer);
-		int textID = lightBuffer.get(position);
-		//System.out.println(textID);
-		texLight = new Texture(GL_TEXTURE_2D, textID);
-		// This sets the alignment requirements for the start of each pixel row in memory.
-		glPixelStorei(GL_UNPACK_ALIGNMENT, 1);
+		readLightmaps(mappedFile.getLoader(Lumps.kLightmaps), factorGamma);
+		lumpDecoded[Lumps.kLightmaps.ordinal()] = true;
 		
-		// Bind the texture to the texture arrays index and init the texture
-		texLight.bind();
-		texManagerLight.setTexture(texLight);
-	
-		// Change the lightmap gamma values by our desired gamma
-		changeGamma(imageBits, imageBits.imageBits.length, factorGamma);
-	 
-		ByteBuffer imageBuffer = ByteBuffer.allocateDirect(imageBits.imageBits.length); 
-        imageBuffer.order(ByteOrder.nativeOrder()); 
-        imageBuffer.put(imageBits.imageBits, 0, imageBits.imageBits.length); 
-        imageBuffer.flip();
-      
-		//Build Mipmaps (builds different versions of the picture for distances - looks better)
-		gluBuild2DMipmaps(GL_TEXTURE_2D, 3, width, height, GL_RGB, GL_UNSIGNED_BYTE, imageBuffer);
-            	
-		//Assign the mip map levels		
-		glTexParameteri(GL_TEXTURE_2D,GL_TEXTURE_MAG_FILTER,GL_LINEAR);	
-		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_LINEAR_MIPMAP_NEAREST);
-		glTexEnvf(GL_TEXTURE_ENV, GL_TEXTURE_ENV_MODE, GL_MODULATE);
+		createFacesDrawn();
+		visibleLeafs = null;
+		patches = null;
+		occluderAreas = null;
+		leafHintFirst = null;
+		cameraLeaf = -1;
 		
+		return true;
 	}
 	
-	
-	////////////////////////////CHANGE GAMMA \\\\\\\\\\\\\\\\\\\\\\\\\\\*
-	/////
-	/////	This manually changes the gamma of an image
-	/////
-	//////////////////////////// CHANGE GAMMA \\\\\\\\\\\\\\\\\\\\\\\\\\\*
-	
-	private void changeGamma(BSPLightMap light, int size, String factorGamma)
+	// This maps a new level and forgets everything decoded from the old one,
+	// so the lumps are decoded again from the new file when they are used
+	private void mapLevel(File file) throws IOException
 	{
-		//  This function was taken from a couple engines that I saw,
-		// which most likely originated from the Aftershock engine.
-		// Kudos to them!  What it does is increase/decrease the intensity
-		// of the lightmap so that it isn't so dark.  Quake uses hardware to
-		// do this, but we will do it in code.
+		mappedFile = new MappedBSPFile(file);
+		lumpDecoded = new boolean[Lumps.kMaxLumps.ordinal()];
+		renderLumpsLoaded = false;
+		collisionLumpsLoaded = false;
+		
+		vertPositions = null;
+		faces = null;
+		indices = null;
+		nodePlanes = null;
+		leafClusters = null;
+		leafFaces = null;
+		planeNormals = null;
+		clusters = null;
+		brushFirstSide = null;
+		brushSidePlanes = null;
+		leafBrushes = null;
+		
+		// The face buffers are built when the faces are decoded.  Until then
+		// they must not be mistaken for the new level's, like when the
+		// lightmap atlas is applied to them.
+		faceVertices = null;
+		faceTexCoords = null;
+		faceLightmapCoords = null;
+		faceIndices = null;
+		faceArraysBound = false;
+		
+		readLumpCounts(mappedFile);
+	}
+	
+	//////////////////////////// LOAD HEADLESS BSP \\\\\\\\\\\\\\\\\\\\\\\\\\\*
+	/////
+	/////	This maps the .bsp file without creating any textures or lightmaps
+	/////
+	//////////////////////////// LOAD HEADLESS BSP \\\\\\\\\\\\\\\\\\\\\\\\\\\*
+	
+	// This is loadBSP(fileName, gamma, true) without OpenGL, for tools and tests
+	// that have no window.  The level can be traced against and can work out
+	// it's visible faces with findVisibleFaces(), but renderLevel() can't draw it.
+	public boolean loadHeadlessBSP(String fileName) throws IOException
+	{
+		// The visibility job of the old level may still be reading it
+		waitForVisibility();
+		
+		File file = new File(fileName);
+		
+		// Check if the .bsp file could be opened
+		if(!file.exists())
+		{
+			System.out.println("Could not find BSP file!");
+			return false;
+		}
+		
+		mapLevel(file);
+		
+		// The textures are only decoded, and the lightmaps are only given their
+		// place on the pages, so the draw lists still sort the faces by page.
+		readLump(mappedFile, Lumps.kTextures);
+		lumpDecoded[Lumps.kTextures.ordinal()] = true;
+		setLightmapAtlas(new LightmapAtlas(numOfLightmaps));
+		
+		createFacesDrawn();
+		visibleLeafs = null;
+		patches = null;
+		occluderAreas = null;
+		leafHintFirst = null;
+		cameraLeaf = -1;
+		
+		return true;
+	}
+	
+	//////////////////////////// LOAD BSP PARALLEL \\\\\\\\\\\\\\\\\\\\\\\\\\\*
+	/////
+	/////	This decodes all of the lumps at the same time on a ForkJoin pool
+	/////
+	//////////////////////////// LOAD BSP PARALLEL \\\\\\\\\\\\\\\\\\\\\\\\\\\*
+	
+	public boolean loadBSP(String fileName, String factorGamma, ForkJoinPool pool) throws IOException
+	{
+		// The visibility job of the old level may still be reading it
+		waitForVisibility();
+		
+		File file = new File(fileName);
+		
+		// Check if the .bsp file could be opened
+		if(!file.exists())
+		{
+			// Display an error message and quit if the file can't be found.
+			System.out.println("Could not find BSP file!");
+			return false;
+		}
+		
+		System.out.println(file.getAbsolutePath());
+		
+		// Every task reads its lump through its own view of the mapped file,
+		// so none of them share a read position.
+		MappedBSPFile bspFile = new MappedBSPFile(file);
+		mappedFile = null;
+		
+		readLumpCounts(bspFile);
+		clusters = null;
+		
+		// Decode the lumps, gamma correct the lightmaps and build the face
+		// buffers on the pool.  invoke() only returns once all of it is done.
+		readLightmapBits(bspFile.getLump(Lumps.kLightmaps));
+		gammaTable = GammaTable.parse(factorGamma);
+		
+		ByteBuffer[] lightmapImages = new ByteBuffer[numOfLightmaps];
+		pool.invoke(new LoadTask(bspFile, gammaTable, lightmapImages));
+		
+		// Only the OpenGL uploads are left, and those have to happen on this thread
+		createTextures();
+		createLightmapAtlas(lightmapImages);
+		
+		addPatchBrushes();
+		addBrushBevels();
+		
+		renderLumpsLoaded = true;
+		collisionLumpsLoaded = true;
+		
+		createFacesDrawn();
+		visibleLeafs = null;
+		patches = null;
+		occluderAreas = null;
+		leafHintFirst = null;
+		cameraLeaf = -1;
+		
+		return true;
+	}
+	
+	// This is the root of the parallel load.  It decodes every lump and lightmap
+	// side by side, then builds the face buffers once the vertices are in.
+	private class LoadTask extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+		
+		private final MappedBSPFile bspFile;
+		private final GammaTable table;
+		private final ByteBuffer[] lightmapImages;
+		
+		LoadTask(MappedBSPFile bspFile, GammaTable table, ByteBuffer[] lightmapImages)
+		{
+			this.bspFile = bspFile;
+			this.table = table;
+			this.lightmapImages = lightmapImages;
+		}
+		
+		protected void compute()
+		{
+			ArrayList<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+			
+			tasks.add(new LumpTask(bspFile, Lumps.kVertices));
+			tasks.add(new LumpTask(bspFile, Lumps.kIndices));
+			tasks.add(new LumpTask(bspFile, Lumps.kFaces));
+			tasks.add(new LumpTask(bspFile, Lumps.kTextures));
+			tasks.add(new LumpTask(bspFile, Lumps.kNodes));
+			tasks.add(new LumpTask(bspFile, Lumps.kLeafs));
+			tasks.add(new LumpTask(bspFile, Lumps.kLeafFaces));
+			tasks.add(new LumpTask(bspFile, Lumps.kPlanes));
+			tasks.add(new LumpTask(bspFile, Lumps.kVisData));
+			tasks.add(new LumpTask(bspFile, Lumps.kBrushes));
+			tasks.add(new LumpTask(bspFile, Lumps.kBrushSides));
+			tasks.add(new LumpTask(bspFile, Lumps.kLeafBrushes));
+			tasks.add(new LightmapTask(table, lightmapImages, 0, numOfLightmaps));
+			
+			invokeAll(tasks);
+			
+			// The face buffers are copied out of the vertices and indices,
+			// so they have to wait for the first batch to finish.
+			buildFaceBuffers();
+		}
+	}
+	
+	// This decodes a single lump
+	private class LumpTask extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+		
+		private final MappedBSPFile bspFile;
+		private final Lumps lump;
+		
+		LumpTask(MappedBSPFile bspFile, Lumps lump)
+		{
+			this.bspFile = bspFile;
+			this.lump = lump;
+		}
+		
+		protected void compute()
+		{
+			if(lump == Lumps.kFaces)
+			{
+				// Leave the buffers for the FaceBufferTask
+				decodeFaces(bspFile.getLoader(lump));
+			}
+			else
+			{
+				readLump(bspFile, lump);
+			}
+		}
+	}
 	
-		float factor = Float.parseFloat(factorGamma);
+	// This gamma corrects a range of lightmaps from lightmapBits, splitting down to one per task
+	private class LightmapTask extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+		
+		private final GammaTable table;
+		private final ByteBuffer[] lightmapImages;
+		private final int start;
+		private final int end;
+		
+		LightmapTask(GammaTable table, ByteBuffer[] lightmapImages, int start, int end)
+		{
+			this.table = table;
+			this.lightmapImages = lightmapImages;
+			this.start = start;
+			this.end = end;
+		}
+		
+		protected void compute()
+		{
+			if(end - start > 1)
+			{
+				int middle = (start + end) >>> 1;
+				invokeAll(new LightmapTask(table, lightmapImages, start, middle),
+						  new LightmapTask(table, lightmapImages, middle, end));
+				return;
+			}
+			
+			for(int i = start; i < end; i++)
+			{
+				lightmapImages[i] = createLightmapImage(i, table);
+			}
+		}
+	}
+	
+	// This copies a range of faces into the shared vertex and index arrays
+	private class FaceBufferTask extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+		
+		private static final int THRESHOLD = 256;	// Faces built by one task before it stops splitting
+		
+		private final float[] vertices;
+		private final int[] triangles;
+		private final int start;
+		private final int end;
+		
+		FaceBufferTask(float[] vertices, int[] triangles, int start, int end)
+		{
+			this.vertices = vertices;
+			this.triangles = triangles;
+			this.start = start;
+			this.end = end;
+		}
+		
+		protected void compute()
+		{
+			if(end - start > THRESHOLD)
+			{
+				int middle = (start + end) >>> 1;
+				invokeAll(new FaceBufferTask(vertices, triangles, start, middle), 
+						  new FaceBufferTask(vertices, triangles, middle, end));
+				return;
+			}
+			
+			for(int i = start; i < end; i++)
+			{
+				BSPFace face = faces[i];
+				
+				for(int v = 0; v < face.numOfVerts; v++)
+				{
+					int from = face.startVertIndex + v;
+					int to = (face.vertexOffset + v) * FACE_VERTEX_SIZE;
+					
+					vertices[to]     = vertPositions[from*3];
+					vertices[to + 1] = vertPositions[from*3 + 1];
+					vertices[to + 2] = vertPositions[from*3 + 2];
+					vertices[to + 3] = vertTexCoords[from*2];
+					vertices[to + 4] = vertTexCoords[from*2 + 1];
+					vertices[to + 5] = vertLightmapCoords[from*2];
+					vertices[to + 6] = vertLightmapCoords[from*2 + 1];
+				}
+				
+				// The indices of a face count from its first vertex, so move them
+				// to where that vertex is in the shared buffer
+				for(int k = 0; k < face.numOfIndices; k++)
+				{
+					triangles[face.indexOffset + k] = face.vertexOffset + indices[face.startIndex + k];
+				}
+			}
+		}
+	}
+	
+	//////////////////////////// LOAD CACHED BSP \\\\\\\\\\\\\\\\\\\\\\\\\\\*
+	/////
+	/////	This loads the level from its .bspc cache, building the cache first if needed
+	/////
+	//////////////////////////// LOAD CACHED BSP \\\\\\\\\\\\\\\\\\\\\\\\\\\*
+	
+	public boolean loadCachedBSP(String fileName, String factorGamma) throws IOException
+	{
+		// The visibility job of the old level may still be reading it
+		waitForVisibility();
+		
+		File file = new File(fileName);
+		
+		// Check if the .bsp file could be opened
+		if(!file.exists())
+		{
+			// Display an error message and quit if the file can't be found.
+			System.out.println("Could not find BSP file!");
+			return false;
+		}
+		
+		System.out.println(file.getAbsolutePath());
+		
+		// The cache is thrown away if the .bsp changed since it was written.  The
+		// lightmaps are kept without the gamma, so a new gamma doesn't need a new cache.
+		File cacheFile = BSPCache.getCacheFile(file);
+		BSPCache cache = BSPCache.open(cacheFile, file);
+		
+		if(cache == null)
+		{
+			try
+			{
+				compileCache(file, cacheFile);
+				cache = BSPCache.open(cacheFile, file);
+			}
+			catch(IOException e)
+			{
+				// We can still play without a cache, like from a read only folder
+				System.out.println("Could not write the BSP cache: " + e.getMessage());
+			}
+			
+			if(cache == null)
+			{
+				return loadBSP(fileName, factorGamma);
+			}
+		}
+		
+		mappedFile = null;
+		clusters = null;
+		readCache(cache);
+		
+		// Only the gamma and the OpenGL uploads are left
+		createTextures();
+		
+		lightmapBits = cache.getBytes(BSPCache.Section.kLightmaps);
+		gammaTable = GammaTable.parse(factorGamma);
+		
+		ByteBuffer[] lightmapImages = new ByteBuffer[numOfLightmaps];
+		ForkJoinPool.commonPool().invoke(new LightmapTask(gammaTable, lightmapImages, 0, numOfLightmaps));
+		createLightmapAtlas(lightmapImages);
+		
+		renderLumpsLoaded = true;
+		collisionLumpsLoaded = true;
+		
+		createFacesDrawn();
+		visibleLeafs = null;
+		patches = null;
+		occluderAreas = null;
+		leafHintFirst = null;
+		cameraLeaf = -1;
+		
+		return true;
+	}
+	
+	// This decodes the .bsp without OpenGL, does all of the work loadBSP() would
+	// do on it, and writes the result to the cache file.
+	private void compileCache(File file, File cacheFile) throws IOException
+	{
+		MappedBSPFile bspFile = new MappedBSPFile(file);
+		mappedFile = null;
+		
+		readLumpCounts(bspFile);
+		
+		readLump(bspFile, Lumps.kVertices);
+		readLump(bspFile, Lumps.kIndices);
+		readLump(bspFile, Lumps.kTextures);
+		readLump(bspFile, Lumps.kNodes);
+		readLump(bspFile, Lumps.kLeafs);
+		readLump(bspFile, Lumps.kLeafFaces);
+		readLump(bspFile, Lumps.kPlanes);
+		readLump(bspFile, Lumps.kBrushes);
+		readLump(bspFile, Lumps.kBrushSides);
+		readLump(bspFile, Lumps.kLeafBrushes);
+		decodeFaces(bspFile.getLoader(Lumps.kFaces));
+		addPatchBrushes();
+		addBrushBevels();
+		
+		String[] textureNames = new String[numOfTextures];
+		int[] textureFlags = new int[numOfTextures];
+		int[] textureTypes = new int[numOfTextures];
+		
+		for(int i = 0; i < numOfTextures; i++)
+		{
+			textureNames[i] = textures[i].textureName;
+			textureFlags[i] = textures[i].flags;
+			textureTypes[i] = textures[i].textureType;
+		}
+		
+		BSPCache.Writer writer = new BSPCache.Writer();
+		
+		writer.putFloats(BSPCache.Section.kVertPositions, vertPositions);
+		writer.putFloats(BSPCache.Section.kVertTexCoords, vertTexCoords);
+		writer.putFloats(BSPCache.Section.kVertLightmapCoords, vertLightmapCoords);
+		writer.putFloats(BSPCache.Section.kVertNormals, vertNormals);
+		writer.putBytes(BSPCache.Section.kVertColors, vertColors);
+		writer.putInts(BSPCache.Section.kIndices, indices);
+		writer.putBytes(BSPCache.Section.kFaces, bspFile.getLump(Lumps.kFaces));
+		writer.putStrings(BSPCache.Section.kTextureNames, textureNames);
+		writer.putInts(BSPCache.Section.kTextureFlags, textureFlags);
+		writer.putInts(BSPCache.Section.kTextureTypes, textureTypes);
+		writer.putBytes(BSPCache.Section.kLightmaps, bspFile.getLump(Lumps.kLightmaps));
+		writer.putInts(BSPCache.Section.kNodePlanes, nodePlanes);
+		writer.putInts(BSPCache.Section.kNodeChildren, nodeChildren);
+		writer.putInts(BSPCache.Section.kLeafClusters, leafClusters);
+		writer.putFloats(BSPCache.Section.kLeafBounds, leafBounds);
+		writer.putInts(BSPCache.Section.kLeafFirstFace, leafFirstFace);
+		writer.putInts(BSPCache.Section.kLeafNumFaces, leafNumFaces);
+		writer.putInts(BSPCache.Section.kLeafFirstBrush, leafFirstBrush);
+		writer.putInts(BSPCache.Section.kLeafNumBrushes, leafNumBrushes);
+		writer.putInts(BSPCache.Section.kLeafFaces, leafFaces);
+		writer.putFloats(BSPCache.Section.kPlaneNormals, planeNormals);
+		writer.putFloats(BSPCache.Section.kPlaneDistances, planeDistances);
+		writer.putBytes(BSPCache.Section.kVisData, bspFile.getLump(Lumps.kVisData));
+		writer.putInts(BSPCache.Section.kBrushFirstSide, brushFirstSide);
+		writer.putInts(BSPCache.Section.kBrushNumSides, brushNumSides);
+		writer.putInts(BSPCache.Section.kBrushTextureIDs, brushTextureIDs);
+		writer.putInts(BSPCache.Section.kBrushSidePlanes, brushSidePlanes);
+		writer.putInts(BSPCache.Section.kLeafBrushes, leafBrushes);
+		
+		writer.write(cacheFile, file);
+	}
+	
+	// This fills in the level from a cache.  The arrays are copied out in bulk.
+	private void readCache(BSPCache cache)
+	{
+		vertPositions = cache.getFloats(BSPCache.Section.kVertPositions);
+		vertTexCoords = cache.getFloats(BSPCache.Section.kVertTexCoords);
+		vertLightmapCoords = cache.getFloats(BSPCache.Section.kVertLightmapCoords);
+		vertNormals = cache.getFloats(BSPCache.Section.kVertNormals);
+		vertColors = cache.getBytes(BSPCache.Section.kVertColors);
+		indices = cache.getInts(BSPCache.Section.kIndices);
+		numOfVerts = vertPositions.length / 3;
+		numOfIndices = indices.length;
+		
+		// The face records are the .bsp's own
+		numOfFaces = cache.getSectionLength(BSPCache.Section.kFaces) / 104;
+		decodeFaces(new BufferLoader(cache.getSection(BSPCache.Section.kFaces)));
+		buildFaceBuffers();
+		
+		String[] textureNames = cache.getStrings(BSPCache.Section.kTextureNames);
+		int[] textureFlags = cache.getInts(BSPCache.Section.kTextureFlags);
+		int[] textureTypes = cache.getInts(BSPCache.Section.kTextureTypes);
+		numOfTextures = textureNames.length;
+		textures = new BSPTexture[numOfTextures];
+		
+		for(int i = 0; i < numOfTextures; i++)
+		{
+			textures[i] = new BSPTexture(textureNames[i], textureFlags[i], textureTypes[i]);
+		}
+		
+		// The images may have been added, taken out or moved since the cache was written
+		findTextureFiles();
+		
+		numOfLightmaps = cache.getSectionLength(BSPCache.Section.kLightmaps) / 49152;
+		
+		nodePlanes = cache.getInts(BSPCache.Section.kNodePlanes);
+		nodeChildren = cache.getInts(BSPCache.Section.kNodeChildren);
+		numOfNodes = nodePlanes.length;
+		
+		leafClusters = cache.getInts(BSPCache.Section.kLeafClusters);
+		leafBounds = cache.getFloats(BSPCache.Section.kLeafBounds);
+		leafFirstFace = cache.getInts(BSPCache.Section.kLeafFirstFace);
+		leafNumFaces = cache.getInts(BSPCache.Section.kLeafNumFaces);
+		leafFirstBrush = cache.getInts(BSPCache.Section.kLeafFirstBrush);
+		leafNumBrushes = cache.getInts(BSPCache.Section.kLeafNumBrushes);
+		leafFaces = cache.getInts(BSPCache.Section.kLeafFaces);
+		numOfLeafs = leafClusters.length;
+		numOfLeafFaces = leafFaces.length;
+		
+		planeNormals = cache.getFloats(BSPCache.Section.kPlaneNormals);
+		planeDistances = cache.getFloats(BSPCache.Section.kPlaneDistances);
+		numOfPlanes = planeDistances.length;
+		
+		// Check if there is any visibility information first
+		if(cache.getSectionLength(BSPCache.Section.kVisData) > 0)
+		{
+			clusters = new BSPVisData(new BufferLoader(cache.getSection(BSPCache.Section.kVisData)));
+		}
+		
+		brushFirstSide = cache.getInts(BSPCache.Section.kBrushFirstSide);
+		brushNumSides = cache.getInts(BSPCache.Section.kBrushNumSides);
+		brushTextureIDs = cache.getInts(BSPCache.Section.kBrushTextureIDs);
+		brushSidePlanes = cache.getInts(BSPCache.Section.kBrushSidePlanes);
+		leafBrushes = cache.getInts(BSPCache.Section.kLeafBrushes);
+		numOfBrushes = brushFirstSide.length;
+		numOfBrushSides = brushSidePlanes.length;
+		numOfLeafBrushes = leafBrushes.length;
+	}
+	
+	// The counts come straight from the lump directory
+	private void readLumpCounts(MappedBSPFile bspFile)
+	{
+		numOfVerts = bspFile.getCount(Lumps.kVertices, 44);
+		numOfFaces = bspFile.getCount(Lumps.kFaces, 104);
+		numOfIndices = bspFile.getCount(Lumps.kIndices, 4);
+		numOfTextures = bspFile.getCount(Lumps.kTextures, 72);
+		numOfLightmaps = bspFile.getCount(Lumps.kLightmaps, 49152);
+		numOfNodes = bspFile.getCount(Lumps.kNodes, 36);
+		numOfLeafs = bspFile.getCount(Lumps.kLeafs, 48);
+		numOfLeafFaces = bspFile.getCount(Lumps.kLeafFaces, 4);
+		numOfPlanes = bspFile.getCount(Lumps.kPlanes, 16);
+		numOfBrushes = bspFile.getCount(Lumps.kBrushes, 12);
+		numOfBrushSides = bspFile.getCount(Lumps.kBrushSides, 8);
+		numOfLeafBrushes = bspFile.getCount(Lumps.kLeafBrushes, 4);
+	}
+	
+	// This reads a lump from its view of the mapped file.  The textures only
+	// get decoded here, nothing is sent to OpenGL.
+	private void readLump(MappedBSPFile bspFile, Lumps lump)
+	{
+		BinaryLoader in = bspFile.getLoader(lump);
+		
+		switch(lump)
+		{
+			case kVertices:		readVertices(in); break;
+			case kIndices:		readIndices(in); break;
+			case kFaces:		readFaces(in); break;
+			case kTextures:		decodeTextures(in); break;
+			case kNodes:		readNodes(in); break;
+			case kLeafs:		readLeafs(in); break;
+			case kLeafFaces:	readLeafFaces(in); break;
+			case kPlanes:		readPlanes(in); break;
+			case kBrushes:		readBrushes(in); break;
+			case kBrushSides:	readBrushSides(in); break;
+			case kLeafBrushes:	readLeafBrushes(in); break;
+			case kVisData:
+				// Check if there is any visibility information first
+				if(bspFile.getLumpLength(Lumps.kVisData) > 0)
+				{
+					clusters = new BSPVisData(in);
+				}
+				break;
+			default:
+				break;
+		}
+	}
+	
+	//////////////////////////// DECODE LUMP \\\\\\\\\\\\\\\\\\\\\\\\\\\*
+	/////
+	/////	This decodes a lump from the mapped file the first time it is needed
+	/////
+	//////////////////////////// DECODE LUMP \\\\\\\\\\\\\\\\\\\\\\\\\\\*
+	
+	private synchronized void decodeLump(Lumps lump)
+	{
+		// Nothing to do if the level was read in one go or the lump is already there
+		if(mappedFile == null || lumpDecoded[lump.ordinal()])
+		{
+			return;
+		}
+		
+		// The face buffers are built from the vertices and indices, so make sure
+		// those are decoded before we point the loader at the face lump.
+		if(lump == Lumps.kFaces)
+		{
+			decodeLump(Lumps.kVertices);
+			decodeLump(Lumps.kIndices);
+		}
+		
+		readLump(mappedFile, lump);
+		lumpDecoded[lump.ordinal()] = true;
+		
+		// The lightmap atlas was made at load time, so point the new faces into it
+		if(lump == Lumps.kFaces && lightmapAtlas != null)
+		{
+			applyLightmapAtlas();
+		}
+	}
+	
+	// This makes sure everything renderLevel() touches has been decoded
+	private void ensureRenderLumps()
+	{
+		if(renderLumpsLoaded)
+		{
+			return;
+		}
+		
+		synchronized(this)
+		{
+			decodeLump(Lumps.kFaces);
+			decodeLump(Lumps.kNodes);
+			decodeLump(Lumps.kLeafs);
+			decodeLump(Lumps.kLeafFaces);
+			decodeLump(Lumps.kPlanes);
+			decodeLump(Lumps.kVisData);
+			renderLumpsLoaded = true;
+		}
+	}
+	
+	// This makes sure everything the trace functions touch has been decoded
+	private void ensureCollisionLumps()
+	{
+		if(collisionLumpsLoaded)
+		{
+			return;
+		}
+		
+		synchronized(this)
+		{
+			decodeLump(Lumps.kNodes);
+			decodeLump(Lumps.kLeafs);
+			decodeLump(Lumps.kPlanes);
+			decodeLump(Lumps.kBrushes);
+			decodeLump(Lumps.kBrushSides);
+			decodeLump(Lumps.kLeafBrushes);
+			
+			// The curves get their brushes from the faces
+			decodeLump(Lumps.kFaces);
+			decodeLump(Lumps.kLeafFaces);
+			addPatchBrushes();
+			addBrushBevels();
+			collisionLumpsLoaded = true;
+		}
+	}
+	
+	// Go through all of the vertices that need to be read
+	private void readVertices(BinaryLoader in)
+	{
+		vertPositions = new float[numOfVerts * 3];
+		vertTexCoords = new float[numOfVerts * 2];
+		vertLightmapCoords = new float[numOfVerts * 2];
+		vertNormals = new float[numOfVerts * 3];
+		vertColors = new byte[numOfVerts * 4];
+		
+		// Since Quake has the Z-axis pointing up, we want to convert the data so
+		// that Y-axis is pointing up (like normal!) :)
+		for(int i = 0; i < numOfVerts; i++)
+		{
+			// Read in the current vertex.  Swap the y and z values, and negate the new z so Y is up.
+			vertPositions[i*3]   = in.readFloat();
+			vertPositions[i*3+2] = -in.readFloat();
+			vertPositions[i*3+1] = in.readFloat();
+			
+			vertTexCoords[i*2]   = in.readFloat();
+			vertTexCoords[i*2+1] = in.readFloat();
+			
+			vertLightmapCoords[i*2]   = in.readFloat();
+			vertLightmapCoords[i*2+1] = in.readFloat();
+			
+			vertNormals[i*3]   = in.readFloat();
+			vertNormals[i*3+1] = in.readFloat();
+			vertNormals[i*3+2] = in.readFloat();
+			
+			for(int j = 0; j < 4; j++)
+			{
+				vertColors[i*4+j] = (byte) in.readByte();
+			}
+		}	
+	}
+	
+	// Read in all the index information
+	private void readIndices(BinaryLoader in)
+	{
+		indices = new int[numOfIndices];
+		
+		for(int i=0; i < indices.length; i++)
+		{
+			indices[i] = in.readInt();
+		}
+	}
+	
+	// Read in all the face information and build the vertex arrays
+	private void readFaces(BinaryLoader in)
+	{
+		decodeFaces(in);
+		buildFaceBuffers();
+	}
+	
+	// This packs every face into faceVertices and faceIndices.  The faces are
+	// laid out in order, so the offsets are worked out first and then the
+	// copying is split up on the pool.  Only two direct buffers are made.
+	private void buildFaceBuffers()
+	{
+		int vertexCount = 0;
+		int indexCount = 0;
+		
+		for(int i = 0; i < numOfFaces; i++)
+		{
+			faces[i].vertexOffset = vertexCount;
+			faces[i].indexOffset = indexCount;
+			vertexCount += faces[i].numOfVerts;
+			indexCount += faces[i].numOfIndices;
+		}
+		
+		float[] vertices = new float[vertexCount * FACE_VERTEX_SIZE];
+		int[] triangles = new int[indexCount];
+		
+		// From inside the parallel load this runs on its pool, otherwise on the common one
+		new FaceBufferTask(vertices, triangles, 0, numOfFaces).invoke();
+		
+		faceVertices = Conversion.allocFloats(vertices);
+		faceTexCoords = slice(faceVertices, 3, faceVertices.capacity() - 3);
+		faceLightmapCoords = slice(faceVertices, 5, faceVertices.capacity() - 5);
+		faceIndices = Conversion.allocInts(triangles);
+		faceArraysBound = false;
+	}
+	
+	// Read in all the face information
+	private void decodeFaces(BinaryLoader in)
+	{
+		faces = new BSPFace [numOfFaces];
+		
+		for(int i=0; i < numOfFaces; i++)
+		{
+			faces[i] = new BSPFace(in);
+		}
+	}
+	
+	// Read in all the texture information and create the texture maps
+	private void readTextures(BinaryLoader in) throws IOException
+	{
+		decodeTextures(in);
+		createTextures();
+	}
+	
+	// Read in all the texture information and find the image files
+	private void decodeTextures(BinaryLoader in)
+	{
+		// We create a local pointer of BSPTextures because we don't need
+		// that information once we create texture maps from it.
+		textures = new BSPTexture[numOfTextures];
+		
+		for(int i=0; i < numOfTextures; i++)
+		{
+			textures[i] = new BSPTexture(in);
+		}
+
+		findTextureFiles();
+	}
+	
+	// Now that we have the texture information, we need to load the
+	// textures.  Since the texture names don't have an extension, we need
+	// to find it first.  The name itself is kept as it is in the .bsp, so the
+	// cache doesn't hold on to where the images were when it was written.
+	private void findTextureFiles()
+	{
+		// Go through all of the textures
+		for(int i = 0; i < numOfTextures; i++)
+		{
+			// Find the extension if any and append it to the file name
+			String name = textures[i].textureName;
+			textures[i].fileName = (name == null) ? null : findTextureExtension(name);
+		}
+	}
+	
+	// Create the texture maps.  This talks to OpenGL, so only call it from the GL thread.
+	private void createTextures() throws IOException
+	{
+		for(int i = 0; i < numOfTextures; i++)
+		{
+			// Create a texture from the image
+						
+			// If there is a valid texture name passed in, we want to set the texture data
+			if(textures[i].fileName != null)
+			{
+				texManager.getLoader().setPosition(i);
+				texManager.getNormalImage(textures[i].fileName, false, false);
+			}else{
+			//int id = texManager.getTexture(i-1).getTexID();
+				texManager.setTexture(new Texture(GL_TEXTURE_2D,1));
+			}
+				
+		}
+	}
+	
+	// Go through all of the lightmaps and read them in
+	private void readLightmaps(BinaryLoader in, String factorGamma) throws IOException
+	{
+		lightmapBits = new byte[numOfLightmaps * 49152];
+		
+		for(int i = 0; i < numOfLightmaps ; i++)
+		{
+			// Read in the RGB data for each lightmap.  The lightmaps are always 128 by 128.
+			BSPLightMap lightmap = new BSPLightMap(in);
+			System.arraycopy(lightmap.imageBits, 0, lightmapBits, i * 49152, 49152);
+		}
+		
+		// Gamma correct them on the pool and pack them all into a few atlas textures
+		gammaTable = GammaTable.parse(factorGamma);
+		ByteBuffer[] lightmapImages = new ByteBuffer[numOfLightmaps];
+		ForkJoinPool.commonPool().invoke(new LightmapTask(gammaTable, lightmapImages, 0, numOfLightmaps));
+		
+		createLightmapAtlas(lightmapImages);
+	}
+	
+	// This copies the lightmap lump in one go, for the loads that have it mapped
+	private void readLightmapBits(ByteBuffer lump)
+	{
+		lightmapBits = new byte[numOfLightmaps * 49152];
+		lump.get(lightmapBits);
+	}
+	
+	// Read in the nodes of the BSP tree
+	private void readNodes(BinaryLoader in)
+	{
+		nodePlanes = new int[numOfNodes];
+		nodeChildren = new int[numOfNodes * 2];
+		
+		for(int i=0; i < numOfNodes; i++)
+		{
+			nodePlanes[i] = in.readInt();
+			nodeChildren[i*2]   = in.readInt();		// front
+			nodeChildren[i*2+1] = in.readInt();		// back
+			
+			// Skip the integer bounding box, nothing uses it
+			for(int j = 0; j < 6; j++)
+			{
+				in.readInt();
+			}
+		}
+	}
+	
+	// Read in the leafs of the BSP tree
+	private void readLeafs(BinaryLoader in)
+	{
+		leafClusters = new int[numOfLeafs];
+		leafBounds = new float[numOfLeafs * 6];
+		leafFirstFace = new int[numOfLeafs];
+		leafNumFaces = new int[numOfLeafs];
+		leafFirstBrush = new int[numOfLeafs];
+		leafNumBrushes = new int[numOfLeafs];
+		
+		for(int i=0; i < numOfLeafs; i++)
+		{
+			leafClusters[i] = in.readInt();
+			in.readInt();		// The area portal isn't used
+			
+			// Now we need to convert the leaf bounding box to the normal OpenGL Y up axis.
+			// Swapping y and z and negating the new z turns the min z into the max z,
+			// so the two z values trade places.
+			leafBounds[i*6]   = in.readInt();
+			leafBounds[i*6+5] = -in.readInt();
+			leafBounds[i*6+1] = in.readInt();
+			leafBounds[i*6+3] = in.readInt();
+			leafBounds[i*6+2] = -in.readInt();
+			leafBounds[i*6+4] = in.readInt();
+			
+			leafFirstFace[i] = in.readInt();
+			leafNumFaces[i] = in.readInt();
+			leafFirstBrush[i] = in.readInt();
+			leafNumBrushes[i] = in.readInt();
+		}
+	}
+	
+	// Read in all the leaf face indices
+	private void readLeafFaces(BinaryLoader in)
+	{
+		leafFaces = new int[numOfLeafFaces];
+		
+		for(int i=0; i < leafFaces.length; i++)
+		{
+			leafFaces[i] = in.readInt();
+		}
+	}
+	
+	// Read in the splitter planes
+	private void readPlanes(BinaryLoader in)
+	{
+		planeNormals = new float[numOfPlanes * 3];
+		planeDistances = new float[numOfPlanes];
+		
+		// Go through every plane and convert it's normal to the Y-axis being up
+		for(int i = 0; i < numOfPlanes; i++)
+		{
+			planeNormals[i*3]   = in.readFloat();
+			planeNormals[i*3+2] = -in.readFloat();
+			planeNormals[i*3+1] = in.readFloat();
+			planeDistances[i] = in.readFloat();
+		}
+	}
+	
+	// Read in the brushes that are used for collision
+	private void readBrushes(BinaryLoader in)
+	{
+		brushFirstSide = new int[numOfBrushes];
+		brushNumSides = new int[numOfBrushes];
+		brushTextureIDs = new int[numOfBrushes];
+		
+		for(int i=0; i< numOfBrushes; i++)
+		{
+			brushFirstSide[i] = in.readInt();
+			brushNumSides[i] = in.readInt();
+			brushTextureIDs[i] = in.readInt();
+		}
+	}
+	
+	// Read in the sides of each brush
+	private void readBrushSides(BinaryLoader in)
+	{
+		brushSidePlanes = new int[numOfBrushSides];
+		
+		for(int i=0; i< numOfBrushSides; i++)
+		{
+			brushSidePlanes[i] = in.readInt();
+			in.readInt();		// The texture of the side isn't used
+		}
+	}
+	
+	// Box traces need every brush to have the six axial planes of its bounding
+	// box, otherwise a box sliding past an edge of a sloped brush stops short on
+	// an empty corner.  The Quake 3 compiler already adds these bevels to the
+	// brush sides, so normally this finds nothing to do, but maps built with
+	// other tools may not have them.  Missing bevels are added at the end of
+	// the planes and each brush's sides are rebuilt to include them.
+	private void addBrushBevels()
+	{
+		int[] missing = new int[numOfBrushes];	// The axial planes each brush lacks, 1 bit per side
+		int numOfBevels = 0;
+		
+		for(int i = 0; i < numOfBrushes; i++)
+		{
+			int found = 0;
+			
+			for(int j = 0; j < brushNumSides[i]; j++)
+			{
+				int plane = brushSidePlanes[brushFirstSide[i] + j];
+				
+				for(int axis = 0; axis < 3; axis++)
+				{
+					if(planeNormals[plane*3 + axis] == 1.0f)	found |= 1 << (axis*2);
+					if(planeNormals[plane*3 + axis] == -1.0f)	found |= 1 << (axis*2 + 1);
+				}
+			}
+			
+			if(brushNumSides[i] > 0 && found != 63)
+			{
+				missing[i] = ~found & 63;
+				numOfBevels += Integer.bitCount(missing[i]);
+			}
+		}
+		
+		// The usual case, every brush already has its bevels
+		if(numOfBevels == 0)
+		{
+			return;
+		}
+		
+		float[] newNormals = new float[(numOfPlanes + numOfBevels) * 3];
+		float[] newDistances = new float[numOfPlanes + numOfBevels];
+		int[] newSidePlanes = new int[numOfBrushSides + numOfBevels];
+		int[] newFirstSide = new int[numOfBrushes];
+		int[] newNumSides = new int[numOfBrushes];
+		
+		System.arraycopy(planeNormals, 0, newNormals, 0, numOfPlanes * 3);
+		System.arraycopy(planeDistances, 0, newDistances, 0, numOfPlanes);
+		
+		int plane = numOfPlanes;
+		int side = 0;
+		float[] bounds = new float[6];
+		
+		for(int i = 0; i < numOfBrushes; i++)
+		{
+			newFirstSide[i] = side;
+			newNumSides[i] = brushNumSides[i];
+			System.arraycopy(brushSidePlanes, brushFirstSide[i], newSidePlanes, side, brushNumSides[i]);
+			side += brushNumSides[i];
+			
+			if(missing[i] == 0 || !getBrushBounds(i, bounds))
+			{
+				continue;
+			}
+			
+			for(int axis = 0; axis < 3; axis++)
+			{
+				// The positive side sits on the max of the bounds, the negative one on the min
+				if((missing[i] & (1 << (axis*2))) != 0)
+				{
+					newNormals[plane*3 + axis] = 1.0f;
+					newDistances[plane] = bounds[axis + 3];
+					newSidePlanes[side++] = plane++;
+					newNumSides[i]++;
+				}
+				if((missing[i] & (1 << (axis*2 + 1))) != 0)
+				{
+					newNormals[plane*3 + axis] = -1.0f;
+					newDistances[plane] = -bounds[axis];
+					newSidePlanes[side++] = plane++;
+					newNumSides[i]++;
+				}
+			}
+		}
+		
+		// Publish the new planes before the sides that use them
+		numOfPlanes = plane;
+		planeNormals = newNormals;
+		planeDistances = newDistances;
+		numOfBrushSides = side;
+		brushSidePlanes = newSidePlanes;
+		brushFirstSide = newFirstSide;
+		brushNumSides = newNumSides;
+	}
+	
+	// This finds the bounds of a brush by intersecting every 3 of its planes and
+	// keeping the corners that are inside all of the others.  The min (x, y, z)
+	// and max (x, y, z) go in bounds, and false is returned for an empty brush.
+	private boolean getBrushBounds(int brush, float[] bounds)
+	{
+		int first = brushFirstSide[brush];
+		int count = brushNumSides[brush];
+		boolean found = false;
+		
+		for(int a = 0; a < count; a++)
+		{
+			int p1 = brushSidePlanes[first + a];
+			
+			for(int b = a + 1; b < count; b++)
+			{
+				int p2 = brushSidePlanes[first + b];
+				
+				for(int c = b + 1; c < count; c++)
+				{
+					int p3 = brushSidePlanes[first + c];
+					
+					// The cross products of the plane normals give us the corner
+					float[] n = planeNormals;
+					float x23 = n[p2*3+1]*n[p3*3+2] - n[p2*3+2]*n[p3*3+1];
+					float y23 = n[p2*3+2]*n[p3*3]   - n[p2*3]*n[p3*3+2];
+					float z23 = n[p2*3]*n[p3*3+1]   - n[p2*3+1]*n[p3*3];
+					float x31 = n[p3*3+1]*n[p1*3+2] - n[p3*3+2]*n[p1*3+1];
+					float y31 = n[p3*3+2]*n[p1*3]   - n[p3*3]*n[p1*3+2];
+					float z31 = n[p3*3]*n[p1*3+1]   - n[p3*3+1]*n[p1*3];
+					float x12 = n[p1*3+1]*n[p2*3+2] - n[p1*3+2]*n[p2*3+1];
+					float y12 = n[p1*3+2]*n[p2*3]   - n[p1*3]*n[p2*3+2];
+					float z12 = n[p1*3]*n[p2*3+1]   - n[p1*3+1]*n[p2*3];
+					
+					float denom = n[p1*3]*x23 + n[p1*3+1]*y23 + n[p1*3+2]*z23;
+					
+					// Skip planes that don't meet in a single point
+					if(Math.abs(denom) < 0.0001f)
+					{
+						continue;
+					}
+					
+					float d1 = planeDistances[p1], d2 = planeDistances[p2], d3 = planeDistances[p3];
+					float x = (d1*x23 + d2*x31 + d3*x12) / denom;
+					float y = (d1*y23 + d2*y31 + d3*y12) / denom;
+					float z = (d1*z23 + d2*z31 + d3*z12) / denom;
+					
+					// Keep the corner only if it's on or behind every side of the brush
+					boolean inside = true;
+					for(int i = 0; i < count && inside; i++)
+					{
+						int plane = brushSidePlanes[first + i];
+						inside = planeDot(plane, x, y, z) - planeDistances[plane] <= 0.1f;
+					}
+					
+					if(!inside)
+					{
+						continue;
+					}
+					
+					if(!found)
+					{
+						bounds[0] = bounds[3] = x;
+						bounds[1] = bounds[4] = y;
+						bounds[2] = bounds[5] = z;
+						found = true;
+					}
+					else
+					{
+						bounds[0] = Math.min(bounds[0], x);
+						bounds[1] = Math.min(bounds[1], y);
+						bounds[2] = Math.min(bounds[2], z);
+						bounds[3] = Math.max(bounds[3], x);
+						bounds[4] = Math.max(bounds[4], y);
+						bounds[5] = Math.max(bounds[5], z);
+					}
+				}
+			}
+		}
+		
+		return found;
+	}
+	
+	// Quake 3 doesn't store brushes for its curved surfaces, so traces would go
+	// straight through them.  We tessellate every curve at PATCH_COLLISION_LEVEL
+	// and give each triangle a thin brush: the triangle's plane, one behind it
+	// PATCH_THICKNESS away and one through each edge.  The brushes use the
+	// face's texture for their contents and go in every leaf they touch that
+	// has the face, so the trace code handles them like any other brush.
+	// This has to run before addBrushBevels(), which gives them their bevels.
+	private void addPatchBrushes()
+	{
+		int[] firstPatchBrush = new int[numOfFaces];
+		int[] numPatchBrushes = new int[numOfFaces];
+		int[][] patchTriangles = new int[numOfFaces][];
+		int numOfTriangles = 0;
+		
+		for(int i = 0; i < numOfFaces; i++)
+		{
+			if(faces[i].type == FACE_PATCH)
+			{
+				patchTriangles[i] = createPatch(i).getIndices(PATCH_COLLISION_LEVEL);
+				numOfTriangles += patchTriangles[i].length / 3;
+			}
+		}
+		
+		// The usual case for small levels, there are no curves
+		if(numOfTriangles == 0)
+		{
+			return;
+		}
+		
+		float[] newNormals = Arrays.copyOf(planeNormals, (numOfPlanes + numOfTriangles * 5) * 3);
+		float[] newDistances = Arrays.copyOf(planeDistances, numOfPlanes + numOfTriangles * 5);
+		int[] newSidePlanes = Arrays.copyOf(brushSidePlanes, numOfBrushSides + numOfTriangles * 5);
+		int[] newFirstSide = Arrays.copyOf(brushFirstSide, numOfBrushes + numOfTriangles);
+		int[] newNumSides = Arrays.copyOf(brushNumSides, numOfBrushes + numOfTriangles);
+		int[] newTextureIDs = Arrays.copyOf(brushTextureIDs, numOfBrushes + numOfTriangles);
+		float[] brushBounds = new float[numOfTriangles * 6];
+		
+		int plane = numOfPlanes;
+		int side = numOfBrushSides;
+		int brush = numOfBrushes;
+		
+		for(int i = 0; i < numOfFaces; i++)
+		{
+			if(faces[i].type != FACE_PATCH)
+			{
+				continue;
+			}
+			
+			firstPatchBrush[i] = brush;
+			
+			BSPFace face = faces[i];
+			float[] p = createPatch(i).getPositions(PATCH_COLLISION_LEVEL);
+			int[] triangles = patchTriangles[i];
+			
+			for(int t = 0; t < triangles.length; t += 3)
+			{
+				int a = triangles[t] * 3, b = triangles[t+1] * 3, c = triangles[t+2] * 3;
+				
+				// The front of the triangle is the side that gets drawn
+				float nx = (p[c+1]-p[a+1])*(p[b+2]-p[a+2]) - (p[c+2]-p[a+2])*(p[b+1]-p[a+1]);
+				float ny = (p[c+2]-p[a+2])*(p[b]-p[a])     - (p[c]-p[a])*(p[b+2]-p[a+2]);
+				float nz = (p[c]-p[a])*(p[b+1]-p[a+1])     - (p[c+1]-p[a+1])*(p[b]-p[a]);
+				float length = (float)Math.sqrt(nx*nx + ny*ny + nz*nz);
+				
+				// Curves that pinch to a point give us triangles without an area
+				if(length < 0.0001f)
+				{
+					continue;
+				}
+				
+				nx /= length;	ny /= length;	nz /= length;
+				
+				int first = side;
+				
+				// The triangle and the back of the brush
+				float d = nx*p[a] + ny*p[a+1] + nz*p[a+2];
+				plane = addPlane(newNormals, newDistances, plane, nx, ny, nz, d);
+				newSidePlanes[side++] = plane - 1;
+				plane = addPlane(newNormals, newDistances, plane, -nx, -ny, -nz, -(d - PATCH_THICKNESS));
+				newSidePlanes[side++] = plane - 1;
+				
+				// The edges, facing away from the corner they don't touch
+				int[] corners = {a, b, c};
+				for(int e = 0; e < 3; e++)
+				{
+					int from = corners[e], to = corners[(e + 1) % 3], other = corners[(e + 2) % 3];
+					
+					float ex = p[to] - p[from], ey = p[to+1] - p[from+1], ez = p[to+2] - p[from+2];
+					float px = ey*nz - ez*ny, py = ez*nx - ex*nz, pz = ex*ny - ey*nx;
+					float edgeLength = (float)Math.sqrt(px*px + py*py + pz*pz);
+					px /= edgeLength;	py /= edgeLength;	pz /= edgeLength;
+					
+					if(px*(p[other]-p[from]) + py*(p[other+1]-p[from+1]) + pz*(p[other+2]-p[from+2]) > 0)
+					{
+						px = -px;	py = -py;	pz = -pz;
+					}
+					
+					plane = addPlane(newNormals, newDistances, plane, px, py, pz, 
+									 px*p[from] + py*p[from+1] + pz*p[from+2]);
+					newSidePlanes[side++] = plane - 1;
+				}
+				
+				newFirstSide[brush] = first;
+				newNumSides[brush] = side - first;
+				newTextureIDs[brush] = face.textureID;
+				
+				// Keep the bounds of the brush for finding its leafs
+				int bounds = (brush - numOfBrushes) * 6;
+				for(int axis = 0; axis < 3; axis++)
+				{
+					float back = -PATCH_THICKNESS * ((axis == 0) ? nx : (axis == 1) ? ny : nz);
+					float min = Math.min(p[a+axis], Math.min(p[b+axis], p[c+axis]));
+					float max = Math.max(p[a+axis], Math.max(p[b+axis], p[c+axis]));
+					brushBounds[bounds + axis] = min + Math.min(0.0f, back);
+					brushBounds[bounds + axis + 3] = max + Math.max(0.0f, back);
+				}
+				
+				brush++;
+			}
+			
+			numPatchBrushes[i] = brush - firstPatchBrush[i];
+		}
 		
-		// Go through every pixel in the lightmap
-		//for(int i = 0; i < size / 3; i++, pImage += 3) 
+		// Now add the brushes to the leafs that have the curve and that they touch
+		int[] newLeafFirstBrush = new int[numOfLeafs];
+		int[] newLeafNumBrushes = new int[numOfLeafs];
+		int[] newLeafBrushes = new int[numOfLeafBrushes + 64];
+		int count = 0;
 		
-				
-		for(int i = 0; i < size; i+=3) 
+		for(int i = 0; i < numOfLeafs; i++)
 		{
-			float scale = 1.0f, temp = 0.0f;
-			float r = 0, g = 0, b = 0;
+			if(count + leafNumBrushes[i] > newLeafBrushes.length)
+			{
+				newLeafBrushes = Arrays.copyOf(newLeafBrushes, (count + leafNumBrushes[i]) * 2);
+			}
+			
+			newLeafFirstBrush[i] = count;
+			System.arraycopy(leafBrushes, leafFirstBrush[i], newLeafBrushes, count, leafNumBrushes[i]);
+			count += leafNumBrushes[i];
+			
+			for(int j = 0; j < leafNumFaces[i]; j++)
+			{
+				int face = leafFaces[leafFirstFace[i] + j];
+				
+				for(int k = 0; k < numPatchBrushes[face]; k++)
+				{
+					int bounds = (firstPatchBrush[face] + k - numOfBrushes) * 6;
+					
+					if(!boxesTouch(brushBounds, bounds, leafBounds, i*6))
+					{
+						continue;
+					}
+					
+					if(count == newLeafBrushes.length)
+					{
+						newLeafBrushes = Arrays.copyOf(newLeafBrushes, count * 2);
+					}
+					
+					newLeafBrushes[count++] = firstPatchBrush[face] + k;
+				}
+			}
+			
+			newLeafNumBrushes[i] = count - newLeafFirstBrush[i];
+		}
+		
+		// Publish the new planes before the sides and brushes that use them
+		numOfPlanes = plane;
+		planeNormals = newNormals;
+		planeDistances = newDistances;
+		numOfBrushSides = side;
+		brushSidePlanes = newSidePlanes;
+		brushFirstSide = newFirstSide;
+		brushNumSides = newNumSides;
+		brushTextureIDs = newTextureIDs;
+		numOfBrushes = brush;
+		leafFirstBrush = newLeafFirstBrush;
+		leafNumBrushes = newLeafNumBrushes;
+		leafBrushes = Arrays.copyOf(newLeafBrushes, count);
+		numOfLeafBrushes = count;
+	}
+	
+	// This makes a BezierPatch from the control points of a curved face
+	private BezierPatch createPatch(int faceIndex)
+	{
+		BSPFace face = faces[faceIndex];
+		
+		return new BezierPatch(face.size[0], face.size[1], 
+							   FloatBuffer.wrap(vertPositions, face.startVertIndex * 3, face.numOfVerts * 3),
+							   FloatBuffer.wrap(vertTexCoords, face.startVertIndex * 2, face.numOfVerts * 2),
+							   FloatBuffer.wrap(vertLightmapCoords, face.startVertIndex * 2, face.numOfVerts * 2));
+	}
+	
+	// This writes a plane at the end of the arrays and returns the next free one
+	private static int addPlane(float[] normals, float[] distances, int plane, float x, float y, float z, float d)
+	{
+		normals[plane*3] = x;
+		normals[plane*3 + 1] = y;
+		normals[plane*3 + 2] = z;
+		distances[plane] = d;
+		
+		return plane + 1;
+	}
+	
+	// This checks if two boxes stored as min (x, y, z) and max (x, y, z) overlap
+	private static boolean boxesTouch(float[] a, int first, float[] b, int second)
+	{
+		return a[first]   <= b[second+3] + EPSILON && b[second]   <= a[first+3] + EPSILON &&
+			   a[first+1] <= b[second+4] + EPSILON && b[second+1] <= a[first+4] + EPSILON &&
+			   a[first+2] <= b[second+5] + EPSILON && b[second+2] <= a[first+5] + EPSILON;
+	}
 	
-			// extract the current RGB values
+	// This returns the tessellation of a curved face for drawing, making it the
+	// first time.  It takes the face's lightmap coordinates, which point into the atlas.
+	private BezierPatch getPatch(int faceIndex)
+	{
+		if(patches == null)
+		{
+			patches = new BezierPatch[numOfFaces];
+		}
+		
+		if(patches[faceIndex] == null)
+		{
+			BSPFace face = faces[faceIndex];
+			float[] lightmapCoords = new float[face.numOfVerts * 2];
 			
+			if(lightmapAtlas != null && face.lightmapID >= 0 && face.lightmapID < lightmapAtlas.getNumOfLightmaps())
+			{
+				lightmapAtlas.remap(face.lightmapID, vertLightmapCoords, face.startVertIndex * 2, 
+									lightmapCoords, 0, face.numOfVerts);
+			}
+			else
+			{
+				System.arraycopy(vertLightmapCoords, face.startVertIndex * 2, lightmapCoords, 0, lightmapCoords.length);
+			}
 			
-			r = (float)(light.imageBits[i] & 0xff);
-			g = (float)(light.imageBits[i+1] & 0xff);
-			b = (float)(light.imageBits[i+2] & 0xff);
+			patches[faceIndex] = new BezierPatch(face.size[0], face.size[1], 
+						FloatBuffer.wrap(vertPositions, face.startVertIndex * 3, face.numOfVerts * 3),
+						FloatBuffer.wrap(vertTexCoords, face.startVertIndex * 2, face.numOfVerts * 2),
+						FloatBuffer.wrap(lightmapCoords));
+		}
+		
+		return patches[faceIndex];
+	}
+	
+	// Read in the indices into the brush array
+	private void readLeafBrushes(BinaryLoader in)
+	{
+		leafBrushes = new int [numOfLeafBrushes];
+		
+		for(int i=0; i< numOfLeafBrushes; i++)
+		{
+			leafBrushes[i] = in.readInt();
+		}
+	}
+	
+	private void createFacesDrawn()
+	{
+		// I decided to put in a really big optimization for rendering.
+		// I create a bitset that holds a bit slot for every face in the level.
+		// Once the face is drawn, the slot saved for that face is set to 1.
+		// If we try and draw it again, it checks first to see if it has already
+		// been drawn.  We need to do this because many leafs stores faces that
+		// are the same in other leafs.  If we don't check if it's already been drawn,
+		// you can sometimes draw double the faces that you need to.  In this first
+		// tutorial we draw every face once, so it doesn't matter, but when we get
+		// into leafs we will need this.  I just choose to add it in the beginning
+		// so I don't cram a ton of code down your throat when we get to the 
+		// BSP nodes/leafs.
+	
+		// Here we allocate enough bits to store all the faces for our bitset
+		facesDrawn = new BitSet();
+		facesDrawn.resize(numOfFaces);
+	}
+	
+	//////////////////////////////CREATE LIGHTMAP ATLAS \\\\\\\\\\\\\\\\\\\\\\\\\\\\\*
+	/////
+	/////	This packs the gamma corrected lightmaps into atlas pages and uploads them
+	/////
+	////////////////////////////// CREATE LIGHTMAP ATLAS \\\\\\\\\\\\\\\\\\\\\\\\\\\\\*
+	
+	private void createLightmapAtlas(ByteBuffer[] lightmapImages) throws IOException
+	{
+		LightmapAtlas atlas = new LightmapAtlas(lightmapImages.length);
+		ByteBuffer[] pages = atlas.buildPages(lightmapImages);
+		
+		// Each page becomes one lightmap texture, so texManagerLight is indexed by page
+		for(int i = 0; i < pages.length; i++)
+		{
+			createLightmapTexture(lightBuffer, i, pages[i], 
+								  atlas.getPageWidth(), atlas.getPageHeight(i));
+		}
+		
+		setLightmapAtlas(atlas);
+	}
 	
-			// Multiply the factor by the RGB values, while keeping it to a 255 ratio
-			r = r * factor / 255.0f;
-			g = g * factor / 255.0f;
-			b = b * factor / 255.0f;
+	// This gives the level where it's lightmaps sit on the pages, and moves the
+	// lightmap coordinates of the faces onto them if they are decoded already
+	private void setLightmapAtlas(LightmapAtlas atlas)
+	{
+		lightmapAtlas = atlas;
+		
+		// When the faces are decoded lazily this happens once they are read instead
+		if(faceVertices != null)
+		{
+			applyLightmapAtlas();
+		}
+	}
+	
+	// This gives every face lightmap coordinates on its atlas page.  Each face
+	// has its own copy of its vertices in faceVertices, so a vertex shared
+	// between lightmaps can't be remapped twice.
+	private void applyLightmapAtlas()
+	{
+		float[] atlasCoords = new float[0];
+		
+		for(int i = 0; i < numOfFaces; i++)
+		{
+			BSPFace face = faces[i];
+			
+			if(face.lightmapID < 0 || face.lightmapID >= lightmapAtlas.getNumOfLightmaps())
+			{
+				continue;
+			}
+			
+			if(atlasCoords.length < face.numOfVerts * 2)
+			{
+				atlasCoords = new float[face.numOfVerts * 2];
+			}
 			
-			// Check if the the values went past the highest value
-			if(r > 1.0f && (temp = (1.0f/r)) < scale) scale=temp;
-			if(g > 1.0f && (temp = (1.0f/g)) < scale) scale=temp;
-			if(b > 1.0f && (temp = (1.0f/b)) < scale) scale=temp;
+			lightmapAtlas.remap(face.lightmapID, vertLightmapCoords, face.startVertIndex * 2, 
+								atlasCoords, 0, face.numOfVerts);
+			
+			for(int v = 0; v < face.numOfVerts; v++)
+			{
+				int to = (face.vertexOffset + v) * FACE_VERTEX_SIZE + 5;
+				faceVertices.put(to, atlasCoords[v*2]);
+				faceVertices.put(to + 1, atlasCoords[v*2 + 1]);
+			}
+		}
+	}
+	
+	// This returns a view of part of a buffer, without copying it
+	private static FloatBuffer slice(FloatBuffer buffer, int start, int length)
+	{
+		FloatBuffer view = buffer.duplicate();
+		view.limit(start + length);
+		view.position(start);
+		
+		return view.slice();
+	}
+	
+	//////////////////////////////CREATE LIGHTMAP TEXTURE \\\\\\\\\\\\\\\\\\\\\\\\\\\\\*
+	/////
+	/////	This creates a texture map from the light map image bits
+	/////
+	////////////////////////////// CREATE LIGHTMAP TEXTURE \\\\\\\\\\\\\\\\\\\\\\\\\\\\\*
+	
+	private void createLightmapTexture(IntBuffer texture, int position, ByteBuffer imageBuffer, int width, int height) throws IOException
+	{
+		// This function takes in the lightmap image bits and creates a texture map
+		// from them.  The width and height is usually 128x128 anyway....
+		
+		// Generate a texture with the associative texture ID stored in the array
+		//IntBuffer temp = ByteBuffer.allocateDirect(4).order(ByteOrder.nativeOrder()).asIntBuffer();
+		
+		glGenTextures(lightBuffer);
+		int textID = lightBuffer.get(position);
+		//System.out.println(textID);
+		texLight = new Texture(GL_TEXTURE_2D, textID);
+		// This sets the alignment requirements for the start of each pixel row in memory.
+		glPixelStorei(GL_UNPACK_ALIGNMENT, 1);
+		
+		// Bind the texture to the texture arrays index and init the texture
+		texLight.bind();
+		texManagerLight.setTexture(texLight);
+	
+		//Build Mipmaps (builds different versions of the picture for distances - looks better)
+		gluBuild2DMipmaps(GL_TEXTURE_2D, 3, width, height, GL_RGB, GL_UNSIGNED_BYTE, imageBuffer);
+            	
+		//Assign the mip map levels		
+		glTexParameteri(GL_TEXTURE_2D,GL_TEXTURE_MAG_FILTER,GL_LINEAR);	
+		glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_LINEAR_MIPMAP_NEAREST);
+		glTexEnvf(GL_TEXTURE_ENV, GL_TEXTURE_ENV_MODE, GL_MODULATE);
+		
+	}
+	
+	
+	//////////////////////////////CREATE LIGHTMAP IMAGE \\\\\\\\\\\\\\\*
+	/////
+	/////	This gamma corrects one lightmap from lightmapBits and copies it for OpenGL
+	/////
+	////////////////////////////// CREATE LIGHTMAP IMAGE \\\\\\\\\\\\\\\*
+	
+	private ByteBuffer createLightmapImage(int lightmapID, GammaTable table)
+	{
+		// Nothing in here touches OpenGL, so lightmaps can be prepared on any thread
+		
+		// Change the lightmap gamma values by our desired gamma
+		byte[] imageBits = new byte[49152];
+		table.apply(lightmapBits, lightmapID * 49152, imageBits, 0, imageBits.length);
+	 
+		ByteBuffer imageBuffer = ByteBuffer.allocateDirect(imageBits.length); 
+        imageBuffer.order(ByteOrder.nativeOrder()); 
+        imageBuffer.put(imageBits, 0, imageBits.length); 
+        imageBuffer.flip();
+        
+        return imageBuffer;
+	}
 	
-			// Get the scale for this pixel and multiply it by our pixel values
-			scale*=255.0f;		
-			r*=scale;	g*=scale;	b*=scale;
+	////////////////////////////SET GAMMA \\\\\\\\\\\\\\\\\\\\\\\\\\\*
+	/////
+	/////	This changes the gamma of the lightmaps without loading the level again
+	/////
+	//////////////////////////// SET GAMMA \\\\\\\\\\\\\\\\\\\\\\\\\\\*
 	
-			// Assign the new gamma'nized RGB values to our image
-			light.imageBits[i] = (byte)r;
-			light.imageBits[i+1] = (byte)g;
-			light.imageBits[i+2] = (byte)b;
+	public void setGamma(String factorGamma)
+	{
+		//  The gamma increases/decreases the intensity of the lightmaps so
+		// that they aren't so dark.  Quake uses hardware to do this, but we do
+		// it in code through the GammaTable.  We kept the lightmaps as they are
+		// in the .bsp, so we only redo the gamma and upload the pages again.
+		// This has to be called from the OpenGL thread.
+		if(lightmapBits == null || lightmapAtlas == null)
+		{
+			return;
+		}
+		
+		gammaTable = GammaTable.parse(factorGamma);
+		
+		ByteBuffer[] lightmapImages = new ByteBuffer[numOfLightmaps];
+		ForkJoinPool.commonPool().invoke(new LightmapTask(gammaTable, lightmapImages, 0, numOfLightmaps));
+		
+		// The layout is the same, so the faces keep their lightmap coordinates
+		ByteBuffer[] pages = lightmapAtlas.buildPages(lightmapImages);
+		
+		glPixelStorei(GL_UNPACK_ALIGNMENT, 1);
+		
+		for(int i = 0; i < pages.length; i++)
+		{
+			texManagerLight.getTexture(i).bind();
+			gluBuild2DMipmaps(GL_TEXTURE_2D, 3, lightmapAtlas.getPageWidth(), lightmapAtlas.getPageHeight(i), 
+							  GL_RGB, GL_UNSIGNED_BYTE, pages[i]);
 		}
+		
+		// The next face drawn has to bind its page again
+		boundLightmapPage = -1;
+	}
+	
+	// This returns the gamma factor the lightmaps are corrected with
+	public float getGamma()
+	{
+		return (gammaTable == null) ? 0.0f : gammaTable.getFactor();
 	}
 	
 	////////////////////////////FIND LEAF \\\\\\\\\\\\\\\\\\\\\\\\\\\*
@@ -892,6 +2222,11 @@ public class Quake3BSP {
 	//////////////////////////// FIND LEAF \\\\\\\\\\\\\\\\\\\\\\\\\\\*
 	
 	private int findLeaf(Vector3f position)
+	{
+		return findLeaf(position.x, position.y, position.z);
+	}
+	
+	private int findLeaf(float x, float y, float z)
 	{
 		int i = 0;
 		float distance = 0.0f;
@@ -911,38 +2246,243 @@ public class Quake3BSP {
 		// for us to know which leaf our camera is in so that we know which cluster
 		// we are in.  That way we can test if other clusters are seen from our cluster.
 		
-		// Continue looping until we find a negative index
-		while(i >= 0)
+		// Continue looping until we find a negative index
+		while(i >= 0)
+		{
+			// Get the current node, then find the slitter plane from that
+			// node's plane index.
+			int plane = nodePlanes[i];
+	
+			// Use the Plane Equation (Ax + by + Cz + D = 0) to find if the
+			// camera is in front of or behind the current splitter plane.
+			
+	        distance =	planeNormals[plane*3]   * x + 
+						planeNormals[plane*3+1] * y + 
+						planeNormals[plane*3+2] * z - planeDistances[plane];
+	
+			// If the camera is in front of the plane
+	        if(distance >= 0)	
+			{
+				// Assign the current node to the node in front of itself
+	            i = nodeChildren[i*2];
+	        }
+			// Else if the camera is behind the plane
+	        else		
+			{
+				// Assign the current node to the node behind itself
+	            i = nodeChildren[i*2+1];
+	        }
+	    }
+	
+		// Return the leaf index (same thing as saying:  return -(i + 1)).
+	    return ~i;  // Binary operation
+	}
+	
+	//////////////////////////// FIND LEAF HINT \\\\\\\\\\\\\\\\\\\\\\\\\\\*
+	/////
+	/////	This returns the leaf a point is in, trying the leaf it was in last time first
+	/////
+	//////////////////////////// FIND LEAF HINT \\\\\\\\\\\\\\\\\\\\\\\\\\\*
+	
+	public int findLeaf(float x, float y, float z, int hint)
+	{
+		ensureLeafHints();
+		
+		// Things mostly stay in the same leaf from one frame to the next, and
+		// proving that only takes the box and a plane or two
+		if(hint >= 0 && hint < numOfLeafs && isInLeaf(hint, x, y, z))
+		{
+			return hint;
+		}
+		
+		// Otherwise walk down the tree from the top like always
+		return findLeaf(x, y, z);
+	}
+	
+	// This finds the leafs of a batch of points, packed as x, y, z triples.  The
+	// leafs array comes in with the last leaf of each point, or -1 if there
+	// isn't one, and goes out with the leaf each point is in now.
+	public void findLeafs(float[] positions, int[] leafs, int count)
+	{
+		ensureLeafHints();
+		
+		for(int i = 0; i < count; i++)
+		{
+			float x = positions[i*3];
+			float y = positions[i*3+1];
+			float z = positions[i*3+2];
+			int hint = leafs[i];
+			
+			if(hint < 0 || hint >= numOfLeafs || !isInLeaf(hint, x, y, z))
+			{
+				leafs[i] = findLeaf(x, y, z);
+			}
+		}
+	}
+	
+	// This returns the cluster of a leaf, or -1 if the leaf is in a wall
+	public int getLeafCluster(int leaf)
+	{
+		ensureLeafHints();
+		
+		return leafClusters[leaf];
+	}
+	
+	public int getNumOfLeafs()
+	{
+		return numOfLeafs;
+	}
+	
+	// This copies the min x, y, z and then the max x, y, z of a leaf's box into bounds
+	public void getLeafBounds(int leaf, float[] bounds)
+	{
+		ensureLeafHints();
+		
+		System.arraycopy(leafBounds, leaf*6, bounds, 0, 6);
+	}
+	
+	// This returns how many faces a leaf is in charge of
+	public int getNumOfLeafFaces(int leaf)
+	{
+		ensureRenderLumps();
+		
+		return leafNumFaces[leaf];
+	}
+	
+	// This returns the face index of one of a leaf's faces
+	public int getLeafFace(int leaf, int i)
+	{
+		ensureRenderLumps();
+		
+		return leafFaces[leafFirstFace[leaf] + i];
+	}
+	
+	// This tells if a point is in a leaf, checking its box and then the planes that cut it
+	private boolean isInLeaf(int leaf, float x, float y, float z)
+	{
+		int bounds = leaf*6;
+		if(x < leafBounds[bounds]   || y < leafBounds[bounds+1] || z < leafBounds[bounds+2] ||
+		   x > leafBounds[bounds+3] || y > leafBounds[bounds+4] || z > leafBounds[bounds+5])
+		{
+			return false;
+		}
+		
+		// A leaf the tree never reaches can't be trusted
+		int first = leafHintFirst[leaf];
+		if(first < 0)
+		{
+			return false;
+		}
+		
+		for(int k = first * 5; k < (first + leafHintCount[leaf]) * 5; k += 5)
+		{
+			float distance = leafHintPlanes[k]   * x + 
+							 leafHintPlanes[k+1] * y + 
+							 leafHintPlanes[k+2] * z - leafHintPlanes[k+3];
+			
+			// The planes face into the leaf, but findLeaf() sends a point
+			// right on a plane to the front, so that's outside a back leaf.
+			if(distance < 0 || (distance == 0 && leafHintPlanes[k+4] != 0))
+			{
+				return false;
+			}
+		}
+		
+		return true;
+	}
+	
+	// This decodes the tree and works out the planes to check for each leaf
+	private void ensureLeafHints()
+	{
+		if(leafHintFirst != null)
+		{
+			return;
+		}
+		
+		synchronized(this)
 		{
-			// Get the current node, then find the slitter plane from that
-			// node's plane index.  Notice that we use a constant reference
-			// to store the plane and node so we get some optimization.
-			BSPNode  node = nodes[i];
-			BSPPlane plane = planes[node.plane];
-	
-			// Use the Plane Equation (Ax + by + Cz + D = 0) to find if the
-			// camera is in front of or behind the current splitter plane.
+			if(leafHintFirst != null)
+			{
+				return;
+			}
+			
+			decodeLump(Lumps.kNodes);
+			decodeLump(Lumps.kLeafs);
+			decodeLump(Lumps.kPlanes);
+			
+			int[] first = new int[numOfLeafs];
+			Arrays.fill(first, -1);
+			leafHintCount = new int[numOfLeafs];
+			leafHintPlanes = new float[numOfLeafs * 4 * 5];
+			numOfLeafHintPlanes = 0;
 			
-	        distance =	plane.normal.x * position.x + 
-						plane.normal.y * position.y + 
-						plane.normal.z * position.z - plane.distance;
+			addLeafHints(0, new int[numOfNodes], 0, first);
+			
+			// This one goes last, it's what says the hints are ready
+			leafHintFirst = first;
+		}
+	}
 	
-			// If the camera is in front of the plane
-	        if(distance >= 0)	
-			{
-				// Assign the current node to the node in front of itself
-	            i = node.front;
-	        }
-			// Else if the camera is behind the plane
-	        else		
+	// This walks down the tree keeping the planes above each node, and at each
+	// leaf keeps the ones that cut through its bounding box.
+	private void addLeafHints(int node, int[] path, int depth, int[] first)
+	{
+		if(node < 0)
+		{
+			int leaf = ~node;
+			int bounds = leaf*6;
+			
+			float centerX = (leafBounds[bounds]   + leafBounds[bounds+3]) * 0.5f;
+			float centerY = (leafBounds[bounds+1] + leafBounds[bounds+4]) * 0.5f;
+			float centerZ = (leafBounds[bounds+2] + leafBounds[bounds+5]) * 0.5f;
+			float sizeX = (leafBounds[bounds+3] - leafBounds[bounds])   * 0.5f;
+			float sizeY = (leafBounds[bounds+4] - leafBounds[bounds+1]) * 0.5f;
+			float sizeZ = (leafBounds[bounds+5] - leafBounds[bounds+2]) * 0.5f;
+			
+			first[leaf] = numOfLeafHintPlanes;
+			
+			for(int k = 0; k < depth; k++)
 			{
-				// Assign the current node to the node behind itself
-	            i = node.back;
-	        }
-	    }
-	
-		// Return the leaf index (same thing as saying:  return -(i + 1)).
-	    return ~i;  // Binary operation
+				int plane = path[k] >> 1;
+				float nx = planeNormals[plane*3];
+				float ny = planeNormals[plane*3+1];
+				float nz = planeNormals[plane*3+2];
+				
+				// How far the center of the box and its corners are from the plane
+				float distance = nx * centerX + ny * centerY + nz * centerZ - planeDistances[plane];
+				float radius = Math.abs(nx) * sizeX + Math.abs(ny) * sizeY + Math.abs(nz) * sizeZ;
+				
+				// Skip the plane if the whole box is well on the leaf's side of it
+				boolean behind = (path[k] & 1) != 0;
+				if(!behind && distance - radius >= LEAF_HINT_MARGIN) continue;
+				if(behind && distance + radius <= -LEAF_HINT_MARGIN) continue;
+				
+				if(numOfLeafHintPlanes * 5 == leafHintPlanes.length)
+				{
+					leafHintPlanes = Arrays.copyOf(leafHintPlanes, leafHintPlanes.length * 2);
+				}
+				
+				// Flip the planes the leaf is behind so they all face into it.
+				// Negating is exact, so the distances come out the same.
+				float side = behind ? -1.0f : 1.0f;
+				int h = numOfLeafHintPlanes * 5;
+				leafHintPlanes[h]   = nx * side;
+				leafHintPlanes[h+1] = ny * side;
+				leafHintPlanes[h+2] = nz * side;
+				leafHintPlanes[h+3] = planeDistances[plane] * side;
+				leafHintPlanes[h+4] = behind ? 1.0f : 0.0f;
+				numOfLeafHintPlanes++;
+			}
+			
+			leafHintCount[leaf] = numOfLeafHintPlanes - first[leaf];
+			return;
+		}
+		
+		path[depth] = nodePlanes[node] * 2;
+		addLeafHints(nodeChildren[node*2], path, depth + 1, first);
+		
+		path[depth] = nodePlanes[node] * 2 + 1;
+		addLeafHints(nodeChildren[node*2+1], path, depth + 1, first);
 	}
 	
 	
@@ -967,26 +2507,156 @@ public class Quake3BSP {
 	
 		// Make sure we have valid memory and that the current cluster is > 0.
 		// If we don't have any memory or a negative cluster, return a visibility (1).
-		if(clusters.bitSets == null || current < 0) return 1;
+		if(clusters.rows == null || current < 0) return 1;
+		
+		// Leafs outside the level have no cluster, and can't be seen from anywhere
+		if(test < 0) return 0;
 	
-		// Use binary math to get the 8 bit visibility set for the current cluster
-		byte visSet = clusters.bitSets[(current*clusters.bytesPerCluster) + (test / 8)];
+		// Use binary math to get the 64 bit visibility set for the current cluster
+		long visSet = clusters.rows[(current*clusters.wordsPerCluster) + (test >> 6)];
 		
 		// Now that we have our vector (bitset), do some bit shifting to find if
 		// the "test" cluster is visible from the "current" cluster, according to the bitset.
-		int result = visSet & (1 << ((test) & 7));
+		int result = (int)(visSet >>> test) & 1;
 	
 		// Return the result ( either 1 (visible) or 0 (not visible) )
 		return ( result );
 	}
 	
+	//////////////////////////// VISIBLE CLUSTERS \\\\\\\\\\\\\\\\\\\\\\\\\\\*
+	/////
+	/////	This keeps the clusters of a set that can be seen from a cluster
+	/////
+	//////////////////////////// VISIBLE CLUSTERS \\\\\\\\\\\\\\\\\\\\\\\\\\\*
+	
+	public int getVisibleClusters(int cluster, long[] occupied, int occupiedOffset, long[] out, int outOffset)
+	{
+		ensureVisData();
+		
+		int words = getWordsPerCluster();
+		
+		// From inside a wall everything is visible, just like isClusterVisible() says
+		if(cluster < 0)
+		{
+			System.arraycopy(occupied, occupiedOffset, out, outOffset, words);
+			return ClusterBits.count(out, outOffset, words);
+		}
+		
+		// Otherwise it's the cluster's row ANDed with the set, a word at a time
+		return ClusterBits.and(clusters.rows, cluster * words, occupied, occupiedOffset, out, outOffset, words);
+	}
+	
+	// This returns the number of clusters in the visibility data, or 0 if the level has none
+	public int getNumOfClusters()
+	{
+		ensureVisData();
+		
+		return (clusters == null) ? 0 : clusters.numOfClusters;
+	}
+	
+	// This returns the longs in each row of getVisibilityRows(), which is also
+	// the size of the cluster sets the ClusterBits functions are given
+	public int getWordsPerCluster()
+	{
+		ensureVisData();
+		
+		return (clusters == null) ? 0 : clusters.wordsPerCluster;
+	}
+	
+	// This returns the visibility of every cluster, one row of getWordsPerCluster()
+	// longs after the other, or null if the level has none.  It's shared, so it
+	// must not be changed.
+	public long[] getVisibilityRows()
+	{
+		ensureVisData();
+		
+		return (clusters == null) ? null : clusters.rows;
+	}
+	
+	// This makes sure the visibility has been decoded
+	private void ensureVisData()
+	{
+		if(!renderLumpsLoaded)
+		{
+			decodeLump(Lumps.kVisData);
+		}
+	}
+	
 	
 	/////////////////////////////////// TRACE RAY \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\*
 	/////
-	/////	This takes a start and end position (ray) to test against the BSP brushes
+	/////	This takes a start and end position (ray) to test against the BSP brushes.
+	/////	The result is written into the caller's TraceResult, so this is safe to
+	/////	call from several threads at once as long as each uses its own result.
 	/////
 	/////////////////////////////////// TRACE RAY \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\*
 	
+	public TraceResult traceRay(Vector3f vStart, Vector3f vEnd, TraceResult result)
+	{
+		// Set up the result to check a ray with the BSP tree brushes
+		result.reset(TYPE_RAY, 0.0f);
+		
+		// Run the trace with our start and end position
+		trace(vStart, vEnd, result);
+		
+		return result;
+	}
+	
+	
+	/////////////////////////////////// TRACE SPHERE \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\*
+	/////
+	/////	This tests a sphere around our movement vector against the BSP brushes for collision.
+	/////	Like traceRay(), all of the trace state lives in the caller's TraceResult.
+	/////
+	/////////////////////////////////// TRACE SPHERE \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\*
+	
+	public TraceResult traceSphere(Vector3f vStart, Vector3f vEnd, float radius, TraceResult result)
+	{
+		// Set up the result to check a sphere with the BSP tree brushes
+		result.reset(TYPE_SPHERE, radius);
+		
+		// Run the trace with our start and end position
+		trace(vStart, vEnd, result);
+		
+		return result;
+	}
+	
+	
+	/////////////////////////////////// TRACE BOX \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\*
+	/////
+	/////	This sweeps an axis aligned box around our movement vector against the BSP
+	/////	brushes.  mins and maxs are the corners of the box relative to the position,
+	/////	like a player's bounding box around its origin.
+	/////
+	/////////////////////////////////// TRACE BOX \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\*
+	
+	public TraceResult traceBox(Vector3f vStart, Vector3f vEnd, Vector3f vMin, Vector3f vMax, TraceResult result)
+	{
+		// If the box has no size at all we can just trace a ray instead
+		if(vMin.x == 0 && vMin.y == 0 && vMin.z == 0 && vMax.x == 0 && vMax.y == 0 && vMax.z == 0)
+		{
+			return traceRay(vStart, vEnd, result);
+		}
+		
+		// Set up the result to check a box with the BSP tree brushes
+		result.reset(TYPE_BOX, 0.0f);
+		result.setBox(vMin, vMax);
+		
+		// Run the trace with our start and end position
+		trace(vStart, vEnd, result);
+		
+		return result;
+	}
+	
+	
+	// The old versions of traceRay(), traceSphere() and trace() below keep their
+	// settings and results in the level itself (traceType, traceRadius, traceRatio
+	// and collided), so only one of them can run at a time.  They are kept for
+	// the existing callers and just wrap the TraceResult versions above, all
+	// with the one TraceResult the level owns.  Like they always did, they return
+	// a new position the caller can keep, so use the TraceResult versions where
+	// a trace must not allocate anything.
+	
 	public Vector3f traceRay(Vector3f vStart, Vector3f vEnd)
 	{
 		// We don't use this function, but we set it up to allow us to just check a
@@ -998,28 +2668,34 @@ public class Quake3BSP {
 		return trace(vStart, vEnd);
 	}
 	
-	
-	/////////////////////////////////// TRACE SPHERE \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\*
-	/////
-	/////	This tests a sphere around our movement vector against the BSP brushes for collision
-	/////
-	/////////////////////////////////// TRACE SPHERE \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\*
-	
 	public Vector3f traceSphere(Vector3f vStart, Vector3f vEnd, float radius)
 	{
-		// In this tutorial we are doing sphere collision, so this is the function
-		// that we will be doing to initiate our collision checks.
-	
 		// Here we initialize the type of trace (SPHERE) and initialize other data
 		traceType = TYPE_SPHERE;
-		collided = false;
 		traceRadius = radius;
 	
 		// Get the new position that we will return to the camera or player
-		Vector3f vNewPosition = trace(vStart, vEnd);
+		return trace(vStart, vEnd);
+	}
 	
-		// Return the new position to be changed for the camera or player
-		return vNewPosition;
+	public Vector3f trace(Vector3f vStart, Vector3f vEnd)
+	{
+		TraceResult result = legacyTrace;
+		
+		result.reset(traceType, traceRadius);
+		trace(vStart, vEnd, result);
+		
+		// Copy the result back into the level for getTraceRatio() and isCollided()
+		traceRatio = result.fraction;
+		collided = result.isCollided();
+		
+		// If we never collided just return our end position
+		if(!collided)
+		{
+			return vEnd;
+		}
+		
+		return new Vector3f(result.endPosition);
 	}
 	
 	/////////////////////////////////// TRACE \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\*
@@ -1028,20 +2704,30 @@ public class Quake3BSP {
 	/////
 	/////////////////////////////////// TRACE \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\*
 	
-	public Vector3f trace(Vector3f vStart, Vector3f vEnd)
+	private void trace(Vector3f vStart, Vector3f vEnd, TraceResult result)
 	{
-		// Initially we set our trace ratio to 1.0f, which means that we don't have
-		// a collision or intersection point, so we can move freely.
-		traceRatio = 1.0f;
+		// Decode the brushes from the mapped file the first time we collide
+		ensureCollisionLumps();
+		
+		// Remember the whole move, since the brushes are always checked against it,
+		// and start a new check count so each brush is only tested once
+		result.startX = vStart.x;
+		result.startY = vStart.y;
+		result.startZ = vStart.z;
+		result.endX = vEnd.x;
+		result.endY = vEnd.y;
+		result.endZ = vEnd.z;
+		result.nextCheckCount(numOfBrushes);
 		
 		// We start out with the first node (0), setting our start and end ratio to 0 and 1.
 		// We will recursively go through all of the nodes to see which brushes we should check.
-		checkNode(0, 0.0f, -1.0f, vStart, vEnd);
+		// The positions are passed as plain floats so the recursion doesn't allocate.
+		checkNode(result, 0, 0.0f, -1.0f, vStart.x, vStart.y, vStart.z, vEnd.x, vEnd.y, vEnd.z);
 	
-		// If the traceRatio is STILL 1.0f, then we never collided and just return our end position
-		if(traceRatio == 1.0f)
+		// If the fraction is STILL 1.0f, then we never collided and just return our end position
+		if(result.fraction == 1.0f)
 		{
-			return vEnd;
+			result.endPosition.setTo(vEnd);
 		}
 		else	// Else COLLISION!!!!
 		{
@@ -1051,22 +2737,128 @@ public class Quake3BSP {
 	
 			// Set our new position to a position that is right up to the brush we collided with
 			//Vector3f vNewPosition = vStart + ((vEnd - vStart) * traceRatio);
+			result.endPosition.setTo((vEnd.x - vStart.x) * result.fraction + vStart.x,
+									 (vEnd.y - vStart.y) * result.fraction + vStart.y,
+									 (vEnd.z - vStart.z) * result.fraction + vStart.z);
+		}
+	}
+	
+	/////////////////////////////////// TRACE BATCH \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\*
+	/////
+	/////	This traces a whole batch of rays and spheres at once on a ForkJoin pool.
+	/////	The start and end points are packed as x, y, z triples and a radius of 0
+	/////	(or no radii at all) makes that entry a ray.  For every entry we write the
+	/////	fraction, the end position (x, y, z) and, if asked for, the plane normal
+	/////	(x, y, z) into the output arrays.  Idle threads steal the ranges that are
+	/////	still waiting, so uneven traces don't leave the other threads waiting.
+	/////
+	/////////////////////////////////// TRACE BATCH \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\*
+	
+	public void traceBatch(float[] starts, float[] ends, float[] radii, int count, 
+						   float[] fractions, float[] endPositions, float[] normals, ForkJoinPool pool)
+	{
+		// Decode the brushes here so the tasks never have to wait on each other for it
+		ensureCollisionLumps();
+		
+		pool.invoke(new TraceTask(starts, ends, radii, fractions, endPositions, normals, 0, count));
+	}
+	
+	// This traces a range of the batch, splitting it in half until it is small enough
+	private class TraceTask extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+		
+		private static final int THRESHOLD = 64;	// Traces done by one task before it stops splitting
+		
+		private final float[] starts;
+		private final float[] ends;
+		private final float[] radii;
+		private final float[] fractions;
+		private final float[] endPositions;
+		private final float[] normals;
+		private final int start;
+		private final int end;
+		
+		TraceTask(float[] starts, float[] ends, float[] radii, 
+				  float[] fractions, float[] endPositions, float[] normals, int start, int end)
+		{
+			this.starts = starts;
+			this.ends = ends;
+			this.radii = radii;
+			this.fractions = fractions;
+			this.endPositions = endPositions;
+			this.normals = normals;
+			this.start = start;
+			this.end = end;
+		}
+		
+		protected void compute()
+		{
+			if(end - start > THRESHOLD)
+			{
+				int middle = (start + end) >>> 1;
+				invokeAll(new TraceTask(starts, ends, radii, fractions, endPositions, normals, start, middle),
+						  new TraceTask(starts, ends, radii, fractions, endPositions, normals, middle, end));
+				return;
+			}
 			
-			Vector3f tempSubtract = new Vector3f(VectorMath.subtract(vEnd, vStart));
+			// One result and one pair of points serve the whole range
+			TraceResult result = new TraceResult();
+			Vector3f vStart = new Vector3f();
+			Vector3f vEnd = new Vector3f();
 			
-			Vector3f vNewPosition = new Vector3f(VectorMath.add(VectorMath.multiply(tempSubtract, traceRatio), vStart)); 	
-			// Return the new position to be used by our camera (or player)
-			return vNewPosition;
+			for(int i = start; i < end; i++)
+			{
+				vStart.setTo(starts[i*3], starts[i*3+1], starts[i*3+2]);
+				vEnd.setTo(ends[i*3], ends[i*3+1], ends[i*3+2]);
+				
+				if(radii != null && radii[i] > 0.0f)
+				{
+					result.reset(TYPE_SPHERE, radii[i]);
+				}
+				else
+				{
+					result.reset(TYPE_RAY, 0.0f);
+				}
+				trace(vStart, vEnd, result);
+				
+				fractions[i] = result.fraction;
+				endPositions[i*3]   = result.endPosition.x;
+				endPositions[i*3+1] = result.endPosition.y;
+				endPositions[i*3+2] = result.endPosition.z;
+				
+				if(normals != null)
+				{
+					normals[i*3]   = result.planeNormal.x;
+					normals[i*3+1] = result.planeNormal.y;
+					normals[i*3+2] = result.planeNormal.z;
+				}
+			}
 		}
 	}
 	
+	// This returns the dot product of a point with the normal of a plane
+	private float planeDot(int plane, Vector3f point)
+	{
+		return planeDot(plane, point.x, point.y, point.z);
+	}
+	
+	// This returns the dot product of a point (x, y, z) with the normal of a plane
+	private float planeDot(int plane, float x, float y, float z)
+	{
+		return planeNormals[plane*3]   * x + 
+			   planeNormals[plane*3+1] * y + 
+			   planeNormals[plane*3+2] * z;
+	}
+	
 	/////////////////////////////////// CHECK NODE \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\*
 	/////
 	/////	This traverses the BSP to find the brushes closest to our position
 	/////
 	/////////////////////////////////// CHECK NODE \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\*
 	
-	private void checkNode(int nodeIndex, float startRatio, float endRatio, Vector3f vStart, Vector3f vEnd)
+	private void checkNode(TraceResult trace, int nodeIndex, float startRatio, float endRatio, 
+						   float startX, float startY, float startZ, float endX, float endY, float endZ)
 	{
 		// Remember, the nodeIndices are stored as negative numbers when we get to a leaf, so we 
 		// check if the current node is a leaf, which holds brushes.  If the nodeIndex is negative,
@@ -1075,13 +2867,20 @@ public class Quake3BSP {
 		{
 			// If this node in the BSP is a leaf, we need to negate and add 1 to offset
 			// the real node index into the m_pLeafs[] array.  You could also do [~nodeIndex].
-			BSPLeaf pLeaf = leafs[-(nodeIndex + 1)];
+			int leaf = -(nodeIndex + 1);
 	
 			// We have a leaf, so let's go through all of the brushes for that leaf
-			for(int i = 0; i < pLeaf.numOfLeafBrushes; i++)
+			for(int i = 0; i < leafNumBrushes[leaf]; i++)
 			{
 				// Get the current brush that we going to check
-				BSPBrush pBrush = brushes[leafBrushes[pLeaf.leafBrush + i]];
+				int brush = leafBrushes[leafFirstBrush[leaf] + i];
+				
+				// Skip the brush if another leaf along the move already had us check it
+				if(trace.brushChecked[brush] == trace.checkCount)
+				{
+					continue;
+				}
+				trace.brushChecked[brush] = trace.checkCount;
 	
 				// This is kind of an important line.  First, we check if there is actually
 				// and brush sides (which store indices to the normal and plane data for the brush).
@@ -1094,11 +2893,11 @@ public class Quake3BSP {
 				// do it.
 	
 				// Check if we have brush sides and the current brush is solid and collidable
-				if((pBrush.numOfBrushSides > 0) && (textures[pBrush.textureID].textureType & 1) == 1)
+				if((brushNumSides[brush] > 0) && (textures[brushTextureIDs[brush]].textureType & 1) == 1)
 				{
 					// Now we delve into the dark depths of the real calculations for collision.
-					// We can now check the movement vector against our brush planes.
-					checkBrush(pBrush, vStart, vEnd);
+					// We can now check the whole movement vector against our brush planes.
+					checkBrush(trace, brush);
 				}
 			}
 	
@@ -1110,15 +2909,16 @@ public class Quake3BSP {
 		// until we find the leafs which store the brush information for collision detection.
 	
 		// Grad the next node to work with and grab this node's plane data
-		BSPNode pNode = nodes[nodeIndex];
-		BSPPlane pPlane = planes[pNode.plane];
+		int front = nodeChildren[nodeIndex*2];
+		int back = nodeChildren[nodeIndex*2+1];
+		int plane = nodePlanes[nodeIndex];
 		
 		// Now we do some quick tests to see which side we fall on of the node in the BSP
-	
+
 		// Here we use the plane equation to find out where our initial start position is
 		// according the node that we are checking.  We then grab the same info for the end pos.
-		float startDistance = VectorMath.getDotProduct(vStart, pPlane.normal) - pPlane.distance;
-		float endDistance = VectorMath.getDotProduct(vEnd, pPlane.normal) - pPlane.distance;
+		float startDistance = planeDot(plane, startX, startY, startZ) - planeDistances[plane];
+		float endDistance = planeDot(plane, endX, endY, endZ) - planeDistances[plane];
 		float offset = 0.0f;
 	
 		// If we are doing any type of collision detection besides a ray, we need to change
@@ -1128,9 +2928,17 @@ public class Quake3BSP {
 		// more info on sphere collision, check out our tutorials on this subject.
 	
 		// If we are doing sphere collision, include an offset for our collision tests below
-		if(traceType == TYPE_SPHERE)
+		if(trace.traceType == TYPE_SPHERE)
 		{
-			offset = traceRadius;
+			offset = trace.traceRadius;
+		}
+		// If we are doing box collision, the offset is how far the box reaches out
+		// along the plane's normal, which depends on the box's size on each axis.
+		else if(trace.traceType == TYPE_BOX)
+		{
+			offset = Math.abs(trace.traceExtents.x * planeNormals[plane*3]) + 
+					 Math.abs(trace.traceExtents.y * planeNormals[plane*3+1]) + 
+					 Math.abs(trace.traceExtents.z * planeNormals[plane*3+2]);
 		}
 		// Below we just do a basic traversal down the BSP tree.  If the points are in
 		// front of the current splitter plane, then only check the nodes in front of
@@ -1144,29 +2952,29 @@ public class Quake3BSP {
 		if(startDistance >= offset && endDistance >= offset)
 		{
 			// Traverse the BSP tree on all the nodes in front of this current splitter plane
-			checkNode(pNode.front, startDistance, endDistance, vStart, vEnd);
+			checkNode(trace, front, startDistance, endDistance, startX, startY, startZ, endX, endY, endZ);
 		}
 		// If both points are behind the current splitter plane, traverse down the back nodes
 		else if(startDistance < -offset && endDistance < -offset)
 		{
 			// Traverse the BSP tree on all the nodes in back of this current splitter plane
-			checkNode(pNode.back, startDistance, endDistance, vStart, vEnd);
+			checkNode(trace, back, startDistance, endDistance, startX, startY, startZ, endX, endY, endZ);
 		}	
 		else
 		{
 			// If we get here, then our ray needs to be split in half to check the nodes
 			// on both sides of the current splitter plane.  Thus we create 2 ratios.
 			float Ratio1 = 1.0f, Ratio2 = 0.0f, middleRatio = 0.0f;
-			Vector3f vMiddle = new Vector3f();	// This stores the middle point for our split ray
+			float middleX, middleY, middleZ;	// This stores the middle point for our split ray
 	
 			// Start of the side as the front side to check
-			int side = pNode.front;
+			int side = front;
 	
 			// Here we check to see if the start point is in back of the plane (negative)
 			if(startDistance < endDistance)
 			{
 				// Since the start position is in back, let's check the back nodes
-				side = pNode.back;
+				side = back;
 	
 				// Here we create 2 ratios that hold a distance from the start to the
 				// extent closest to the start (take into account a sphere and epsilon).
@@ -1203,22 +3011,26 @@ public class Quake3BSP {
 			// We also grab the middle point to go with the ratio.
 			middleRatio = startRatio + ((endRatio - startRatio) * Ratio1);
 			//vMiddle = vStart + ((vEnd - vStart) * Ratio1);
-			vMiddle = VectorMath.add(vStart, VectorMath.multiply(VectorMath.subtract(vEnd, vStart), Ratio1));
+			middleX = startX + (endX - startX) * Ratio1;
+			middleY = startY + (endY - startY) * Ratio1;
+			middleZ = startZ + (endZ - startZ) * Ratio1;
 	
 			// Now we recurse on the current side with only the first half of the ray
-			checkNode(side, startRatio, middleRatio, vStart, vMiddle);
+			checkNode(trace, side, startRatio, middleRatio, startX, startY, startZ, middleX, middleY, middleZ);
 	
 			// Now we need to make a middle point and ratio for the other side of the node
 			middleRatio = startRatio + ((endRatio - startRatio) * Ratio2);
 			//vMiddle = vStart + ((vEnd - vStart) * Ratio2);
-			vMiddle = VectorMath.add(vStart, VectorMath.multiply(VectorMath.subtract(vEnd, vStart), Ratio2));
+			middleX = startX + (endX - startX) * Ratio2;
+			middleY = startY + (endY - startY) * Ratio2;
+			middleZ = startZ + (endZ - startZ) * Ratio2;
 	
 			// Depending on which side should go last, traverse the bsp with the
 			// other side of the split ray (movement vector).
-			if(side == pNode.back)
-				checkNode(pNode.front, middleRatio, endRatio, vMiddle, vEnd);
+			if(side == back)
+				checkNode(trace, front, middleRatio, endRatio, middleX, middleY, middleZ, endX, endY, endZ);
 			else
-				checkNode(pNode.back, middleRatio, endRatio, vMiddle, vEnd);
+				checkNode(trace, back, middleRatio, endRatio, middleX, middleY, middleZ, endX, endY, endZ);
 		}
 	}
 	
@@ -1229,11 +3041,12 @@ public class Quake3BSP {
 	/////
 	/////////////////////////////////// CHECK BRUSH \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\*
 	
-	private void checkBrush(BSPBrush pBrush, Vector3f vStart, Vector3f vEnd)
+	private void checkBrush(TraceResult trace, int brush)
 	{
 		float startRatio = -1.0f;		// Like in BrushCollision.htm, start a ratio at -1
 	    float endRatio = 1.0f;			// Set the end ratio to 1
 	    boolean startsOut = false;			// This tells us if we starting outside the brush
+	    int hitPlane = -1;				// The plane that gave us startRatio
 	
 		// This function actually does the collision detection between our movement
 		// vector and the brushes in the world data.  We will go through all of the
@@ -1244,26 +3057,36 @@ public class Quake3BSP {
 		// is definitely not a collision.
 	
 		// Go through all of the brush sides and check collision against each plane
-		for(int i = 0; i < pBrush.numOfBrushSides; i++)
+		for(int i = 0; i < brushNumSides[brush]; i++)
 		{
 			// Here we grab the current brush side and plane in this brush
-			BSPBrushSide pBrushSide = brushSides[pBrush.brushSide + i];
-			BSPPlane pPlane = planes[pBrushSide.plane];
+			int plane = brushSidePlanes[brushFirstSide[brush] + i];
 	
 			// Let's store a variable for the offset (like for sphere collision)
 			float offset = 0.0f;
 	
 			// If we are testing sphere collision we need to add the sphere radius
-			if(traceType == TYPE_SPHERE)
+			if(trace.traceType == TYPE_SPHERE)
+			{
+				offset = trace.traceRadius;
+			}
+			// If we are testing a box, we push the plane out to the corner of the box
+			// that would touch it first, which is the corner furthest behind the plane.
+			// The brush's axial bevel planes make sure the box stops on the real edges.
+			else if(trace.traceType == TYPE_BOX)
 			{
-				offset = traceRadius;
+				float cornerX = (planeNormals[plane*3]   < 0) ? trace.traceMaxs.x : trace.traceMins.x;
+				float cornerY = (planeNormals[plane*3+1] < 0) ? trace.traceMaxs.y : trace.traceMins.y;
+				float cornerZ = (planeNormals[plane*3+2] < 0) ? trace.traceMaxs.z : trace.traceMins.z;
+				
+				offset = -planeDot(plane, cornerX, cornerY, cornerZ);
 			}
 			// Test the start and end points against the current plane of the brush side.
 			// Notice that we add an offset to the distance from the origin, which makes
 			// our sphere collision work.
 			
-			float startDistance = VectorMath.getDotProduct(vStart, pPlane.normal) - (pPlane.distance + offset);
-			float endDistance = VectorMath.getDotProduct(vEnd, pPlane.normal) - (pPlane.distance + offset);
+			float startDistance = planeDot(plane, trace.startX, trace.startY, trace.startZ) - (planeDistances[plane] + offset);
+			float endDistance = planeDot(plane, trace.endX, trace.endY, trace.endZ) - (planeDistances[plane] + offset);
 	
 			// Make sure we start outside of the brush's volume
 			if(startDistance > 0)	startsOut = true;
@@ -1289,7 +3112,7 @@ public class Quake3BSP {
 				{
 					// Set the startRatio (currently the closest collision distance from start)
 					startRatio = Ratio1;
-					collided = true;		// Let us know we collided!
+					hitPlane = plane;		// Remember which side we hit
 				}
 			}
 			else
@@ -1305,8 +3128,10 @@ public class Quake3BSP {
 		}
 	
 		// If we didn't start outside of the brush we don't want to count this collision - return;
+		// We do let the caller know that the trace started stuck inside a brush though.
 		if(startsOut == false)
 		{
+			trace.startSolid = true;
 			return;
 		}
 		
@@ -1314,16 +3139,19 @@ public class Quake3BSP {
 		if(startRatio < endRatio)
 		{
 			// Make sure the startRatio moved from the start and check if the collision
-			// ratio we just got is less than the current ratio stored in traceRatio.
+			// ratio we just got is less than the current fraction stored in the result.
 			// We want the closest collision to our original starting position.
-			if(startRatio > -1 && startRatio < traceRatio)
+			if(startRatio > -1 && startRatio < trace.fraction)
 			{
 				// If the startRatio is less than 0, just set it to 0
 				if(startRatio < 0)
 					startRatio = 0;
 	
-				// Store the new ratio in our member variable for later
-				traceRatio = startRatio;
+				// Store the new ratio and the normal of the side we hit in the result
+				trace.fraction = startRatio;
+				trace.planeNormal.setTo(planeNormals[hitPlane*3], 
+										planeNormals[hitPlane*3+1], 
+										planeNormals[hitPlane*3+2]);
 			}
 		}
 	}
@@ -1334,7 +3162,7 @@ public class Quake3BSP {
 	/////
 	//////////////////////////// RENDER FACE \\\\\\\\\\\\\\\\\\\\\\\\\\\*
 	
-	private void renderFace(int faceIndex)
+	private void renderFace(int faceIndex, Vector3f position)
 	{
 		// Here we grab the face from the index passed in
 		BSPFace face = faces[faceIndex];
@@ -1348,14 +3176,26 @@ public class Quake3BSP {
 		// light maps and textures, we need to make those checks in this function to know 
 		// what we should render.
 		
-		glVertexPointer(3, 0, face.vertFloatBuffer);
-		//glVertexPointer(3, GL_FLOAT, sizeof(tBSPVertex), &(m_pVerts[pFace->startVertIndex].vPosition));
-		glEnableClientState(GL_VERTEX_ARRAY);
-		// Next, we pass in the address of the first texture coordinate.  We also tell 
-		// OpenGL that there are 2 UV coordinates that are floats, and the offset between 
-		// each texture coordinate is the size of tBSPVertex in bytes.  
-		// We need to them give an address to the start of this face's indices, startVertIndex.
+		BezierPatch patch = null;
+		int level = 0;
 		
+		// Curved faces are drawn from their tessellation at the level of detail
+		// for how far away we are.  Only a level we haven't used yet costs anything.
+		if(face.type == FACE_PATCH)
+		{
+			patch = getPatch(faceIndex);
+			level = patch.chooseLevel(position.x, position.y, position.z);
+			
+			setArrays(patch.getVertBuffer(level), patch.getTexBuffer(level), patch.getLightBuffer(level), 0);
+			faceArraysBound = false;
+		}
+		else if(!faceArraysBound)
+		{
+			// Every other face draws out of the shared buffers, so the arrays
+			// only have to be pointed at them once.
+			setArrays(faceVertices, faceTexCoords, faceLightmapCoords, FACE_VERTEX_SIZE * 4);
+			faceArraysBound = true;
+		}
 
 		// If we want to render the textures
 		if(isTextures())
@@ -1363,25 +3203,9 @@ public class Quake3BSP {
 			// Set the current pass as the first texture (For multi-texturing)
 			glActiveTextureARB(GL_TEXTURE0_ARB);
 
-			// Since we are using vertex arrays, we need to tell OpenGL which texture
-			// coordinates to use for each texture pass.  We switch our current texture
-			// to the first one, then set our texture coordinates.
-			glClientActiveTextureARB(GL_TEXTURE0_ARB);
-			
-			glTexCoordPointer(2, 0, face.texFloatBuffer);
-			
-			// Set our vertex array client states for allowing texture coordinates
-			glEnableClientState(GL_TEXTURE_COORD_ARRAY);
-
-			// Turn on texture arrays for the first pass
-			glClientActiveTextureARB(GL_TEXTURE0_ARB);
-
 			// To enable each texture pass, we want to turn on the texture coord array
 			// state for each pass.  This needs to be done since we are using vertex arrays.
 			glEnable(GL_TEXTURE_2D);
-			//System.out.println(face.textureID);
-			//glBindTexture(GL_TEXTURE_2D, texManager.getLoader().getTexID(face.textureID));
-			//System.out.println("Size: "+texManager.getSize());
 			texManager.getTexture(face.textureID).bind();
 		}
 		
@@ -1390,56 +3214,206 @@ public class Quake3BSP {
 		{		
 			// Set the current pass as the second lightmap texture_
 			glActiveTextureARB(GL_TEXTURE1_ARB);
-
-			// Turn on texture arrays for the second lightmap pass
-			glClientActiveTextureARB(GL_TEXTURE1_ARB);
-			glEnableClientState(GL_TEXTURE_COORD_ARRAY);
-
-			// Next, we need to specify the UV coordinates for our lightmaps.  This is done
-			// by switching to the second texture and giving OpenGL our lightmap array.
-			glClientActiveTextureARB(GL_TEXTURE1_ARB);
-			
-			glTexCoordPointer(2, 0, face.lightFloatBuffer);
 						
 			// Turn on texture mapping and bind the face's texture map
 			glEnable(GL_TEXTURE_2D);
-			//texLight.bind();
-			texManagerLight.getTexture(face.lightmapID).bind();
 			
+			// The lightmaps are packed into pages, so only bind when the page changes
+			int page = lightmapAtlas.getPage(face.lightmapID);
+			if(page != boundLightmapPage)
+			{
+				texManagerLight.getTexture(page).bind();
+				boundLightmapPage = page;
+			}
+			
+		}
+	
+		// Now, to draw the face with vertex arrays we just need to tell OpenGL
+		// which indices we want to draw and what primitive the format is in.
+		// The faces are stored in triangles.  All of the faces share one index
+		// buffer, and their indices already point at their own vertices in
+		// faceVertices, so we only give OpenGL the range of this face.
+		if(patch != null)
+		{
+			glDrawElements(GL_TRIANGLES, patch.getIndexBuffer(level));
+		}
+		else
+		{
+			faceIndices.clear();
+			faceIndices.position(face.indexOffset);
+			faceIndices.limit(face.indexOffset + face.numOfIndices);
+			
+			glDrawRangeElements(GL_TRIANGLES, face.vertexOffset, face.vertexOffset + face.numOfVerts - 1, faceIndices);
+		}
+	}
+	
+	// This points the vertex arrays at the positions, and the two texture
+	// passes at their coordinates.  The stride is in bytes, 0 for packed arrays.
+	private void setArrays(FloatBuffer vertices, FloatBuffer texCoords, FloatBuffer lightmapCoords, int stride)
+	{
+		glVertexPointer(3, stride, vertices);
+		glEnableClientState(GL_VERTEX_ARRAY);
+		
+		// Since we are using vertex arrays, we need to tell OpenGL which texture
+		// coordinates to use for each texture pass.
+		if(isTextures())
+		{
+			glClientActiveTextureARB(GL_TEXTURE0_ARB);
+			glTexCoordPointer(2, stride, texCoords);
+			glEnableClientState(GL_TEXTURE_COORD_ARRAY);
+		}
+		
+		if(isHasLightmaps())
+		{
+			glClientActiveTextureARB(GL_TEXTURE1_ARB);
+			glTexCoordPointer(2, stride, lightmapCoords);
+			glEnableClientState(GL_TEXTURE_COORD_ARRAY);
+		}
+	}
+
+
+	//////////////////////////// FIND VISIBLE LEAFS \\\\\\\\\\\\\\\\\\\\\\\\\\\*
+	/////
+	/////	This builds the list of leafs that can be seen from a cluster
+	/////
+	//////////////////////////// FIND VISIBLE LEAFS \\\\\\\\\\\\\\\\\\\\\\\\\\\*
+	
+	private void findVisibleLeafs(int cluster)
+	{
+		if(visibleLeafs == null)
+		{
+			visibleLeafs = new int[numOfLeafs];
+			frustumLeafs = new int[numOfLeafs];
+		}
+		
+		numOfVisibleLeafs = 0;
+		
+		// Go through all the leafs (starting at the last one like renderLevel always
+		// did) and keep the ones whose cluster is visible from our cluster.
+		int i = numOfLeafs;
+		while(i-- > 0)
+		{
+			if(isClusterVisible(cluster, leafClusters[i]) != 0)
+			{
+				visibleLeafs[numOfVisibleLeafs++] = i;
+			}
+		}
+		
+		visibleLeafsCluster = cluster;
+	}
+	
+	
+	//////////////////////////// RENDER LEVEL \\\\\\\\\\\\\\\\\\\\\\\\\\\*
+	/////
+	/////	Goes through all of the faces and draws them if the type is FACE_POLYGON or FACE_PATCH
+	/////
+	//////////////////////////// RENDER LEVEL \\\\\\\\\\\\\\\\\\\\\\\\\\\*
+	
+	public void renderLevel(Vector3f position)
+	{
+		// Decode the faces, tree and visibility from the mapped file the first time we render
+		ensureRenderLumps();
+
+		// Something else may have used the lightmap unit and the arrays since the last frame
+		boundLightmapPage = -1;
+		faceArraysBound = false;
+		
+		if(isAsyncVisibility())
+		{
+			// Take the faces the worker found for the last frame's camera.  If
+			// there is no job yet, like on the first frame, work them out now.
+			if(pendingVisibility != null)
+			{
+				pendingVisibility.join();
+				pendingVisibility = null;
+				
+				VisibleFaceList list = frontVisibility;
+				frontVisibility = backVisibility;
+				backVisibility = list;
+			}
+			else
+			{
+				frontVisibility.begin(position.x, position.y, position.z, GameCore.gFrustum, isBatching());
+				findVisibleFaces(frontVisibility);
+			}
+			
+			// Start on this camera's faces while we draw the others
+			backVisibility.begin(position.x, position.y, position.z, GameCore.gFrustum, isBatching());
+			pendingVisibility = ForkJoinPool.commonPool().submit(new VisibilityTask(backVisibility));
+		}
+		else
+		{
+			findVisibleFaces(position, GameCore.gFrustum);
 		}
+		
+		drawVisibleFaces(frontVisibility, position);
+	}
 	
-		// Now, to draw the face with vertex arrays we just need to tell OpenGL
-		// which indices we want to draw and what primitive the format is in.
-		// The faces are stored in triangles.  We give glDrawElements() a pointer
-		// to our indices, but it's not a normal indice array.  The indices are stored
-		// according to the pFace->startVertIndex into the vertices array.  If you were
-		// to print all of our indices out, they wouldn't go above the number 5.  If there
-		// is over 70 vertices though, how is that possible for the indices to work?  Well,
-		// that is why we give our vertex array functions above a pointer to the startVertIndex,
-		// then the indice array acts according to that.  This is very important to do it this
-		// way, otherwise we will not get more than 5 vertices display, and for all our faces.
+	// This works out the faces seen from position through frustum, the same way
+	// renderLevel() does, but without drawing them.  It doesn't touch OpenGL, so
+	// it also works on a level from loadHeadlessBSP().  The list returned is
+	// the level's own and is filled again by the next call.
+	public VisibleFaceList findVisibleFaces(Vector3f position, Frustum frustum)
+	{
+		ensureRenderLumps();
+		waitForVisibility();
+		
+		frontVisibility.begin(position.x, position.y, position.z, frustum, isBatching());
+		findVisibleFaces(frontVisibility);
+		
+		return frontVisibility;
+	}
+	
+	// This waits for the visibility job of the last frame and throws it away.
+	// Anything that changes the level, or reads the scratch state the job
+	// writes, has to call it first, since the job runs on another thread.
+	private void waitForVisibility()
+	{
+		if(pendingVisibility != null)
+		{
+			pendingVisibility.join();
+			pendingVisibility = null;
+		}
+	}
 	
-		// We are going to draw triangles, pass in the number of indices for this face, then
-		// say the indices are stored as ints, then pass in the starting address in our indice
-		// array for this face by indexing it by the startIndex variable of our current face.
+	// This works out the visible faces of a list on the pool.  It only reads
+	// the level, and the list's own copy of the camera and frustum.
+	private class VisibilityTask extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+		
+		private final VisibleFaceList list;
 		
+		VisibilityTask(VisibleFaceList list)
+		{
+			this.list = list;
+		}
 		
-		glDrawElements(GL_TRIANGLES, face.indiceIntBuffer);
-		//glDrawElements(GL_TRIANGLES, pFace->numOfIndices, GL_UNSIGNED_INT, &(m_pIndices[pFace->startIndex]) );
-		 
+		protected void compute()
+		{
+			findVisibleFaces(list);
+		}
 	}
-
-
-	//////////////////////////// RENDER LEVEL \\\\\\\\\\\\\\\\\\\\\\\\\\\*
+	
+	//////////////////////////// FIND VISIBLE FACES \\\\\\\\\\\\\\\\\\\\\\\\\\\*
 	/////
-	/////	Goes through all of the faces and draws them if the type is FACE_POLYGON
+	/////	This fills a list with the faces seen from its camera, without touching OpenGL
 	/////
-	//////////////////////////// RENDER LEVEL \\\\\\\\\\\\\\\\\\\\\\\\\\\*
+	//////////////////////////// FIND VISIBLE FACES \\\\\\\\\\\\\\\\\\\\\\\\\\\*
 	
-	public void renderLevel(Vector3f position)
+	private void findVisibleFaces(VisibleFaceList list)
 	{
-
-		// Reset our bitset so all the slots are zero.
+		// The render thread moves the position and limit of the face buffers
+		// while it draws, so the worker reads them through views of its own.
+		IntBuffer indices = faceIndices.duplicate();
+		FloatBuffer vertices = faceVertices.duplicate();
+		indices.clear();
+		vertices.clear();
+		
+		Frustum frustum = list.getFrustum();
+		
+		// Reset our bitset so all the slots are zero.  This only starts a new
+		// generation in the bitset, it doesn't have to touch every face.
 		facesDrawn.clearAll();
 
 
@@ -1456,57 +3430,434 @@ public class Quake3BSP {
 		// Assuming the bounding box is inside of our frustum, we draw all the faces
 		// stored in that leaf.  
 
-		// Grab the leaf index that our camera is in
-		int leafIndex = findLeaf(position);
+		// Grab the leaf index that our camera is in, which is usually the one it was in last frame
+		int leafIndex = findLeaf(list.getCameraX(), list.getCameraY(), list.getCameraZ(), cameraLeaf);
+		cameraLeaf = leafIndex;
+		list.setCameraLeaf(leafIndex);
 
 		// Grab the cluster that is assigned to the leaf
-		int cluster = leafs[leafIndex].cluster;
+		int cluster = leafClusters[leafIndex];
 
-		// Initialize our counter variables (start at the last leaf and work down)
-		int i = numOfLeafs;
-		visibleFaces = 0;
+		// The leafs our cluster can see only change when we walk into another
+		// cluster, so we keep the list around until then.
+		if(visibleLeafs == null || cluster != visibleLeafsCluster)
+		{
+			findVisibleLeafs(cluster);
+		}
+		
+		int occluded = 0;
+		numOfFrustumLeafs = 0;
 
-		// Go through all the leafs and check their visibility
-		while(i-- > 0)
+		// Go through the leafs that can be seen from our cluster
+		for(int v = 0; v < numOfVisibleLeafs; v++)
 		{
-			// Get the current leaf that is to be tested for visibility from our camera's leaf
-			BSPLeaf leaf = leafs[i];
+			int i = visibleLeafs[v];
 
-			// If the current leaf can't be seen from our cluster, go to the next leaf
-			if(isClusterVisible(cluster, leaf.cluster) == 0) 
+			// If the current leaf is not in the camera's frustum, go to the next leaf
+			int bounds = i*6;
+			if(!frustum.boxInFrustum(leafBounds[bounds],   leafBounds[bounds+1], leafBounds[bounds+2],
+			  	 				 leafBounds[bounds+3], leafBounds[bounds+4], leafBounds[bounds+5]))
 				continue;
+			
+			frustumLeafs[numOfFrustumLeafs++] = i;
+		}
+		
+		// Draw the big walls near us into the occlusion buffer
+		boolean occlusion = isOcclusionCulling();
+		if(occlusion)
+		{
+			renderOccluders(list, indices, vertices);
+		}
+		
+		// Go through the leafs that are in our frustum
+		for(int v = 0; v < numOfFrustumLeafs; v++)
+		{
+			int i = frustumLeafs[v];
 
-			// If the current leaf is not in the camera's frustum, go to the next leaf
-			if(!GameCore.gFrustum.boxInFrustum((float)leaf.min.x, (float)leaf.min.y, (float)leaf.min.z,
-			  	 				       (float)leaf.max.x, (float)leaf.max.y, (float)leaf.max.z))
+			// If the leaf is hidden behind the occluders, go to the next leaf
+			int bounds = i*6;
+			if(occlusion && !occlusionBuffer.isBoxVisible(leafBounds[bounds],   leafBounds[bounds+1], leafBounds[bounds+2],
+			  	 				       leafBounds[bounds+3], leafBounds[bounds+4], leafBounds[bounds+5]))
+			{
+				occluded++;
 				continue;
+			}
 			
 			// If we get here, the leaf we are testing must be visible in our camera's view.
 			// Get the number of faces that this leaf is in charge of.
-			int faceCount = leaf.numOfLeafFaces;
+			int faceCount = leafNumFaces[i];
 
-			// Loop through and render all of the faces in this leaf
+			// Loop through and add all of the faces in this leaf
 			while(faceCount-- > 0)
 			{
 				// Grab the current face index from our leaf faces array
-				int faceIndex = leafFaces[leaf.leafFace + faceCount];
+				int faceIndex = leafFaces[leafFirstFace[i] + faceCount];
 
-				// Before drawing this face, make sure it's a normal polygon
-				if(faces[faceIndex].type != FACE_POLYGON) continue;
+				// Before adding this face, make sure it's a normal polygon or a curve
+				int type = faces[faceIndex].type;
+				if(type != FACE_POLYGON && type != FACE_PATCH) continue;
 
 				// Since many faces are duplicated in other leafs, we need to
-				// make sure this face already hasn't been drawn.
-				if(facesDrawn.on(faceIndex)) 
+				// make sure this face already hasn't been added.  This also
+				// sets the face as added.
+				if(facesDrawn.testAndSet(faceIndex)) 
 				{
-					// Increase the rendered face count to display for fun
-					visibleFaces++;
-					//System.out.println(visibleFaces);
-					// Set this face as drawn and render it
-					facesDrawn.set(faceIndex);
-					renderFace(faceIndex);
+					list.addFace(faceIndex);
+					
+					// When batching, the polygons are sorted into draws here too.
+					// Curves pick their own level of detail so they still draw
+					// one at a time.
+					if(list.isBatched() && type == FACE_POLYGON)
+					{
+						addToDrawList(list.getDrawList(), faces[faceIndex]);
+					}
 				}
 			}			
 		}
+		
+		list.setOccludedLeafs(occluded);
+		
+		// Join the faces with the same texture and lightmap page into single draws
+		if(list.isBatched())
+		{
+			list.getDrawList().build(indices);
+		}
+	}
+	
+	//////////////////////////// DRAW VISIBLE FACES \\\\\\\\\\\\\\\\\\\\\\\\\\\*
+	/////
+	/////	This draws the faces of a list that has already been filled
+	/////
+	//////////////////////////// DRAW VISIBLE FACES \\\\\\\\\\\\\\\\\\\\\\\\\\\*
+	
+	private void drawVisibleFaces(VisibleFaceList list, Vector3f position)
+	{
+		// Increase the rendered face count to display for fun
+		visibleFaces = list.getNumOfFaces();
+		occludedLeafs = list.getOccludedLeafs();
+		
+		for(int i = 0; i < list.getNumOfFaces(); i++)
+		{
+			int faceIndex = list.getFace(i);
+			
+			// The batched polygons are drawn below with the draw list
+			if(list.isBatched() && faces[faceIndex].type == FACE_POLYGON) continue;
+			
+			// Render the face
+			renderFace(faceIndex, position);
+		}
+		
+		if(list.isBatched())
+		{
+			renderDrawList(list.getDrawList());
+		}
+	}
+	
+	//////////////////////////// RENDER OCCLUDERS \\\\\\\\\\\\\\\\\\\\\\\\\\\*
+	/////
+	/////	This draws the faces that hide the most into the occlusion buffer
+	/////
+	//////////////////////////// RENDER OCCLUDERS \\\\\\\\\\\\\\\\\\\\\\\\\\\*
+	
+	private void renderOccluders(VisibleFaceList list, IntBuffer indices, FloatBuffer vertices)
+	{
+		if(occluderAreas == null)
+		{
+			findOccluders(indices, vertices);
+		}
+		
+		occludersSeen.clearAll();
+		int numOfOccluders = 0;
+		
+		// Pick the faces of the leafs in the frustum that cover the most of the
+		// screen, which is about their area over their distance squared.
+		for(int v = 0; v < numOfFrustumLeafs; v++)
+		{
+			int i = frustumLeafs[v];
+			int faceCount = leafNumFaces[i];
+			
+			while(faceCount-- > 0)
+			{
+				int faceIndex = leafFaces[leafFirstFace[i] + faceCount];
+				
+				if(occluderAreas[faceIndex] == 0 || !occludersSeen.testAndSet(faceIndex)) continue;
+				
+				float dx = occluderCenters[faceIndex*3]   - list.getCameraX();
+				float dy = occluderCenters[faceIndex*3+1] - list.getCameraY();
+				float dz = occluderCenters[faceIndex*3+2] - list.getCameraZ();
+				float score = occluderAreas[faceIndex] / Math.max(dx*dx + dy*dy + dz*dz, 1.0f);
+				
+				// Keep the list sorted from the best score down
+				if(numOfOccluders == MAX_OCCLUDERS)
+				{
+					if(score <= occluderScores[MAX_OCCLUDERS - 1]) continue;
+					numOfOccluders--;
+				}
+				
+				int slot = numOfOccluders++;
+				while(slot > 0 && occluderScores[slot - 1] < score)
+				{
+					occluderScores[slot] = occluderScores[slot - 1];
+					occluderFaces[slot] = occluderFaces[slot - 1];
+					slot--;
+				}
+				occluderScores[slot] = score;
+				occluderFaces[slot] = faceIndex;
+			}
+		}
+		
+		// Draw their outlines, seen the same way the list's frustum was calculated.
+		// The buffer only fills the pixels a polygon covers completely, so a
+		// face drawn as separate triangles would leave it's inside edges open.
+		list.getFrustum().getClipMatrix(clipMatrix);
+		occlusionBuffer.begin(clipMatrix);
+		
+		for(int o = 0; o < numOfOccluders; o++)
+		{
+			int faceIndex = occluderFaces[o];
+			occlusionBuffer.addPolygon(occluderOutlines, occluderOutlineFirst[faceIndex] * 3, occluderOutlineCount[faceIndex]);
+		}
+		
+		occlusionBuffer.render(ForkJoinPool.commonPool());
+	}
+	
+	// This finds the faces that can be occluders: big flat faces of solid
+	// brushes that can't be seen through.  Their area, center and outline are
+	// kept so picking them each frame doesn't have to look at their vertices.
+	private void findOccluders(IntBuffer indices, FloatBuffer vertices)
+	{
+		occluderAreas = new float[numOfFaces];
+		occluderCenters = new float[numOfFaces * 3];
+		occluderOutlines = new float[256 * 3];
+		occluderOutlineFirst = new int[numOfFaces];
+		occluderOutlineCount = new int[numOfFaces];
+		occludersSeen.resize(numOfFaces);
+		int numOfCorners = 0;
+		
+		for(int i = 0; i < numOfFaces; i++)
+		{
+			BSPFace face = faces[i];
+			if(face.type != FACE_POLYGON) continue;
+			
+			BSPTexture texture = textures[face.textureID];
+			if((texture.textureType & CONTENTS_SOLID) == 0 || (texture.textureType & CONTENTS_TRANSLUCENT) != 0 ||
+			   (texture.flags & (SURF_SKY | SURF_NODRAW)) != 0)
+				continue;
+			
+			// Add up the area of its triangles
+			float area = 0;
+			for(int k = 0; k < face.numOfIndices; k += 3)
+			{
+				int a = indices.get(face.indexOffset + k)     * FACE_VERTEX_SIZE;
+				int b = indices.get(face.indexOffset + k + 1) * FACE_VERTEX_SIZE;
+				int c = indices.get(face.indexOffset + k + 2) * FACE_VERTEX_SIZE;
+				
+				float e1x = vertices.get(b)   - vertices.get(a);
+				float e1y = vertices.get(b+1) - vertices.get(a+1);
+				float e1z = vertices.get(b+2) - vertices.get(a+2);
+				float e2x = vertices.get(c)   - vertices.get(a);
+				float e2y = vertices.get(c+1) - vertices.get(a+1);
+				float e2z = vertices.get(c+2) - vertices.get(a+2);
+				
+				float nx = e1y * e2z - e1z * e2y;
+				float ny = e1z * e2x - e1x * e2z;
+				float nz = e1x * e2y - e1y * e2x;
+				area += (float)Math.sqrt(nx*nx + ny*ny + nz*nz) * 0.5f;
+			}
+			
+			if(area < OCCLUDER_MIN_AREA) continue;
+			
+			// Only a face that goes around one convex outline can be drawn whole
+			int[] outline = findOutline(face, indices, vertices);
+			if(outline == null) continue;
+			
+			if((numOfCorners + outline.length) * 3 > occluderOutlines.length)
+			{
+				occluderOutlines = Arrays.copyOf(occluderOutlines, Math.max(occluderOutlines.length * 2, (numOfCorners + outline.length) * 3));
+			}
+			
+			occluderOutlineFirst[i] = numOfCorners;
+			occluderOutlineCount[i] = outline.length;
+			for(int v = 0; v < outline.length; v++)
+			{
+				int vertex = outline[v] * FACE_VERTEX_SIZE;
+				for(int axis = 0; axis < 3; axis++)
+				{
+					occluderOutlines[numOfCorners*3 + axis] = vertices.get(vertex + axis);
+				}
+				numOfCorners++;
+			}
+			
+			// The center is just the average of its vertices
+			for(int v = 0; v < face.numOfVerts; v++)
+			{
+				int vertex = (face.vertexOffset + v) * FACE_VERTEX_SIZE;
+				for(int axis = 0; axis < 3; axis++)
+				{
+					occluderCenters[i*3 + axis] += vertices.get(vertex + axis) / face.numOfVerts;
+				}
+			}
+			
+			occluderAreas[i] = area;
+		}
+	}
+	
+	// This returns the vertices around the edge of a face, in order, or null if
+	// they don't go around one convex outline.  The edges on the outline are
+	// the ones only one of the face's triangles has, since the triangles that
+	// share an edge go along it opposite ways.
+	private int[] findOutline(BSPFace face, IntBuffer indices, FloatBuffer vertices)
+	{
+		int numOfEdges = face.numOfIndices;
+		int[] from = new int[numOfEdges];
+		int[] to = new int[numOfEdges];
+		
+		for(int k = 0; k < numOfEdges; k++)
+		{
+			int triangle = k - (k % 3);
+			from[k] = indices.get(face.indexOffset + k);
+			to[k] = indices.get(face.indexOffset + triangle + (k + 1) % 3);
+			
+			if(from[k] < face.vertexOffset || from[k] >= face.vertexOffset + face.numOfVerts) return null;
+		}
+		
+		// Link each vertex on the outline to the next one
+		int[] next = new int[face.numOfVerts];
+		Arrays.fill(next, -1);
+		int start = -1;
+		int numOfCorners = 0;
+		
+		for(int k = 0; k < numOfEdges; k++)
+		{
+			boolean inside = false;
+			for(int j = 0; j < numOfEdges && !inside; j++)
+			{
+				inside = from[j] == to[k] && to[j] == from[k];
+			}
+			if(inside) continue;
+			
+			int vertex = from[k] - face.vertexOffset;
+			if(next[vertex] >= 0) return null;
+			
+			next[vertex] = to[k] - face.vertexOffset;
+			start = vertex;
+			numOfCorners++;
+		}
+		
+		if(numOfCorners < 3) return null;
+		
+		// Walk around it, which has to take us through every edge we found
+		int[] outline = new int[numOfCorners];
+		int vertex = start;
+		for(int v = 0; v < numOfCorners; v++)
+		{
+			if(vertex < 0 || (v > 0 && vertex == start)) return null;
+			
+			outline[v] = face.vertexOffset + vertex;
+			vertex = next[vertex];
+		}
+		if(vertex != start) return null;
+		
+		// The normal of the outline, from all it's edges so a few corners in a
+		// straight line don't throw it off
+		float nx = 0, ny = 0, nz = 0;
+		for(int v = 0; v < numOfCorners; v++)
+		{
+			int a = outline[v] * FACE_VERTEX_SIZE;
+			int b = outline[(v + 1) % numOfCorners] * FACE_VERTEX_SIZE;
+			nx += (vertices.get(a+1) - vertices.get(b+1)) * (vertices.get(a+2) + vertices.get(b+2));
+			ny += (vertices.get(a+2) - vertices.get(b+2)) * (vertices.get(a)   + vertices.get(b));
+			nz += (vertices.get(a)   - vertices.get(b))   * (vertices.get(a+1) + vertices.get(b+1));
+		}
+		float normalLength = (float)Math.sqrt(nx*nx + ny*ny + nz*nz);
+		
+		// Every corner has to turn the same way around the normal.  Corners
+		// in a straight line, left by the compiler's T-junction fixes, are fine.
+		for(int v = 0; v < numOfCorners; v++)
+		{
+			int a = outline[(v + numOfCorners - 1) % numOfCorners] * FACE_VERTEX_SIZE;
+			int b = outline[v] * FACE_VERTEX_SIZE;
+			int c = outline[(v + 1) % numOfCorners] * FACE_VERTEX_SIZE;
+			
+			float e1x = vertices.get(b)   - vertices.get(a);
+			float e1y = vertices.get(b+1) - vertices.get(a+1);
+			float e1z = vertices.get(b+2) - vertices.get(a+2);
+			float e2x = vertices.get(c)   - vertices.get(b);
+			float e2y = vertices.get(c+1) - vertices.get(b+1);
+			float e2z = vertices.get(c+2) - vertices.get(b+2);
+			
+			float turn = (e1y * e2z - e1z * e2y) * nx + (e1z * e2x - e1x * e2z) * ny + (e1x * e2y - e1y * e2x) * nz;
+			float lengths = (float)Math.sqrt((e1x*e1x + e1y*e1y + e1z*e1z) * (e2x*e2x + e2y*e2y + e2z*e2z));
+			
+			if(turn < -0.001f * lengths * normalLength) return null;
+		}
+		
+		return outline;
+	}
+	
+	// This adds a polygon face to a draw list with its texture and lightmap page
+	private void addToDrawList(DrawList drawList, BSPFace face)
+	{
+		int page = -1;
+		if(face.lightmapID >= 0)
+		{
+			page = lightmapAtlas.getPage(face.lightmapID);
+		}
+		
+		drawList.add(face.textureID, page, face.indexOffset, face.numOfIndices, face.vertexOffset, face.numOfVerts);
+	}
+	
+	//////////////////////////// RENDER DRAW LIST \\\\\\\\\\\\\\\\\\\\\\\\\\\*
+	/////
+	/////	This draws each texture and lightmap pair of a built draw list once
+	/////
+	//////////////////////////// RENDER DRAW LIST \\\\\\\\\\\\\\\\\\\\\\\\\\\*
+	
+	private void renderDrawList(DrawList drawList)
+	{
+		if(drawList.getNumOfDraws() == 0)
+		{
+			return;
+		}
+		
+		// All the draws index into the shared buffers
+		if(!faceArraysBound)
+		{
+			setArrays(faceVertices, faceTexCoords, faceLightmapCoords, FACE_VERTEX_SIZE * 4);
+			faceArraysBound = true;
+		}
+		
+		IntBuffer drawIndices = drawList.getIndices();
+		int boundTexture = -1;
+		
+		for(int i = 0; i < drawList.getNumOfDraws(); i++)
+		{
+			// The draws are sorted by texture, so it only changes between runs
+			int texture = drawList.getTexture(i);
+			if(isTextures() && texture != boundTexture)
+			{
+				glActiveTextureARB(GL_TEXTURE0_ARB);
+				glEnable(GL_TEXTURE_2D);
+				texManager.getTexture(texture).bind();
+				boundTexture = texture;
+			}
+			
+			// And by lightmap page inside each texture
+			int page = drawList.getLightmapPage(i);
+			if(isHasLightmaps() && page >= 0 && page != boundLightmapPage)
+			{
+				glActiveTextureARB(GL_TEXTURE1_ARB);
+				glEnable(GL_TEXTURE_2D);
+				texManagerLight.getTexture(page).bind();
+				boundLightmapPage = page;
+			}
+			
+			drawIndices.clear();
+			drawIndices.position(drawList.getFirstIndex(i));
+			drawIndices.limit(drawList.getFirstIndex(i) + drawList.getNumOfIndices(i));
+			
+			glDrawRangeElements(GL_TRIANGLES, drawList.getMinVertex(i), drawList.getMaxVertex(i), drawIndices);
+		}
 	}
 
 
@@ -1516,6 +3867,7 @@ public class Quake3BSP {
 	 */
 	public void setNumOfVerts(int numOfVerts) 
 	{
+		waitForVisibility();
 		this.numOfVerts = numOfVerts;
 	}
 
@@ -1534,6 +3886,7 @@ public class Quake3BSP {
 	 */
 	public void setNumOfFaces(int numOfFaces) 
 	{
+		waitForVisibility();
 		this.numOfFaces = numOfFaces;
 	}
 
@@ -1552,6 +3905,7 @@ public class Quake3BSP {
 	 */
 	public void setNumOfIndices(int numOfIndices) 
 	{
+		waitForVisibility();
 		this.numOfIndices = numOfIndices;
 	}
 
@@ -1588,6 +3942,7 @@ public class Quake3BSP {
 	 */
 	public void setIndices(int[] indices) 
 	{
+		waitForVisibility();
 		this.indices = indices;
 	}
 
@@ -1597,24 +3952,59 @@ public class Quake3BSP {
 	 */
 	public int[] getIndices()
 	{
+		decodeLump(Lumps.kIndices);
 		return indices;
 	}
 
 
 	/**
+	 * Packs the given vertices into the vertex arrays.
 	 * @param pVerts the pVerts to set
 	 */
 	public void setVerts(BSPVertex[] verts) 
 	{
-		this.verts = verts;
+		waitForVisibility();
+		vertPositions = new float[verts.length * 3];
+		vertTexCoords = new float[verts.length * 2];
+		vertLightmapCoords = new float[verts.length * 2];
+		vertNormals = new float[verts.length * 3];
+		vertColors = new byte[verts.length * 4];
+		
+		for(int i = 0; i < verts.length; i++)
+		{
+			vertPositions[i*3]   = verts[i].position.x;
+			vertPositions[i*3+1] = verts[i].position.y;
+			vertPositions[i*3+2] = verts[i].position.z;
+			vertTexCoords[i*2]   = verts[i].textureCoord.s;
+			vertTexCoords[i*2+1] = verts[i].textureCoord.t;
+			vertLightmapCoords[i*2]   = verts[i].lightmapCoord.s;
+			vertLightmapCoords[i*2+1] = verts[i].lightmapCoord.t;
+			vertNormals[i*3]   = verts[i].normal.x;
+			vertNormals[i*3+1] = verts[i].normal.y;
+			vertNormals[i*3+2] = verts[i].normal.z;
+			System.arraycopy(verts[i].color, 0, vertColors, i*4, 4);
+		}
 	}
 
 
 	/**
+	 * The vertices are stored packed, so this builds a copy of them as objects.
 	 * @return the pVerts
 	 */
 	public BSPVertex[] getVerts() 
 	{
+		decodeLump(Lumps.kVertices);
+		
+		if(vertPositions == null)
+		{
+			return null;
+		}
+		
+		BSPVertex[] verts = new BSPVertex[vertPositions.length / 3];
+		for(int i = 0; i < verts.length; i++)
+		{
+			verts[i] = new BSPVertex(i);
+		}
 		return verts;
 	}
 
@@ -1624,6 +4014,7 @@ public class Quake3BSP {
 	 */
 	public void setFaces(BSPFace[] faces) 
 	{
+		waitForVisibility();
 		this.faces = faces;
 	}
 
@@ -1633,6 +4024,7 @@ public class Quake3BSP {
 	 */
 	public BSPFace[] getFaces() 
 	{
+		decodeLump(Lumps.kFaces);
 		return faces;
 	}
 
@@ -1643,6 +4035,7 @@ public class Quake3BSP {
 	 */
 	public void setFacesDrawn(BitSet facesDrawn) 
 	{
+		waitForVisibility();
 		this.facesDrawn = facesDrawn;
 	}
 
@@ -1652,10 +4045,131 @@ public class Quake3BSP {
 	 */
 	public BitSet getFacesDrawn() 
 	{
+		waitForVisibility();
 		return facesDrawn;
 	}
 
 
+	/**
+	 * @param batching true to sort the visible faces into draws before rendering them
+	 */
+	public void setBatching(boolean batching) {
+		this.batching = batching;
+	}
+
+
+	/**
+	 * @return true if the visible faces are sorted into draws
+	 */
+	public boolean isBatching() {
+		return batching;
+	}
+
+
+	/**
+	 * @param occlusionCulling true to skip the leafs hidden behind the biggest walls.
+	 * It's off unless turned on, since drawing the walls costs more than the
+	 * faces they hide save on small open maps.
+	 */
+	public void setOcclusionCulling(boolean occlusionCulling) {
+		waitForVisibility();
+		this.occlusionCulling = occlusionCulling;
+	}
+
+
+	/**
+	 * @return true if the leafs are tested against the occlusion buffer
+	 */
+	public boolean isOcclusionCulling() {
+		return occlusionCulling;
+	}
+
+
+	/**
+	 * @return the number of leafs the occlusion test skipped last frame
+	 */
+	public int getOccludedLeafs() {
+		return occludedLeafs;
+	}
+
+
+	/**
+	 * @return the draw list of the last frame rendered with batching on
+	 */
+	public DrawList getDrawList() {
+		return frontVisibility.getDrawList();
+	}
+
+
+	/**
+	 * @param asyncVisibility true to find the visible faces of the next frame on
+	 * the common pool while this one is drawn.  The faces drawn are then the
+	 * ones seen from the camera of the frame before.
+	 * <p>
+	 * The job only reads the level, but it writes the scratch state the level
+	 * keeps for finding visible faces: the facesDrawn bitset, the visible and
+	 * frustum leafs, the camera leaf hint and the occlusion buffer.  So while
+	 * it runs, the level is still only used from the thread that calls
+	 * renderLevel(), and every public method that changes the level or hands
+	 * out that state (the loads, findVisibleFaces(), the geometry setters,
+	 * get/setFacesDrawn(), setOcclusionCulling() and getOcclusionBuffer())
+	 * waits for the job first.  The rest, like the traces and findLeaf(), don't
+	 * touch that state and don't wait.
+	 */
+	public void setAsyncVisibility(boolean asyncVisibility) {
+		if(!asyncVisibility)
+		{
+			waitForVisibility();
+		}
+		this.asyncVisibility = asyncVisibility;
+	}
+
+
+	/**
+	 * @return true if the visible faces are found a frame ahead on the pool
+	 */
+	public boolean isAsyncVisibility() {
+		return asyncVisibility;
+	}
+
+
+	/**
+	 * @return the visible faces drawn by the last renderLevel()
+	 */
+	public VisibleFaceList getVisibleFaceList() {
+		return frontVisibility;
+	}
+
+
+	/**
+	 * @return the occluders drawn for the last visible face list.  With the async
+	 * visibility on, that's the list found for the next frame.
+	 */
+	public OcclusionBuffer getOcclusionBuffer() {
+		waitForVisibility();
+		return occlusionBuffer;
+	}
+
+
+	/**
+	 * @return where each lightmap sits on the lightmap pages
+	 */
+	public LightmapAtlas getLightmapAtlas() {
+		return lightmapAtlas;
+	}
+
+
+	/**
+	 * @return the indices of all the faces, the ones the draw lists are built from
+	 */
+	public IntBuffer getFaceIndices() {
+		ensureRenderLumps();
+		IntBuffer view = faceIndices.duplicate();
+		view.clear();
+		return view;
+	}
+
+
 	/**
 	 * @param renderFill the renderFill to set
 	 */
@@ -0,0 +1,127 @@
+package fcampos.rawengine3D.bsp.quake3;
+
+import java.util.Arrays;
+
+import fcampos.rawengine3D.MathUtil.Vector3f;
+
+// This holds the outcome of one trace through a Quake3BSP.  The caller owns it
+// and passes it to traceRay() or traceSphere(), which keep all of their working
+// state in here instead of in the level.  That way any number of threads can
+// trace against the same level at once, each with its own TraceResult, and the
+// same result can be reused every frame without allocating anything.
+public class TraceResult 
+{
+	
+	float fraction;					// How far along the move we got, 1.0 means no collision
+	final Vector3f endPosition;		// The position right up to the brush we hit (or the end)
+	final Vector3f planeNormal;		// The normal of the brush side we hit
+	boolean startSolid;				// True if the start position was inside a solid brush
+	
+	// The trace settings, only used while the trace is running
+	int traceType;					// If we are checking a ray, a sphere or a box
+	float traceRadius;				// The sphere's radius for a collision offset
+	final Vector3f traceMins;		// The box's min corner, relative to the traced position
+	final Vector3f traceMaxs;		// The box's max corner, relative to the traced position
+	final Vector3f traceExtents;	// The largest distance from the position to the box on each axis
+	float startX, startY, startZ;	// The start of the whole move, brushes are checked against this
+	float endX, endY, endZ;			// The end of the whole move
+	
+	// A brush can be in several leafs along the move, so every brush gets
+	// stamped with checkCount when we test it and is skipped after that.
+	// Bumping checkCount for the next trace clears all of the stamps at once.
+	int[] brushChecked;				// The checkCount each brush was last tested in
+	int checkCount;					// The stamp of the current trace
+	
+	public TraceResult()
+	{
+		endPosition = new Vector3f();
+		planeNormal = new Vector3f();
+		traceMins = new Vector3f();
+		traceMaxs = new Vector3f();
+		traceExtents = new Vector3f();
+		fraction = 1.0f;
+	}
+	
+	// This gets the result ready for a new trace
+	void reset(int type, float radius)
+	{
+		traceType = type;
+		traceRadius = radius;
+		fraction = 1.0f;
+		startSolid = false;
+		planeNormal.setZero();
+	}
+	
+	// This sets the box for a box trace
+	void setBox(Vector3f mins, Vector3f maxs)
+	{
+		traceMins.setTo(mins);
+		traceMaxs.setTo(maxs);
+		
+		// The box may not be centered on the position, so take the side furthest away
+		traceExtents.setTo(Math.max(-mins.x, maxs.x), 
+						   Math.max(-mins.y, maxs.y), 
+						   Math.max(-mins.z, maxs.z));
+	}
+	
+	// This starts a new check count, making sure there is a stamp for every brush
+	void nextCheckCount(int numOfBrushes)
+	{
+		if(brushChecked == null || brushChecked.length < numOfBrushes)
+		{
+			brushChecked = new int[numOfBrushes];
+			checkCount = 0;
+		}
+		
+		checkCount++;
+		
+		// Only after 2^32 traces do we have to wipe the stamps for real
+		if(checkCount == 0)
+		{
+			Arrays.fill(brushChecked, 0);
+			checkCount = 1;
+		}
+	}
+	
+	
+	/**
+	 * @return true if the trace hit something before reaching its end
+	 */
+	public boolean isCollided()
+	{
+		return fraction < 1.0f;
+	}
+	
+	/**
+	 * @return the ratio from the start position to the intersection point
+	 */
+	public float getFraction()
+	{
+		return fraction;
+	}
+	
+	/**
+	 * @return the end position, owned by this result
+	 */
+	public Vector3f getEndPosition()
+	{
+		return endPosition;
+	}
+	
+	/**
+	 * @return the normal of the plane we collided with, owned by this result
+	 */
+	public Vector3f getPlaneNormal()
+	{
+		return planeNormal;
+	}
+	
+	/**
+	 * @return true if the trace started inside a solid brush
+	 */
+	public boolean isStartSolid()
+	{
+		return startSolid;
+	}
+
+}
@@ -0,0 +1,122 @@
+package fcampos.rawengine3D.bsp.quake3;
+
+import java.util.Arrays;
+
+import fcampos.rawengine3D.graficos.Frustum;
+
+// This is what the visibility stage of Quake3BSP hands to the renderer for one
+// frame: the camera and frustum it was worked out for, and the faces that can
+// be seen from there, in the order the leafs gave them.  When batching, the
+// polygons are also already sorted into a DrawList.  The level keeps two of
+// these, so the visibility can fill one on another thread while the renderer
+// draws the other, and a list is never written while it is being drawn.
+public class VisibleFaceList
+{
+
+	private float cameraX;			// Where the camera was
+	private float cameraY;
+	private float cameraZ;
+	private Frustum frustum;		// What the camera could see
+	private boolean batched;		// True if the polygons were put in drawList
+
+	private int[] faces;			// The visible faces, each one once
+	private int numOfFaces;			// How many entries of faces are used
+	private DrawList drawList;		// The visible polygons sorted into draws, when batched
+
+	private int cameraLeaf;			// The leaf the camera was in
+	private int occludedLeafs;		// The leafs skipped by the occlusion test
+
+	VisibleFaceList()
+	{
+		frustum = new Frustum();
+		faces = new int[256];
+		drawList = new DrawList();
+		cameraLeaf = -1;
+	}
+
+	// This starts the list over for a camera, copying the frustum so the
+	// real one can move on to the next frame.
+	void begin(float x, float y, float z, Frustum cameraFrustum, boolean batching)
+	{
+		cameraX = x;
+		cameraY = y;
+		cameraZ = z;
+		frustum.set(cameraFrustum);
+		batched = batching;
+
+		numOfFaces = 0;
+		occludedLeafs = 0;
+		drawList.clear();
+	}
+
+	void addFace(int face)
+	{
+		if(numOfFaces == faces.length)
+		{
+			faces = Arrays.copyOf(faces, numOfFaces * 2);
+		}
+
+		faces[numOfFaces++] = face;
+	}
+
+	void setCameraLeaf(int cameraLeaf)
+	{
+		this.cameraLeaf = cameraLeaf;
+	}
+
+	void setOccludedLeafs(int occludedLeafs)
+	{
+		this.occludedLeafs = occludedLeafs;
+	}
+
+	public float getCameraX()
+	{
+		return cameraX;
+	}
+
+	public float getCameraY()
+	{
+		return cameraY;
+	}
+
+	public float getCameraZ()
+	{
+		return cameraZ;
+	}
+
+	// This returns the copy of the frustum the faces were found with
+	public Frustum getFrustum()
+	{
+		return frustum;
+	}
+
+	public boolean isBatched()
+	{
+		return batched;
+	}
+
+	public int getNumOfFaces()
+	{
+		return numOfFaces;
+	}
+
+	public int getFace(int i)
+	{
+		return faces[i];
+	}
+
+	public DrawList getDrawList()
+	{
+		return drawList;
+	}
+
+	public int getCameraLeaf()
+	{
+		return cameraLeaf;
+	}
+
+	public int getOccludedLeafs()
+	{
+		return occludedLeafs;
+	}
+}
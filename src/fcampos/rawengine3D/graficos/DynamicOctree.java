@@ -0,0 +1,869 @@
+package fcampos.rawengine3D.graficos;
+
+import java.util.Arrays;
+
+import fcampos.rawengine3D.MathUtil.Vector3f;
+import fcampos.rawengine3D.model.BoundingBox;
+
+// The Octree is built once from a model that never moves, and to change it we
+// would have to build the whole thing again.  This one is for the things that
+// do move, like props and monsters.  Each of them is a box, given by it's center
+// and half it's size on each axis, and when it goes into the tree we get back a
+// handle, which is what we use to move it or take it out again.
+//
+// It's a "loose" octree: a node holds the boxes that fit inside it's cube grown
+// to twice it's width, with the same center.  Because of that, a box that moves a little
+// almost always still fits in the node it was in, and all we do is write the new
+// position.  Only when it leaves the loose cube do we take it out of the node and
+// walk up to the first node that still holds it, and then back down from there.
+//
+// A node is split in 8 when it holds more than splitThreshold boxes, and it's
+// children are joined back into it when there are no more than mergeThreshold
+// boxes under it.  Keep the merge number well under the split one, so a node
+// that sits on the edge doesn't split and join over and over.
+//
+// Boxes that don't fit in the root (outside the world we gave) are kept in the
+// root, so they still show up in the queries, they are just tested every time.
+//
+// Nothing here is synchronized.  Any number of threads can query the tree at
+// once, since the queries only read it, but no thread can query it while
+// another one is changing it.
+public class DynamicOctree<T>
+{
+
+	// The settings we use if none are given
+	public static final int DEFAULT_SPLIT_THRESHOLD = 16;
+	public static final int DEFAULT_MERGE_THRESHOLD = 8;
+	public static final int DEFAULT_MAX_DEPTH = 8;
+
+	private static final int ROOT = 0;
+	private static final int NONE = -1;
+
+	private final int splitThreshold;		// Split a node when it holds more boxes than this
+	private final int mergeThreshold;		// Join the children when there are this many or less under a node
+	private final int maxDepth;				// How many levels down we can go
+
+	// The nodes, the 8 children of a node always one after the other
+	private float[] nodeBounds;				// The center x, y, z and half the width of each node's cube
+	private int[] nodeParent;				// The node above, NONE for the root
+	private int[] nodeChildren;				// The first of the 8 children, NONE if it's an end node
+	private int[] nodeDepth;				// How many levels down the node is
+	private int[] nodeFirstObject;			// The first box in the node
+	private int[] nodeCount;				// How many boxes are in the node itself
+	private int[] nodeTotal;				// How many boxes are in the node and all under it
+	private int numOfNodes;					// How many node slots were given out
+	private int[] freeBlocks;				// The first nodes of the groups of 8 we can give out again
+	private int numOfFreeBlocks;
+
+	// The boxes, one slot for each handle
+	private float[] objectBounds;			// The center x, y, z and half sizes of each box
+	private int[] objectNode;				// The node the box is in, NONE if the handle is free
+	private int[] objectNext;				// The next box in the same node, or the next free handle
+	private int[] objectPrev;				// The box before in the same node
+	private Object[] objects;				// What the caller put in with the box
+	private int numOfSlots;					// How many handles were given out
+	private int firstFreeObject;			// The first handle we can give out again
+	private int numOfObjects;				// How many boxes are in the tree
+
+	public DynamicOctree(Vector3f center, float width)
+	{
+		this(center, width, DEFAULT_SPLIT_THRESHOLD, DEFAULT_MERGE_THRESHOLD, DEFAULT_MAX_DEPTH);
+	}
+
+	// The world is the cube at center with sides width long, like the root of the Octree
+	public DynamicOctree(Vector3f center, float width, int splitThreshold, int mergeThreshold, int maxDepth)
+	{
+		if(width <= 0)
+		{
+			throw new IllegalArgumentException("width must be positive: " + width);
+		}
+
+		if(mergeThreshold < 0 || mergeThreshold >= splitThreshold)
+		{
+			throw new IllegalArgumentException("mergeThreshold must be at least 0 and less than splitThreshold: "
+											   + mergeThreshold + ", " + splitThreshold);
+		}
+
+		if(maxDepth < 0)
+		{
+			throw new IllegalArgumentException("maxDepth can't be negative: " + maxDepth);
+		}
+
+		this.splitThreshold = splitThreshold;
+		this.mergeThreshold = mergeThreshold;
+		this.maxDepth = maxDepth;
+
+		nodeBounds = new float[4 * 64];
+		nodeParent = new int[64];
+		nodeChildren = new int[64];
+		nodeDepth = new int[64];
+		nodeFirstObject = new int[64];
+		nodeCount = new int[64];
+		nodeTotal = new int[64];
+		freeBlocks = new int[8];
+
+		objectBounds = new float[6 * 64];
+		objectNode = new int[64];
+		objectNext = new int[64];
+		objectPrev = new int[64];
+		objects = new Object[64];
+		firstFreeObject = NONE;
+
+		numOfNodes = 1;
+		initNode(ROOT, NONE, center.x, center.y, center.z, width / 2, 0);
+	}
+
+	/////////////////////////////////// INSERT \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\*
+	/////
+	/////	This puts a box in the tree and returns the handle for it
+	/////
+	/////////////////////////////////// INSERT \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\*
+
+	public int insert(T object, float x, float y, float z, float halfX, float halfY, float halfZ)
+	{
+		checkSize(halfX, halfY, halfZ);
+
+		int handle = newObject();
+		setBounds(handle, x, y, z, halfX, halfY, halfZ);
+		objects[handle] = object;
+		numOfObjects++;
+
+		// Go down as far as the box fits, then split the node if it got too full
+		int node = findNode(ROOT, handle);
+		link(handle, node);
+		splitIfFull(node);
+
+		return handle;
+	}
+
+	/////////////////////////////////// REMOVE \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\*
+	/////
+	/////	This takes a box out of the tree.  It's handle can be given out again.
+	/////
+	/////////////////////////////////// REMOVE \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\*
+
+	public void remove(int handle)
+	{
+		checkHandle(handle);
+
+		int node = objectNode[handle];
+		unlink(handle);
+
+		// Put the handle on the free list
+		objects[handle] = null;
+		objectNode[handle] = NONE;
+		objectNext[handle] = firstFreeObject;
+		firstFreeObject = handle;
+		numOfObjects--;
+
+		mergeUp(node);
+	}
+
+	// This moves a box without changing it's size
+	public boolean move(int handle, float x, float y, float z)
+	{
+		checkHandle(handle);
+
+		int i = handle * 6;
+		return update(handle, x, y, z, objectBounds[i + 3], objectBounds[i + 4], objectBounds[i + 5]);
+	}
+
+	/////////////////////////////////// UPDATE \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\*
+	/////
+	/////	This gives a box a new center and size.  It returns true if the box
+	/////	stayed in the node it was in, which is just writing down the numbers.
+	/////
+	/////////////////////////////////// UPDATE \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\*
+
+	public boolean update(int handle, float x, float y, float z, float halfX, float halfY, float halfZ)
+	{
+		checkHandle(handle);
+		checkSize(halfX, halfY, halfZ);
+
+		int node = objectNode[handle];
+		setBounds(handle, x, y, z, halfX, halfY, halfZ);
+
+		// If it still fits in it's node, and wouldn't go down to a child if we put it
+		// in again, then there is nothing else to do.
+		if(fits(node, handle) &&
+		   (nodeChildren[node] == NONE || !fits(getChildFor(node, handle), handle)))
+		{
+			return true;
+		}
+
+		// Otherwise go up to the first node that still holds the box, and find it's
+		// place again from there.
+		int top = node;
+		while(top != ROOT && !fits(top, handle))
+		{
+			top = nodeParent[top];
+		}
+
+		unlink(handle);
+		int newNode = findNode(top, handle);
+		link(handle, newNode);
+
+		// Split where it went first, since joining the nodes where it left can't
+		// take away the node it went to (that one has too many boxes to be joined).
+		splitIfFull(newNode);
+		mergeUp(node);
+
+		return false;
+	}
+
+	/////////////////////////////////// QUERY BOX \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\*
+	/////
+	/////	This writes the handles of the boxes that touch the box from min to max in
+	/////	results, and returns how many there were.  If there were more than fit in
+	/////	results, the rest aren't written, so call again with a bigger array.
+	/////
+	/////////////////////////////////// QUERY BOX \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\*
+
+	public int queryBox(float minX, float minY, float minZ, float maxX, float maxY, float maxZ, int[] results)
+	{
+		return queryBox(ROOT, minX, minY, minZ, maxX, maxY, maxZ, results, 0);
+	}
+
+	private int queryBox(int node, float minX, float minY, float minZ, float maxX, float maxY, float maxZ,
+						 int[] results, int count)
+	{
+		// Skip the nodes with nothing under them, and the ones we are outside of
+		// (the root holds the boxes outside the world too, so we always look in it)
+		if(nodeTotal[node] == 0)
+		{
+			return count;
+		}
+
+		if(node != ROOT)
+		{
+			int n = node * 4;
+			float size = nodeBounds[n + 3] * 2;
+
+			if(minX > nodeBounds[n] + size || maxX < nodeBounds[n] - size ||
+			   minY > nodeBounds[n + 1] + size || maxY < nodeBounds[n + 1] - size ||
+			   minZ > nodeBounds[n + 2] + size || maxZ < nodeBounds[n + 2] - size)
+			{
+				return count;
+			}
+		}
+
+		for(int handle = nodeFirstObject[node]; handle != NONE; handle = objectNext[handle])
+		{
+			int i = handle * 6;
+
+			if(minX <= objectBounds[i] + objectBounds[i + 3] && maxX >= objectBounds[i] - objectBounds[i + 3] &&
+			   minY <= objectBounds[i + 1] + objectBounds[i + 4] && maxY >= objectBounds[i + 1] - objectBounds[i + 4] &&
+			   minZ <= objectBounds[i + 2] + objectBounds[i + 5] && maxZ >= objectBounds[i + 2] - objectBounds[i + 5])
+			{
+				if(count < results.length)
+				{
+					results[count] = handle;
+				}
+				count++;
+			}
+		}
+
+		if(nodeChildren[node] != NONE)
+		{
+			for(int i = 0; i < 8; i++)
+			{
+				count = queryBox(nodeChildren[node] + i, minX, minY, minZ, maxX, maxY, maxZ, results, count);
+			}
+		}
+
+		return count;
+	}
+
+	// This does the same as queryBox() for the boxes that touch a sphere
+	public int querySphere(float x, float y, float z, float radius, int[] results)
+	{
+		return querySphere(ROOT, x, y, z, radius, results, 0);
+	}
+
+	private int querySphere(int node, float x, float y, float z, float radius, int[] results, int count)
+	{
+		if(nodeTotal[node] == 0)
+		{
+			return count;
+		}
+
+		if(node != ROOT)
+		{
+			int n = node * 4;
+			float size = nodeBounds[n + 3] * 2;
+
+			if(!sphereTouchesBox(x, y, z, radius, nodeBounds[n], nodeBounds[n + 1], nodeBounds[n + 2], size, size, size))
+			{
+				return count;
+			}
+		}
+
+		for(int handle = nodeFirstObject[node]; handle != NONE; handle = objectNext[handle])
+		{
+			int i = handle * 6;
+
+			if(sphereTouchesBox(x, y, z, radius, objectBounds[i], objectBounds[i + 1], objectBounds[i + 2],
+								objectBounds[i + 3], objectBounds[i + 4], objectBounds[i + 5]))
+			{
+				if(count < results.length)
+				{
+					results[count] = handle;
+				}
+				count++;
+			}
+		}
+
+		if(nodeChildren[node] != NONE)
+		{
+			for(int i = 0; i < 8; i++)
+			{
+				count = querySphere(nodeChildren[node] + i, x, y, z, radius, results, count);
+			}
+		}
+
+		return count;
+	}
+
+	// This does the same as queryBox() for the boxes that are in the frustum
+	public int queryFrustum(Frustum frustum, int[] results)
+	{
+		return queryFrustum(ROOT, frustum, results, 0);
+	}
+
+	private int queryFrustum(int node, Frustum frustum, int[] results, int count)
+	{
+		if(nodeTotal[node] == 0)
+		{
+			return count;
+		}
+
+		if(node != ROOT)
+		{
+			int n = node * 4;
+
+			if(!frustum.cubeInFrustum(nodeBounds[n], nodeBounds[n + 1], nodeBounds[n + 2], nodeBounds[n + 3] * 2))
+			{
+				return count;
+			}
+		}
+
+		for(int handle = nodeFirstObject[node]; handle != NONE; handle = objectNext[handle])
+		{
+			int i = handle * 6;
+
+			if(frustum.boxInFrustum(objectBounds[i] - objectBounds[i + 3], objectBounds[i + 1] - objectBounds[i + 4],
+									objectBounds[i + 2] - objectBounds[i + 5], objectBounds[i] + objectBounds[i + 3],
+									objectBounds[i + 1] + objectBounds[i + 4], objectBounds[i + 2] + objectBounds[i + 5]))
+			{
+				if(count < results.length)
+				{
+					results[count] = handle;
+				}
+				count++;
+			}
+		}
+
+		if(nodeChildren[node] != NONE)
+		{
+			for(int i = 0; i < 8; i++)
+			{
+				count = queryFrustum(nodeChildren[node] + i, frustum, results, count);
+			}
+		}
+
+		return count;
+	}
+
+	// This adds the cube of every node that has boxes in it to debug, to see the tree
+	public void createDebug(BoundingBox debug)
+	{
+		createDebug(ROOT, debug);
+	}
+
+	private void createDebug(int node, BoundingBox debug)
+	{
+		if(nodeTotal[node] == 0)
+		{
+			return;
+		}
+
+		if(nodeCount[node] > 0)
+		{
+			int n = node * 4;
+			float width = nodeBounds[n + 3] * 2;
+			debug.createBoundingBox(new Vector3f(nodeBounds[n], nodeBounds[n + 1], nodeBounds[n + 2]), width, width, width);
+		}
+
+		if(nodeChildren[node] != NONE)
+		{
+			for(int i = 0; i < 8; i++)
+			{
+				createDebug(nodeChildren[node] + i, debug);
+			}
+		}
+	}
+
+	// This returns what was put in the tree with the box
+	@SuppressWarnings("unchecked")
+	public T getObject(int handle)
+	{
+		checkHandle(handle);
+		return (T)objects[handle];
+	}
+
+	// This returns true if the handle is for a box that is in the tree
+	public boolean isValid(int handle)
+	{
+		return handle >= 0 && handle < numOfSlots && objectNode[handle] != NONE;
+	}
+
+	public float getX(int handle)
+	{
+		checkHandle(handle);
+		return objectBounds[handle * 6];
+	}
+
+	public float getY(int handle)
+	{
+		checkHandle(handle);
+		return objectBounds[handle * 6 + 1];
+	}
+
+	public float getZ(int handle)
+	{
+		checkHandle(handle);
+		return objectBounds[handle * 6 + 2];
+	}
+
+	// This returns how many levels down the box is kept
+	public int getDepth(int handle)
+	{
+		checkHandle(handle);
+		return nodeDepth[objectNode[handle]];
+	}
+
+	public int getNumOfObjects()
+	{
+		return numOfObjects;
+	}
+
+	// This returns how many nodes the tree has now, counting the root
+	public int getNumOfNodes()
+	{
+		return numOfNodes - numOfFreeBlocks * 8;
+	}
+
+	/////////////////////////////////// CHECK TREE \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\*
+	/////
+	/////	This walks the whole tree and throws an IllegalStateException if the
+	/////	counts, the lists of boxes or the places of the boxes are wrong.  It's
+	/////	slow, it's for tests and for hunting bugs, not for every frame.
+	/////
+	/////////////////////////////////// CHECK TREE \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\*
+
+	public void checkTree()
+	{
+		int[] reached = new int[1];
+		int total = checkNode(ROOT, NONE, 0, reached);
+
+		if(total != numOfObjects)
+		{
+			throw new IllegalStateException("The nodes hold " + total + " boxes but there are " + numOfObjects);
+		}
+
+		if(reached[0] != getNumOfNodes())
+		{
+			throw new IllegalStateException(reached[0] + " nodes can be reached but there are " + getNumOfNodes());
+		}
+	}
+
+	// This checks node and everything under it, and returns how many boxes are there
+	private int checkNode(int node, int parent, int depth, int[] reached)
+	{
+		reached[0]++;
+
+		if(nodeParent[node] != parent || nodeDepth[node] != depth || depth > maxDepth)
+		{
+			throw new IllegalStateException("Node " + node + " has the wrong parent or depth");
+		}
+
+		int count = 0;
+		int prev = NONE;
+
+		for(int handle = nodeFirstObject[node]; handle != NONE; handle = objectNext[handle])
+		{
+			if(objectNode[handle] != node || objectPrev[handle] != prev)
+			{
+				throw new IllegalStateException("Box " + handle + " is linked wrong in node " + node);
+			}
+
+			// A box must fit where it is, and must not fit in the child it would go down to
+			if(!fits(node, handle) ||
+			   (nodeChildren[node] != NONE && fits(getChildFor(node, handle), handle)))
+			{
+				throw new IllegalStateException("Box " + handle + " is in the wrong node " + node);
+			}
+
+			prev = handle;
+			count++;
+		}
+
+		if(count != nodeCount[node])
+		{
+			throw new IllegalStateException("Node " + node + " has " + count + " boxes but counts " + nodeCount[node]);
+		}
+
+		int total = count;
+
+		if(nodeChildren[node] != NONE)
+		{
+			for(int i = 0; i < 8; i++)
+			{
+				total += checkNode(nodeChildren[node] + i, node, depth + 1, reached);
+			}
+
+			// If there were few enough boxes under it, the children should have been joined
+			if(nodeTotal[node] <= mergeThreshold)
+			{
+				throw new IllegalStateException("Node " + node + " should have been joined, it has " + nodeTotal[node]);
+			}
+		}
+
+		if(total != nodeTotal[node])
+		{
+			throw new IllegalStateException("Node " + node + " has " + total + " boxes under it but counts " + nodeTotal[node]);
+		}
+
+		return total;
+	}
+
+	////////////////////////////////// FIND NODE \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\*
+	/////
+	/////	This goes down from node as long as the box fits in the child it's center is in
+	/////
+	////////////////////////////////// FIND NODE \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\*
+
+	private int findNode(int node, int handle)
+	{
+		while(nodeChildren[node] != NONE)
+		{
+			int child = getChildFor(node, handle);
+			if(!fits(child, handle))
+			{
+				break;
+			}
+			node = child;
+		}
+
+		return node;
+	}
+
+	// This returns the child of node that the center of the box is on the side of
+	private int getChildFor(int node, int handle)
+	{
+		int n = node * 4;
+		int i = handle * 6;
+		int octant = 0;
+
+		if(objectBounds[i] >= nodeBounds[n])			octant |= 1;
+		if(objectBounds[i + 1] >= nodeBounds[n + 1])	octant |= 2;
+		if(objectBounds[i + 2] >= nodeBounds[n + 2])	octant |= 4;
+
+		return nodeChildren[node] + octant;
+	}
+
+	// This returns true if the box is inside the loose cube of the node, which is
+	// the node's cube grown by half it's width on every side.  Everything fits in the root.
+	private boolean fits(int node, int handle)
+	{
+		if(node == ROOT)
+		{
+			return true;
+		}
+
+		int n = node * 4;
+		int i = handle * 6;
+		float size = nodeBounds[n + 3] * 2;
+
+		return Math.abs(objectBounds[i] - nodeBounds[n]) + objectBounds[i + 3] <= size &&
+			   Math.abs(objectBounds[i + 1] - nodeBounds[n + 1]) + objectBounds[i + 4] <= size &&
+			   Math.abs(objectBounds[i + 2] - nodeBounds[n + 2]) + objectBounds[i + 5] <= size;
+	}
+
+	/////////////////////////////////// SPLIT \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\*
+	/////
+	/////	This splits an end node that has too many boxes, and moves the boxes that
+	/////	fit in the children down.  The children are split too if they need it.
+	/////
+	/////////////////////////////////// SPLIT \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\*
+
+	private void splitIfFull(int node)
+	{
+		if(nodeChildren[node] != NONE || nodeCount[node] <= splitThreshold || nodeDepth[node] >= maxDepth)
+		{
+			return;
+		}
+
+		int first = newBlock();
+		nodeChildren[node] = first;
+
+		int n = node * 4;
+		float half = nodeBounds[n + 3] / 2;
+
+		for(int i = 0; i < 8; i++)
+		{
+			initNode(first + i, node,
+					 nodeBounds[n] + ((i & 1) != 0 ? half : -half),
+					 nodeBounds[n + 1] + ((i & 2) != 0 ? half : -half),
+					 nodeBounds[n + 2] + ((i & 4) != 0 ? half : -half),
+					 half, nodeDepth[node] + 1);
+		}
+
+		// The node's total stays the same, the boxes just go one level down
+		int handle = nodeFirstObject[node];
+		while(handle != NONE)
+		{
+			int next = objectNext[handle];
+			int child = getChildFor(node, handle);
+
+			if(fits(child, handle))
+			{
+				removeFromNode(handle);
+				addToNode(handle, child);
+				nodeTotal[child]++;
+			}
+
+			handle = next;
+		}
+
+		for(int i = 0; i < 8; i++)
+		{
+			splitIfFull(first + i);
+		}
+	}
+
+	/////////////////////////////////// MERGE \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\*
+	/////
+	/////	After a box leaves node, this finds the highest node, from node up, that
+	/////	has few enough boxes under it, and joins all of it's children back into it.
+	/////
+	/////////////////////////////////// MERGE \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\*
+
+	private void mergeUp(int node)
+	{
+		int top = NONE;
+
+		// The totals only get bigger going up, so we can stop at the first one that's too big
+		for(int n = node; n != NONE && nodeTotal[n] <= mergeThreshold; n = nodeParent[n])
+		{
+			top = n;
+		}
+
+		if(top != NONE)
+		{
+			collapse(top);
+		}
+	}
+
+	private void collapse(int node)
+	{
+		int first = nodeChildren[node];
+		if(first == NONE)
+		{
+			return;
+		}
+
+		for(int i = 0; i < 8; i++)
+		{
+			int child = first + i;
+			collapse(child);
+
+			int handle = nodeFirstObject[child];
+			while(handle != NONE)
+			{
+				int next = objectNext[handle];
+				removeFromNode(handle);
+				addToNode(handle, node);
+				handle = next;
+			}
+		}
+
+		nodeChildren[node] = NONE;
+
+		// Keep the group of 8 to give out again
+		if(numOfFreeBlocks == freeBlocks.length)
+		{
+			freeBlocks = Arrays.copyOf(freeBlocks, numOfFreeBlocks * 2);
+		}
+		freeBlocks[numOfFreeBlocks++] = first;
+	}
+
+	// This puts the box in the node and counts it in every node up to the root
+	private void link(int handle, int node)
+	{
+		addToNode(handle, node);
+
+		for(int n = node; n != NONE; n = nodeParent[n])
+		{
+			nodeTotal[n]++;
+		}
+	}
+
+	// This takes the box out of it's node and the counts up to the root
+	private void unlink(int handle)
+	{
+		for(int n = objectNode[handle]; n != NONE; n = nodeParent[n])
+		{
+			nodeTotal[n]--;
+		}
+
+		removeFromNode(handle);
+	}
+
+	private void addToNode(int handle, int node)
+	{
+		int first = nodeFirstObject[node];
+
+		objectNode[handle] = node;
+		objectPrev[handle] = NONE;
+		objectNext[handle] = first;
+
+		if(first != NONE)
+		{
+			objectPrev[first] = handle;
+		}
+
+		nodeFirstObject[node] = handle;
+		nodeCount[node]++;
+	}
+
+	private void removeFromNode(int handle)
+	{
+		int node = objectNode[handle];
+		int prev = objectPrev[handle];
+		int next = objectNext[handle];
+
+		if(prev != NONE)
+		{
+			objectNext[prev] = next;
+		}
+		else
+		{
+			nodeFirstObject[node] = next;
+		}
+
+		if(next != NONE)
+		{
+			objectPrev[next] = prev;
+		}
+
+		nodeCount[node]--;
+	}
+
+	private void initNode(int node, int parent, float x, float y, float z, float half, int depth)
+	{
+		int n = node * 4;
+
+		nodeBounds[n] = x;
+		nodeBounds[n + 1] = y;
+		nodeBounds[n + 2] = z;
+		nodeBounds[n + 3] = half;
+		nodeParent[node] = parent;
+		nodeChildren[node] = NONE;
+		nodeDepth[node] = depth;
+		nodeFirstObject[node] = NONE;
+		nodeCount[node] = 0;
+		nodeTotal[node] = 0;
+	}
+
+	// This returns the first node of a free group of 8, making the arrays bigger if we must
+	private int newBlock()
+	{
+		if(numOfFreeBlocks > 0)
+		{
+			return freeBlocks[--numOfFreeBlocks];
+		}
+
+		if(numOfNodes + 8 > nodeParent.length)
+		{
+			int size = Math.max(nodeParent.length * 2, numOfNodes + 8);
+
+			nodeBounds = Arrays.copyOf(nodeBounds, size * 4);
+			nodeParent = Arrays.copyOf(nodeParent, size);
+			nodeChildren = Arrays.copyOf(nodeChildren, size);
+			nodeDepth = Arrays.copyOf(nodeDepth, size);
+			nodeFirstObject = Arrays.copyOf(nodeFirstObject, size);
+			nodeCount = Arrays.copyOf(nodeCount, size);
+			nodeTotal = Arrays.copyOf(nodeTotal, size);
+		}
+
+		int first = numOfNodes;
+		numOfNodes += 8;
+		return first;
+	}
+
+	// This returns a free handle, making the arrays bigger if we must
+	private int newObject()
+	{
+		if(firstFreeObject != NONE)
+		{
+			int handle = firstFreeObject;
+			firstFreeObject = objectNext[handle];
+			return handle;
+		}
+
+		if(numOfSlots == objectNode.length)
+		{
+			int size = numOfSlots * 2;
+
+			objectBounds = Arrays.copyOf(objectBounds, size * 6);
+			objectNode = Arrays.copyOf(objectNode, size);
+			objectNext = Arrays.copyOf(objectNext, size);
+			objectPrev = Arrays.copyOf(objectPrev, size);
+			objects = Arrays.copyOf(objects, size);
+		}
+
+		return numOfSlots++;
+	}
+
+	private void setBounds(int handle, float x, float y, float z, float halfX, float halfY, float halfZ)
+	{
+		int i = handle * 6;
+
+		objectBounds[i] = x;
+		objectBounds[i + 1] = y;
+		objectBounds[i + 2] = z;
+		objectBounds[i + 3] = halfX;
+		objectBounds[i + 4] = halfY;
+		objectBounds[i + 5] = halfZ;
+	}
+
+	private void checkHandle(int handle)
+	{
+		if(!isValid(handle))
+		{
+			throw new IllegalArgumentException("No object with handle " + handle);
+		}
+	}
+
+	private static void checkSize(float halfX, float halfY, float halfZ)
+	{
+		// Written this way so NaN doesn't get in either
+		if(!(halfX >= 0 && halfY >= 0 && halfZ >= 0))
+		{
+			throw new IllegalArgumentException("The half sizes can't be negative: " + halfX + ", " + halfY + ", " + halfZ);
+		}
+	}
+
+	// This returns true if the sphere touches the box at x, y, z with the half sizes
+	private static boolean sphereTouchesBox(float x, float y, float z, float radius,
+											float boxX, float boxY, float boxZ, float halfX, float halfY, float halfZ)
+	{
+		// Find how far the center is outside the box on each axis
+		float dx = Math.max(Math.abs(x - boxX) - halfX, 0);
+		float dy = Math.max(Math.abs(y - boxY) - halfY, 0);
+		float dz = Math.max(Math.abs(z - boxZ) - halfZ, 0);
+
+		return dx * dx + dy * dy + dz * dz <= radius * radius;
+	}
+}
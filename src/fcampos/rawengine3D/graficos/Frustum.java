@@ -47,9 +47,17 @@ public class Frustum
 	public static final int C = 2;				// The Z value of the plane's normal
 	public static final int D = 3;				// The distance the plane is from the origin
 
+	// A mask with a bit for each side, (1 << side), for testing a box against just
+	// some of the sides.  classifyCube() returns OUTSIDE when the box is out.
+	public static final int ALL_PLANES = 63;
+	public static final int OUTSIDE = -1;
+
 	// This holds the A B C and D values for each side of our frustum.
 	float[][] m_Frustum = new float[6][4];
 
+	// This holds the combined modelview and projection matrix the planes came from.
+	float[] m_Clip = new float[16];
+
 	  /** FloatBuffer to get ModelView matrix. **/
 	FloatBuffer modl_b;
 	
@@ -133,8 +141,18 @@ public class Frustum
 		clip[14] = modl[12] * proj[ 2] + modl[13] * proj[ 6] + modl[14] * proj[10] + modl[15] * proj[14];
 		clip[15] = modl[12] * proj[ 3] + modl[13] * proj[ 7] + modl[14] * proj[11] + modl[15] * proj[15];
 		
+		calculateFrustum(clip);
+	}
+
+
+
+	// This extracts the frustum from a modelview * projection matrix we already
+	// have, stored column by column like OpenGL does, so a frustum can be made
+	// without asking OpenGL for it's matrices.
+	public void calculateFrustum(float[] clip)
+	{
 		// Now we actually want to get the sides of the frustum.  To do this we take
-		// the clipping planes we received above and extract the sides from them.
+		// the clipping planes passed in and extract the sides from them.
 
 		// This will extract the RIGHT side of the frustum
 		m_Frustum[RIGHT][A] = clip[ 3] - clip[ 0];
@@ -192,6 +210,32 @@ public class Frustum
 
 		// Normalize the FRONT side
 		normalizePlane(m_Frustum, FRONT);
+
+		// Keep the matrix for anything that needs to project points the same way
+		System.arraycopy(clip, 0, m_Clip, 0, 16);
+	}
+
+
+
+	// This copies the planes and the matrix of another frustum, so the camera of a
+	// frame can be kept for work done after the next calculateFrustum().
+	public void set(Frustum frustum)
+	{
+		for(int side = 0; side < 6; side++)
+		{
+			System.arraycopy(frustum.m_Frustum[side], 0, m_Frustum[side], 0, 4);
+		}
+
+		System.arraycopy(frustum.m_Clip, 0, m_Clip, 0, 16);
+	}
+
+
+
+	// This copies the modelview * projection matrix of the last calculateFrustum()
+	// into clip, column by column like OpenGL stores it.
+	public void getClipMatrix(float[] clip)
+	{
+		System.arraycopy(m_Clip, 0, clip, 0, 16);
 	}
 
 
@@ -300,6 +344,44 @@ public class Frustum
 		return true;
 	}
 	
+	///////////////////////////////// CLASSIFY CUBE \\\\\\\\\\\\\\\\*
+	/////
+	/////	This tests a cube against the sides in planes, and returns the sides it crosses
+	/////
+	///////////////////////////////// CLASSIFY CUBE \\\\\\\\\\\\\\\\*
+
+	public int classifyCube( float x, float y, float z, float size, int planes )
+	{
+		// Instead of testing all 8 corners against a side, we only need the two corners
+		// that are the furthest in front of it and the furthest behind it.  How far those
+		// are from the center, along the normal, is size * (|A| + |B| + |C|).  If even the
+		// one in front is behind the side, the cube is out, and if even the one behind is
+		// in front of it, the whole cube is in front of that side.
+		//
+		// If a cube is in front of a side, so are all the cubes inside it, so when
+		// walking down a tree we pass the sides that are left to the children and they
+		// skip the rest.  When no sides are left the whole cube is in the frustum.
+
+		for(int i = 0; i < 6; i++ )
+		{
+			if((planes & (1 << i)) == 0)
+				continue;
+
+			float distance = m_Frustum[i][A] * x + m_Frustum[i][B] * y + m_Frustum[i][C] * z + m_Frustum[i][D];
+			float radius = size * (Math.abs(m_Frustum[i][A]) + Math.abs(m_Frustum[i][B]) + Math.abs(m_Frustum[i][C]));
+
+			// Same as cubeInFrustum(), no corner in front of this side
+			if(distance + radius <= 0)
+				return OUTSIDE;
+
+			// All the corners are in front of this side, so the children don't need it
+			if(distance - radius > 0)
+				planes &= ~(1 << i);
+		}
+
+		return planes;
+	}
+
 	public boolean boxInFrustum( float x, float y, float z, float x2, float y2, float z2)
 	{
 		// Go through all of the corners of the box and check then again each plane
@@ -334,4 +416,4 @@ public class Frustum
 		modl_b = BufferUtils.createFloatBuffer(16);
 		proj_b = BufferUtils.createFloatBuffer(16);
 	}
-}
\ No newline at end of file
+}
\ No newline at end of file
@@ -0,0 +1,636 @@
+package fcampos.rawengine3D.graficos;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+// This is a small software depth buffer for occlusion culling.  A few large
+// occluders are drawn into it on the CPU each frame, then boxes are tested
+// against it to find the ones hidden behind them, before anything is sent to
+// OpenGL.  The screen is cut into tiles that are rasterized in parallel.
+//
+// An occluder only fills the pixels it covers completely, with the farthest
+// depth it has inside them, so it never hides more than it really does.  A
+// box is hidden only if every pixel it touches is closer than it.  Since a
+// pixel cut by the edge between two triangles isn't completely inside either
+// of them, a flat face should be given whole with addPolygon(), or it's
+// inside edges are left open.  To get to the answer quickly each tile, and
+// each block of pixels in a tile, keeps the depth of it's farthest pixel, so
+// most box tests stop at a few tiles or blocks instead of every pixel.
+//
+// The depth stored is 1/w, which is linear across the screen and gets bigger
+// closer to the camera.  0 means nothing was drawn there, which never hides
+// anything.  Nothing in here touches OpenGL, the view comes in as the
+// combined modelview and projection matrix.
+public class OcclusionBuffer
+{
+
+	public static final int DEFAULT_WIDTH = 256;		// Plenty for the big occluders we draw
+	public static final int DEFAULT_HEIGHT = 128;
+	public static final int TILE_SIZE = 32;				// The tiles are TILE_SIZE x TILE_SIZE pixels
+	public static final int BLOCK_SIZE = 8;				// The blocks in a tile are BLOCK_SIZE x BLOCK_SIZE pixels
+
+	private static final float DEPTH_BIAS = 1.001f;		// Pulls the boxes closer so a box isn't hidden by its own faces
+
+	private int width;
+	private int height;
+	private int tilesX;				// The tiles across the screen
+	private int tilesY;				// The tiles down the screen
+	private int blocksX;			// The blocks across the screen
+	private float[] depth;			// The 1/w of every pixel, 0 where nothing was drawn
+	private float[] tileFar;		// The smallest 1/w of each tile, the farthest thing in it
+	private float[] blockFar;		// The smallest 1/w of each block
+
+	private float[] clip = new float[16];	// The modelview * projection matrix of the frame
+
+	// The occluders after they are clipped and projected.  Each polygon has
+	// (x, y, 1/w) for each of it's corners, wound so it has a positive area,
+	// the plane of it's 1/w and the tiles it touches.
+	private int numOfPolygons;
+	private int numOfPoints;
+	private float[] points;
+	private int[] polygonFirst;		// The first point of each polygon
+	private int[] polygonCount;		// How many points each polygon has
+	private float[] polygonPlanes;	// 1/w = a + b * x + c * y across each polygon
+	private int[] polygonTiles;		// The first and last tile column and row of each polygon
+
+	// Scratch space for clipping a polygon against the near plane
+	private float[] clipIn = new float[8 * 4];
+	private float[] clipOut = new float[9 * 4];
+	private float[] corners = new float[3 * 3];
+
+	public OcclusionBuffer()
+	{
+		this(DEFAULT_WIDTH, DEFAULT_HEIGHT);
+	}
+
+	public OcclusionBuffer(int width, int height)
+	{
+		if(width <= 0 || height <= 0)
+		{
+			throw new IllegalArgumentException("Bad occlusion buffer size: " + width + "x" + height);
+		}
+
+		this.width = width;
+		this.height = height;
+
+		tilesX = (width + TILE_SIZE - 1) / TILE_SIZE;
+		tilesY = (height + TILE_SIZE - 1) / TILE_SIZE;
+		blocksX = (width + BLOCK_SIZE - 1) / BLOCK_SIZE;
+
+		depth = new float[width * height];
+		tileFar = new float[tilesX * tilesY];
+		blockFar = new float[blocksX * ((height + BLOCK_SIZE - 1) / BLOCK_SIZE)];
+
+		points = new float[256 * 3];
+		polygonFirst = new int[64];
+		polygonCount = new int[64];
+		polygonPlanes = new float[64 * 3];
+		polygonTiles = new int[64 * 4];
+	}
+
+	// This starts a new frame seen through the matrix, which is laid out like
+	// OpenGL's, column by column.  The occluders of the last frame are dropped.
+	public void begin(float[] clipMatrix)
+	{
+		System.arraycopy(clipMatrix, 0, clip, 0, 16);
+		numOfPolygons = 0;
+		numOfPoints = 0;
+	}
+
+	//////////////////////////// ADD POLYGON \\\\\\\\\\\\\\\\\\\\\\\\\\\*
+	/////
+	/////	This projects a flat convex occluder given in world space onto the screen
+	/////
+	//////////////////////////// ADD POLYGON \\\\\\\\\\\\\\\\\\\\\\\\\\\*
+
+	// The corners are (x, y, z) one after the other from offset, going around
+	// the polygon either way.
+	public void addPolygon(float[] polygon, int offset, int count)
+	{
+		if(count < 3)
+		{
+			return;
+		}
+
+		if(clipIn.length < count * 4)
+		{
+			clipIn = new float[count * 8];
+			clipOut = new float[count * 8 + 4];
+		}
+
+		// Take the corners into clip space as (x, y, z, w)
+		for(int i = 0; i < count; i++)
+		{
+			transform(polygon[offset + i*3], polygon[offset + i*3 + 1], polygon[offset + i*3 + 2], clipIn, i * 4);
+		}
+
+		// Cut off what is behind the near plane, which leaves 0 or at most
+		// one more corner than we had
+		count = clipNear(clipIn, count, clipOut);
+		if(count >= 3)
+		{
+			addProjected(clipOut, count);
+		}
+	}
+
+	public void addTriangle(float x0, float y0, float z0, float x1, float y1, float z1, float x2, float y2, float z2)
+	{
+		corners[0] = x0;	corners[1] = y0;	corners[2] = z0;
+		corners[3] = x1;	corners[4] = y1;	corners[5] = z1;
+		corners[6] = x2;	corners[7] = y2;	corners[8] = z2;
+
+		addPolygon(corners, 0, 3);
+	}
+
+	// This multiplies a point by the clip matrix
+	private void transform(float x, float y, float z, float[] out, int offset)
+	{
+		out[offset]     = clip[0] * x + clip[4] * y + clip[ 8] * z + clip[12];
+		out[offset + 1] = clip[1] * x + clip[5] * y + clip[ 9] * z + clip[13];
+		out[offset + 2] = clip[2] * x + clip[6] * y + clip[10] * z + clip[14];
+		out[offset + 3] = clip[3] * x + clip[7] * y + clip[11] * z + clip[15];
+	}
+
+	// This clips a polygon in clip space to z >= -w, the near plane
+	private static int clipNear(float[] in, int count, float[] out)
+	{
+		int result = 0;
+
+		for(int i = 0; i < count; i++)
+		{
+			int a = i * 4;
+			int b = ((i + 1) % count) * 4;
+			float da = in[a + 2] + in[a + 3];
+			float db = in[b + 2] + in[b + 3];
+
+			if(da >= 0)
+			{
+				System.arraycopy(in, a, out, result * 4, 4);
+				result++;
+			}
+
+			// The edge crosses the plane, so keep the point where it does
+			if((da >= 0) != (db >= 0))
+			{
+				float t = da / (da - db);
+				for(int k = 0; k < 4; k++)
+				{
+					out[result * 4 + k] = in[a + k] + (in[b + k] - in[a + k]) * t;
+				}
+				result++;
+			}
+		}
+
+		return result;
+	}
+
+	// This stores a clipped polygon in screen space
+	private void addProjected(float[] clipped, int count)
+	{
+		if(numOfPolygons == polygonFirst.length)
+		{
+			polygonFirst = Arrays.copyOf(polygonFirst, numOfPolygons * 2);
+			polygonCount = Arrays.copyOf(polygonCount, numOfPolygons * 2);
+			polygonPlanes = Arrays.copyOf(polygonPlanes, numOfPolygons * 6);
+			polygonTiles = Arrays.copyOf(polygonTiles, numOfPolygons * 8);
+		}
+		if((numOfPoints + count) * 3 > points.length)
+		{
+			points = Arrays.copyOf(points, Math.max(points.length * 2, (numOfPoints + count) * 3));
+		}
+
+		int first = numOfPoints * 3;
+		float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE;
+		float maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE;
+		float area = 0;
+
+		for(int i = 0; i < count; i++)
+		{
+			int p = first + i * 3;
+			project(clipped, i * 4, points, p);
+
+			minX = Math.min(minX, points[p]);
+			maxX = Math.max(maxX, points[p]);
+			minY = Math.min(minY, points[p + 1]);
+			maxY = Math.max(maxY, points[p + 1]);
+		}
+
+		// Twice the signed area, one edge at a time
+		for(int i = 0; i < count; i++)
+		{
+			int p = first + i * 3;
+			int q = first + ((i + 1) % count) * 3;
+			area += points[p] * points[q + 1] - points[q] * points[p + 1];
+		}
+
+		// Drop the ones that are off the screen or seen edge on
+		if(maxX < 0 || maxY < 0 || minX >= width || minY >= height || area == 0)
+		{
+			return;
+		}
+
+		// The occluders can face either way, so the corners are turned around
+		// to match instead of culling the back faces.
+		if(area < 0)
+		{
+			for(int i = 0, j = count - 1; i < j; i++, j--)
+			{
+				for(int k = 0; k < 3; k++)
+				{
+					float swap = points[first + i*3 + k];
+					points[first + i*3 + k] = points[first + j*3 + k];
+					points[first + j*3 + k] = swap;
+				}
+			}
+		}
+
+		findPlane(first, count, numOfPolygons * 3);
+
+		int tiles = numOfPolygons * 4;
+		polygonTiles[tiles]     = clampTile((int)minX, tilesX);
+		polygonTiles[tiles + 1] = clampTile((int)maxX, tilesX);
+		polygonTiles[tiles + 2] = clampTile((int)minY, tilesY);
+		polygonTiles[tiles + 3] = clampTile((int)maxY, tilesY);
+
+		polygonFirst[numOfPolygons] = numOfPoints;
+		polygonCount[numOfPolygons] = count;
+		numOfPolygons++;
+		numOfPoints += count;
+	}
+
+	// This does the divide by w and the viewport, keeping 1/w as the depth
+	private void project(float[] clipped, int p, float[] out, int offset)
+	{
+		float invW = 1.0f / clipped[p + 3];
+
+		out[offset]     = (clipped[p] * invW * 0.5f + 0.5f) * width;
+		out[offset + 1] = (clipped[p + 1] * invW * 0.5f + 0.5f) * height;
+		out[offset + 2] = invW;
+	}
+
+	// 1/w is a plane across the screen, so it steps the same amount every
+	// pixel.  It's worked out from the biggest triangle of the fan of the
+	// polygon, since a thin one would make the steps less exact.
+	private void findPlane(int first, int count, int plane)
+	{
+		float ax = points[first], ay = points[first + 1], az = points[first + 2];
+		float best = 0, dzdx = 0, dzdy = 0;
+
+		for(int i = 1; i < count - 1; i++)
+		{
+			int b = first + i * 3;
+			int c = b + 3;
+			float bx = points[b], by = points[b + 1], bz = points[b + 2];
+			float cx = points[c], cy = points[c + 1], cz = points[c + 2];
+
+			float area = (bx - ax) * (cy - ay) - (by - ay) * (cx - ax);
+			if(area > best)
+			{
+				best = area;
+				dzdx = ((by - ay) * (cz - az) - (cy - ay) * (bz - az)) / -area;
+				dzdy = ((cx - ax) * (bz - az) - (bx - ax) * (cz - az)) / -area;
+			}
+		}
+
+		polygonPlanes[plane]     = az - ax * dzdx - ay * dzdy;
+		polygonPlanes[plane + 1] = dzdx;
+		polygonPlanes[plane + 2] = dzdy;
+	}
+
+	private static int clampTile(int pixel, int numOfTiles)
+	{
+		return Math.max(0, Math.min(numOfTiles - 1, pixel / TILE_SIZE));
+	}
+
+	//////////////////////////// RENDER \\\\\\\\\\\\\\\\\\\\\\\\\\\*
+	/////
+	/////	This rasterizes the occluders, one tile per task, and finds each tile's far depth
+	/////
+	//////////////////////////// RENDER \\\\\\\\\\\\\\\\\\\\\\\\\\\*
+
+	public void render(ForkJoinPool pool)
+	{
+		RasterTask task = new RasterTask(0, tilesX * tilesY);
+
+		// Without a pool the tiles are drawn on the calling thread
+		if(pool == null)
+		{
+			task.compute();
+		}
+		else
+		{
+			pool.invoke(task);
+		}
+	}
+
+	// This draws a range of tiles.  The tiles don't share any pixels, so they
+	// can be drawn at the same time without locking.
+	private class RasterTask extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final int start;
+		private final int end;
+
+		RasterTask(int start, int end)
+		{
+			this.start = start;
+			this.end = end;
+		}
+
+		protected void compute()
+		{
+			if(end - start > 1)
+			{
+				int middle = (start + end) >>> 1;
+				invokeAll(new RasterTask(start, middle), new RasterTask(middle, end));
+				return;
+			}
+
+			for(int i = start; i < end; i++)
+			{
+				renderTile(i % tilesX, i / tilesX);
+			}
+		}
+	}
+
+	private void renderTile(int tileX, int tileY)
+	{
+		int x0 = tileX * TILE_SIZE;
+		int y0 = tileY * TILE_SIZE;
+		int x1 = Math.min(x0 + TILE_SIZE, width);
+		int y1 = Math.min(y0 + TILE_SIZE, height);
+
+		for(int y = y0; y < y1; y++)
+		{
+			Arrays.fill(depth, y * width + x0, y * width + x1, 0.0f);
+		}
+
+		for(int i = 0; i < numOfPolygons; i++)
+		{
+			int tiles = i * 4;
+			if(tileX < polygonTiles[tiles] || tileX > polygonTiles[tiles + 1] ||
+			   tileY < polygonTiles[tiles + 2] || tileY > polygonTiles[tiles + 3])
+			{
+				continue;
+			}
+
+			rasterize(i, x0, y0, x1, y1);
+		}
+
+		// Keep the farthest depth of each block, and of the tile, for the quick box tests
+		float tile = Float.MAX_VALUE;
+		for(int by = y0; by < y1; by += BLOCK_SIZE)
+		{
+			for(int bx = x0; bx < x1; bx += BLOCK_SIZE)
+			{
+				float far = Float.MAX_VALUE;
+				for(int y = by; y < Math.min(by + BLOCK_SIZE, y1); y++)
+				{
+					for(int x = bx; x < Math.min(bx + BLOCK_SIZE, x1); x++)
+					{
+						far = Math.min(far, depth[y * width + x]);
+					}
+				}
+
+				blockFar[(by / BLOCK_SIZE) * blocksX + bx / BLOCK_SIZE] = far;
+				tile = Math.min(tile, far);
+			}
+		}
+
+		tileFar[tileY * tilesX + tileX] = tile;
+	}
+
+	// This fills the pixels that are completely inside a polygon, only in the
+	// rectangle of one tile.  Each one gets the farthest depth the polygon has
+	// in it, and keeps it if it's closer than what is there.  A pixel the
+	// polygon only partly covers is left alone, since something behind it
+	// could still show through the rest of the pixel.
+	private void rasterize(int polygon, int clipX0, int clipY0, int clipX1, int clipY1)
+	{
+		int first = polygonFirst[polygon] * 3;
+		int count = polygonCount[polygon];
+
+		float top = Float.MAX_VALUE, bottom = -Float.MAX_VALUE;
+		for(int i = 0; i < count; i++)
+		{
+			top = Math.min(top, points[first + i*3 + 1]);
+			bottom = Math.max(bottom, points[first + i*3 + 1]);
+		}
+
+		float dzdx = polygonPlanes[polygon*3 + 1];
+		float dzdy = polygonPlanes[polygon*3 + 2];
+
+		// Going half a pixel from the center towards the far side in x and y
+		// gives the farthest depth of the polygon in the pixel
+		float farthest = 0.5f * (Math.abs(dzdx) + Math.abs(dzdy));
+
+		int minY = Math.max(clipY0, (int)Math.floor(top));
+		int maxY = Math.min(clipY1 - 1, (int)Math.ceil(bottom));
+
+		for(int y = minY; y <= maxY; y++)
+		{
+			// Each edge keeps the inside on one side of it.  The polygon is
+			// convex, so a row of pixels is covered where both the top and
+			// the bottom of the row are inside every edge.
+			float left = clipX0;
+			float right = clipX1;
+
+			for(int i = 0; i < count; i++)
+			{
+				int a = first + i * 3;
+				int b = (i == count - 1) ? first : a + 3;
+				float ax = points[a], ay = points[a + 1];
+				float bx = points[b], by = points[b + 1];
+
+				left = edgeLeft(ax, ay, bx, by, y, left);
+				left = edgeLeft(ax, ay, bx, by, y + 1, left);
+				right = edgeRight(ax, ay, bx, by, y, right);
+				right = edgeRight(ax, ay, bx, by, y + 1, right);
+			}
+
+			// The pixel x runs from x to x + 1
+			int x0 = (int)Math.ceil(left);
+			int x1 = (int)Math.floor(right) - 1;
+			if(x0 > x1)
+			{
+				continue;
+			}
+
+			float z = polygonPlanes[polygon*3] + (x0 + 0.5f) * dzdx + (y + 0.5f) * dzdy - farthest;
+			int pixel = y * width + x0;
+
+			for(int x = x0; x <= x1; x++, pixel++, z += dzdx)
+			{
+				if(z > depth[pixel])
+				{
+					depth[pixel] = z;
+				}
+			}
+		}
+	}
+
+	// The inside of the edge from (x0, y0) to (x1, y1) on the line at py is
+	// everything right of where the edge crosses it, if the edge goes up...
+	private static float edgeLeft(float x0, float y0, float x1, float y1, float py, float left)
+	{
+		float dy = y1 - y0;
+
+		if(dy < 0)
+		{
+			return Math.max(left, x0 + (x1 - x0) * (py - y0) / dy);
+		}
+
+		// A flat edge either keeps the whole line or none of it
+		if(dy == 0 && (x1 - x0) * (py - y0) < 0)
+		{
+			return Float.MAX_VALUE;
+		}
+
+		return left;
+	}
+
+	// ...and everything left of it if the edge goes down
+	private static float edgeRight(float x0, float y0, float x1, float y1, float py, float right)
+	{
+		float dy = y1 - y0;
+
+		if(dy > 0)
+		{
+			return Math.min(right, x0 + (x1 - x0) * (py - y0) / dy);
+		}
+
+		return right;
+	}
+
+	//////////////////////////// IS BOX VISIBLE \\\\\\\\\\\\\\\\\\\\\\\\\\\*
+	/////
+	/////	This returns false only if the box is behind the occluders in every pixel it touches
+	/////
+	//////////////////////////// IS BOX VISIBLE \\\\\\\\\\\\\\\\\\\\\\\\\\\*
+
+	public boolean isBoxVisible(float minX, float minY, float minZ, float maxX, float maxY, float maxZ)
+	{
+		float screenMinX = Float.MAX_VALUE, screenMinY = Float.MAX_VALUE;
+		float screenMaxX = -Float.MAX_VALUE, screenMaxY = -Float.MAX_VALUE;
+		float nearest = 0;
+
+		// Project the 8 corners and keep their rectangle and the closest depth
+		for(int i = 0; i < 8; i++)
+		{
+			float x = ((i & 1) == 0) ? minX : maxX;
+			float y = ((i & 2) == 0) ? minY : maxY;
+			float z = ((i & 4) == 0) ? minZ : maxZ;
+
+			float clipX = clip[0] * x + clip[4] * y + clip[ 8] * z + clip[12];
+			float clipY = clip[1] * x + clip[5] * y + clip[ 9] * z + clip[13];
+			float clipZ = clip[2] * x + clip[6] * y + clip[10] * z + clip[14];
+			float clipW = clip[3] * x + clip[7] * y + clip[11] * z + clip[15];
+
+			// A box that reaches past the near plane is right on top of us
+			if(clipZ + clipW < 0 || clipW <= 0)
+			{
+				return true;
+			}
+
+			float invW = 1.0f / clipW;
+			float sx = (clipX * invW * 0.5f + 0.5f) * width;
+			float sy = (clipY * invW * 0.5f + 0.5f) * height;
+
+			screenMinX = Math.min(screenMinX, sx);
+			screenMaxX = Math.max(screenMaxX, sx);
+			screenMinY = Math.min(screenMinY, sy);
+			screenMaxY = Math.max(screenMaxY, sy);
+			nearest = Math.max(nearest, invW);
+		}
+
+		nearest *= DEPTH_BIAS;
+
+		// The pixel x runs from x to x + 1, so these are all the pixels the
+		// rectangle touches, even the ones it only grazes
+		int x0 = Math.max(0, (int)Math.floor(screenMinX));
+		int x1 = Math.min(width - 1, (int)Math.floor(screenMaxX));
+		int y0 = Math.max(0, (int)Math.floor(screenMinY));
+		int y1 = Math.min(height - 1, (int)Math.floor(screenMaxY));
+
+		// Off the screen is the frustum's job, so don't call it hidden
+		if(x0 > x1 || y0 > y1)
+		{
+			return true;
+		}
+
+		for(int tileY = y0 / TILE_SIZE; tileY <= y1 / TILE_SIZE; tileY++)
+		{
+			for(int tileX = x0 / TILE_SIZE; tileX <= x1 / TILE_SIZE; tileX++)
+			{
+				// The whole tile is closer than the box, so it's hidden here
+				if(tileFar[tileY * tilesX + tileX] > nearest)
+				{
+					continue;
+				}
+
+				// Otherwise go down to the blocks the box touches in this tile
+				int bx0 = Math.max(x0, tileX * TILE_SIZE) / BLOCK_SIZE;
+				int bx1 = Math.min(x1, tileX * TILE_SIZE + TILE_SIZE - 1) / BLOCK_SIZE;
+				int by0 = Math.max(y0, tileY * TILE_SIZE) / BLOCK_SIZE;
+				int by1 = Math.min(y1, tileY * TILE_SIZE + TILE_SIZE - 1) / BLOCK_SIZE;
+
+				for(int blockY = by0; blockY <= by1; blockY++)
+				{
+					for(int blockX = bx0; blockX <= bx1; blockX++)
+					{
+						if(blockFar[blockY * blocksX + blockX] <= nearest &&
+						   isRectVisible(Math.max(x0, blockX * BLOCK_SIZE), Math.min(x1, blockX * BLOCK_SIZE + BLOCK_SIZE - 1),
+										 Math.max(y0, blockY * BLOCK_SIZE), Math.min(y1, blockY * BLOCK_SIZE + BLOCK_SIZE - 1),
+										 nearest))
+						{
+							return true;
+						}
+					}
+				}
+			}
+		}
+
+		return false;
+	}
+
+	// This looks at every pixel of a rectangle for one that is not closer than the depth
+	private boolean isRectVisible(int x0, int x1, int y0, int y1, float nearest)
+	{
+		for(int y = y0; y <= y1; y++)
+		{
+			for(int x = x0; x <= x1; x++)
+			{
+				if(depth[y * width + x] <= nearest)
+				{
+					return true;
+				}
+			}
+		}
+
+		return false;
+	}
+
+	public int getWidth()
+	{
+		return width;
+	}
+
+	public int getHeight()
+	{
+		return height;
+	}
+
+	// This returns how many polygons are left to draw after clipping
+	public int getNumOfPolygons()
+	{
+		return numOfPolygons;
+	}
+
+	// This returns the 1/w of a pixel after render(), 0 where nothing was drawn
+	public float getDepth(int x, int y)
+	{
+		return depth[y * width + x];
+	}
+}
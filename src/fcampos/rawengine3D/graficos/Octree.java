@@ -57,7 +57,11 @@ package fcampos.rawengine3D.graficos;
 
 import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Vector;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import fcampos.rawengine3D.model.*;
 import fcampos.rawengine3D.MathUtil.*;
@@ -79,37 +83,29 @@ public class Octree{
 	public static final int BOTTOM_RIGHT_BACK	= 6;
 	public static final int BOTTOM_RIGHT_FRONT	= 7;
 	
-	//This holds the current amount of subdivisions we are currently at.
-	//This is used to make sure we don't go over the max amount
-	private int currentSubdivision = 0;
+	// The nodes with more triangles than this build their children in parallel
+	// when the tree is built on a ForkJoin pool
+	private static final int PARALLEL_TRIANGLES = 4096;
 	
-	//The maximum amount of triangles per node
-	public static int maxTriangles;
+	// The settings this tree is built with, shared by all of it's nodes
+	private final OctreeConfig config;
 	
-	// The maximum amount of subdivisions allow (Levels of subdivision)
-	public static int maxSubdivisions;
+	// The amount of end nodes created in the octree (That hold vertices).  Only the root counts them.
+	private int endNodeCount;
 	
-	// The amount of end nodes created in the octree (That hold vertices)
-	public static int totalNodesCount;
+	// The cubes of all the nodes, to visualize the octree.  Only the root has it.
+	private BoundingBox debug;
 	
-	// This stores the amount of nodes that are in the frustum
-	public static int totalNodesDrawn;
-	
-	// Turn lighting on initially
-	public static boolean turnLighting;
+	// The number of the first face of each object in the world the tree was built
+	// from, and one past the last face at the end.  Only the root has it.
+	private int[] firstFace;
 	
 	// Wheter we test the whole world for collision or just the nodes we are in.
-	public static boolean octreeCollisionDetection;
+	private volatile boolean octreeCollisionDetection;
 	
 	// This stores the render mode (LINES = false or TRIANGLES = true)
 	private boolean renderMode;
 	
-	// The number of Nodes we've checked for collision.
-	public static int numNodesCollided;
-	
-	// Wheter the Object is Colliding with anything in the World or not.
-	private boolean objectColliding;
-	
 	//This tells us if we have divided this node into more sub nodes
 	private boolean subDivided;
 	
@@ -125,36 +121,31 @@ public class Octree{
 	// This holds all the scene information (verts, normals, texture info, etc..) for this node
 	private Model3d world;
 	
+	// The numbers of the faces in this end node, in order, the same as in world
+	private int[] faceNumbers;
+	
+	// The box around the triangles really kept in this node and under it, the
+	// smallest x, y, z and then the biggest.  A triangle is kept in every node one
+	// of it's corners is in, so this can be bigger than the node's cube.
+	private float[] triangleBounds;
+	
 	// This stores the indices into the original model's object list
 	private Vector<Integer>	objectList;
 	
+	// The indices of the end node's triangles in one buffer, with the objects
+	// sorted by their material, so the triangles of a material are in one run.
+	// For each object there is it's material, it's index in the world, and where
+	// it's indices start in the buffer and how many there are.
+	private IntBuffer drawIndices;
+	private int[] drawRanges;
+	
 	// This holds the display list ID for the current node, which increases the rendering speed
 	private int displayListID;
 	
 	// These are the eight nodes branching down from this current node
 	private Octree[] octreeNodes;
-	
-	//Extern our debug object because we use it in the octree code
-	public static BoundingBox debug;
 
 		
-	private class FaceList
-	{
-		
-		// This is a vector of booleans to store if the face index is in the nodes 3D Space
-		public Vector<Boolean> faceList;	
-	
-		// This stores the total face count that is in the nodes 3D space (how many "true"'s)
-		public int totalFaceCount;
-		
-		public FaceList()
-		{
-			faceList = new Vector<Boolean>();
-			totalFaceCount = 0;
-		} 
-		
-	}
-
 
 
 ///////////////////////////////// OCTREE \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\*
@@ -165,6 +156,17 @@ public class Octree{
 
 	public Octree()
 	{
+		this(OctreeConfig.DEFAULT);
+	}
+	
+	// Nothing about the tree is kept in static variables, so there can be as many
+	// trees as we want, each built with it's own settings.  Once one is built, any
+	// number of threads can test it for collisions at the same time, since the
+	// tests only read the tree and count things in the OctreeStats passed to them.
+	public Octree(OctreeConfig config)
+	{
+		this.config = config;
+		
 		// Set the subdivided flag to false
 		subDivided = false;
 	
@@ -190,7 +192,7 @@ public class Octree{
 		// Set the sub nodes to NULL
 		octreeNodes = new Octree[8];
 		
-		setObjectColliding(false);
+		setOctreeCollisionDetection(true);
 		
 		setRenderMode(false);
 	}
@@ -398,6 +400,57 @@ public class Octree{
 	///////////////////////////////// CREATE NODE \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\*
 	
 	public void createNode(Model3d world, int numberOfTriangles, Vector3f center, float width)
+	{
+		createNode(world, numberOfTriangles, center, width, null);
+	}
+	
+	// When a pool is passed in, the children of the nodes with more than
+	// PARALLEL_TRIANGLES triangles are built side by side on it.  The nodes below
+	// that are built one after the other by the thread that got them.  Either
+	// way the tree comes out exactly the same.
+	public void createNode(Model3d world, int numberOfTriangles, Vector3f center, float width, ForkJoinPool pool)
+	{
+		// This is where we start building the tree from the root node.  Instead of
+		// copying the world into a new partition for every node, every face of the
+		// world gets a number and a node is just the list of the face numbers in it.
+		BuildBuffers buffers = new BuildBuffers(world);
+		
+		// The numberOfTriangles passed in should be what GetSceneTriangleCount()
+		// returned, but we make sure not to go past the faces we numbered.
+		numberOfTriangles = Math.min(numberOfTriangles, buffers.firstFace[world.getNumOfObjects()]);
+		
+		// The root node has all the faces of the world
+		int[] faces = buffers.getFaces(0, numberOfTriangles);
+		for(int i = 0; i < numberOfTriangles; i++)
+		{
+			faces[i] = i;
+		}
+		
+		if(pool == null)
+		{
+			createNode(world, buffers, faces, 0, numberOfTriangles, center, width);
+		}
+		else
+		{
+			pool.invoke(new BuildTask(this, world, buffers, faces, 0, numberOfTriangles, center, width));
+		}
+		
+		// Keep the face numbering, so the end nodes' face numbers can be turned back into faces
+		firstFace = buffers.firstFace;
+		
+		// Find the boxes around the triangles of every node, for the sphere tests
+		findTriangleBounds(this, world);
+		
+		// Now that all the nodes are there, go through them in order to number the
+		// end nodes and add the debug boxes, the same for both ways of building.
+		endNodeCount = 0;
+		debug = new BoundingBox();
+		debug.setColor(BoundingBox.YELLOW);
+		addNodesInOrder(this);
+	}
+	
+	private void createNode(Model3d world, BuildBuffers buffers, int[] nodeFaces, int level,
+							int numberOfTriangles, Vector3f center, float width)
 	{
 		// Initialize this node's center point.  Now we know the center of this node.
 		centerNode.setTo(center);
@@ -405,13 +458,10 @@ public class Octree{
 		// Initialize this nodes cube width.  Now we know the width of this current node.
 		sizeWidth = width;
 	
-		// Add the current node to our debug rectangle list so we can visualize it.
-		debug.createBoundingBox(center, width, width, width);
-	
 		// Check if we have too many triangles in this node and we haven't subdivided
 		// above our max subdivisions.  If so, then we need to break this node into
 		// 8 more nodes (hence the word OCTree).  Both must be true to divide this node.
-		if( (numberOfTriangles > maxTriangles) && (currentSubdivision < maxSubdivisions) )
+		if( (numberOfTriangles > config.getMaxTriangles()) && (level < config.getMaxSubdivisions()) )
 		{
 			// Since we need to subdivide more we set the divided flag to true.
 			// This let's us know that this node does NOT have any vertices assigned to it,
@@ -419,148 +469,20 @@ public class Octree{
 			// We will query this variable when we are drawing the octree.
 			subDivided = true;
 	
-			// Create a list for each new node to store if a triangle should be stored in it's
-			// triangle list.  For each index it will be a true or false to tell us if that triangle
-			// is in the cube of that node.  Below we check every point to see where it's
-			// position is from the center (I.E. if it's above the center, to the left and 
-			// back it's the TOP_LEFT_BACK node).  Depending on the node we set the pList 
-			// index to true.  This will tell us later which triangles go to which node.
-			// You might catch that this way will produce doubles in some nodes.  Some
-			// triangles will intersect more than 1 node right?  We won't split the triangles
-			// in this tutorial just to keep it simple, but the next tutorial we will.
+			// For every face in this node we store one bit for each child node,
+			// that tells us if the triangle is in the cube of that node.  Below we
+			// check every point to see where it's position is from the center 
+			// (I.E. if it's above the center, to the left and back it's the 
+			// TOP_LEFT_BACK node).  You might catch that this way will produce doubles
+			// in some nodes.  Some triangles will intersect more than 1 node right?
+			// We won't split the triangles, just to keep it simple.
+			byte[] childMasks = buffers.getChildMasks(level, numberOfTriangles);
 			
-			// This function pretty much stays the same, except a small twist because
-			// we are dealing with multiple objects for the scene, not just an array of vertices.
-			// In the previous tutorials, we used a vector<> of booleans, but now we use our
-			// tFaceList to store a vector of booleans for each object.
+			// Here we create a variable for each child that holds how many triangles
+			// were found for it.
+			int[] triCount = new int[8];
 			
-			// Create the list of tFaceLists for each child node
-			Vector<FaceList> list1 = new Vector<FaceList>(world.getNumOfObjects());		// TOP_LEFT_FRONT node list
-			Vector<FaceList> list2 = new Vector<FaceList>(world.getNumOfObjects());		// TOP_LEFT_BACK node list
-			Vector<FaceList> list3 = new Vector<FaceList>(world.getNumOfObjects());		// TOP_RIGHT_BACK node list
-			Vector<FaceList> list4 = new Vector<FaceList>(world.getNumOfObjects());		// TOP_RIGHT_FRONT node list
-			Vector<FaceList> list5 = new Vector<FaceList>(world.getNumOfObjects());		// BOTTOM_LEFT_FRONT node list
-			Vector<FaceList> list6 = new Vector<FaceList>(world.getNumOfObjects());		// BOTTOM_LEFT_BACK node list
-			Vector<FaceList> list7 = new Vector<FaceList>(world.getNumOfObjects());		// BOTTOM_RIGHT_BACK node list
-			Vector<FaceList> list8 = new Vector<FaceList>(world.getNumOfObjects());		// BOTTOM_RIGHT_FRONT node list
-			
-			for (int i=0; i < world.getNumOfObjects(); i++)
-			{
-				list1.add(new FaceList());
-				list2.add(new FaceList());
-				list3.add(new FaceList());
-				list4.add(new FaceList());
-				list5.add(new FaceList());
-				list6.add(new FaceList());
-				list7.add(new FaceList());
-				list8.add(new FaceList());
-			}
-		
-			// Create this variable to cut down the thickness of the code below (easier to read)
-			Vector3f vCtr = new Vector3f(center);
-	
-			// Go through every object in the current partition of the world
-			for(int i = 0; i < world.getNumOfObjects(); i++)
-			{
-				// Store a point to the current object
-				Object3d object = world.getObject(i);
-	
-				// Now, we have a face list for each object, for every child node.
-				// We need to then check every triangle in this current object
-				// to see if it's in any of the child nodes dimensions.  We store a "true" in
-				// the face list index to tell us if that's the case.  This is then used
-				// in CreateNewNode() to create a new partition of the world for that child node.
-				
-				
-				
-				for(int a=0; a < object.getNumFaces(); a++ )
-				{
-					list1.get(i).faceList.add(a, new Boolean(false));
-					list2.get(i).faceList.add(a, new Boolean(false));
-					list3.get(i).faceList.add(a, new Boolean(false));
-					list4.get(i).faceList.add(a, new Boolean(false));
-					list5.get(i).faceList.add(a, new Boolean(false));
-					list6.get(i).faceList.add(a, new Boolean(false));
-					list7.get(i).faceList.add(a, new Boolean(false));
-					list8.get(i).faceList.add(a, new Boolean(false));
-				}
-	
-				// Go through all the triangles for this object
-				for(int j = 0; j < object.getNumFaces(); j++)
-				{
-					// Check every vertex in the current triangle to see if it's inside a child node
-					for(int whichVertex = 0; whichVertex < 3; whichVertex++)
-					{
-						// Store the current vertex to be checked against all the child nodes
-						Vector3f point = new Vector3f(object.getVertices(object.getFace(j).getVertices(whichVertex)));
-	
-						// Check if the point lies within the TOP LEFT FRONT node
-						if( (point.x <= vCtr.x) && (point.y >= vCtr.y) && (point.z >= vCtr.z) ) 
-							list1.get(i).faceList.set(j, true);
-	
-						// Check if the point lies within the TOP LEFT BACK node
-						if( (point.x <= vCtr.x) && (point.y >= vCtr.y) && (point.z <= vCtr.z) ) 
-							list2.get(i).faceList.set(j, true);
-	
-						// Check if the point lies within the TOP RIGHT BACK node
-						if( (point.x >= vCtr.x) && (point.y >= vCtr.y) && (point.z <= vCtr.z) ) 
-							list3.get(i).faceList.set(j, true);
-	
-						// Check if the point lies within the TOP RIGHT FRONT node
-						if( (point.x >= vCtr.x) && (point.y >= vCtr.y) && (point.z >= vCtr.z) ) 
-							list4.get(i).faceList.set(j, true);
-	
-						// Check if the point lies within the BOTTOM LEFT FRONT node
-						if( (point.x <= vCtr.x) && (point.y <= vCtr.y) && (point.z >= vCtr.z) ) 
-							list5.get(i).faceList.set(j, true);
-	
-						// Check if the point lies within the BOTTOM LEFT BACK node
-						if( (point.x <= vCtr.x) && (point.y <= vCtr.y) && (point.z <= vCtr.z) ) 
-							list6.get(i).faceList.set(j, true);
-	
-						// Check if the point lies within the BOTTOM RIGHT BACK node
-						if( (point.x >= vCtr.x) && (point.y <= vCtr.y) && (point.z <= vCtr.z) ) 
-							list7.get(i).faceList.set(j, true);
-	
-						// Check if the point lines within the BOTTOM RIGHT FRONT node
-						if( (point.x >= vCtr.x) && (point.y <= vCtr.y) && (point.z >= vCtr.z) ) 
-							list8.get(i).faceList.set(j, true);
-					}
-				}	
-	
-				// Here we initialize the face count for each list that holds how many triangles
-				// were found for each of the 8 subdivided nodes.
-				list1.get(i).totalFaceCount = 0;		list2.get(i).totalFaceCount = 0;
-				list3.get(i).totalFaceCount = 0;		list4.get(i).totalFaceCount = 0;
-				list5.get(i).totalFaceCount = 0;		list6.get(i).totalFaceCount = 0;
-				list7.get(i).totalFaceCount = 0;		list8.get(i).totalFaceCount = 0;
-			}
-	
-			// Here we create a variable for each list that holds how many triangles
-			// were found for each of the 8 subdivided nodes.
-			int triCount1 = 0;	int triCount2 = 0;	int triCount3 = 0;	int triCount4 = 0;
-			int triCount5 = 0;	int triCount6 = 0;	int triCount7 = 0;	int triCount8 = 0;
-				
-			// Go through all of the objects of this current partition
-			for(int i = 0; i < world.getNumOfObjects(); i++)
-			{
-				// Go through all of the current objects triangles
-				for(int j = 0; j < world.getObject(i).getNumFaces(); j++)
-				{
-					// Increase the triangle count for each node that has a "true" for the index i.
-					// In other words, if the current triangle is in a child node, add 1 to the count.
-					// We need to store the total triangle count for each object, but also
-					// the total for the whole child node.  That is why we increase 2 variables.
-					if(list1.get(i).faceList.get(j))	{ list1.get(i).totalFaceCount++; triCount1++; }
-					if(list2.get(i).faceList.get(j))	{ list2.get(i).totalFaceCount++; triCount2++; }
-					if(list3.get(i).faceList.get(j))	{ list3.get(i).totalFaceCount++; triCount3++; }
-					if(list4.get(i).faceList.get(j))	{ list4.get(i).totalFaceCount++; triCount4++; }
-					if(list5.get(i).faceList.get(j))	{ list5.get(i).totalFaceCount++; triCount5++; }
-					if(list6.get(i).faceList.get(j))	{ list6.get(i).totalFaceCount++; triCount6++; }
-					if(list7.get(i).faceList.get(j))	{ list7.get(i).totalFaceCount++; triCount7++; }
-					if(list8.get(i).faceList.get(j))	{ list8.get(i).totalFaceCount++; triCount8++; }
-				}
-			}
+			classifyFaces(world, buffers.firstFace, nodeFaces, numberOfTriangles, center, childMasks, triCount);
 	
 			// Next we do the dirty work.  We need to set up the new nodes with the triangles
 			// that are assigned to each node, along with the new center point of the node.
@@ -569,14 +491,11 @@ public class Octree{
 			// Create the subdivided nodes if necessary and then recurse through them.
 			// The information passed into CreateNewNode() are essential for creating the
 			// new nodes.  We pass the 8 ID's in so it knows how to calculate it's new center.
-			createNewNode(world, list1, triCount1, center, width, TOP_LEFT_FRONT);
-			createNewNode(world, list2, triCount2, center, width, TOP_LEFT_BACK);
-			createNewNode(world, list3, triCount3, center, width, TOP_RIGHT_BACK);
-			createNewNode(world, list4, triCount4, center, width, TOP_RIGHT_FRONT);
-			createNewNode(world, list5, triCount5, center, width, BOTTOM_LEFT_FRONT);
-			createNewNode(world, list6, triCount6, center, width, BOTTOM_LEFT_BACK);
-			createNewNode(world, list7, triCount7, center, width, BOTTOM_RIGHT_BACK);
-			createNewNode(world, list8, triCount8, center, width, BOTTOM_RIGHT_FRONT);
+			for(int nodeID = TOP_LEFT_FRONT; nodeID <= BOTTOM_RIGHT_FRONT; nodeID++)
+			{
+				createNewNode(world, buffers, nodeFaces, childMasks, numberOfTriangles, level,
+							  triCount[nodeID], center, width, nodeID);
+			}
 		}
 		else
 		{
@@ -584,217 +503,482 @@ public class Octree{
 			// count went below the minimum amount of triangles so we need to store them.
 			
 			// We pass in the current partition of world data to be assigned to this end node
-			assignTrianglesToNode(world, numberOfTriangles);
+			assignTrianglesToNode(world, buffers, nodeFaces, numberOfTriangles);
+		}
+	}
+	
+	// This sets the child bits of each face of a node and counts the faces of each child
+	private static void classifyFaces(Model3d world, int[] firstFace, int[] nodeFaces, int numberOfTriangles,
+									  Vector3f center, byte[] childMasks, int[] triCount)
+	{
+		// The faces are numbered one object after the other, so we can just walk
+		// through the objects as we go through the faces.
+		int objectIndex = 0;
+		
+		for(int f = 0; f < numberOfTriangles; f++)
+		{
+			int faceNumber = nodeFaces[f];
+			while(faceNumber >= firstFace[objectIndex + 1])
+			{
+				objectIndex++;
+			}
+			
+			Object3d object = world.getObject(objectIndex);
+			Face face = object.getFace(faceNumber - firstFace[objectIndex]);
+			
+			// Check every vertex in the current triangle to see which child nodes it's inside
+			int mask = 0;
+			for(int whichVertex = 0; whichVertex < 3; whichVertex++)
+			{
+				mask |= getChildMask(object.getVertices(face.getVertices(whichVertex)), center);
+			}
+			childMasks[f] = (byte)mask;
+			
+			// If the current triangle is in a child node, add 1 to it's count
+			for(int nodeID = 0; nodeID < 8; nodeID++)
+			{
+				triCount[nodeID] += (mask >> nodeID) & 1;
+			}
+		}
+	}
+	
+	// This copies the faces of a node that are in one of its children into childFaces
+	private static void gatherChildFaces(int[] nodeFaces, byte[] childMasks, int numberOfFaces, int nodeID, int[] childFaces)
+	{
+		int bit = 1 << nodeID;
+		int index = 0;
+		
+		for(int f = 0; f < numberOfFaces; f++)
+		{
+			if((childMasks[f] & bit) != 0)
+			{
+				childFaces[index++] = nodeFaces[f];
+			}
 		}
 	}
 	
+	// This returns a bit for each child node of a node centered at center that
+	// has the point inside it.  A point right on the center is in all of them.
+	private static int getChildMask(Vector3f point, Vector3f center)
+	{
+		// The children on each side of the center, with a bit for each nodeID
+		final int left = 0x33, right = 0xCC, top = 0x0F, bottom = 0xF0, front = 0x99, back = 0x66;
+		
+		int x = ((point.x <= center.x) ? left   : 0) | ((point.x >= center.x) ? right : 0);
+		int y = ((point.y >= center.y) ? top    : 0) | ((point.y <= center.y) ? bottom : 0);
+		int z = ((point.z >= center.z) ? front  : 0) | ((point.z <= center.z) ? back : 0);
+		
+		return x & y & z;
+	}
+	
 	///////////////////////////////// CREATE NEW NODE \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\*
 	/////
 	/////	This figures out the new node information and then passes it into CreateNode()
 	/////
 	///////////////////////////////// CREATE NEW NODE \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\*
 	
-	public void createNewNode(Model3d world, Vector<FaceList> listFaces, int triangleCount,
-						  	  Vector3f center, float width, int nodeID)
+	private void createNewNode(Model3d world, BuildBuffers buffers, int[] nodeFaces, byte[] childMasks,
+							   int numberOfFaces, int level, int triangleCount, Vector3f center, float width, int nodeID)
 	{
-		// This function is used as our helper function to partition the world data
-		// to pass into the subdivided nodes.  The same things go on as in the previous
-		// tutorials, but it's dealing with more than just vertices.  We are given
-		// the world data that needs to be partitioned, the list of faces that are in
-		// the new node about to be created, the triangle count, the parent node's center
-		// and width, along with the enum ID that tells us which new node is being created.
-		//
-		// The tFaceList structure stores a vector of booleans, which tell us if that face
-		// index is in our end node (true) or not (false).  It also contains a integer
-		// to tell us how many of those faces (triangles) are "true", or in other words, 
-		// are in our node that is being created.  
+		// This function is used as our helper function to partition the faces to
+		// pass into the subdivided nodes.  We are given the faces of the parent
+		// node with the child bits of each one, the triangle count of the new node,
+		// the parent node's center and width, along with the enum ID that tells us
+		// which new node is being created.
 	
 		// Check if the first node found some triangles in it, if not we don't continue
-		if(triangleCount < 0 || triangleCount == 0) return;
+		if(triangleCount <= 0) return;
 		
-		// Here we create the temporary partitioned data model, which will contain
-		// all the objects and triangles in this end node.
-		Model3d tempWorld = new Model3d();
+		// Go through all of the parent's faces and only take the ones in this new node.
+		// The list for the next level is shared by all the nodes on that level, since
+		// each one is done with it before we get to the next.
+		int[] childFaces = buffers.getFaces(level + 1, triangleCount);
+		gatherChildFaces(nodeFaces, childMasks, numberOfFaces, nodeID, childFaces);
+	
+		// Now comes the initialization of the node.  First we allocate memory for
+		// our node and then get it's center point.  Depending on the nodeID, 
+		// GetNewNodeCenter() knows which center point to pass back (TOP_LEFT_FRONT, etc..)
+	
+		// Allocate a new node for this octree, with the same settings
+		octreeNodes[nodeID] = new Octree(config);
+	
+		// Get the new node's center point depending on the nodexIndex (which of the 8 subdivided cubes).
+		Vector3f nodeCenter = getNewNodeCenter(center, width, nodeID);
 	
-		// Intialize the temp model data and assign the object count to it
+		// Recurse through this node and subdivide it if necessary.  The level is
+		// passed down so the node knows how many subdivisions are above it.
+		octreeNodes[nodeID].createNode(world, buffers, childFaces, level + 1, triangleCount, nodeCenter, width / 2);
+	}
+	
+	// These are the face lists used while building the tree.  Every face of the
+	// world is numbered, counting the faces of one object after the other, and the
+	// faces of a node are kept as an array of those numbers in order.  There is
+	// one array for each level of the tree, which is reused by all the nodes on
+	// that level, so building a node doesn't allocate anything but the node.
+	private static class BuildBuffers
+	{
+		// The number of the first face of each object, and the face count at the end
+		public final int[] firstFace;
+		
+		// The object the end nodes use for the objects they have no faces of
+		public final Object3d emptyObject;
 		
-		tempWorld.setNumOfObjects(world.getNumOfObjects());
+		// The faces of the node being built on each level
+		private int[][] faces;
 		
+		// The child nodes each of those faces is in, a bit for each nodeID
+		private byte[][] childMasks;
+		
+		public BuildBuffers(Model3d world)
+		{
+			firstFace = new int[world.getNumOfObjects() + 1];
 			
-		// Go through all of the objects in the current partition passed in
-		for(int i = 0; i < world.getNumOfObjects(); i++)
+			for(int i = 0; i < world.getNumOfObjects(); i++)
+			{
+				firstFace[i + 1] = firstFace[i] + world.getObject(i).getNumFaces();
+			}
+			
+			emptyObject = new Object3d();
+			emptyObject.startIndices(0);
+			
+			faces = new int[8][];
+			childMasks = new byte[8][];
+		}
+		
+		// This makes buffers of its own for another thread, numbering the faces the same way
+		public BuildBuffers(BuildBuffers buffers)
 		{
-			// Get a pointer to the current object to avoid ugly code
-			Object3d pObject = world.getObject(i);
-	
-			// Create a new object, initialize it, then add it to our temp partition
-			Object3d newObject = new Object3d();
+			firstFace = buffers.firstFace;
+			emptyObject = buffers.emptyObject;
 			
-			tempWorld.addObject(newObject);
-	
-			// Assign the new node's face count, material ID, texture boolean and 
-			// vertices to the new object.  Notice that it's not that pObject's face
-			// count, but the pList's.  Also, we are just assigning the pointer to the
-			// vertices, not copying them.
-			//pTempWorld->pObject[i].numOfFaces  = pList[i].totalFaceCount;
-			tempWorld.getObject(i).setNumFaces(listFaces.get(i).totalFaceCount);
-			//pTempWorld->pObject[i].materialID  = pObject->materialID;
-			tempWorld.getObject(i).setMaterialID(pObject.getMaterialID());
-			//pTempWorld->pObject[i].bHasTexture = pObject->bHasTexture;
-			tempWorld.getObject(i).setbHasTexture(pObject.isbHasTexture());
-			//pTempWorld->pObject[i].pVerts      = pObject->pVerts;
-			tempWorld.getObject(i).setVertices(pObject.getVertices());
-	
-			// Allocate memory for the new face list
-			//pTempWorld->pObject[i].pFaces = new tFace [pTempWorld->pObject[i].numOfFaces];
+			faces = new int[8][];
+			childMasks = new byte[8][];
+		}
+		
+		// This returns the face list of a level with room for size faces
+		public int[] getFaces(int level, int size)
+		{
+			if(level >= faces.length)
+			{
+				faces = Arrays.copyOf(faces, level * 2);
+			}
 			
-			// Create a counter to count the current index of the new node vertices
-			int index = 0;
-	
-			// Go through all of the current object's faces and only take the ones in this new node
-			for(int j = 0; j < pObject.getNumFaces(); j++)
+			if(faces[level] == null || faces[level].length < size)
 			{
-				// If this current triangle is in the node, assign it's index to our new face list
-				if(listFaces.get(i).faceList.get(j))	
-				{
-					//pTempWorld->pObject[i].pFaces[index] = pObject->pFaces[j];
-					tempWorld.getObject(i).setFaces(index, pObject.getFace(j));
-					index++;
-				}
+				faces[level] = new int[size];
+			}
+			
+			return faces[level];
+		}
+		
+		// This returns the child bits of a level with room for size faces
+		public byte[] getChildMasks(int level, int size)
+		{
+			if(level >= childMasks.length)
+			{
+				childMasks = Arrays.copyOf(childMasks, level * 2);
 			}
+			
+			if(childMasks[level] == null || childMasks[level].length < size)
+			{
+				childMasks[level] = new byte[size];
+			}
+			
+			return childMasks[level];
 		}
+	}
 	
-		// Now comes the initialization of the node.  First we allocate memory for
-		// our node and then get it's center point.  Depending on the nodeID, 
-		// GetNewNodeCenter() knows which center point to pass back (TOP_LEFT_FRONT, etc..)
 	
-		// Allocate a new node for this octree
-		octreeNodes[nodeID] = new Octree();
 	
-		// Get the new node's center point depending on the nodexIndex (which of the 8 subdivided cubes).
-		Vector3f nodeCenter = getNewNodeCenter(center, width, nodeID);
+	// This builds a node and everything under it on a ForkJoin pool.  Each child
+	// gets a list of its faces of its own, since the children are built at the
+	// same time and can't share the lists of a level.
+	private static class BuildTask extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+		
+		private final Octree node;
+		private final Model3d world;
+		private final BuildBuffers buffers;
+		private final int[] nodeFaces;
+		private final int level;
+		private final int numberOfTriangles;
+		private final Vector3f center;
+		private final float width;
+		
+		public BuildTask(Octree node, Model3d world, BuildBuffers buffers, int[] nodeFaces, int level,
+						 int numberOfTriangles, Vector3f center, float width)
+		{
+			this.node = node;
+			this.world = world;
+			this.buffers = buffers;
+			this.nodeFaces = nodeFaces;
+			this.level = level;
+			this.numberOfTriangles = numberOfTriangles;
+			this.center = center;
+			this.width = width;
+		}
+		
+		protected void compute()
+		{
+			// Small nodes, and the ones that won't be subdivided, are just built here
+			OctreeConfig config = node.config;
+			if(numberOfTriangles <= PARALLEL_TRIANGLES || numberOfTriangles <= config.getMaxTriangles()
+			   || level >= config.getMaxSubdivisions())
+			{
+				node.createNode(world, buffers, nodeFaces, level, numberOfTriangles, center, width);
+				return;
+			}
 			
-		// Below, before and after we recurse further down into the tree, we keep track
-		// of the level of subdivision that we are in.  This way we can restrict it.
-	
-		// Increase the current level of subdivision
-		currentSubdivision++;
-	
-		// This chance is just that we pass in the temp partitioned world for this node,
-		// instead of passing in just straight vertices.
+			// This is the same as CreateNode(), only the children are built side by side
+			node.centerNode.setTo(center);
+			node.sizeWidth = width;
+			node.subDivided = true;
+			
+			byte[] childMasks = new byte[numberOfTriangles];
+			int[] triCount = new int[8];
+			
+			classifyFaces(world, buffers.firstFace, nodeFaces, numberOfTriangles, center, childMasks, triCount);
+			
+			ArrayList<BuildTask> tasks = new ArrayList<BuildTask>();
+			
+			for(int nodeID = TOP_LEFT_FRONT; nodeID <= BOTTOM_RIGHT_FRONT; nodeID++)
+			{
+				if(triCount[nodeID] <= 0) continue;
+				
+				int[] childFaces = new int[triCount[nodeID]];
+				gatherChildFaces(nodeFaces, childMasks, numberOfTriangles, nodeID, childFaces);
+				
+				node.octreeNodes[nodeID] = new Octree(config);
+				tasks.add(new BuildTask(node.octreeNodes[nodeID], world, new BuildBuffers(buffers), childFaces, level + 1,
+										triCount[nodeID], node.getNewNodeCenter(center, width, nodeID), width / 2));
+			}
+			
+			invokeAll(tasks);
+		}
+	}
 	
-		// Recurse through this node and subdivide it if necessary
-		octreeNodes[nodeID].createNode(tempWorld, triangleCount, nodeCenter, width / 2);
+	// This goes through the nodes in the order they are created when building on
+	// one thread.  Each node adds it's box to our debug rectangle list so we can
+	// visualize it, and the end nodes get their display list IDs.
+	private void addNodesInOrder(Octree node)
+	{
+		debug.createBoundingBox(node.centerNode, node.sizeWidth, node.sizeWidth, node.sizeWidth);
+		
+		if(node.isSubDivided())
+		{
+			for(int nodeID = TOP_LEFT_FRONT; nodeID <= BOTTOM_RIGHT_FRONT; nodeID++)
+			{
+				if(node.octreeNodes[nodeID] != null)
+				{
+					addNodesInOrder(node.octreeNodes[nodeID]);
+				}
+			}
+		}
+		else
+		{
+			// Assign the current display list ID to be the current end node count
+			node.displayListID = endNodeCount;
+		
+			// Increase the amount of end nodes created (Nodes with vertices stored)
+			endNodeCount++;
+		}
+	}
 	
-		// Decrease the current level of subdivision
-		currentSubdivision--;
 	
-		// To free the temporary partition, we just go through all of it's objects and
-		// free the faces.  The rest of the dynamic data was just being pointed too and
-		// does not to be deleted.  Finally, we delete the allocated pTempWorld.
 	
+	// This makes the box around the triangles of node and the nodes under it.  An
+	// end node goes through it's faces, the others just take in their children's boxes.
+	private void findTriangleBounds(Octree node, Model3d world)
+	{
+		float[] bounds = new float[] {Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE,
+									  -Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE};
+		node.triangleBounds = bounds;
+		
+		if(node.isSubDivided())
+		{
+			for(int nodeID = TOP_LEFT_FRONT; nodeID <= BOTTOM_RIGHT_FRONT; nodeID++)
+			{
+				Octree child = node.octreeNodes[nodeID];
+				if(child == null)
+				{
+					continue;
+				}
+				
+				findTriangleBounds(child, world);
+				for(int i = 0; i < 3; i++)
+				{
+					bounds[i] = Math.min(bounds[i], child.triangleBounds[i]);
+					bounds[i + 3] = Math.max(bounds[i + 3], child.triangleBounds[i + 3]);
+				}
+			}
+			return;
+		}
+		
+		if(node.faceNumbers == null)
+		{
+			return;
+		}
+		
+		int objectIndex = 0;
 		
-		// Delete the allocated partition
-		tempWorld = null;
+		for(int i = 0; i < node.faceNumbers.length; i++)
+		{
+			int faceNumber = node.faceNumbers[i];
+			while(faceNumber >= firstFace[objectIndex + 1])
+			{
+				objectIndex++;
+			}
+			
+			Object3d object = world.getObject(objectIndex);
+			Face face = object.getFace(faceNumber - firstFace[objectIndex]);
+			
+			for(int whichVertex = 0; whichVertex < 3; whichVertex++)
+			{
+				Vector3f vertex = object.getVertices(face.getVertices(whichVertex));
+				
+				bounds[0] = Math.min(bounds[0], vertex.x);
+				bounds[1] = Math.min(bounds[1], vertex.y);
+				bounds[2] = Math.min(bounds[2], vertex.z);
+				bounds[3] = Math.max(bounds[3], vertex.x);
+				bounds[4] = Math.max(bounds[4], vertex.y);
+				bounds[5] = Math.max(bounds[5], vertex.z);
+			}
+		}
 	}
 	
-	
-	
 	////////////////////////////ASSIGN TRIANGLES TO NODE \\\\\\\\\\\\\\\\\\\\\\\\\\\*
 	/////
 	/////	This allocates memory for the face indices to assign to the current end node
 	/////
 	////////////////////////////ASSIGN TRIANGLES TO NODE \\\\\\\\\\\\\\\\\\\\\\\\\\\*
 
-	public void assignTrianglesToNode(Model3d tempWorld, int numberOfTriangles)
+	private void assignTrianglesToNode(Model3d rootWorld, BuildBuffers buffers, int[] nodeFaces, int numberOfTriangles)
 	{
-		// We take our pWorld partition and then copy it into our member variable
-		// face list, m_pWorld.  This holds the face indices that need to be rendered.
-		// Since we are using vertex arrays, we can't use the tFace structure for the
-		// indices, so we need to create an array that has all the face indices in a row.
-		// This will be stored in our pIndices array, which is of type unsigned int.
-		// Remember, it must be unsigned int for vertex arrays to register it.
-	
+		// We take the faces of this node straight from the root world by their
+		// numbers and copy them into our member variable face list, m_pWorld.
+		// This holds the face indices that need to be rendered.  Since we are using
+		// vertex arrays, we also create an array that has all the face indices in a row.
+		
 		// Since we did not subdivide this node we want to set our flag to false
 		subDivided = false;
 	
 		// Initialize the triangle count of this end node 
 		setTriangleCount(numberOfTriangles);
+		
+		// Keep the face numbers too, so the collision tests can go through them
+		// without looking at every object of the world
+		faceNumbers = Arrays.copyOf(nodeFaces, numberOfTriangles);
 	
 		// Create and init an instance of our model structure to store the face index information
 		world = new Model3d();
 		
 		// Assign the number of objects to our face index list
-		world.setNumOfObjects(tempWorld.getNumOfObjects());
+		world.setNumOfObjects(rootWorld.getNumOfObjects());
+		
+		// The faces are in order, so the ones of each object come one after the other
+		int f = 0;
 	
-		// Go through all of the objects in the partition that was passed in
+		// Go through all of the objects in the root world
 		for(int i = 0; i < world.getNumOfObjects(); i++)
 		{
-			// Create a pointer to the current object
-			Object3d pObject = tempWorld.getObject(i);
-	
-			// Create and init a new object to hold the face index information
-			Object3d newObject = new Object3d();
+			Object3d rootObject = rootWorld.getObject(i);
 			
-			// If this object has face information, add it's index to our object index list
-			if(pObject.getNumFaces() > 0)
+			// Gather this object's faces that are in the node
+			ArrayList<Face> faces = new ArrayList<Face>();
+			while(f < numberOfTriangles && nodeFaces[f] < buffers.firstFace[i + 1])
 			{
-				addObjectIndexToList(i);
+				faces.add(rootObject.getFace(nodeFaces[f] - buffers.firstFace[i]));
+				f++;
 			}
-	
-			// Add our new object to our face index list
-			world.addObject(newObject);
-	
+			
 			// Store the number of faces in a local variable
-			int numOfFaces = pObject.getNumFaces();
+			int numOfFaces = faces.size();
 	
-			// Assign the number of faces to this current face list
-			world.getObject(i).setNumFaces(numOfFaces);
-	
-			//Remember, we also have faces indices
-			// in a row, pIndices, which can be used to pass in for vertex arrays.  
-					
-			world.getObject(i).startIndices(numOfFaces * 3);
+			// Most objects have no faces in a given end node.  They all share the
+			// same empty object, so the nodes don't cost a whole object for each one.
+			if(numOfFaces == 0)
+			{
+				world.addObject(buffers.emptyObject);
+				continue;
+			}
+			
+			// This object has face information, so add it's index to our object index list
+			addObjectIndexToList(i);
 	
-			// Initialize the face indices for vertex arrays (are copied below
-			//memset(m_pWorld->pObject[i].pIndices, 0, sizeof(UINT) * numOfFaces * 3);
+			// Create and init a new object to hold the face index information
+			// and add it to our face index list
+			Object3d newObject = new Object3d();
+			world.addObject(newObject);
 	
-			// Copy the faces from the partition passed in to our end nodes face index list
-			//memcpy(m_pWorld->pObject[i].pFaces, pObject->pFaces, sizeof(tFace) * numOfFaces);
-			world.getObject(i).setFaces(pObject.getFace());
+			// Assign the number of faces and the faces to this current face list
+			newObject.setNumFaces(numOfFaces);
+			newObject.setFaces(faces);
 			
-			// Since we are using vertex arrays, we want to create a array with all of the
-			// faces in a row.  That way we can pass it into glDrawElements().  We do this below.
-	
-			// Go through all the faces and assign them in a row to our pIndices array
+			// Go through all the faces and assign them in a row to our indices array
+			newObject.startIndices(numOfFaces * 3);
 			for(int j = 0; j < numOfFaces * 3; j += 3)
 			{
-				//m_pWorld->pObject[i].pIndices[j]     = m_pWorld->pObject[i].pFaces[j / 3].vertIndex[0];
-				world.getObject(i).setIndices(j, world.getObject(i).getFace(j / 3).getVertices(0));
-				//m_pWorld->pObject[i].pIndices[j + 1] = m_pWorld->pObject[i].pFaces[j / 3].vertIndex[1];
-				world.getObject(i).setIndices(j + 1, world.getObject(i).getFace(j / 3).getVertices(1));
-				//m_pWorld->pObject[i].pIndices[j + 2] = m_pWorld->pObject[i].pFaces[j / 3].vertIndex[2];
-				world.getObject(i).setIndices(j + 2, world.getObject(i).getFace(j / 3).getVertices(2));
+				newObject.setIndices(j,     faces.get(j / 3).getVertices(0));
+				newObject.setIndices(j + 1, faces.get(j / 3).getVertices(1));
+				newObject.setIndices(j + 2, faces.get(j / 3).getVertices(2));
 			}
-	
-			// We can now free the pFaces list if we want since it isn't going to be used from here
-			// on out.  If you do NOT want to use vertex arrays, don't free the pFaces, and get
-			// rid of the loop up above to store the pIndices.
-	
-			/* NOTE ******************************************************/
-			/* Don't delete these. We use the faces to check collisions. */
-			//delete [] m_pWorld->pObject[i].pFaces;
-			//m_pWorld->pObject[i].pFaces = NULL;
-			/* NOTE ******************************************************/
 		}
+		
+		// Sort the indices by material, for drawing
+		buildDrawRanges(rootWorld);
+		
+		// The display list ID is given out once the whole tree is built
+	}
 	
-		// Assign the current display list ID to be the current end node count
-		displayListID = totalNodesCount;
-	
-		// Increase the amount of end nodes created (Nodes with vertices stored)
-		totalNodesCount++;
+	// This puts the indices of all the objects of this end node in one buffer,
+	// the objects with the same material one after the other
+	private void buildDrawRanges(Model3d rootWorld)
+	{
+		int numOfObjects = objectList.size();
+		
+		// Sort the objects by their material.  There are only a few in each node, and
+		// the ones with the same material stay in the order they are in the world.
+		int[] order = new int[numOfObjects];
+		for(int i = 0; i < numOfObjects; i++)
+		{
+			int object = objectList.get(i);
+			int material = rootWorld.getObject(object).getMaterialID();
+			
+			int j = i;
+			while(j > 0 && rootWorld.getObject(order[j - 1]).getMaterialID() > material)
+			{
+				order[j] = order[j - 1];
+				j--;
+			}
+			order[j] = object;
+		}
+		
+		// Then copy their indices in that order, and keep where each object's run is
+		int[] indices = new int[triangleCount * 3];
+		drawRanges = new int[numOfObjects * 4];
+		int first = 0;
+		
+		for(int i = 0; i < numOfObjects; i++)
+		{
+			Object3d object = world.getObject(order[i]);
+			int count = object.getIndices().size();
+			
+			for(int j = 0; j < count; j++)
+			{
+				indices[first + j] = object.getIndices(j);
+			}
+			
+			drawRanges[i * 4]     = rootWorld.getObject(order[i]).getMaterialID();
+			drawRanges[i * 4 + 1] = order[i];
+			drawRanges[i * 4 + 2] = first;
+			drawRanges[i * 4 + 3] = count;
+			first += count;
+		}
+		
+		drawIndices = Conversion.allocInts(indices);
 	}
-
+	
 	////////////////////////////ADD OBJECT INDEX TO LIST \\\\\\\\\\\\\\\\\\\\\\\\\\\*
 	/////
 	/////	This adds the index into the model's object list to our object index list
@@ -827,7 +1011,7 @@ public class Octree{
 	/////
 	////////////////////////////////DRAW OCTREE \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\*
 	
-	public void drawOctree(Octree node, Model3d pRootWorld)
+	public void drawOctree(Octree node, Model3d pRootWorld, OctreeStats stats)
 	{
 		// To draw our octree, all that needs to be done is call our display list ID.
 		// First we want to check if the current node is even in our frustum.  If it is,
@@ -847,19 +1031,19 @@ public class Octree{
 		{
 			// Recurse to the bottom of these nodes and draw the end node's vertices
 			// Like creating the octree, we need to recurse through each of the 8 nodes.
-			drawOctree(node.octreeNodes[TOP_LEFT_FRONT],		pRootWorld);
-			drawOctree(node.octreeNodes[TOP_LEFT_BACK],			pRootWorld);
-			drawOctree(node.octreeNodes[TOP_RIGHT_BACK],		pRootWorld);
-			drawOctree(node.octreeNodes[TOP_RIGHT_FRONT],		pRootWorld);
-			drawOctree(node.octreeNodes[BOTTOM_LEFT_FRONT],		pRootWorld);
-			drawOctree(node.octreeNodes[BOTTOM_LEFT_BACK],		pRootWorld);
-			drawOctree(node.octreeNodes[BOTTOM_RIGHT_BACK],		pRootWorld);
-			drawOctree(node.octreeNodes[BOTTOM_RIGHT_FRONT],	pRootWorld);
+			drawOctree(node.octreeNodes[TOP_LEFT_FRONT],		pRootWorld, stats);
+			drawOctree(node.octreeNodes[TOP_LEFT_BACK],			pRootWorld, stats);
+			drawOctree(node.octreeNodes[TOP_RIGHT_BACK],		pRootWorld, stats);
+			drawOctree(node.octreeNodes[TOP_RIGHT_FRONT],		pRootWorld, stats);
+			drawOctree(node.octreeNodes[BOTTOM_LEFT_FRONT],		pRootWorld, stats);
+			drawOctree(node.octreeNodes[BOTTOM_LEFT_BACK],		pRootWorld, stats);
+			drawOctree(node.octreeNodes[BOTTOM_RIGHT_BACK],		pRootWorld, stats);
+			drawOctree(node.octreeNodes[BOTTOM_RIGHT_FRONT],	pRootWorld, stats);
 		}
 		else
 		{
 			// Increase the amount of nodes in our viewing frustum (camera's view)
-			totalNodesDrawn++;
+			stats.addNodeDrawn();
 	
 			// Make sure we have valid data assigned to this node
 			if(node.world == null) return;
@@ -869,6 +1053,112 @@ public class Octree{
 		}
 	}
 
+	////////////////////////////////FIND VISIBLE NODES \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\*
+	/////
+	/////	This finds the end nodes in the frustum, from the closest to the eye to the furthest
+	/////
+	////////////////////////////////FIND VISIBLE NODES \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\*
+	
+	public int findVisibleNodes(Frustum frustum, Vector3f eye, VisibleNodes visible)
+	{
+		// drawOctree() tests every node against all 6 sides of the frustum, and draws
+		// the children in the same order whatever way we look.  Here we go into the
+		// children closest to the eye first, so the end nodes come out front to back,
+		// and the graphics card can skip the pixels behind what is already drawn.
+		// Each node only tests the sides of the frustum it's parent crossed, since if
+		// the parent is all in front of a side, so are it's children.  Once a node is
+		// all in the frustum, nothing under it is tested at all.
+		visible.clear();
+		findVisibleNodes(this, frustum, eye, Frustum.ALL_PLANES, 0, visible);
+		
+		return visible.getNumOfNodes();
+	}
+	
+	private void findVisibleNodes(Octree node, Frustum frustum, Vector3f eye, int planes, int level, VisibleNodes visible)
+	{
+		// Test the node against the sides that are left, and keep the ones it crosses
+		if(planes != 0)
+		{
+			planes = frustum.classifyCube(node.centerNode.x, node.centerNode.y, node.centerNode.z, node.sizeWidth / 2, planes);
+			
+			if(planes == Frustum.OUTSIDE)
+			{
+				return;
+			}
+		}
+		
+		if(!node.isSubDivided())
+		{
+			visible.add(node, distanceSquared(node.centerNode, eye));
+			return;
+		}
+		
+		// Sort the children by how far their centers are from the eye.  They are all
+		// the same size, so the closer one can be in front of the further one, but
+		// never the other way around.
+		visible.ensureLevels(level + 1);
+		int base = level * 8;
+		int numOfChildren = 0;
+		
+		for(int nodeID = TOP_LEFT_FRONT; nodeID <= BOTTOM_RIGHT_FRONT; nodeID++)
+		{
+			Octree child = node.octreeNodes[nodeID];
+			if(child == null)
+			{
+				continue;
+			}
+			
+			float distance = distanceSquared(child.centerNode, eye);
+			int j = base + numOfChildren;
+			while(j > base && visible.childDistances[j - 1] > distance)
+			{
+				visible.childOrder[j] = visible.childOrder[j - 1];
+				visible.childDistances[j] = visible.childDistances[j - 1];
+				j--;
+			}
+			visible.childOrder[j] = nodeID;
+			visible.childDistances[j] = distance;
+			numOfChildren++;
+		}
+		
+		for(int i = 0; i < numOfChildren; i++)
+		{
+			findVisibleNodes(node.octreeNodes[visible.childOrder[base + i]], frustum, eye, planes, level + 1, visible);
+		}
+	}
+	
+	private static float distanceSquared(Vector3f a, Vector3f b)
+	{
+		float x = a.x - b.x;
+		float y = a.y - b.y;
+		float z = a.z - b.z;
+		
+		return x * x + y * y + z * z;
+	}
+	
+	////////////////////////////////DRAW VISIBLE NODES \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\*
+	/////
+	/////	This draws the end nodes findVisibleNodes() found, in the order they are in
+	/////
+	////////////////////////////////DRAW VISIBLE NODES \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\*
+	
+	public void drawVisibleNodes(VisibleNodes visible, OctreeStats stats)
+	{
+		for(int i = 0; i < visible.getNumOfNodes(); i++)
+		{
+			Octree node = visible.getNode(i);
+			
+			// Increase the amount of nodes in our viewing frustum (camera's view)
+			stats.addNodeDrawn();
+			
+			// Make sure we have valid data assigned to this node
+			if(node.world == null) continue;
+			
+			// Call the list with our end node's display list ID
+			glCallList(node.displayListID);
+		}
+	}
+
 	////////////////////////////////CREATE DISPLAY LIST \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\*
 	/////
 	/////	This function recurses through all the nodes and creates a display list for them
@@ -922,18 +1212,19 @@ public class Octree{
 			int counter = 0;
 			
 			// Store the object count and material count in some local variables for optimization
-			int objectCount = node.objectList.size();
+			int objectCount = node.drawRanges.length / 4;
 			int materialCount = rootWorld.getNumOfMaterials();
 	
-			// Go through all of the objects that are in our end node
+			// Go through all of the objects that are in our end node.  We go through
+			// them sorted by material, so the objects that use the same texture are
+			// drawn one after the other.
 			while(counter < objectCount)
 			{
-				// Get the first object index into our root world
-				int i = node.objectList.get(counter);
+				// Get the object index into our root world
+				int i = node.drawRanges[counter * 4 + 1];
 	
-				// Store pointers to the current face list and the root object 
-				// that holds all the data (verts, texture coordinates, normals, etc..)
-				Object3d object     = node.world.getObject(i);
+				// Store a pointer to the root object that holds all the
+				// data (verts, texture coordinates, normals, etc..)
 				Object3d rootObject = rootWorld.getObject(i);
 	
 				// Check to see if this object has a texture map, if so, bind the texture to it.
@@ -1089,16 +1380,13 @@ public class Octree{
 	
 				// Here we pass in the indices that need to be rendered.  We want to
 				// render them in triangles, with numOfFaces * 3 for indice count,
-				// and the indices are of type UINT (important).
-				int[] temp = new int[object.getIndices().size()]; 
-				for(int a=0; a < object.getIndices().size(); a++)
-				{
-					temp[a] = object.getIndices(a);
-					
-				}
-				
-				IntBuffer temp1 = Conversion.allocInts(temp);
-				glDrawElements(GL_TRIANGLES, temp1);
+				// and the indices are of type UINT (important).  This object's indices
+				// are one run of the node's index buffer, so we just point at that run.
+				int first = node.drawRanges[counter * 4 + 2];
+				node.drawIndices.limit(first + node.drawRanges[counter * 4 + 3]);
+				node.drawIndices.position(first);
+				glDrawElements(GL_TRIANGLES, node.drawIndices);
+				node.drawIndices.clear();
 				
 				// Increase the current object count rendered
 				counter++;
@@ -1116,7 +1404,7 @@ public class Octree{
 	//	[in]	vLine			The Line to check intersection for.
 	//	[in]	vIntersectionPt	The Point at which the line intersected.
 	//	[return]		Wheter there was an intersection or not.
-	public boolean intersectLineWithOctree(Octree node, Model3d world, Vector3f line[], Vector3f intersectionPoint )
+	public boolean intersectLineWithOctree(Octree node, Model3d world, Vector3f line[], Vector3f intersectionPoint, OctreeStats stats)
 	{
 		// If the passed in node is invalid, leave.
 		if ( node == null )
@@ -1153,21 +1441,21 @@ public class Octree{
 		{
 			// Lots of Logic Tests, but with a purpose. If ANY node comes back saying there was a collision in it or one
 			// of it's sub-nodes, return immediately without checking anymore nodes. This echos back recursivly to the root.
-			if ( intersectLineWithOctree( node.octreeNodes[TOP_LEFT_FRONT], world, line, intersectionPoint ) )
+			if ( intersectLineWithOctree( node.octreeNodes[TOP_LEFT_FRONT], world, line, intersectionPoint, stats ) )
 				return true;
-			if ( intersectLineWithOctree( node.octreeNodes[TOP_LEFT_BACK], world, line, intersectionPoint ) )
+			if ( intersectLineWithOctree( node.octreeNodes[TOP_LEFT_BACK], world, line, intersectionPoint, stats ) )
 				return true;
-			if ( intersectLineWithOctree( node.octreeNodes[TOP_RIGHT_BACK], world, line, intersectionPoint ) )
+			if ( intersectLineWithOctree( node.octreeNodes[TOP_RIGHT_BACK], world, line, intersectionPoint, stats ) )
 				return true;
-			if ( intersectLineWithOctree( node.octreeNodes[TOP_RIGHT_FRONT], world, line, intersectionPoint ) )
+			if ( intersectLineWithOctree( node.octreeNodes[TOP_RIGHT_FRONT], world, line, intersectionPoint, stats ) )
 				return true;
-			if ( intersectLineWithOctree( node.octreeNodes[BOTTOM_LEFT_FRONT], world, line, intersectionPoint ) )
+			if ( intersectLineWithOctree( node.octreeNodes[BOTTOM_LEFT_FRONT], world, line, intersectionPoint, stats ) )
 				return true;
-			if ( intersectLineWithOctree( node.octreeNodes[BOTTOM_LEFT_BACK], world, line, intersectionPoint ) )
+			if ( intersectLineWithOctree( node.octreeNodes[BOTTOM_LEFT_BACK], world, line, intersectionPoint, stats ) )
 				return true;
-			if ( intersectLineWithOctree( node.octreeNodes[BOTTOM_RIGHT_BACK], world, line, intersectionPoint ) )
+			if ( intersectLineWithOctree( node.octreeNodes[BOTTOM_RIGHT_BACK], world, line, intersectionPoint, stats ) )
 				return true;
-			if ( intersectLineWithOctree( node.octreeNodes[BOTTOM_RIGHT_FRONT], world, line, intersectionPoint ) )
+			if ( intersectLineWithOctree( node.octreeNodes[BOTTOM_RIGHT_FRONT], world, line, intersectionPoint, stats ) )
 				return true;
 		}
 		else
@@ -1177,7 +1465,7 @@ public class Octree{
 				return false;
 	
 			// Increment the Count of how many collisions with terminal Nodes we have encountered.
-			numNodesCollided++;
+			stats.addNodeCollided();
 	
 			Vector3f[] tempFace = new Vector3f[3];
 			int i, j, k;
@@ -1204,7 +1492,7 @@ public class Octree{
 					// If we had a Line to Polygon Intersection, return true, which should echo down to the root function call.
 					if ( collision.intersectedPolygon( tempFace, line, 3, intersectionPoint ) )
 					{
-						setObjectColliding(true);
+						stats.setObjectColliding(true);
 						return true;
 					}
 				}
@@ -1215,7 +1503,7 @@ public class Octree{
 		return false;
 	}
 
-	public boolean checkCameraCollision(Octree node, Model3d world, Camera camera)
+	public boolean checkCameraCollision(Octree node, Model3d world, Camera camera, OctreeStats stats)
 	{	
 		// This function is pretty much a direct rip off of SpherePolygonCollision()
 		// We needed to tweak it a bit though, to handle the collision detection once 
@@ -1264,22 +1552,22 @@ public class Octree{
 		{
 			// Lots of Logic Tests, but with a purpose. If ANY node comes back saying there was a collision in it or one
 			// of it's sub-nodes, return immediately without checking anymore nodes. This echos back recursivly to the root.
-			if (checkCameraCollision( node.octreeNodes[TOP_LEFT_FRONT], world, camera))
+			if (checkCameraCollision( node.octreeNodes[TOP_LEFT_FRONT], world, camera, stats ))
 				return true;
-			if (checkCameraCollision( node.octreeNodes[TOP_LEFT_BACK], world, camera))
+			if (checkCameraCollision( node.octreeNodes[TOP_LEFT_BACK], world, camera, stats ))
 				return true;
 				
-			if (checkCameraCollision( node.octreeNodes[TOP_RIGHT_BACK], world, camera ))
+			if (checkCameraCollision( node.octreeNodes[TOP_RIGHT_BACK], world, camera, stats ))
 				return true;
-			if (checkCameraCollision( node.octreeNodes[TOP_RIGHT_FRONT], world, camera ))
+			if (checkCameraCollision( node.octreeNodes[TOP_RIGHT_FRONT], world, camera, stats ))
 				return true;
-			if (checkCameraCollision( node.octreeNodes[BOTTOM_LEFT_FRONT], world, camera ))
+			if (checkCameraCollision( node.octreeNodes[BOTTOM_LEFT_FRONT], world, camera, stats ))
 				return true;
-			if (checkCameraCollision( node.octreeNodes[BOTTOM_LEFT_BACK], world, camera ))
+			if (checkCameraCollision( node.octreeNodes[BOTTOM_LEFT_BACK], world, camera, stats ))
 				return true;
-			if (checkCameraCollision( node.octreeNodes[BOTTOM_RIGHT_BACK], world, camera ))
+			if (checkCameraCollision( node.octreeNodes[BOTTOM_RIGHT_BACK], world, camera, stats ))
 				return true;
-			if (checkCameraCollision( node.octreeNodes[BOTTOM_RIGHT_FRONT], world, camera ))
+			if (checkCameraCollision( node.octreeNodes[BOTTOM_RIGHT_FRONT], world, camera, stats ))
 				return true;
 		}
 		else
@@ -1289,7 +1577,7 @@ public class Octree{
 				return false;
 	
 			// Increment the Count of how many collisions with terminal Nodes we have encountered.
-			numNodesCollided++;
+			stats.addNodeCollided();
 	
 			Vector3f[] tempFace = new Vector3f[3];
 			Vector3f normal = new Vector3f();
@@ -1366,7 +1654,7 @@ public class Octree{
 							camera.setPosition(VectorMath.add(camera.getPosition(), offset));
 							camera.setView(VectorMath.add(camera.getView(), offset));
 							
-							setObjectColliding(true);
+							stats.setObjectColliding(true);
 							return true;
 						}
 					}
@@ -1380,6 +1668,219 @@ public class Octree{
 		
 	}
 
+	/////////////////////////////// FIND SPHERE CONTACTS \\\\\\\\\\\\\\\\*
+	/////
+	/////	This finds every triangle of the world that the sphere touches and writes
+	/////	them in contacts.  It returns how many there were.
+	/////
+	/////////////////////////////// FIND SPHERE CONTACTS \\\\\\\\\\\\\\\\*
+	
+	public int findSphereContacts(Model3d world, float x, float y, float z, float radius, SphereContacts contacts)
+	{
+		// checkCameraCollision() makes new vectors for every node and triangle it
+		// looks at, and stops at the first triangle it hits.  This one only works
+		// with floats, and keeps everything it needs in contacts, so we can call it
+		// for many spheres every frame without giving the garbage collector any work.
+		// It must be called on the root, with the world the tree was built from.
+		contacts.begin(firstFace[firstFace.length - 1]);
+		
+		findSphereContacts(this, world, x, y, z, radius, contacts);
+		
+		return contacts.getNumOfContacts();
+	}
+	
+	private void findSphereContacts(Octree node, Model3d world, float x, float y, float z, float radius,
+									SphereContacts contacts)
+	{
+		// A triangle is kept in every node one of it's corners is in, so it can
+		// stick out of the node's cube by more than any fixed amount.  We test the
+		// box around the triangles the node really has instead, which always holds them.
+		if(octreeCollisionDetection)
+		{
+			float[] bounds = node.triangleBounds;
+			float dx = Math.max(Math.max(bounds[0] - x, x - bounds[3]), 0);
+			float dy = Math.max(Math.max(bounds[1] - y, y - bounds[4]), 0);
+			float dz = Math.max(Math.max(bounds[2] - z, z - bounds[5]), 0);
+			
+			if(dx * dx + dy * dy + dz * dz > radius * radius)
+			{
+				return;
+			}
+		}
+		
+		if(node.isSubDivided())
+		{
+			// The children with no triangles were never made
+			for(int i = 0; i < 8; i++)
+			{
+				if(node.octreeNodes[i] != null)
+				{
+					findSphereContacts(node.octreeNodes[i], world, x, y, z, radius, contacts);
+				}
+			}
+			return;
+		}
+		
+		if(node.faceNumbers == null)
+		{
+			return;
+		}
+		
+		contacts.addNodeTested();
+		
+		// The face numbers are in order, so we move through the objects as we go
+		int objectIndex = 0;
+		float[] closest = contacts.closest;
+		
+		for(int i = 0; i < node.faceNumbers.length; i++)
+		{
+			int faceNumber = node.faceNumbers[i];
+			
+			// Skip the triangles we already tested in another node
+			if(!contacts.markFace(faceNumber))
+			{
+				continue;
+			}
+			
+			while(faceNumber >= firstFace[objectIndex + 1])
+			{
+				objectIndex++;
+			}
+			
+			Object3d object = world.getObject(objectIndex);
+			int faceIndex = faceNumber - firstFace[objectIndex];
+			Face face = object.getFace(faceIndex);
+			
+			Vector3f a = object.getVertices(face.getVertices(0));
+			Vector3f b = object.getVertices(face.getVertices(1));
+			Vector3f c = object.getVertices(face.getVertices(2));
+			
+			closestPointOnTriangle(x, y, z, a, b, c, closest);
+			
+			float dx = x - closest[0];
+			float dy = y - closest[1];
+			float dz = z - closest[2];
+			float distance = dx * dx + dy * dy + dz * dz;
+			
+			// NaN (a triangle with no area) fails this test too
+			if(!(distance <= radius * radius))
+			{
+				continue;
+			}
+			
+			distance = (float)Math.sqrt(distance);
+			
+			if(distance > 0.00001f)
+			{
+				dx /= distance;
+				dy /= distance;
+				dz /= distance;
+			}
+			else
+			{
+				// The center is right on the triangle, so push out along it's normal
+				float abX = b.x - a.x, abY = b.y - a.y, abZ = b.z - a.z;
+				float acX = c.x - a.x, acY = c.y - a.y, acZ = c.z - a.z;
+				
+				dx = abY * acZ - abZ * acY;
+				dy = abZ * acX - abX * acZ;
+				dz = abX * acY - abY * acX;
+				
+				float length = (float)Math.sqrt(dx * dx + dy * dy + dz * dz);
+				if(length == 0)
+				{
+					continue;
+				}
+				
+				dx /= length;
+				dy /= length;
+				dz /= length;
+			}
+			
+			contacts.add(closest[0], closest[1], closest[2], dx, dy, dz, radius - distance, objectIndex, faceIndex);
+		}
+	}
+	
+	// This writes the point of the triangle a, b, c that is closest to x, y, z in
+	// closest.  We find which corner, edge or the inside of the triangle the point
+	// is nearest to, by where it falls compared to the edges.
+	private static void closestPointOnTriangle(float x, float y, float z, Vector3f a, Vector3f b, Vector3f c,
+											   float[] closest)
+	{
+		float abX = b.x - a.x, abY = b.y - a.y, abZ = b.z - a.z;
+		float acX = c.x - a.x, acY = c.y - a.y, acZ = c.z - a.z;
+		
+		// Is it past corner a?
+		float apX = x - a.x, apY = y - a.y, apZ = z - a.z;
+		float d1 = abX * apX + abY * apY + abZ * apZ;
+		float d2 = acX * apX + acY * apY + acZ * apZ;
+		if(d1 <= 0 && d2 <= 0)
+		{
+			setPoint(closest, a.x, a.y, a.z);
+			return;
+		}
+		
+		// Is it past corner b?
+		float bpX = x - b.x, bpY = y - b.y, bpZ = z - b.z;
+		float d3 = abX * bpX + abY * bpY + abZ * bpZ;
+		float d4 = acX * bpX + acY * bpY + acZ * bpZ;
+		if(d3 >= 0 && d4 <= d3)
+		{
+			setPoint(closest, b.x, b.y, b.z);
+			return;
+		}
+		
+		// Is it next to edge ab?
+		float vc = d1 * d4 - d3 * d2;
+		if(vc <= 0 && d1 >= 0 && d3 <= 0)
+		{
+			float v = d1 / (d1 - d3);
+			setPoint(closest, a.x + abX * v, a.y + abY * v, a.z + abZ * v);
+			return;
+		}
+		
+		// Is it past corner c?
+		float cpX = x - c.x, cpY = y - c.y, cpZ = z - c.z;
+		float d5 = abX * cpX + abY * cpY + abZ * cpZ;
+		float d6 = acX * cpX + acY * cpY + acZ * cpZ;
+		if(d6 >= 0 && d5 <= d6)
+		{
+			setPoint(closest, c.x, c.y, c.z);
+			return;
+		}
+		
+		// Is it next to edge ac?
+		float vb = d5 * d2 - d1 * d6;
+		if(vb <= 0 && d2 >= 0 && d6 <= 0)
+		{
+			float w = d2 / (d2 - d6);
+			setPoint(closest, a.x + acX * w, a.y + acY * w, a.z + acZ * w);
+			return;
+		}
+		
+		// Is it next to edge bc?
+		float va = d3 * d6 - d5 * d4;
+		if(va <= 0 && (d4 - d3) >= 0 && (d5 - d6) >= 0)
+		{
+			float w = (d4 - d3) / ((d4 - d3) + (d5 - d6));
+			setPoint(closest, b.x + (c.x - b.x) * w, b.y + (c.y - b.y) * w, b.z + (c.z - b.z) * w);
+			return;
+		}
+		
+		// Otherwise it's over the inside of the triangle
+		float denominator = 1.0f / (va + vb + vc);
+		float v = vb * denominator;
+		float w = vc * denominator;
+		setPoint(closest, a.x + abX * v + acX * w, a.y + abY * v + acY * w, a.z + abZ * v + acZ * w);
+	}
+	
+	private static void setPoint(float[] point, float x, float y, float z)
+	{
+		point[0] = x;
+		point[1] = y;
+		point[2] = z;
+	}
+	
 	//This returns if this node is subdivided or not
 	private boolean isSubDivided()  
 	{   
@@ -1427,19 +1928,77 @@ public class Octree{
 	}
 	
 	
+	// This returns the settings the tree was built with
+	public OctreeConfig getConfig()
+	{
+		return config;
+	}
+	
+	// This returns how many end nodes the last build made, which is how many
+	// display lists the tree needs
+	public int getNumOfEndNodes()
+	{
+		return endNodeCount;
+	}
+	
+	// This returns how many runs of indices an end node has, one for each of it's
+	// objects, sorted by material
+	public int getNumOfDrawRanges()
+	{
+		return drawRanges == null ? 0 : drawRanges.length / 4;
+	}
+	
+	// The material of the object of run number range
+	public int getDrawRangeMaterial(int range)
+	{
+		return drawRanges[range * 4];
+	}
+	
+	// The index in the world of the object of run number range
+	public int getDrawRangeObject(int range)
+	{
+		return drawRanges[range * 4 + 1];
+	}
+	
+	// Where the indices of run number range start in getDrawIndices()
+	public int getDrawRangeFirst(int range)
+	{
+		return drawRanges[range * 4 + 2];
+	}
+	
+	// How many indices run number range has
+	public int getDrawRangeCount(int range)
+	{
+		return drawRanges[range * 4 + 3];
+	}
+	
+	// The indices of all the triangles of an end node, in the order of the runs.
+	// The indices are into the vertices of each run's object in the world.
+	public IntBuffer getDrawIndices()
+	{
+		return drawIndices;
+	}
+	
+	// This returns the cubes of all the nodes, made when the tree was built
+	public BoundingBox getDebug()
+	{
+		return debug;
+	}
+	
+	
 	/**
-	 * @param objectColliding the objectColliding to set
+	 * @param octreeCollisionDetection wheter to test just the nodes we are in (true) or the whole world
 	 */
-	public void setObjectColliding(boolean objectColliding) {
-		this.objectColliding = objectColliding;
+	public void setOctreeCollisionDetection(boolean octreeCollisionDetection) {
+		this.octreeCollisionDetection = octreeCollisionDetection;
 	}
 	
 	
 	/**
-	 * @return the objectColliding
+	 * @return the octreeCollisionDetection
 	 */
-	public boolean isObjectColliding() {
-		return objectColliding;
+	public boolean isOctreeCollisionDetection() {
+		return octreeCollisionDetection;
 	}
 
 
@@ -0,0 +1,51 @@
+package fcampos.rawengine3D.graficos;
+
+// This holds the settings an Octree is built with.  Nothing in it can change
+// once it's created, so any number of trees can share one, on any thread.
+public final class OctreeConfig {
+
+	// The settings the samples have always built their trees with
+	public static final OctreeConfig DEFAULT = new OctreeConfig(1000, 5);
+
+	// The maximum amount of triangles per node.  If a node has equal or less
+	// than this, stop subdividing and store the face indices in that node
+	private final int maxTriangles;
+
+	// The maximum amount of subdivisions allowed (Levels of subdivision)
+	private final int maxSubdivisions;
+
+	public OctreeConfig(int maxTriangles, int maxSubdivisions)
+	{
+		if(maxTriangles < 1)
+		{
+			throw new IllegalArgumentException("maxTriangles must be at least 1: " + maxTriangles);
+		}
+
+		if(maxSubdivisions < 0)
+		{
+			throw new IllegalArgumentException("maxSubdivisions can't be negative: " + maxSubdivisions);
+		}
+
+		this.maxTriangles = maxTriangles;
+		this.maxSubdivisions = maxSubdivisions;
+	}
+
+	/**
+	 * @return the maximum amount of triangles per node
+	 */
+	public int getMaxTriangles() {
+		return maxTriangles;
+	}
+
+	/**
+	 * @return the maximum amount of subdivisions allowed
+	 */
+	public int getMaxSubdivisions() {
+		return maxSubdivisions;
+	}
+
+	public String toString()
+	{
+		return "OctreeConfig[maxTriangles=" + maxTriangles + ", maxSubdivisions=" + maxSubdivisions + "]";
+	}
+}
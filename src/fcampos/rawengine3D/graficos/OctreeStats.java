@@ -0,0 +1,65 @@
+package fcampos.rawengine3D.graficos;
+
+// This is what one Octree query counted.  Each caller passes in a stats object
+// of its own, so the same tree can be drawn and tested for collisions from
+// different threads without the counters getting mixed up.
+public class OctreeStats {
+
+	// This stores the amount of end nodes that were in the frustum
+	private int nodesDrawn;
+
+	// The number of end nodes we've checked for collision
+	private int nodesCollided;
+
+	// Wheter the object collided with anything in the world or not
+	private boolean objectColliding;
+
+	public OctreeStats()
+	{
+		reset();
+	}
+
+	// This starts the counts over for the next query
+	public void reset()
+	{
+		nodesDrawn = 0;
+		nodesCollided = 0;
+		objectColliding = false;
+	}
+
+	void addNodeDrawn()
+	{
+		nodesDrawn++;
+	}
+
+	void addNodeCollided()
+	{
+		nodesCollided++;
+	}
+
+	void setObjectColliding(boolean objectColliding)
+	{
+		this.objectColliding = objectColliding;
+	}
+
+	/**
+	 * @return the amount of end nodes that were in the frustum
+	 */
+	public int getNodesDrawn() {
+		return nodesDrawn;
+	}
+
+	/**
+	 * @return the number of end nodes checked for collision
+	 */
+	public int getNodesCollided() {
+		return nodesCollided;
+	}
+
+	/**
+	 * @return true if the object collided with anything in the world
+	 */
+	public boolean isObjectColliding() {
+		return objectColliding;
+	}
+}
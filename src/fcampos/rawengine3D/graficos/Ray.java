@@ -0,0 +1,130 @@
+package fcampos.rawengine3D.graficos;
+
+import java.util.Arrays;
+
+import fcampos.rawengine3D.MathUtil.Vector3f;
+
+// This is one ray to trace through a TriangleBVH, and what it hit.  The ray
+// goes from the origin along the direction, which doesn't have to be unit
+// length, and distances are measured in lengths of the direction.  So for a
+// line from a to b, the direction is b - a and the ray ends at distance 1.
+//
+// The caller keeps the ray and sets it again for every trace, so tracing
+// creates no objects.  A ray is only for one trace at a time, so every thread
+// needs it's own.
+public class Ray
+{
+
+	float originX, originY, originZ;
+	float directionX, directionY, directionZ;
+	float inverseX, inverseY, inverseZ;		// 1 / direction, for the box tests
+	float maxDistance;						// How far the ray goes, shortened as we hit things
+
+	boolean hit;
+	int hitTriangle;						// The triangle hit, in the tree's order
+	float hitU, hitV;						// Where in the triangle, from it's first corner
+	int hitObject;
+	int hitFace;
+
+	int[] stack = new int[64];				// The nodes still to visit
+
+	public Ray()
+	{
+	}
+
+	// This sets the ray from the origin, along the direction, up to maxDistance
+	public void set(float x, float y, float z, float dirX, float dirY, float dirZ, float maxDistance)
+	{
+		originX = x;
+		originY = y;
+		originZ = z;
+		directionX = dirX;
+		directionY = dirY;
+		directionZ = dirZ;
+		inverseX = 1.0f / dirX;
+		inverseY = 1.0f / dirY;
+		inverseZ = 1.0f / dirZ;
+		this.maxDistance = maxDistance;
+
+		hit = false;
+		hitTriangle = -1;
+		hitObject = -1;
+		hitFace = -1;
+	}
+
+	// This sets the ray to the line from start to end
+	public void setLine(Vector3f start, Vector3f end)
+	{
+		set(start.x, start.y, start.z, end.x - start.x, end.y - start.y, end.z - start.z, 1.0f);
+	}
+
+	// This sets the ray to go from the origin along the direction forever
+	public void set(Vector3f origin, Vector3f direction)
+	{
+		set(origin.x, origin.y, origin.z, direction.x, direction.y, direction.z, Float.POSITIVE_INFINITY);
+	}
+
+	void ensureStack(int size)
+	{
+		if(stack.length < size)
+		{
+			stack = Arrays.copyOf(stack, size);
+		}
+	}
+
+	public boolean isHit()
+	{
+		return hit;
+	}
+
+	// After a hit, this is how far along the ray the hit is
+	public float getDistance()
+	{
+		return maxDistance;
+	}
+
+	public float getHitX()
+	{
+		return originX + directionX * maxDistance;
+	}
+
+	public float getHitY()
+	{
+		return originY + directionY * maxDistance;
+	}
+
+	public float getHitZ()
+	{
+		return originZ + directionZ * maxDistance;
+	}
+
+	// This writes where the ray hit in point
+	public void getHitPoint(Vector3f point)
+	{
+		point.setTo(getHitX(), getHitY(), getHitZ());
+	}
+
+	// The position of the hit in the triangle.  The point is
+	// corner0 + (corner1 - corner0) * u + (corner2 - corner0) * v.
+	public float getHitU()
+	{
+		return hitU;
+	}
+
+	public float getHitV()
+	{
+		return hitV;
+	}
+
+	// The object of the world that was hit, after a first hit trace
+	public int getHitObject()
+	{
+		return hitObject;
+	}
+
+	// The face of that object that was hit, after a first hit trace
+	public int getHitFace()
+	{
+		return hitFace;
+	}
+}
@@ -0,0 +1,271 @@
+package fcampos.rawengine3D.graficos;
+
+import java.util.Arrays;
+
+import fcampos.rawengine3D.MathUtil.Vector3f;
+
+// This is a group of rays that are traced through a TriangleBVH together.  When
+// all the rays go the same way on each axis (bullets of one burst, line of sight
+// from one monster to a group, picking around the mouse) the tree is walked once
+// for the whole group: each box is first tested with all the rays at once, and
+// only opened for the range of rays that hit it.  Packets of rays going every
+// which way are traced one ray at a time.  The rays work like Ray, and
+// everything is kept in arrays, one entry per ray.
+//
+// Like Ray, the caller keeps the packet, clears it and adds the rays again for
+// every trace, so tracing creates no objects once the arrays are big enough.
+public class RayPacket
+{
+
+	int numOfRays;
+
+	float[] originX, originY, originZ;
+	float[] directionX, directionY, directionZ;
+	float[] inverseX, inverseY, inverseZ;
+	float[] maxDistance;
+
+	boolean[] hit;
+	int[] hitTriangle;
+	float[] hitU, hitV;
+	int[] hitObject;
+	int[] hitFace;
+
+	// The nodes still to visit, with the range of rays that can hit each one
+	int[] stack = new int[192];
+
+	// The smallest and biggest origin on each axis, and the smallest and biggest
+	// 1 / direction, set by isCoherent()
+	float[] range = new float[12];
+
+	// How far the closest and the furthest rays go, and how many rays are still
+	// being traced, set by findDistances()
+	float nearest, farthest;
+	int numOfActive;
+
+	// For tracing the rays one at a time
+	Ray ray = new Ray();
+
+	public RayPacket()
+	{
+		this(64);
+	}
+
+	public RayPacket(int capacity)
+	{
+		capacity = Math.max(capacity, 1);
+
+		originX = new float[capacity];
+		originY = new float[capacity];
+		originZ = new float[capacity];
+		directionX = new float[capacity];
+		directionY = new float[capacity];
+		directionZ = new float[capacity];
+		inverseX = new float[capacity];
+		inverseY = new float[capacity];
+		inverseZ = new float[capacity];
+		maxDistance = new float[capacity];
+
+		hit = new boolean[capacity];
+		hitTriangle = new int[capacity];
+		hitU = new float[capacity];
+		hitV = new float[capacity];
+		hitObject = new int[capacity];
+		hitFace = new int[capacity];
+	}
+
+	// This takes all the rays out, to start a new packet
+	public void clear()
+	{
+		numOfRays = 0;
+	}
+
+	// This adds a ray and returns it's index in the packet
+	public int add(float x, float y, float z, float dirX, float dirY, float dirZ, float distance)
+	{
+		if(numOfRays == maxDistance.length)
+		{
+			grow(numOfRays * 2);
+		}
+
+		int i = numOfRays++;
+
+		originX[i] = x;
+		originY[i] = y;
+		originZ[i] = z;
+		directionX[i] = dirX;
+		directionY[i] = dirY;
+		directionZ[i] = dirZ;
+		inverseX[i] = 1.0f / dirX;
+		inverseY[i] = 1.0f / dirY;
+		inverseZ[i] = 1.0f / dirZ;
+		maxDistance[i] = distance;
+
+		hit[i] = false;
+		hitTriangle[i] = -1;
+		hitObject[i] = -1;
+		hitFace[i] = -1;
+
+		return i;
+	}
+
+	// This adds the line from start to end, see Ray.setLine()
+	public int addLine(Vector3f start, Vector3f end)
+	{
+		return add(start.x, start.y, start.z, end.x - start.x, end.y - start.y, end.z - start.z, 1.0f);
+	}
+
+	private void grow(int size)
+	{
+		originX = Arrays.copyOf(originX, size);
+		originY = Arrays.copyOf(originY, size);
+		originZ = Arrays.copyOf(originZ, size);
+		directionX = Arrays.copyOf(directionX, size);
+		directionY = Arrays.copyOf(directionY, size);
+		directionZ = Arrays.copyOf(directionZ, size);
+		inverseX = Arrays.copyOf(inverseX, size);
+		inverseY = Arrays.copyOf(inverseY, size);
+		inverseZ = Arrays.copyOf(inverseZ, size);
+		maxDistance = Arrays.copyOf(maxDistance, size);
+
+		hit = Arrays.copyOf(hit, size);
+		hitTriangle = Arrays.copyOf(hitTriangle, size);
+		hitU = Arrays.copyOf(hitU, size);
+		hitV = Arrays.copyOf(hitV, size);
+		hitObject = Arrays.copyOf(hitObject, size);
+		hitFace = Arrays.copyOf(hitFace, size);
+	}
+
+	// This returns true if all the rays go the same way on each axis, and then
+	// finds the range of their origins and directions
+	boolean isCoherent()
+	{
+		if(!sameSign(directionX) || !sameSign(directionY) || !sameSign(directionZ))
+		{
+			return false;
+		}
+
+		setRange(originX, 0);
+		setRange(originY, 1);
+		setRange(originZ, 2);
+		setRange(inverseX, 6);
+		setRange(inverseY, 7);
+		setRange(inverseZ, 8);
+
+		return true;
+	}
+
+	private boolean sameSign(float[] direction)
+	{
+		boolean negative = direction[0] < 0;
+
+		for(int i = 0; i < numOfRays; i++)
+		{
+			// A ray along the axis can go into a box from either side
+			if(direction[i] == 0 || (direction[i] < 0) != negative)
+			{
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	// This puts the smallest of values in range[index] and the biggest 3 after it
+	private void setRange(float[] values, int index)
+	{
+		float min = values[0];
+		float max = values[0];
+
+		for(int i = 1; i < numOfRays; i++)
+		{
+			min = Math.min(min, values[i]);
+			max = Math.max(max, values[i]);
+		}
+
+		range[index] = min;
+		range[index + 3] = max;
+	}
+
+	// This finds how far the closest and the furthest rays go, before the trace
+	void findDistances()
+	{
+		nearest = maxDistance[0];
+		for(int i = 1; i < numOfRays; i++)
+		{
+			nearest = Math.min(nearest, maxDistance[i]);
+		}
+
+		findFarthest();
+		numOfActive = numOfRays;
+	}
+
+	void findFarthest()
+	{
+		farthest = maxDistance[0];
+		for(int i = 1; i < numOfRays; i++)
+		{
+			farthest = Math.max(farthest, maxDistance[i]);
+		}
+	}
+
+	void ensureStack(int size)
+	{
+		if(stack.length < size)
+		{
+			stack = Arrays.copyOf(stack, size);
+		}
+	}
+
+	public int getNumOfRays()
+	{
+		return numOfRays;
+	}
+
+	public boolean isHit(int ray)
+	{
+		return hit[ray];
+	}
+
+	// After a hit, this is how far along the ray the hit is
+	public float getDistance(int ray)
+	{
+		return maxDistance[ray];
+	}
+
+	public float getHitX(int ray)
+	{
+		return originX[ray] + directionX[ray] * maxDistance[ray];
+	}
+
+	public float getHitY(int ray)
+	{
+		return originY[ray] + directionY[ray] * maxDistance[ray];
+	}
+
+	public float getHitZ(int ray)
+	{
+		return originZ[ray] + directionZ[ray] * maxDistance[ray];
+	}
+
+	public float getHitU(int ray)
+	{
+		return hitU[ray];
+	}
+
+	public float getHitV(int ray)
+	{
+		return hitV[ray];
+	}
+
+	// The object of the world that was hit, after a first hit trace
+	public int getHitObject(int ray)
+	{
+		return hitObject[ray];
+	}
+
+	// The face of that object that was hit, after a first hit trace
+	public int getHitFace(int ray)
+	{
+		return hitFace[ray];
+	}
+}
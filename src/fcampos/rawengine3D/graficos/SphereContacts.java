@@ -0,0 +1,189 @@
+package fcampos.rawengine3D.graficos;
+
+import java.util.Arrays;
+
+// This is where Octree.findSphereContacts() writes the triangles a sphere
+// touches.  The caller keeps one of these and passes it in every time, so once
+// the arrays have grown to what the scene needs, asking for the contacts
+// doesn't create a single object.  Each contact takes a run of the arrays:
+//
+//		points	[i * 3] .. [i * 3 + 2]	The closest point of the triangle to the center
+//		normals	[i * 3] .. [i * 3 + 2]	Which way to push the sphere out (unit length)
+//		depths	[i]						How far to push it
+//		objects	[i], faces [i]			Which object of the world, and which face of it
+//
+// A contact object is only for one query at a time, so every thread that
+// tests the tree needs one of it's own.
+public class SphereContacts
+{
+
+	private float[] points;			// The contact points, 3 floats each
+	private float[] normals;		// The push out directions, 3 floats each
+	private float[] depths;			// How deep the sphere is in each triangle
+	private int[] objects;			// The object each triangle is in
+	private int[] faces;			// The face number of each triangle in it's object
+	private int numOfContacts;
+
+	private int numOfNodesTested;		// The end nodes the sphere was in
+	private int numOfTrianglesTested;	// The triangles we tested, each one once
+
+	// The same triangle is in every end node one of it's corners is in, so we
+	// mark the triangles we tested with the number of the query to skip them
+	// the next time we see them.
+	private int[] faceStamps;
+	private int stamp;
+
+	// Scratch space for the closest point of a triangle
+	final float[] closest = new float[3];
+
+	public SphereContacts()
+	{
+		this(16);
+	}
+
+	// This makes room for capacity contacts up front.  More is made if needed.
+	public SphereContacts(int capacity)
+	{
+		capacity = Math.max(capacity, 1);
+
+		points = new float[capacity * 3];
+		normals = new float[capacity * 3];
+		depths = new float[capacity];
+		objects = new int[capacity];
+		faces = new int[capacity];
+		faceStamps = new int[0];
+	}
+
+	// This starts a new query on a world with numOfFaces faces
+	void begin(int numOfFaces)
+	{
+		numOfContacts = 0;
+		numOfNodesTested = 0;
+		numOfTrianglesTested = 0;
+
+		if(faceStamps.length < numOfFaces)
+		{
+			faceStamps = new int[numOfFaces];
+			stamp = 0;
+		}
+
+		// When the stamps wrap around, clear them so an old one can't match
+		stamp++;
+		if(stamp == 0)
+		{
+			Arrays.fill(faceStamps, 0);
+			stamp = 1;
+		}
+	}
+
+	// This returns false if the face was already tested in this query, and marks it if not
+	boolean markFace(int faceNumber)
+	{
+		if(faceStamps[faceNumber] == stamp)
+		{
+			return false;
+		}
+
+		faceStamps[faceNumber] = stamp;
+		numOfTrianglesTested++;
+		return true;
+	}
+
+	void addNodeTested()
+	{
+		numOfNodesTested++;
+	}
+
+	void add(float x, float y, float z, float normalX, float normalY, float normalZ, float depth, int object, int face)
+	{
+		if(numOfContacts == depths.length)
+		{
+			int size = numOfContacts * 2;
+
+			points = Arrays.copyOf(points, size * 3);
+			normals = Arrays.copyOf(normals, size * 3);
+			depths = Arrays.copyOf(depths, size);
+			objects = Arrays.copyOf(objects, size);
+			faces = Arrays.copyOf(faces, size);
+		}
+
+		int i = numOfContacts * 3;
+
+		points[i] = x;
+		points[i + 1] = y;
+		points[i + 2] = z;
+		normals[i] = normalX;
+		normals[i + 1] = normalY;
+		normals[i + 2] = normalZ;
+		depths[numOfContacts] = depth;
+		objects[numOfContacts] = object;
+		faces[numOfContacts] = face;
+		numOfContacts++;
+	}
+
+	public int getNumOfContacts()
+	{
+		return numOfContacts;
+	}
+
+	// This returns the contact that goes deepest into the sphere, or -1 if there are none
+	public int getDeepest()
+	{
+		int deepest = -1;
+
+		for(int i = 0; i < numOfContacts; i++)
+		{
+			if(deepest < 0 || depths[i] > depths[deepest])
+			{
+				deepest = i;
+			}
+		}
+
+		return deepest;
+	}
+
+	/**
+	 * @return the contact points, x, y and z of each contact one after the other
+	 */
+	public float[] getPoints() {
+		return points;
+	}
+
+	/**
+	 * @return the push out directions, x, y and z of each contact one after the other
+	 */
+	public float[] getNormals() {
+		return normals;
+	}
+
+	/**
+	 * @return how deep the sphere is in each triangle
+	 */
+	public float[] getDepths() {
+		return depths;
+	}
+
+	/**
+	 * @return the index of the object of the world each triangle is in
+	 */
+	public int[] getObjects() {
+		return objects;
+	}
+
+	/**
+	 * @return the face number of each triangle in it's object
+	 */
+	public int[] getFaces() {
+		return faces;
+	}
+
+	public int getNumOfNodesTested()
+	{
+		return numOfNodesTested;
+	}
+
+	public int getNumOfTrianglesTested()
+	{
+		return numOfTrianglesTested;
+	}
+}
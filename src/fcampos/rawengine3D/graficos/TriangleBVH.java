@@ -0,0 +1,919 @@
+package fcampos.rawengine3D.graficos;
+
+import fcampos.rawengine3D.model.Face;
+import fcampos.rawengine3D.model.Model3d;
+import fcampos.rawengine3D.model.Object3d;
+
+// This is a bounding volume hierarchy over the triangles of a model, for
+// tracing rays: picking, line of sight, bullets and the like.
+//
+// The Octree cuts space in equal cubes and puts a triangle in every cube one of
+// it's corners is in, so the same triangle is tested again and again, and a big
+// triangle sticks out of the cubes it's in.  Here every triangle is in exactly
+// one leaf, and the boxes are made to fit what is in them.  Where to split each
+// node is picked with the surface area heuristic: the chance a ray that hits a
+// box also hits a box inside it is about the ratio of their surface areas, so
+// we pick the split that makes (area of a child * triangles in it) the smallest
+// for both children together, compared to the cost of just testing them all.
+//
+// The tree is kept flat in arrays: each node has it's box, and either the
+// number of it's right child (the left one is always the next node) or where
+// it's triangles start.  The corners of the triangles are copied in leaf order,
+// so a leaf's triangles are one run of floats, and each triangle keeps just the
+// number of it's face in the world.
+//
+// Once built, the tree is never changed, so any number of threads can trace
+// rays through it at once, each with it's own Ray or RayPacket.
+public class TriangleBVH
+{
+
+	// The most triangles we put in a leaf, and the most we put in one when the
+	// heuristic says splitting isn't worth it
+	public static final int DEFAULT_LEAF_SIZE = 4;
+	private static final int MAX_LEAF_SIZE = 16;
+
+	// How many buckets the centers are sorted into to try the splits, per axis
+	private static final int BINS = 16;
+
+	// The cost of going into a node, compared to testing one triangle
+	private static final float TRAVERSAL_COST = 1.0f;
+
+	// What packetHitsBox() returns
+	private static final int MISS_ALL = 0;
+	private static final int HIT_SOME = 1;
+	private static final int HIT_ALL = 2;
+
+	// Past this depth we just make leafs, so the stacks have a known size
+	private static final int MAX_DEPTH = 64;
+
+	private final int leafSize;
+
+	private float[] nodeBounds;			// The min x, y, z and max x, y, z of each node
+	private int[] nodeInfo;				// The right child or first triangle, and the count (-1 - axis for inside nodes)
+	private int numOfNodes;
+	private int depth;					// How many levels deep the tree is
+
+	private float[] triangles;			// The 3 corners of each triangle, 9 floats, in leaf order
+	private int[] triangleObjects;		// The object of the world each triangle is in
+	private int[] triangleFaces;		// The number of the face of each triangle in it's object
+	private int numOfTriangles;
+
+	// These are only used while building
+	private float[] centers;
+	private float[] boxes;
+	private int[] order;
+	private int[] binCounts = new int[BINS];
+	private float[] binBounds = new float[BINS * 6];
+	private float[] rightAreas = new float[BINS];
+	private int[] rightCounts = new int[BINS];
+
+	public TriangleBVH(Model3d world)
+	{
+		this(world, DEFAULT_LEAF_SIZE);
+	}
+
+	public TriangleBVH(Model3d world, int leafSize)
+	{
+		if(leafSize < 1 || leafSize > MAX_LEAF_SIZE)
+		{
+			throw new IllegalArgumentException("leafSize must be from 1 to " + MAX_LEAF_SIZE + ": " + leafSize);
+		}
+
+		this.leafSize = leafSize;
+
+		build(world);
+	}
+
+	//////////////////////////////////// BUILD \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\*
+	/////
+	/////	This numbers all the faces of the world and builds the tree over them
+	/////
+	//////////////////////////////////// BUILD \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\*
+
+	private void build(Model3d world)
+	{
+		// The faces of each object get the numbers after the ones of the object before
+		int[] firstFace = new int[world.getNumOfObjects() + 1];
+		for(int i = 0; i < world.getNumOfObjects(); i++)
+		{
+			firstFace[i + 1] = firstFace[i] + world.getObject(i).getNumFaces();
+		}
+
+		numOfTriangles = firstFace[world.getNumOfObjects()];
+
+		// Get the box and the center of every triangle
+		float[] corners = new float[numOfTriangles * 9];
+		int[] objects = new int[numOfTriangles];
+		centers = new float[numOfTriangles * 3];
+		boxes = new float[numOfTriangles * 6];
+		order = new int[numOfTriangles];
+
+		int t = 0;
+		for(int i = 0; i < world.getNumOfObjects(); i++)
+		{
+			Object3d object = world.getObject(i);
+
+			for(int j = 0; j < object.getNumFaces(); j++, t++)
+			{
+				Face face = object.getFace(j);
+
+				for(int k = 0; k < 3; k++)
+				{
+					corners[t * 9 + k * 3]     = object.getVertices(face.getVertices(k)).x;
+					corners[t * 9 + k * 3 + 1] = object.getVertices(face.getVertices(k)).y;
+					corners[t * 9 + k * 3 + 2] = object.getVertices(face.getVertices(k)).z;
+				}
+
+				for(int axis = 0; axis < 3; axis++)
+				{
+					float a = corners[t * 9 + axis], b = corners[t * 9 + 3 + axis], c = corners[t * 9 + 6 + axis];
+
+					boxes[t * 6 + axis]     = Math.min(a, Math.min(b, c));
+					boxes[t * 6 + 3 + axis] = Math.max(a, Math.max(b, c));
+					centers[t * 3 + axis]   = (boxes[t * 6 + axis] + boxes[t * 6 + 3 + axis]) * 0.5f;
+				}
+
+				objects[t] = i;
+				order[t] = t;
+			}
+		}
+
+		// A binary tree with n leafs has 2n - 1 nodes, and there is at least one triangle a leaf
+		int maxNodes = Math.max(numOfTriangles * 2 - 1, 1);
+		nodeBounds = new float[maxNodes * 6];
+		nodeInfo = new int[maxNodes * 2];
+
+		numOfNodes = 0;
+		depth = 0;
+		buildNode(0, numOfTriangles, 1);
+
+		// Now copy the triangles in the order of the leafs
+		triangles = new float[numOfTriangles * 9];
+		triangleObjects = new int[numOfTriangles];
+		triangleFaces = new int[numOfTriangles];
+		for(int i = 0; i < numOfTriangles; i++)
+		{
+			System.arraycopy(corners, order[i] * 9, triangles, i * 9, 9);
+			triangleObjects[i] = objects[order[i]];
+			triangleFaces[i] = order[i] - firstFace[objects[order[i]]];
+		}
+
+		// Let go of what was only needed to build
+		centers = null;
+		boxes = null;
+		order = null;
+		binCounts = null;
+		binBounds = null;
+		rightAreas = null;
+		rightCounts = null;
+	}
+
+	// This makes the node for the triangles from start to end of order, and
+	// the nodes under it, and returns it's number
+	private int buildNode(int start, int end, int level)
+	{
+		int node = numOfNodes++;
+		int count = end - start;
+		depth = Math.max(depth, level);
+
+		// Find the box around the triangles, and the box around their centers
+		float[] bounds = nodeBounds;
+		int b = node * 6;
+		float minX = Float.POSITIVE_INFINITY, minY = Float.POSITIVE_INFINITY, minZ = Float.POSITIVE_INFINITY;
+		float maxX = Float.NEGATIVE_INFINITY, maxY = Float.NEGATIVE_INFINITY, maxZ = Float.NEGATIVE_INFINITY;
+		float[] centerMin = { Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY };
+		float[] centerMax = { Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY };
+
+		for(int i = start; i < end; i++)
+		{
+			int t = order[i];
+
+			minX = Math.min(minX, boxes[t * 6]);
+			minY = Math.min(minY, boxes[t * 6 + 1]);
+			minZ = Math.min(minZ, boxes[t * 6 + 2]);
+			maxX = Math.max(maxX, boxes[t * 6 + 3]);
+			maxY = Math.max(maxY, boxes[t * 6 + 4]);
+			maxZ = Math.max(maxZ, boxes[t * 6 + 5]);
+
+			for(int axis = 0; axis < 3; axis++)
+			{
+				centerMin[axis] = Math.min(centerMin[axis], centers[t * 3 + axis]);
+				centerMax[axis] = Math.max(centerMax[axis], centers[t * 3 + axis]);
+			}
+		}
+
+		bounds[b] = minX;
+		bounds[b + 1] = minY;
+		bounds[b + 2] = minZ;
+		bounds[b + 3] = maxX;
+		bounds[b + 4] = maxY;
+		bounds[b + 5] = maxZ;
+
+		if(count <= leafSize || level >= MAX_DEPTH)
+		{
+			return makeLeaf(node, start, count);
+		}
+
+		// Try the splits between the buckets on every axis, and keep the cheapest
+		float parentArea = area(minX, minY, minZ, maxX, maxY, maxZ);
+		float bestCost = Float.POSITIVE_INFINITY;
+		int bestAxis = -1;
+		int bestSplit = 0;
+
+		for(int axis = 0; axis < 3; axis++)
+		{
+			float extent = centerMax[axis] - centerMin[axis];
+			if(!(extent > 0))
+			{
+				continue;
+			}
+
+			fillBins(start, end, axis, centerMin[axis], BINS / extent);
+
+			// Sweep from the right to know the right side of every split...
+			float rMinX = Float.POSITIVE_INFINITY, rMinY = Float.POSITIVE_INFINITY, rMinZ = Float.POSITIVE_INFINITY;
+			float rMaxX = Float.NEGATIVE_INFINITY, rMaxY = Float.NEGATIVE_INFINITY, rMaxZ = Float.NEGATIVE_INFINITY;
+			int rCount = 0;
+
+			for(int i = BINS - 1; i > 0; i--)
+			{
+				if(binCounts[i] > 0)
+				{
+					rMinX = Math.min(rMinX, binBounds[i * 6]);
+					rMinY = Math.min(rMinY, binBounds[i * 6 + 1]);
+					rMinZ = Math.min(rMinZ, binBounds[i * 6 + 2]);
+					rMaxX = Math.max(rMaxX, binBounds[i * 6 + 3]);
+					rMaxY = Math.max(rMaxY, binBounds[i * 6 + 4]);
+					rMaxZ = Math.max(rMaxZ, binBounds[i * 6 + 5]);
+				}
+				rCount += binCounts[i];
+				rightCounts[i] = rCount;
+				rightAreas[i] = rCount > 0 ? area(rMinX, rMinY, rMinZ, rMaxX, rMaxY, rMaxZ) : 0;
+			}
+
+			// ...then from the left, working out the cost of each one
+			float lMinX = Float.POSITIVE_INFINITY, lMinY = Float.POSITIVE_INFINITY, lMinZ = Float.POSITIVE_INFINITY;
+			float lMaxX = Float.NEGATIVE_INFINITY, lMaxY = Float.NEGATIVE_INFINITY, lMaxZ = Float.NEGATIVE_INFINITY;
+			int lCount = 0;
+
+			for(int i = 0; i < BINS - 1; i++)
+			{
+				if(binCounts[i] > 0)
+				{
+					lMinX = Math.min(lMinX, binBounds[i * 6]);
+					lMinY = Math.min(lMinY, binBounds[i * 6 + 1]);
+					lMinZ = Math.min(lMinZ, binBounds[i * 6 + 2]);
+					lMaxX = Math.max(lMaxX, binBounds[i * 6 + 3]);
+					lMaxY = Math.max(lMaxY, binBounds[i * 6 + 4]);
+					lMaxZ = Math.max(lMaxZ, binBounds[i * 6 + 5]);
+				}
+				lCount += binCounts[i];
+
+				if(lCount == 0 || rightCounts[i + 1] == 0)
+				{
+					continue;
+				}
+
+				float cost = TRAVERSAL_COST + (area(lMinX, lMinY, lMinZ, lMaxX, lMaxY, lMaxZ) * lCount +
+											   rightAreas[i + 1] * rightCounts[i + 1]) / parentArea;
+				if(cost < bestCost)
+				{
+					bestCost = cost;
+					bestAxis = axis;
+					bestSplit = i + 1;
+				}
+			}
+		}
+
+		int middle;
+
+		if(bestAxis < 0)
+		{
+			// All the centers are in the same place, so no split helps.  If there
+			// are too many for one leaf, just cut the list in half.
+			if(count <= MAX_LEAF_SIZE)
+			{
+				return makeLeaf(node, start, count);
+			}
+
+			bestAxis = 0;
+			middle = start + count / 2;
+		}
+		else
+		{
+			// Testing all the triangles costs count, so only split if it's cheaper
+			if(bestCost >= count && count <= MAX_LEAF_SIZE)
+			{
+				return makeLeaf(node, start, count);
+			}
+
+			middle = partition(start, end, bestAxis, centerMin[bestAxis], BINS / (centerMax[bestAxis] - centerMin[bestAxis]), bestSplit);
+		}
+
+		// The left child is always the next node, so we only keep the right one
+		buildNode(start, middle, level + 1);
+		int right = buildNode(middle, end, level + 1);
+
+		nodeInfo[node * 2] = right;
+		nodeInfo[node * 2 + 1] = -1 - bestAxis;
+
+		return node;
+	}
+
+	private int makeLeaf(int node, int start, int count)
+	{
+		nodeInfo[node * 2] = start;
+		nodeInfo[node * 2 + 1] = count;
+		return node;
+	}
+
+	// This sorts the triangles from start to end into the buckets along the axis
+	private void fillBins(int start, int end, int axis, float min, float scale)
+	{
+		for(int i = 0; i < BINS; i++)
+		{
+			binCounts[i] = 0;
+			binBounds[i * 6] = binBounds[i * 6 + 1] = binBounds[i * 6 + 2] = Float.POSITIVE_INFINITY;
+			binBounds[i * 6 + 3] = binBounds[i * 6 + 4] = binBounds[i * 6 + 5] = Float.NEGATIVE_INFINITY;
+		}
+
+		for(int i = start; i < end; i++)
+		{
+			int t = order[i];
+			int bin = getBin(centers[t * 3 + axis], min, scale);
+
+			binCounts[bin]++;
+			for(int k = 0; k < 3; k++)
+			{
+				binBounds[bin * 6 + k] = Math.min(binBounds[bin * 6 + k], boxes[t * 6 + k]);
+				binBounds[bin * 6 + 3 + k] = Math.max(binBounds[bin * 6 + 3 + k], boxes[t * 6 + 3 + k]);
+			}
+		}
+	}
+
+	private static int getBin(float center, float min, float scale)
+	{
+		return Math.min((int)((center - min) * scale), BINS - 1);
+	}
+
+	// This puts the triangles in the buckets before split first, and returns where the rest start
+	private int partition(int start, int end, int axis, float min, float scale, int split)
+	{
+		int i = start;
+		int j = end - 1;
+
+		while(i <= j)
+		{
+			if(getBin(centers[order[i] * 3 + axis], min, scale) < split)
+			{
+				i++;
+			}
+			else
+			{
+				int swap = order[i];
+				order[i] = order[j];
+				order[j] = swap;
+				j--;
+			}
+		}
+
+		return i;
+	}
+
+	private static float area(float minX, float minY, float minZ, float maxX, float maxY, float maxZ)
+	{
+		float x = maxX - minX, y = maxY - minY, z = maxZ - minZ;
+		return 2 * (x * y + y * z + z * x);
+	}
+
+	//////////////////////////////////// INTERSECT \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\*
+	/////
+	/////	This finds the closest triangle the ray hits.  It returns true if there
+	/////	was one, and the ray has the hit.
+	/////
+	//////////////////////////////////// INTERSECT \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\*
+
+	public boolean intersect(Ray ray)
+	{
+		trace(ray, false);
+
+		if(ray.hit)
+		{
+			setHitFace(ray, ray.hitTriangle);
+
+			ray.hitU = getHitUV(ray.hitTriangle, ray.originX, ray.originY, ray.originZ,
+								ray.directionX, ray.directionY, ray.directionZ, false);
+			ray.hitV = getHitUV(ray.hitTriangle, ray.originX, ray.originY, ray.originZ,
+								ray.directionX, ray.directionY, ray.directionZ, true);
+		}
+
+		return ray.hit;
+	}
+
+	// This returns true as soon as the ray hits anything, which is all we need for
+	// line of sight.  It's faster than intersect(), since it doesn't look for the closest.
+	public boolean occluded(Ray ray)
+	{
+		trace(ray, true);
+		return ray.hit;
+	}
+
+	private void trace(Ray ray, boolean anyHit)
+	{
+		if(numOfTriangles == 0)
+		{
+			return;
+		}
+
+		ray.ensureStack(depth + 1);
+		int[] stack = ray.stack;
+		int top = 0;
+		int node = 0;
+
+		while(true)
+		{
+			if(hitsBox(ray, node))
+			{
+				int info = nodeInfo[node * 2 + 1];
+
+				if(info > 0)
+				{
+					// A leaf, so test it's triangles
+					int first = nodeInfo[node * 2];
+
+					for(int t = first; t < first + info; t++)
+					{
+						if(hitsTriangle(ray, t) && anyHit)
+						{
+							return;
+						}
+					}
+				}
+				else
+				{
+					// Go into the child on the side the ray comes from first, and leave the other for later
+					int axis = -1 - info;
+					float direction = axis == 0 ? ray.directionX : (axis == 1 ? ray.directionY : ray.directionZ);
+
+					if(direction < 0)
+					{
+						stack[top++] = node + 1;
+						node = nodeInfo[node * 2];
+					}
+					else
+					{
+						stack[top++] = nodeInfo[node * 2];
+						node = node + 1;
+					}
+					continue;
+				}
+			}
+
+			if(top == 0)
+			{
+				return;
+			}
+			node = stack[--top];
+		}
+	}
+
+	// This returns true if the ray hits the node's box before it's max distance
+	private boolean hitsBox(Ray ray, int node)
+	{
+		int b = node * 6;
+		float near = 0;
+		float far = ray.maxDistance;
+
+		// Where the ray goes through the two planes of each axis.  The tests are
+		// written so a NaN (a ray along a plane) doesn't change near or far.
+		float t1 = (nodeBounds[b] - ray.originX) * ray.inverseX;
+		float t2 = (nodeBounds[b + 3] - ray.originX) * ray.inverseX;
+		if(t1 > t2) { float swap = t1; t1 = t2; t2 = swap; }
+		if(t1 > near) near = t1;
+		if(t2 < far) far = t2;
+
+		t1 = (nodeBounds[b + 1] - ray.originY) * ray.inverseY;
+		t2 = (nodeBounds[b + 4] - ray.originY) * ray.inverseY;
+		if(t1 > t2) { float swap = t1; t1 = t2; t2 = swap; }
+		if(t1 > near) near = t1;
+		if(t2 < far) far = t2;
+
+		t1 = (nodeBounds[b + 2] - ray.originZ) * ray.inverseZ;
+		t2 = (nodeBounds[b + 5] - ray.originZ) * ray.inverseZ;
+		if(t1 > t2) { float swap = t1; t1 = t2; t2 = swap; }
+		if(t1 > near) near = t1;
+		if(t2 < far) far = t2;
+
+		return near <= far;
+	}
+
+	// This tests the ray against triangle t, and keeps the hit if it's closer
+	private boolean hitsTriangle(Ray ray, int t)
+	{
+		float distance = intersectTriangle(t, ray.originX, ray.originY, ray.originZ,
+										   ray.directionX, ray.directionY, ray.directionZ, ray.maxDistance);
+		if(distance < 0)
+		{
+			return false;
+		}
+
+		ray.maxDistance = distance;
+		ray.hit = true;
+		ray.hitTriangle = t;
+		return true;
+	}
+
+	//////////////////////////////////// INTERSECT PACKET \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\*
+	/////
+	/////	This finds the closest triangle each ray of the packet hits, walking the
+	/////	tree once for all of them.  It returns how many rays hit something.
+	/////
+	//////////////////////////////////// INTERSECT PACKET \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\*
+
+	public int intersect(RayPacket packet)
+	{
+		int hits = tracePacket(packet, false);
+
+		for(int i = 0; i < packet.numOfRays; i++)
+		{
+			if(packet.hit[i])
+			{
+				int t = packet.hitTriangle[i];
+
+				packet.hitObject[i] = triangleObjects[t];
+				packet.hitFace[i] = triangleFaces[t];
+				packet.hitU[i] = getHitUV(t, packet.originX[i], packet.originY[i], packet.originZ[i],
+										  packet.directionX[i], packet.directionY[i], packet.directionZ[i], false);
+				packet.hitV[i] = getHitUV(t, packet.originX[i], packet.originY[i], packet.originZ[i],
+										  packet.directionX[i], packet.directionY[i], packet.directionZ[i], true);
+			}
+		}
+
+		return hits;
+	}
+
+	// This marks each ray of the packet that hits anything, see occluded(Ray)
+	public int occluded(RayPacket packet)
+	{
+		return tracePacket(packet, true);
+	}
+
+	private int tracePacket(RayPacket packet, boolean anyHit)
+	{
+		int numOfRays = packet.numOfRays;
+
+		if(numOfTriangles == 0 || numOfRays == 0)
+		{
+			return 0;
+		}
+
+		// The packet is only walked as a whole when all the rays go the same way on
+		// every axis.  Then they all go into the children in the same order, and
+		// the range of their origins and directions tells us when none of them
+		// can hit a box.  Rays going different ways share little of the tree, so
+		// then each one is traced on it's own, which is never slower than that.
+		if(!packet.isCoherent())
+		{
+			for(int i = 0; i < numOfRays; i++)
+			{
+				traceOne(packet, i, anyHit);
+			}
+		}
+		else
+		{
+			traceCoherent(packet, anyHit);
+		}
+
+		int hits = 0;
+		for(int i = 0; i < numOfRays; i++)
+		{
+			if(packet.hit[i])
+			{
+				hits++;
+			}
+		}
+
+		return hits;
+	}
+
+	// This traces ray i of the packet through the single ray code
+	private void traceOne(RayPacket packet, int i, boolean anyHit)
+	{
+		Ray ray = packet.ray;
+
+		ray.set(packet.originX[i], packet.originY[i], packet.originZ[i],
+				packet.directionX[i], packet.directionY[i], packet.directionZ[i], packet.maxDistance[i]);
+		trace(ray, anyHit);
+
+		packet.maxDistance[i] = ray.maxDistance;
+		packet.hit[i] = ray.hit;
+		packet.hitTriangle[i] = ray.hitTriangle;
+	}
+
+	private void traceCoherent(RayPacket packet, boolean anyHit)
+	{
+		int numOfRays = packet.numOfRays;
+
+		// Which side of a box the rays go in by, on each axis
+		int nearX = packet.directionX[0] < 0 ? 3 : 0;
+		int nearY = packet.directionY[0] < 0 ? 3 : 0;
+		int nearZ = packet.directionZ[0] < 0 ? 3 : 0;
+
+		// Each entry of the stack is a node still to visit and the range of rays
+		// that can still hit it, the first one and one past the last one.  The
+		// rays outside the range missed a box above it.
+		packet.ensureStack((depth + 1) * 3);
+		int[] stack = packet.stack;
+		int top = 0;
+		int node = 0;
+		int first = 0;
+		int last = numOfRays;
+		packet.findDistances();
+
+		while(true)
+		{
+			// First test the box with all the rays at once, and then only look at
+			// single rays if some of them could hit it, but not all of them
+			int hits = packetHitsBox(packet, node, nearX, nearY, nearZ);
+
+			if(hits != MISS_ALL)
+			{
+				// Take the rays at each end that miss out of the range.  For rays
+				// going the same way it's most of the time none, or all of them.
+				if(hits == HIT_SOME)
+				{
+					while(first < last && ((anyHit && packet.hit[first]) || !hitsBox(packet, first, node)))
+					{
+						first++;
+					}
+					while(last > first + 1 && ((anyHit && packet.hit[last - 1]) || !hitsBox(packet, last - 1, node)))
+					{
+						last--;
+					}
+				}
+
+				if(first < last)
+				{
+					int info = nodeInfo[node * 2 + 1];
+
+					if(info > 0)
+					{
+						traceLeaf(packet, node, first, last, info, anyHit, hits == HIT_ALL);
+
+						if(packet.numOfActive == 0)
+						{
+							return;
+						}
+					}
+					else
+					{
+						// Go first into the child on the side the rays come from
+						int axis = -1 - info;
+						int near = axis == 0 ? nearX : (axis == 1 ? nearY : nearZ);
+
+						stack[top++] = near == 0 ? nodeInfo[node * 2] : node + 1;
+						stack[top++] = first;
+						stack[top++] = last;
+						node = near == 0 ? node + 1 : nodeInfo[node * 2];
+						continue;
+					}
+				}
+			}
+
+			if(top == 0)
+			{
+				return;
+			}
+			last = stack[--top];
+			first = stack[--top];
+			node = stack[--top];
+		}
+	}
+
+	// This tests the triangles of a leaf with the rays from first to last that hit
+	// it's box.  If allHit, we already know they all do.
+	private void traceLeaf(RayPacket packet, int node, int first, int last, int count, boolean anyHit, boolean allHit)
+	{
+		int start = nodeInfo[node * 2];
+		boolean farthestHit = false;
+
+		for(int ray = first; ray < last; ray++)
+		{
+			// The first and the last ray of the range are known to hit the box
+			if((anyHit && packet.hit[ray]) ||
+			   (!allHit && ray != first && ray != last - 1 && !hitsBox(packet, ray, node)))
+			{
+				continue;
+			}
+
+			for(int t = start; t < start + count; t++)
+			{
+				float distance = intersectTriangle(t, packet.originX[ray], packet.originY[ray], packet.originZ[ray],
+												   packet.directionX[ray], packet.directionY[ray], packet.directionZ[ray],
+												   packet.maxDistance[ray]);
+				if(distance >= 0)
+				{
+					// Keep the distances of the packet up to date.  When the
+					// furthest ray gets shorter we need to look for the new one.
+					if(packet.maxDistance[ray] == packet.farthest)
+					{
+						farthestHit = true;
+					}
+					packet.nearest = Math.min(packet.nearest, distance);
+
+					packet.maxDistance[ray] = distance;
+					packet.hit[ray] = true;
+					packet.hitTriangle[ray] = t;
+
+					if(anyHit)
+					{
+						packet.numOfActive--;
+						break;
+					}
+				}
+			}
+		}
+
+		// In an any hit trace, the rays that hit something are just done.  Keeping
+		// the furthest distance of them all only means a box is sometimes opened
+		// when it didn't have to be.
+		if(farthestHit && !anyHit)
+		{
+			packet.findFarthest();
+		}
+	}
+
+	// This tests the node's box with all the rays of the packet at once.  It
+	// works out the smallest and the biggest distance any ray can go into the box
+	// at and come out at, from the ranges of the origins and of 1 / direction.
+	// If even the earliest way in is after the latest way out, they all miss, and
+	// if the latest way in is before the earliest way out, they all hit.  Rounding
+	// always goes the same way, so testing the rays one by one would say the same.
+	private int packetHitsBox(RayPacket packet, int node, int nearX, int nearY, int nearZ)
+	{
+		float[] range = packet.range;
+		int b = node * 6;
+
+		// The origins go from range[0] to range[3] on x, and 1 / direction from range[6] to range[9]
+		float in = nodeBounds[b + nearX], out = nodeBounds[b + 3 - nearX];
+		float earliestIn = Math.max(0, lowest(in - range[3], in - range[0], range[6], range[9]));
+		float latestIn = Math.max(0, highest(in - range[3], in - range[0], range[6], range[9]));
+		float earliestOut = Math.min(packet.nearest, lowest(out - range[3], out - range[0], range[6], range[9]));
+		float latestOut = Math.min(packet.farthest, highest(out - range[3], out - range[0], range[6], range[9]));
+
+		in = nodeBounds[b + 1 + nearY];
+		out = nodeBounds[b + 4 - nearY];
+		earliestIn = Math.max(earliestIn, lowest(in - range[4], in - range[1], range[7], range[10]));
+		latestIn = Math.max(latestIn, highest(in - range[4], in - range[1], range[7], range[10]));
+		earliestOut = Math.min(earliestOut, lowest(out - range[4], out - range[1], range[7], range[10]));
+		latestOut = Math.min(latestOut, highest(out - range[4], out - range[1], range[7], range[10]));
+
+		in = nodeBounds[b + 2 + nearZ];
+		out = nodeBounds[b + 5 - nearZ];
+		earliestIn = Math.max(earliestIn, lowest(in - range[5], in - range[2], range[8], range[11]));
+		latestIn = Math.max(latestIn, highest(in - range[5], in - range[2], range[8], range[11]));
+		earliestOut = Math.min(earliestOut, lowest(out - range[5], out - range[2], range[8], range[11]));
+		latestOut = Math.min(latestOut, highest(out - range[5], out - range[2], range[8], range[11]));
+
+		if(earliestIn > latestOut)
+		{
+			return MISS_ALL;
+		}
+
+		return latestIn <= earliestOut ? HIT_ALL : HIT_SOME;
+	}
+
+	// The smallest and the biggest a number from a to b times a number from c to d can be
+	private static float lowest(float a, float b, float c, float d)
+	{
+		return Math.min(Math.min(a * c, a * d), Math.min(b * c, b * d));
+	}
+
+	private static float highest(float a, float b, float c, float d)
+	{
+		return Math.max(Math.max(a * c, a * d), Math.max(b * c, b * d));
+	}
+
+	private boolean hitsBox(RayPacket packet, int ray, int node)
+	{
+		int b = node * 6;
+		float near = 0;
+		float far = packet.maxDistance[ray];
+
+		float t1 = (nodeBounds[b] - packet.originX[ray]) * packet.inverseX[ray];
+		float t2 = (nodeBounds[b + 3] - packet.originX[ray]) * packet.inverseX[ray];
+		if(t1 > t2) { float swap = t1; t1 = t2; t2 = swap; }
+		if(t1 > near) near = t1;
+		if(t2 < far) far = t2;
+
+		t1 = (nodeBounds[b + 1] - packet.originY[ray]) * packet.inverseY[ray];
+		t2 = (nodeBounds[b + 4] - packet.originY[ray]) * packet.inverseY[ray];
+		if(t1 > t2) { float swap = t1; t1 = t2; t2 = swap; }
+		if(t1 > near) near = t1;
+		if(t2 < far) far = t2;
+
+		t1 = (nodeBounds[b + 2] - packet.originZ[ray]) * packet.inverseZ[ray];
+		t2 = (nodeBounds[b + 5] - packet.originZ[ray]) * packet.inverseZ[ray];
+		if(t1 > t2) { float swap = t1; t1 = t2; t2 = swap; }
+		if(t1 > near) near = t1;
+		if(t2 < far) far = t2;
+
+		return near <= far;
+	}
+
+	// This returns how far along the ray it hits triangle t, or -1 if it doesn't
+	// before maxDistance.  Both sides of the triangle count.  This is the
+	// Moller-Trumbore test: solve origin + direction * t = a + (b - a) * u + (c - a) * v.
+	private float intersectTriangle(int t, float ox, float oy, float oz, float dx, float dy, float dz, float maxDistance)
+	{
+		int i = t * 9;
+		float ax = triangles[i], ay = triangles[i + 1], az = triangles[i + 2];
+		float e1x = triangles[i + 3] - ax, e1y = triangles[i + 4] - ay, e1z = triangles[i + 5] - az;
+		float e2x = triangles[i + 6] - ax, e2y = triangles[i + 7] - ay, e2z = triangles[i + 8] - az;
+
+		float px = dy * e2z - dz * e2y;
+		float py = dz * e2x - dx * e2z;
+		float pz = dx * e2y - dy * e2x;
+		float det = e1x * px + e1y * py + e1z * pz;
+
+		// The ray is along the plane of the triangle
+		if(det > -1e-12f && det < 1e-12f)
+		{
+			return -1;
+		}
+
+		float inverse = 1.0f / det;
+		float sx = ox - ax, sy = oy - ay, sz = oz - az;
+		float u = (sx * px + sy * py + sz * pz) * inverse;
+		if(u < 0 || u > 1)
+		{
+			return -1;
+		}
+
+		float qx = sy * e1z - sz * e1y;
+		float qy = sz * e1x - sx * e1z;
+		float qz = sx * e1y - sy * e1x;
+		float v = (dx * qx + dy * qy + dz * qz) * inverse;
+		if(v < 0 || u + v > 1)
+		{
+			return -1;
+		}
+
+		float distance = (e2x * qx + e2y * qy + e2z * qz) * inverse;
+		if(distance < 0 || distance > maxDistance)
+		{
+			return -1;
+		}
+
+		return distance;
+	}
+
+	// This works out u (or v, if getV) of the hit on triangle t, the same way as
+	// intersectTriangle().  It's only done once for the hit we keep, so the
+	// test itself doesn't have to hand back more than the distance.
+	private float getHitUV(int t, float ox, float oy, float oz, float dx, float dy, float dz, boolean getV)
+	{
+		int i = t * 9;
+		float ax = triangles[i], ay = triangles[i + 1], az = triangles[i + 2];
+		float e1x = triangles[i + 3] - ax, e1y = triangles[i + 4] - ay, e1z = triangles[i + 5] - az;
+		float e2x = triangles[i + 6] - ax, e2y = triangles[i + 7] - ay, e2z = triangles[i + 8] - az;
+
+		float px = dy * e2z - dz * e2y;
+		float py = dz * e2x - dx * e2z;
+		float pz = dx * e2y - dy * e2x;
+		float inverse = 1.0f / (e1x * px + e1y * py + e1z * pz);
+		float sx = ox - ax, sy = oy - ay, sz = oz - az;
+
+		if(!getV)
+		{
+			return (sx * px + sy * py + sz * pz) * inverse;
+		}
+
+		float qx = sy * e1z - sz * e1y;
+		float qy = sz * e1x - sx * e1z;
+		float qz = sx * e1y - sy * e1x;
+		return (dx * qx + dy * qy + dz * qz) * inverse;
+	}
+
+	private void setHitFace(Ray ray, int t)
+	{
+		ray.hitObject = triangleObjects[t];
+		ray.hitFace = triangleFaces[t];
+	}
+
+	public int getNumOfNodes()
+	{
+		return numOfNodes;
+	}
+
+	public int getNumOfTriangles()
+	{
+		return numOfTriangles;
+	}
+
+	// This returns how many levels deep the tree is
+	public int getDepth()
+	{
+		return depth;
+	}
+}
@@ -0,0 +1,85 @@
+package fcampos.rawengine3D.graficos;
+
+import java.util.Arrays;
+
+// This is the list of end nodes of an Octree that are in the frustum, filled by
+// Octree.findVisibleNodes().  The nodes are in order from the closest to the
+// camera to the furthest, so drawing them in this order lets the depth test
+// throw away what is behind the things already drawn before it's even shaded.
+//
+// Each node also has it's triangles sorted by material, see
+// Octree.getNumOfDrawRanges(), so a renderer can set each material once per node.
+//
+// The caller keeps the list and passes it in every frame, so finding the nodes
+// creates no objects once the arrays are big enough.
+public class VisibleNodes
+{
+
+	private Octree[] nodes;
+	private float[] distances;			// The squared distance from the camera to the center of each node
+	private int numOfNodes;
+
+	// The children of the node at each level, in the order we go into them, and how far they are
+	int[] childOrder = new int[64];
+	float[] childDistances = new float[64];
+
+	public VisibleNodes()
+	{
+		this(64);
+	}
+
+	public VisibleNodes(int capacity)
+	{
+		capacity = Math.max(capacity, 1);
+
+		nodes = new Octree[capacity];
+		distances = new float[capacity];
+	}
+
+	// This takes all the nodes out, to start a new frame
+	public void clear()
+	{
+		// Let go of the nodes, so an old tree isn't kept around by the list
+		Arrays.fill(nodes, 0, numOfNodes, null);
+		numOfNodes = 0;
+	}
+
+	void add(Octree node, float distance)
+	{
+		if(numOfNodes == nodes.length)
+		{
+			nodes = Arrays.copyOf(nodes, numOfNodes * 2);
+			distances = Arrays.copyOf(distances, numOfNodes * 2);
+		}
+
+		nodes[numOfNodes] = node;
+		distances[numOfNodes] = distance;
+		numOfNodes++;
+	}
+
+	// This makes sure there is room to sort the children of every level of a tree this deep
+	void ensureLevels(int levels)
+	{
+		if(childOrder.length < levels * 8)
+		{
+			childOrder = Arrays.copyOf(childOrder, levels * 8);
+			childDistances = Arrays.copyOf(childDistances, levels * 8);
+		}
+	}
+
+	public int getNumOfNodes()
+	{
+		return numOfNodes;
+	}
+
+	public Octree getNode(int index)
+	{
+		return nodes[index];
+	}
+
+	// The squared distance from the camera to the center of the node
+	public float getDistanceSquared(int index)
+	{
+		return distances[index];
+	}
+}
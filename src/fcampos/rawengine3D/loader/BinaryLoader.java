@@ -44,6 +44,13 @@ public class BinaryLoader {
                 open(f);
         }
 
+        /**
+         * Constructor for subclasses that supply their own data source
+         * instead of reading a whole file into memory.
+         */
+        protected BinaryLoader() {
+        }
+
 	    public BinaryLoader(InputStream md2) 
 	    {
 	        try {
@@ -0,0 +1,92 @@
+package fcampos.rawengine3D.loader;
+
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * <code>BufferLoader</code> is a <code>BinaryLoader</code> that reads its
+ * little-endian data from a <code>ByteBuffer</code> (usually a view into a
+ * memory mapped file) instead of copying the whole file into a byte array.
+ */
+public class BufferLoader extends BinaryLoader {
+
+        private ByteBuffer buffer;
+        private int markedPos = 0;
+
+        /**
+         * Constructor creates a new <code>BufferLoader</code> reading from the
+         * given buffer. The buffer is duplicated, so the caller's position and
+         * limit are left untouched. Offsets are relative to the buffer's
+         * current position.
+         * @param b the buffer to read.
+         */
+        public BufferLoader(ByteBuffer b) {
+                buffer = b.slice().order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        public int readByte() {
+                return buffer.get() & 0xFF;
+        }
+
+        public short readShort() {
+                return buffer.getShort();
+        }
+
+        public int readShort2() {
+                int s2 = (buffer.get() & 0xFF) << 8;
+                int s1 = (buffer.get() & 0xFF);
+                return (s1 | s2);
+        }
+
+        public int readInt() {
+                return buffer.getInt();
+        }
+
+        public float readFloat() {
+                return buffer.getFloat();
+        }
+
+        /**
+         *
+         * <code>readBytes</code> copies the next <code>dst.length</code>
+         * bytes into the given array.
+         * @param dst the array to fill.
+         */
+        public void readBytes(byte[] dst) {
+                buffer.get(dst);
+        }
+
+        public String readString(int size) {
+                byte[] chars = new byte[size];
+                buffer.get(chars);
+
+                //Look for zero terminated string
+                for (int i = 0; i < size; i++) {
+                        if (chars[i] == (byte) 0) {
+                                return new String(chars, 0, i);
+                        }
+                }
+                return new String(chars);
+        }
+
+        public void setOffset(int offset) throws IOException {
+                if (offset < 0 || offset > buffer.limit()) {
+                        throw new IOException("Illegal offset value. " + offset);
+                }
+                buffer.position(offset);
+        }
+
+        public void markPos() {
+                markedPos = buffer.position();
+        }
+
+        public void seekMarkOffset(int offset) throws IOException {
+                setOffset(markedPos + offset);
+        }
+
+        public int getFileIndex() {
+                return buffer.position();
+        }
+}
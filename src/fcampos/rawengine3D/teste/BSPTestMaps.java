@@ -0,0 +1,111 @@
+package fcampos.rawengine3D.teste;
+
+import java.io.IOException;
+
+import fcampos.rawengine3D.MathUtil.Vector3f;
+import fcampos.rawengine3D.bsp.quake3.Quake3BSP;
+import fcampos.rawengine3D.graficos.Frustum;
+
+// The maps and cameras shared by the headless BSP tests.  The levels are loaded
+// with Quake3BSP.loadHeadlessBSP(), so no OpenGL context is needed, and the
+// tests look at them through the same findVisibleFaces() renderLevel() uses.
+final class BSPTestMaps
+{
+
+	static final String[] MAPS = { "maps/Level.bsp", "maps/Tutorial.bsp", "maps/T8dm6.bsp" };
+
+	// The timed runs are done this many times and the best one is kept, so the
+	// first ones double as the warm up
+	static final int ROUNDS = 7;
+
+	// One place the camera looks from
+	static final class View
+	{
+		final Vector3f position;
+		final Frustum frustum;
+
+		View(Vector3f position, Frustum frustum)
+		{
+			this.position = position;
+			this.frustum = frustum;
+		}
+	}
+
+	private BSPTestMaps()
+	{
+	}
+
+	// This returns the maps given on the command line, or the bundled ones
+	static String[] getMaps(String[] args)
+	{
+		return (args.length > 0) ? args : MAPS;
+	}
+
+	static Quake3BSP load(String map) throws IOException
+	{
+		Quake3BSP level = new Quake3BSP();
+
+		if(!level.loadHeadlessBSP(map))
+		{
+			throw new IOException("Could not load " + map);
+		}
+
+		return level;
+	}
+
+	// This puts a camera in the middle of the first leaf of each cluster, at most
+	// maxCameras of them spread over the level, and looks 4 ways from each one
+	static View[] makeViews(Quake3BSP level, int maxCameras)
+	{
+		int numOfLeafs = level.getNumOfLeafs();
+		int[] leafs = new int[numOfLeafs];
+		boolean[] used = new boolean[numOfLeafs];
+		int count = 0;
+
+		for(int i = 0; i < numOfLeafs; i++)
+		{
+			int cluster = level.getLeafCluster(i);
+			if(cluster >= 0 && cluster < numOfLeafs && !used[cluster])
+			{
+				used[cluster] = true;
+				leafs[count++] = i;
+			}
+		}
+
+		int cameras = Math.min(count, maxCameras);
+		View[] views = new View[cameras * 4];
+		float[] bounds = new float[6];
+		float[] clip = new float[16];
+
+		for(int c = 0; c < cameras; c++)
+		{
+			level.getLeafBounds(leafs[(int)((long)c * count / cameras)], bounds);
+
+			float x = (bounds[0] + bounds[3]) * 0.5f;
+			float y = (bounds[1] + bounds[4]) * 0.5f;
+			float z = (bounds[2] + bounds[5]) * 0.5f;
+
+			// Look along +x, +z, -x and -z, with y up like the level keeps it
+			for(int v = 0; v < 4; v++)
+			{
+				float dx = (v == 0) ? 1 : (v == 2) ? -1 : 0;
+				float dz = (v == 1) ? 1 : (v == 3) ? -1 : 0;
+				lookAt(clip, x, y, z, x + dx, y, z + dz, 0, 1, 0);
+
+				Frustum frustum = new Frustum();
+				frustum.calculateFrustum(clip);
+				views[c*4 + v] = new View(new Vector3f(x, y, z), frustum);
+			}
+		}
+
+		return views;
+	}
+
+	// This builds the clip matrix of the BSP tests' camera, gluPerspective(70, 2,
+	// 1, 10000) * gluLookAt()
+	static void lookAt(float[] clip, float eyeX, float eyeY, float eyeZ,
+					   float centerX, float centerY, float centerZ, float upX, float upY, float upZ)
+	{
+		TestUtil.lookAt(clip, 70, 2, 1, 10000, eyeX, eyeY, eyeZ, centerX, centerY, centerZ, upX, upY, upZ);
+	}
+}
@@ -1,7 +1,6 @@
 package fcampos.rawengine3D.teste;
 
 import fcampos.rawengine3D.input.*;
-import fcampos.rawengine3D.model.BoundingBox;
 import fcampos.rawengine3D.model.Model3DS;
 import fcampos.rawengine3D.resource.*;
 import fcampos.rawengine3D.gamecore.GameCore;
@@ -11,6 +10,7 @@ import fcampos.rawengine3D.MathUtil.*;
 import fcampos.rawengine3D.fps.*;
 
 import java.io.*;
+import java.util.concurrent.ForkJoinPool;
 
 
 import org.lwjgl.input.*;
@@ -41,8 +41,18 @@ public class CameraCollision extends GameCore {
        // This is how fast our camera moves
     float SPEED	=10.0f;
   
-    // Here we initialize our single Octree object.  This will hold all of our vertices
-    Octree octree = new Octree();
+    // Here we initialize our single Octree object.  This will hold all of our vertices.
+    // We stop subdividing a node when it has 1000 triangles or less, or when it is
+    // 5 levels down.
+    Octree octree = new Octree(new OctreeConfig(1000, 5));
+    
+    // These count what the octree did this frame: the nodes checked for collision
+    // and wheter we hit something, and the nodes that were in the frustum
+    OctreeStats collisionStats = new OctreeStats();
+    OctreeStats drawStats = new OctreeStats();
+
+    // The end nodes in the frustum each frame, from the closest to the furthest
+    VisibleNodes visibleNodes = new VisibleNodes();
 
         
  // This will store our 3ds scene that we will pass into our octree
@@ -112,33 +122,8 @@ public class CameraCollision extends GameCore {
     	// We need to specify our camera's radius in the beginning, I chose 1.
     	camera.setRadius(1.5f);
   
-    	Octree.debug = new BoundingBox();
-    	Octree.debug.setColor(BoundingBox.YELLOW);
-    	
-    	// Turn lighting on initially
-    	Octree.turnLighting     = true;	
-
-    	// The current amount of end nodes in our tree (The nodes with vertices stored in them)
-    	Octree.totalNodesCount = 0;
-
-    	// This stores the amount of nodes that are in the frustum
-    	Octree.totalNodesDrawn = 0;
-
-    	// The maximum amount of triangles per node.  If a node has equal or less 
-    	// than this, stop subdividing and store the face indices in that node
-    	Octree.maxTriangles = 1000;
-
-    	// The maximum amount of subdivisions allowed (Levels of subdivision)
-    	Octree.maxSubdivisions = 5;
-
-    	// The number of Nodes we've checked for collision.
-    	Octree.numNodesCollided = 0;
-
-    	// Wheter the Object is Colliding with anything in the World or not.
-    	//TOctree.setObjectColliding(true);
-
     	// Wheter we test the whole world for collision or just the nodes we are in.
-    	Octree.octreeCollisionDetection = true;
+    	octree.setOctreeCollisionDetection(true);
     	
     	LoadWorld();
  
@@ -215,8 +200,9 @@ public class CameraCollision extends GameCore {
     	octree.getSceneDimensions(world);
   
     	int TotalTriangleCount = octree.getSceneTriangleCount(world);
-    	octree.createNode(world, TotalTriangleCount, octree.getCenter(), octree.getWidth());
-    	octree.setDisplayListID(glGenLists(Octree.totalNodesCount) );
+    	// Build the big nodes of the tree side by side on the common pool
+    	octree.createNode(world, TotalTriangleCount, octree.getCenter(), octree.getWidth(), ForkJoinPool.commonPool());
+    	octree.setDisplayListID(glGenLists(octree.getNumOfEndNodes()) );
     	octree.createDisplayList(octree, world, octree.getDisplayListID());
 
     	// Hide our cursor since we are using first person camera mode
@@ -292,7 +278,7 @@ public class CameraCollision extends GameCore {
         	if (drawMode.isPressed())
         	{
         		octree.setRenderMode(!octree.isRenderMode());
-        		octree.setObjectColliding(false);
+        		collisionStats.reset();
         		if(octree.isRenderMode())
         		{
         			glPolygonMode(GL_FRONT_AND_BACK, GL_FILL);	// Render the triangles in fill mode
@@ -306,7 +292,7 @@ public class CameraCollision extends GameCore {
         	
             if(enter.isPressed())
             {
-            	Octree.octreeCollisionDetection = !Octree.octreeCollisionDetection;
+            	octree.setOctreeCollisionDetection(!octree.isOctreeCollisionDetection());
             }
           
             if (left.isPressed())
@@ -357,7 +343,7 @@ public class CameraCollision extends GameCore {
             }
              	
             
-           if ( !octree.isObjectColliding() )
+           if ( !collisionStats.isObjectColliding() )
         		velocity.y +=  (GRAVITY * elapsedTime);
            
            // camera.getPosition().y += velocity.y * elapsedTime;
@@ -366,12 +352,10 @@ public class CameraCollision extends GameCore {
            camera.setView(VectorMath.add(camera.getView(),VectorMath.multiply(velocity, elapsedTime)));
            //System.out.println(elapsedTime);
        
-        	octree.setObjectColliding(false);
-
         	// Reset the Nodes collided to zero so we can start with a fresh count.
-        	Octree.numNodesCollided = 0;
+        	collisionStats.reset();
         	
-        	if (octree.checkCameraCollision(octree, world, camera))
+        	if (octree.checkCameraCollision(octree, world, camera, collisionStats))
         	{
         		velocity.y = 0;
         	}
@@ -401,21 +385,20 @@ public class CameraCollision extends GameCore {
         	
         	
         	// Initialize the total node count that is being draw per frame
-        	Octree.totalNodesDrawn = 0;
+        	drawStats.reset();
 
         	glPushMatrix();
-        		// Here we draw the octree, starting with the root node and recursing down each node.
-        		// This time, we pass in the root node and just the original world model.  You could
-        		// just store the world in the root node and not have to keep the original data around.
-        		// This is up to you.  I like this way better because it's easy, though it could be 
-        		// more error prone.
-        		octree.drawOctree(octree, world );
+        		// Here we draw the octree.  First we find the end nodes that are in the frustum,
+        		// sorted from the closest to the camera to the furthest, and then we draw them in
+        		// that order, so what is in front is drawn first and hides what is behind it.
+        		octree.findVisibleNodes(GameCore.gFrustum, camera.getPosition(), visibleNodes);
+        		octree.drawVisibleNodes(visibleNodes, drawStats);
         	glPopMatrix();
 
         	// Render the cubed nodes to visualize the octree (in wire frame mode)
         	if( displayNodes )
         	{
-        		Octree.debug.drawBoundingBox();
+        		octree.getDebug().drawBoundingBox();
         		for(int i=0; i < world.getNumOfObjects(); i++)
         		{
         			world.getObject(i).drawBoundingBox();
@@ -423,9 +406,9 @@ public class CameraCollision extends GameCore {
         	}
         	
         	
-        	screen.setTitle("Triangles: " + Octree.maxTriangles + "  -Total Draw: " + Octree.totalNodesDrawn +
-        					"  -Subdivisions: " +  Octree.maxSubdivisions + "  -FPS: " + FPSCounter.get() + "  -Node Collisions: " +
-        					Octree.numNodesCollided + "  -Object Colliding? " +	octree.isObjectColliding() ); 
+        	screen.setTitle("Triangles: " + octree.getConfig().getMaxTriangles() + "  -Total Draw: " + drawStats.getNodesDrawn() +
+        					"  -Subdivisions: " +  octree.getConfig().getMaxSubdivisions() + "  -FPS: " + FPSCounter.get() + "  -Node Collisions: " +
+        					collisionStats.getNodesCollided() + "  -Object Colliding? " +	collisionStats.isObjectColliding() ); 
         	
         	
         	
@@ -0,0 +1,93 @@
+package fcampos.rawengine3D.teste;
+
+import java.util.Random;
+
+import fcampos.rawengine3D.MathUtil.Vector3f;
+
+// The small helpers the headless tests share: random points around a scene,
+// the clip matrix of a camera, and how a test tells it failed
+final class TestUtil
+{
+
+	private TestUtil()
+	{
+	}
+
+	// This prints if the test passed, and exits with 1 if it didn't, so a script
+	// running the tests can see it
+	static void finish(boolean passed)
+	{
+		System.out.println(passed ? "PASSED" : "FAILED");
+		if(!passed)
+		{
+			System.exit(1);
+		}
+	}
+
+	// This returns a random point in a box width wide around center.  The box is
+	// only a quarter as tall, since the scenes are much wider than they are tall
+	static Vector3f randomPoint(Random random, Vector3f center, float width)
+	{
+		return new Vector3f(center.x + (random.nextFloat() - 0.5f) * width,
+							center.y + (random.nextFloat() - 0.5f) * width * 0.25f,
+							center.z + (random.nextFloat() - 0.5f) * width);
+	}
+
+	// This builds the clip matrix of a camera at eye looking at center with y up,
+	// with a 4:3 window and the near plane a thousandth of the far one
+	static void lookAt(float[] clip, Vector3f eye, Vector3f center, float fov, float far)
+	{
+		lookAt(clip, fov, 4.0f / 3.0f, far / 1000, far, eye.x, eye.y, eye.z, center.x, center.y, center.z, 0, 1, 0);
+	}
+
+	// This builds gluPerspective() * gluLookAt() column by column, like OpenGL
+	// stores it and Frustum.calculateFrustum() takes it
+	static void lookAt(float[] clip, float fov, float aspect, float near, float far,
+					   float eyeX, float eyeY, float eyeZ,
+					   float centerX, float centerY, float centerZ, float upX, float upY, float upZ)
+	{
+		float fx = centerX - eyeX, fy = centerY - eyeY, fz = centerZ - eyeZ;
+		float length = (float)Math.sqrt(fx*fx + fy*fy + fz*fz);
+		fx /= length;	fy /= length;	fz /= length;
+
+		// side = forward x up, then up = side x forward.  If we look straight
+		// along up there's no side, so any one across will do
+		float sx = fy * upZ - fz * upY, sy = fz * upX - fx * upZ, sz = fx * upY - fy * upX;
+		length = (float)Math.sqrt(sx*sx + sy*sy + sz*sz);
+		if(length < 1e-6f)
+		{
+			sx = 1;	sy = 0;	sz = 0;	length = 1;
+		}
+		sx /= length;	sy /= length;	sz /= length;
+		float ux = sy * fz - sz * fy, uy = sz * fx - sx * fz, uz = sx * fy - sy * fx;
+
+		float[] view = {
+			sx, ux, -fx, 0,
+			sy, uy, -fy, 0,
+			sz, uz, -fz, 0,
+			-(sx*eyeX + sy*eyeY + sz*eyeZ), -(ux*eyeX + uy*eyeY + uz*eyeZ), (fx*eyeX + fy*eyeY + fz*eyeZ), 1
+		};
+
+		float f = 1.0f / (float)Math.tan(Math.toRadians(fov) / 2);
+		float[] proj = {
+			f / aspect, 0, 0, 0,
+			0, f, 0, 0,
+			0, 0, (far + near) / (near - far), -1,
+			0, 0, 2 * far * near / (near - far), 0
+		};
+
+		// clip = proj * view, both column major
+		for(int column = 0; column < 4; column++)
+		{
+			for(int row = 0; row < 4; row++)
+			{
+				float sum = 0;
+				for(int k = 0; k < 4; k++)
+				{
+					sum += proj[k*4 + row] * view[column*4 + k];
+				}
+				clip[column*4 + row] = sum;
+			}
+		}
+	}
+}
@@ -36,6 +36,8 @@ public class TesteBSP extends GameCore {
     public GameAction moveDown;
     public GameAction drawMode;
     public GameAction modTex;
+    public GameAction gammaUp;
+    public GameAction gammaDown;
 
     boolean  g_bLighting     = true;							// Turn lighting on initially
      
@@ -84,7 +86,14 @@ public class TesteBSP extends GameCore {
         	}
 		}
         
-        level.loadBSP(nameLevel, gammaFactor);
+        // Load the level through its .bspc cache, which is rebuilt whenever the map changes
+        level.loadCachedBSP(nameLevel, gammaFactor);
+        
+        // Find the next frame's visible faces on another thread while this one draws
+        level.setAsyncVisibility(true);
+        
+        // And skip the leafs hidden behind the big walls near the camera
+        level.setOcclusionCulling(true);
                    
         createGameActions();
                    
@@ -174,6 +183,17 @@ public class TesteBSP extends GameCore {
             	
             }
             
+            // Change the lightmap gamma without loading the level again
+            if(gammaUp.isPressed())
+            {
+            	level.setGamma(Float.toString(level.getGamma() + 0.5f));
+            }
+            
+            if(gammaDown.isPressed() && level.getGamma() > 0.5f)
+            {
+            	level.setGamma(Float.toString(level.getGamma() - 0.5f));
+            }
+            
             if (drawMode.isPressed())
         	{
             	level.setHasTextures(!level.isTextures());
@@ -223,7 +243,8 @@ public class TesteBSP extends GameCore {
         	// dealing with the BSP nodes and leafs.
         	level.renderLevel(camera.getPosition());
         	
-        	screen.setTitle("FPS: " + FPSCounter.get() + " VisibleFaces: " + Quake3BSP.visibleFaces); 
+        	screen.setTitle("FPS: " + FPSCounter.get() + " VisibleFaces: " + Quake3BSP.visibleFaces 
+        				+ " OccludedLeafs: " + level.getOccludedLeafs()); 
          }
   
         public void createGameActions()
@@ -236,6 +257,8 @@ public class TesteBSP extends GameCore {
             moveDown 	= new GameAction("moveDown", GameAction.NORMAL, Keyboard.KEY_DOWN);
             drawMode  	= new GameAction("drawMode", GameAction.DETECT_INITIAL_PRESS_ONLY, Keyboard.KEY_T);
             modTex 		= new GameAction("modTex", GameAction.DETECT_INITIAL_PRESS_ONLY, Keyboard.KEY_M);
+            gammaUp 	= new GameAction("gammaUp", GameAction.DETECT_INITIAL_PRESS_ONLY, Keyboard.KEY_ADD);
+            gammaDown 	= new GameAction("gammaDown", GameAction.DETECT_INITIAL_PRESS_ONLY, Keyboard.KEY_SUBTRACT);
         }
 }
         
@@ -0,0 +1,284 @@
+package fcampos.rawengine3D.teste;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import fcampos.rawengine3D.MathUtil.Vector3f;
+import fcampos.rawengine3D.graficos.Octree;
+import fcampos.rawengine3D.graficos.OctreeConfig;
+import fcampos.rawengine3D.graficos.OctreeStats;
+import fcampos.rawengine3D.graficos.Ray;
+import fcampos.rawengine3D.graficos.RayPacket;
+import fcampos.rawengine3D.graficos.TriangleBVH;
+import fcampos.rawengine3D.model.Face;
+import fcampos.rawengine3D.model.Model3DS;
+import fcampos.rawengine3D.model.Object3d;
+
+/**
+ * Headless check and benchmark for TriangleBVH.
+ *
+ * It traces lines between random points of a .3ds scene and compares what the
+ * BVH finds with testing every triangle of the world: the first hit, any hit,
+ * and the same lines traced as packets.  Then it times the lines through the
+ * BVH, one by one and in packets of 64, and through the octree's
+ * intersectLineWithOctree.  No OpenGL context is needed.
+ *
+ * Usage: TesteBVH [file.3ds] [lines]
+ */
+public class TesteBVH {
+
+	public static void main(String[] args) throws Exception
+	{
+		String file = args.length > 0 ? args[0] : "Park.3ds";
+		int lines = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+
+		Model3DS world = new Model3DS();
+		world.load(file);
+
+		long time = System.nanoTime();
+		TriangleBVH bvh = new TriangleBVH(world);
+		time = System.nanoTime() - time;
+		System.out.println(bvh.getNumOfTriangles() + " triangles, " + bvh.getNumOfNodes() + " nodes, " +
+						   bvh.getDepth() + " levels, built in " + (time / 1000000) + " ms");
+
+		Octree octree = new Octree(new OctreeConfig(100, 8));
+		octree.getSceneDimensions(world);
+		octree.createNode(world, octree.getSceneTriangleCount(world), octree.getCenter(), octree.getWidth());
+
+		// Lines between random points around the scene, most of them go through something
+		Random random = new Random(1);
+		Vector3f center = octree.getCenter();
+		float width = octree.getWidth();
+		Vector3f[][] segments = new Vector3f[lines][];
+		for(int i = 0; i < lines; i++)
+		{
+			segments[i] = new Vector3f[] { TestUtil.randomPoint(random, center, width),
+										   TestUtil.randomPoint(random, center, width) };
+		}
+
+		// And bursts of 64 lines from one point to close together points, like the
+		// bullets of one burst, which is what the packets are for
+		Vector3f[][] bursts = new Vector3f[lines][];
+		for(int i = 0; i < lines; i += 64)
+		{
+			Vector3f start = TestUtil.randomPoint(random, center, width);
+			Vector3f target = TestUtil.randomPoint(random, center, width);
+
+			for(int j = i; j < Math.min(i + 64, lines); j++)
+			{
+				Vector3f end = new Vector3f(target.x + (random.nextFloat() - 0.5f) * width * 0.02f,
+											target.y + (random.nextFloat() - 0.5f) * width * 0.02f,
+											target.z + (random.nextFloat() - 0.5f) * width * 0.02f);
+				bursts[j] = new Vector3f[] { start, end };
+			}
+		}
+
+		boolean passed = checkRays(bvh, world, segments);
+		passed &= checkPackets(bvh, segments);
+		passed &= checkPackets(bvh, bursts);
+
+		System.out.println("random lines:");
+		benchmark(bvh, octree, world, segments);
+		System.out.println("bursts:");
+		benchmark(bvh, octree, world, bursts);
+
+		TestUtil.finish(passed);
+	}
+
+	// This compares the first hit and any hit of each line with testing every triangle
+	private static boolean checkRays(TriangleBVH bvh, Model3DS world, Vector3f[][] segments)
+	{
+		Ray ray = new Ray();
+		int hits = 0;
+		int different = 0;
+
+		for(int i = 0; i < segments.length; i++)
+		{
+			Vector3f start = segments[i][0];
+			Vector3f end = segments[i][1];
+
+			double closest = closestHit(world, start, end);
+
+			ray.setLine(start, end);
+			boolean hit = bvh.intersect(ray);
+			float distance = ray.getDistance();
+
+			ray.setLine(start, end);
+			boolean occluded = bvh.occluded(ray);
+
+			if(hit)
+			{
+				hits++;
+			}
+
+			// The distances can be a little different, since we test in doubles here
+			if(hit != (closest >= 0) || occluded != hit ||
+			   (hit && Math.abs(distance - closest) > 1e-4))
+			{
+				different++;
+			}
+		}
+
+		System.out.println(segments.length + " lines, " + hits + " hit something, " + different +
+						   " different from testing every triangle");
+
+		return different == 0;
+	}
+
+	// This traces the lines in packets of 64 and compares them with the single rays
+	private static boolean checkPackets(TriangleBVH bvh, Vector3f[][] segments)
+	{
+		Ray ray = new Ray();
+		RayPacket packet = new RayPacket(64);
+		RayPacket anyPacket = new RayPacket(64);
+		int different = 0;
+
+		for(int first = 0; first < segments.length; first += 64)
+		{
+			packet.clear();
+			anyPacket.clear();
+			for(int i = first; i < Math.min(first + 64, segments.length); i++)
+			{
+				packet.addLine(segments[i][0], segments[i][1]);
+				anyPacket.addLine(segments[i][0], segments[i][1]);
+			}
+
+			bvh.intersect(packet);
+			bvh.occluded(anyPacket);
+
+			for(int i = 0; i < packet.getNumOfRays(); i++)
+			{
+				ray.setLine(segments[first + i][0], segments[first + i][1]);
+				boolean hit = bvh.intersect(ray);
+
+				if(packet.isHit(i) != hit || anyPacket.isHit(i) != hit ||
+				   (hit && (packet.getDistance(i) != ray.getDistance() || packet.getHitObject(i) != ray.getHitObject() ||
+							packet.getHitFace(i) != ray.getHitFace() || packet.getHitU(i) != ray.getHitU())))
+				{
+					different++;
+				}
+			}
+		}
+
+		System.out.println("packets: " + different + " rays different from tracing them one by one");
+
+		return different == 0;
+	}
+
+	// This times each way of tracing the lines.  The ways take turns, a few rounds
+	// each, and we keep the best time of each, so they are all measured after the
+	// code is compiled and as little disturbed as we can.
+	private static void benchmark(TriangleBVH bvh, Octree octree, Model3DS world, Vector3f[][] segments)
+	{
+		Ray ray = new Ray();
+		RayPacket packet = new RayPacket(64);
+		RayPacket anyPacket = new RayPacket(64);
+		OctreeStats stats = new OctreeStats();
+		Vector3f point = new Vector3f();
+		String[] names = { "BVH first hit", "any hit", "packets first hit", "packets any hit", "octree" };
+		long[] best = new long[names.length];
+		Arrays.fill(best, Long.MAX_VALUE);
+		int rounds = 5;
+		long sum = 0;
+
+		for(int pass = 0; pass < 10; pass++)
+		{
+			for(int way = 0; way < names.length; way++)
+			{
+				// The octree is so much slower, it only needs a few lines to time
+				int lines = way == 4 ? Math.min(segments.length, 200) : segments.length;
+				long time = System.nanoTime();
+
+				for(int r = 0; r < rounds; r++)
+				{
+					if(way == 0 || way == 1)
+					{
+						for(int i = 0; i < lines; i++)
+						{
+							ray.setLine(segments[i][0], segments[i][1]);
+							sum += (way == 0 ? bvh.intersect(ray) : bvh.occluded(ray)) ? 1 : 0;
+						}
+					}
+					else if(way == 2 || way == 3)
+					{
+						RayPacket p = way == 2 ? packet : anyPacket;
+
+						for(int first = 0; first < lines; first += 64)
+						{
+							p.clear();
+							for(int i = first; i < Math.min(first + 64, lines); i++)
+							{
+								p.addLine(segments[i][0], segments[i][1]);
+							}
+							sum += way == 2 ? bvh.intersect(p) : bvh.occluded(p);
+						}
+					}
+					else
+					{
+						for(int i = 0; i < lines; i++)
+						{
+							stats.reset();
+							sum += octree.intersectLineWithOctree(octree, world, segments[i], point, stats) ? 1 : 0;
+						}
+					}
+				}
+
+				best[way] = Math.min(best[way], (System.nanoTime() - time) / ((long)rounds * lines));
+			}
+		}
+
+		StringBuilder line = new StringBuilder("ns per line:");
+		for(int way = 0; way < names.length; way++)
+		{
+			line.append(way == 0 ? " " : ", ").append(names[way]).append(' ').append(best[way]);
+		}
+		System.out.println(line + "  (checksum " + sum + ")");
+	}
+
+	// This returns how far along the line the closest triangle is, or -1
+	private static double closestHit(Model3DS world, Vector3f start, Vector3f end)
+	{
+		double closest = -1;
+
+		for(int i = 0; i < world.getNumOfObjects(); i++)
+		{
+			Object3d object = world.getObject(i);
+
+			for(int j = 0; j < object.getNumFaces(); j++)
+			{
+				Face face = object.getFace(j);
+				double distance = hitTriangle(start, end, object.getVertices(face.getVertices(0)),
+											  object.getVertices(face.getVertices(1)), object.getVertices(face.getVertices(2)));
+
+				if(distance >= 0 && (closest < 0 || distance < closest))
+				{
+					closest = distance;
+				}
+			}
+		}
+
+		return closest;
+	}
+
+	private static double hitTriangle(Vector3f start, Vector3f end, Vector3f a, Vector3f b, Vector3f c)
+	{
+		double dx = end.x - start.x, dy = end.y - start.y, dz = end.z - start.z;
+		double e1x = b.x - a.x, e1y = b.y - a.y, e1z = b.z - a.z;
+		double e2x = c.x - a.x, e2y = c.y - a.y, e2z = c.z - a.z;
+
+		double px = dy * e2z - dz * e2y, py = dz * e2x - dx * e2z, pz = dx * e2y - dy * e2x;
+		double det = e1x * px + e1y * py + e1z * pz;
+		if(Math.abs(det) < 1e-12)
+		{
+			return -1;
+		}
+
+		double sx = start.x - a.x, sy = start.y - a.y, sz = start.z - a.z;
+		double u = (sx * px + sy * py + sz * pz) / det;
+		double qx = sy * e1z - sz * e1y, qy = sz * e1x - sx * e1z, qz = sx * e1y - sy * e1x;
+		double v = (dx * qx + dy * qy + dz * qz) / det;
+		double t = (e2x * qx + e2y * qy + e2z * qz) / det;
+
+		return (u >= 0 && v >= 0 && u + v <= 1 && t >= 0 && t <= 1) ? t : -1;
+	}
+}
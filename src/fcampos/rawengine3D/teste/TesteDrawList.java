@@ -0,0 +1,295 @@
+package fcampos.rawengine3D.teste;
+
+import java.io.IOException;
+import java.nio.IntBuffer;
+
+import fcampos.rawengine3D.bsp.quake3.DrawList;
+import fcampos.rawengine3D.bsp.quake3.LightmapAtlas;
+import fcampos.rawengine3D.bsp.quake3.Quake3BSP;
+import fcampos.rawengine3D.bsp.quake3.Quake3BSP.BSPFace;
+import fcampos.rawengine3D.bsp.quake3.VisibleFaceList;
+
+/**
+ * Headless check of the draw list used by Quake3BSP.renderLevel.
+ *
+ * It finds the visible faces of cameras in the clusters of the bundled maps
+ * with batching on, and counts the draw calls and texture binds of drawing
+ * their polygons one by one against the ones the DrawList makes.  The draws
+ * are checked to hold exactly the triangles of their faces, inside their
+ * vertex range.  The maps are loaded with Quake3BSP.loadHeadlessBSP, so the
+ * faces and indices are the level's own.
+ *
+ * Usage: TesteDrawList [map.bsp ...]
+ */
+public class TesteDrawList {
+
+	private static final int MAX_CAMERAS = 64;
+
+	private final Quake3BSP level;
+	private final BSPFace[] faces;
+	private final LightmapAtlas atlas;
+	private final IntBuffer indices;
+	private int[] polygons;
+
+	public static void main(String[] args) throws IOException
+	{
+		checkKeys();
+		checkReload(BSPTestMaps.MAPS[2], BSPTestMaps.MAPS[1]);
+
+		String[] maps = BSPTestMaps.getMaps(args);
+
+		for(int i = 0; i < maps.length; i++)
+		{
+			new TesteDrawList(BSPTestMaps.load(maps[i])).run(maps[i]);
+		}
+	}
+
+	// The textures and pages at the ends of the ranges must each get their own
+	// draw, and the ones past them must be refused instead of joined
+	private static void checkKeys()
+	{
+		int[] textures = { -1, 0, 65535, 65536, DrawList.MAX_TEXTURE, -1, 65536 };
+		int[] pages = { -1, 0, DrawList.MAX_LIGHTMAP_PAGE, 0, -1, 0, 0 };
+		IntBuffer source = IntBuffer.allocate(textures.length * 3);
+
+		DrawList drawList = new DrawList();
+		for(int i = 0; i < textures.length; i++)
+		{
+			drawList.add(textures[i], pages[i], i * 3, 3, i * 3, 3);
+		}
+		drawList.build(source);
+
+		// The last two join the draws of the same texture and page before them
+		if(drawList.getNumOfDraws() != 6)
+		{
+			throw new IllegalStateException("The edge keys made " + drawList.getNumOfDraws() + " draws, not 6");
+		}
+		for(int d = 1; d < drawList.getNumOfDraws(); d++)
+		{
+			if(drawList.getTexture(d) < drawList.getTexture(d-1))
+			{
+				throw new IllegalStateException("The draws are not sorted by texture");
+			}
+		}
+
+		int[][] bad = { { -2, 0 }, { DrawList.MAX_TEXTURE + 1, 0 }, { 0, -2 }, { 0, DrawList.MAX_LIGHTMAP_PAGE + 1 } };
+		for(int i = 0; i < bad.length; i++)
+		{
+			try
+			{
+				drawList.add(bad[i][0], bad[i][1], 0, 3, 0, 3);
+				throw new IllegalStateException("Texture " + bad[i][0] + " and page " + bad[i][1] + " were taken");
+			}
+			catch(IllegalArgumentException e)
+			{
+				// That's what we want
+			}
+		}
+
+		System.out.println("Key test passed");
+	}
+
+	// A level loaded over another one, after the first one's faces were
+	// decoded, has to find the same faces and draws as a level loaded fresh
+	private static void checkReload(String first, String second) throws IOException
+	{
+		Quake3BSP reloaded = BSPTestMaps.load(first);
+		BSPTestMaps.View[] views = BSPTestMaps.makeViews(reloaded, 1);
+		reloaded.findVisibleFaces(views[0].position, views[0].frustum);
+
+		if(!reloaded.loadHeadlessBSP(second))
+		{
+			throw new IOException("Could not load " + second);
+		}
+
+		Quake3BSP fresh = BSPTestMaps.load(second);
+		views = BSPTestMaps.makeViews(fresh, MAX_CAMERAS);
+
+		for(int v = 0; v < views.length; v++)
+		{
+			DrawList a = reloaded.findVisibleFaces(views[v].position, views[v].frustum).getDrawList();
+			DrawList b = fresh.findVisibleFaces(views[v].position, views[v].frustum).getDrawList();
+
+			boolean same = a.getNumOfDraws() == b.getNumOfDraws() && a.getIndices().equals(b.getIndices());
+			for(int d = 0; same && d < a.getNumOfDraws(); d++)
+			{
+				same = a.getTexture(d) == b.getTexture(d) && a.getLightmapPage(d) == b.getLightmapPage(d);
+			}
+
+			if(!same)
+			{
+				throw new IllegalStateException(second + " loaded over " + first + " made other draws in view " + v);
+			}
+		}
+
+		System.out.println("Reload test passed");
+	}
+
+	public TesteDrawList(Quake3BSP level)
+	{
+		this.level = level;
+		faces = level.getFaces();
+		atlas = level.getLightmapAtlas();
+		indices = level.getFaceIndices();
+		polygons = new int[256];
+	}
+
+	private void run(String name)
+	{
+		BSPTestMaps.View[] views = BSPTestMaps.makeViews(level, MAX_CAMERAS);
+		long faceDraws = 0, faceTextureBinds = 0, faceLightmapBinds = 0;
+		long draws = 0, textureBinds = 0, lightmapBinds = 0;
+
+		level.setBatching(true);
+		level.setOcclusionCulling(false);
+
+		for(int v = 0; v < views.length; v++)
+		{
+			VisibleFaceList list = level.findVisibleFaces(views[v].position, views[v].frustum);
+			int count = collectPolygons(list);
+
+			// Drawn one by one, every face is a draw and binds its texture,
+			// and the lightmap page is bound when it changes
+			int lastPage = -1;
+			for(int i = 0; i < count; i++)
+			{
+				int page = getPage(faces[polygons[i]]);
+				if(page >= 0 && page != lastPage)
+				{
+					faceLightmapBinds++;
+					lastPage = page;
+				}
+			}
+			faceDraws += count;
+			faceTextureBinds += count;
+
+			DrawList drawList = list.getDrawList();
+			check(drawList, count);
+
+			draws += drawList.getNumOfDraws();
+			textureBinds += drawList.getNumOfTextureChanges();
+			lightmapBinds += drawList.getNumOfLightmapChanges();
+		}
+
+		// Time finding the faces with and without building the lists, taking
+		// turns and keeping the best of a few rounds of each
+		long batched = Long.MAX_VALUE;
+		long unbatched = Long.MAX_VALUE;
+		for(int round = 0; round < BSPTestMaps.ROUNDS; round++)
+		{
+			batched = Math.min(batched, time(views, true));
+			unbatched = Math.min(unbatched, time(views, false));
+		}
+
+		float frames = Math.max(views.length, 1);
+
+		System.out.println(name + ": " + level.getNumOfFaces() + " faces, " + views.length + " views, "
+						   + ((float)faceDraws / frames) + " visible polygons per frame");
+		System.out.println("    one by one:  " + ((float)faceDraws / frames) + " draws, "
+						   + ((float)faceTextureBinds / frames) + " texture binds, "
+						   + ((float)faceLightmapBinds / frames) + " lightmap binds per frame");
+		System.out.println("    draw list:   " + ((float)draws / frames) + " draws, "
+						   + ((float)textureBinds / frames) + " texture binds, "
+						   + ((float)lightmapBinds / frames) + " lightmap binds per frame");
+		System.out.println("    find faces:  " + (long)(unbatched / frames) + " ns/frame, "
+						   + (long)(batched / frames) + " ns/frame with the draw list");
+	}
+
+	// This copies the polygons of the list, the faces that went into the draw list
+	private int collectPolygons(VisibleFaceList list)
+	{
+		int count = 0;
+
+		for(int i = 0; i < list.getNumOfFaces(); i++)
+		{
+			int face = list.getFace(i);
+			if(faces[face].getType() != Quake3BSP.FACE_POLYGON) continue;
+
+			if(count == polygons.length)
+			{
+				int[] grown = new int[count * 2];
+				System.arraycopy(polygons, 0, grown, 0, count);
+				polygons = grown;
+			}
+			polygons[count++] = face;
+		}
+
+		return count;
+	}
+
+	private int getPage(BSPFace face)
+	{
+		return (face.getLightmapID() >= 0) ? atlas.getPage(face.getLightmapID()) : -1;
+	}
+
+	// This returns the time it takes to find the faces of all the views once
+	private long time(BSPTestMaps.View[] views, boolean batching)
+	{
+		level.setBatching(batching);
+
+		long start = System.nanoTime();
+		for(int v = 0; v < views.length; v++)
+		{
+			level.findVisibleFaces(views[v].position, views[v].frustum);
+		}
+		return System.nanoTime() - start;
+	}
+
+	// This makes sure the draws hold the triangles of their faces, each once
+	private void check(DrawList drawList, int count)
+	{
+		if(drawList.getNumOfFaces() != count)
+		{
+			throw new IllegalStateException("Face count " + drawList.getNumOfFaces() + " != " + count);
+		}
+
+		IntBuffer merged = drawList.getIndices();
+		int expected = 0;
+
+		for(int d = 0; d < drawList.getNumOfDraws(); d++)
+		{
+			// Gather the faces of this draw in the order they were added
+			int first = drawList.getFirstIndex(d);
+			int position = first;
+
+			for(int i = 0; i < count; i++)
+			{
+				BSPFace face = faces[polygons[i]];
+				if(face.getTextureID() != drawList.getTexture(d) || getPage(face) != drawList.getLightmapPage(d))
+				{
+					continue;
+				}
+
+				for(int k = 0; k < face.getNumOfIndices(); k++)
+				{
+					int index = merged.get(position++);
+					if(index != indices.get(face.getIndexOffset() + k)
+					   || index < drawList.getMinVertex(d) || index > drawList.getMaxVertex(d))
+					{
+						throw new IllegalStateException("Draw " + d + " has the wrong triangles");
+					}
+				}
+			}
+
+			if(position - first != drawList.getNumOfIndices(d))
+			{
+				throw new IllegalStateException("Draw " + d + " has " + drawList.getNumOfIndices(d)
+												+ " indices, its faces have " + (position - first));
+			}
+
+			// A texture and page pair only gets one draw
+			if(d > 0 && drawList.getTexture(d) == drawList.getTexture(d-1)
+			   && drawList.getLightmapPage(d) == drawList.getLightmapPage(d-1))
+			{
+				throw new IllegalStateException("Draws " + (d-1) + " and " + d + " were not joined");
+			}
+
+			expected += drawList.getNumOfIndices(d);
+		}
+
+		if(expected != merged.limit())
+		{
+			throw new IllegalStateException("The draw list has " + merged.limit() + " indices, not " + expected);
+		}
+	}
+}
@@ -0,0 +1,221 @@
+package fcampos.rawengine3D.teste;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import fcampos.rawengine3D.MathUtil.Vector3f;
+import fcampos.rawengine3D.graficos.DynamicOctree;
+
+/**
+ * Headless random check for DynamicOctree.
+ *
+ * It keeps a plain list of boxes next to the tree and does random inserts,
+ * removes, small and big moves and resizes on both, with low split and merge
+ * numbers so nodes are split and joined all the time, and some boxes outside
+ * the world.  Every so often it checks the counts and lists of the tree with
+ * DynamicOctree.checkTree(), and that queryBox() and querySphere() find the
+ * same boxes as testing every box of the list.  At the end it takes every box
+ * out, and the tree must be back to just the root.
+ *
+ * Usage: TesteDynamicOctree [steps] [seed]
+ */
+public class TesteDynamicOctree {
+
+	private static final int MAX_BOXES = 3000;
+	private static final float WORLD_WIDTH = 1000;
+
+	public static void main(String[] args) throws Exception
+	{
+		int steps = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+		long seed = args.length > 1 ? Long.parseLong(args[1]) : 1;
+
+		Random random = new Random(seed);
+		DynamicOctree<Integer> tree = new DynamicOctree<Integer>(new Vector3f(0, 0, 0), WORLD_WIDTH, 8, 3, 8);
+
+		// The list: the center and half sizes of box i, and it's handle or -1 if it's not in the tree
+		float[][] boxes = new float[MAX_BOXES][6];
+		int[] handles = new int[MAX_BOXES];
+		Arrays.fill(handles, -1);
+
+		int[] results = new int[MAX_BOXES];
+		boolean[] found = new boolean[MAX_BOXES];
+		int wrong = 0;
+		int queries = 0;
+		int stayed = 0;
+		int moves = 0;
+
+		for(int step = 0; step < steps; step++)
+		{
+			int k = random.nextInt(MAX_BOXES);
+			int op = random.nextInt(10);
+			float[] box = boxes[k];
+
+			if(handles[k] < 0)
+			{
+				// Mostly small boxes, some big ones that stay high in the tree
+				float size = random.nextFloat() < 0.05f ? 100 : random.nextFloat() * 5;
+				box[0] = (random.nextFloat() - 0.5f) * WORLD_WIDTH * 1.2f;
+				box[1] = (random.nextFloat() - 0.5f) * WORLD_WIDTH * 1.2f;
+				box[2] = (random.nextFloat() - 0.5f) * WORLD_WIDTH * 1.2f;
+				box[3] = size;
+				box[4] = size * 0.5f;
+				box[5] = size;
+				handles[k] = tree.insert(Integer.valueOf(k), box[0], box[1], box[2], box[3], box[4], box[5]);
+			}
+			else if(op == 0)
+			{
+				int handle = handles[k];
+				tree.remove(handle);
+				handles[k] = -1;
+
+				if(tree.isValid(handle))
+				{
+					wrong++;
+				}
+			}
+			else if(op == 1)
+			{
+				box[3] = random.nextFloat() * 20;
+				box[4] = random.nextFloat() * 20;
+				box[5] = random.nextFloat() * 20;
+				tree.update(handles[k], box[0], box[1], box[2], box[3], box[4], box[5]);
+			}
+			else
+			{
+				// Most moves are small, like a frame of a moving thing, some are jumps
+				float distance = op < 8 ? 2 : 200;
+				box[0] += (random.nextFloat() - 0.5f) * distance;
+				box[1] += (random.nextFloat() - 0.5f) * distance;
+				box[2] += (random.nextFloat() - 0.5f) * distance;
+
+				moves++;
+				if(tree.move(handles[k], box[0], box[1], box[2]))
+				{
+					stayed++;
+				}
+			}
+
+			if(step % 1000 == 0)
+			{
+				tree.checkTree();
+				wrong += checkBoxes(tree, boxes, handles);
+
+				float x = (random.nextFloat() - 0.5f) * WORLD_WIDTH;
+				float y = (random.nextFloat() - 0.5f) * WORLD_WIDTH;
+				float z = (random.nextFloat() - 0.5f) * WORLD_WIDTH;
+				float size = random.nextFloat() * 150;
+
+				int count = tree.queryBox(x - size, y - size, z - size, x + size, y + size, z + size, results);
+				wrong += compare(tree, results, count, found, boxes, handles, x, y, z, size, false);
+
+				count = tree.querySphere(x, y, z, size, results);
+				wrong += compare(tree, results, count, found, boxes, handles, x, y, z, size, true);
+				queries += 2;
+			}
+		}
+
+		tree.checkTree();
+		wrong += checkBoxes(tree, boxes, handles);
+		System.out.println(steps + " steps, " + tree.getNumOfObjects() + " boxes in " + tree.getNumOfNodes() +
+						   " nodes, " + stayed + " of " + moves + " moves stayed in their node, " + queries + " queries, " +
+						   wrong + " wrong");
+
+		// Take everything out, the tree must join back to the root
+		for(int i = 0; i < MAX_BOXES; i++)
+		{
+			if(handles[i] >= 0)
+			{
+				tree.remove(handles[i]);
+				handles[i] = -1;
+			}
+		}
+		tree.checkTree();
+
+		System.out.println("after taking all out: " + tree.getNumOfObjects() + " boxes in " + tree.getNumOfNodes() + " nodes");
+		boolean passed = wrong == 0 && tree.getNumOfObjects() == 0 && tree.getNumOfNodes() == 1;
+
+		TestUtil.finish(passed);
+	}
+
+	// This checks that the tree has the same boxes as the list, in the same places
+	private static int checkBoxes(DynamicOctree<Integer> tree, float[][] boxes, int[] handles)
+	{
+		int wrong = 0;
+		int live = 0;
+
+		for(int i = 0; i < MAX_BOXES; i++)
+		{
+			int handle = handles[i];
+			if(handle < 0)
+			{
+				continue;
+			}
+
+			live++;
+			if(!tree.isValid(handle) || tree.getObject(handle).intValue() != i ||
+			   tree.getX(handle) != boxes[i][0] || tree.getY(handle) != boxes[i][1] || tree.getZ(handle) != boxes[i][2])
+			{
+				wrong++;
+			}
+		}
+
+		if(live != tree.getNumOfObjects())
+		{
+			wrong++;
+		}
+
+		return wrong;
+	}
+
+	// This compares what a query found with testing every box of the list, and
+	// returns how many boxes were missed, found twice or found when they shouldn't be
+	private static int compare(DynamicOctree<Integer> tree, int[] results, int count, boolean[] found,
+							   float[][] boxes, int[] handles, float x, float y, float z, float size, boolean sphere)
+	{
+		int wrong = 0;
+		Arrays.fill(found, false);
+
+		for(int i = 0; i < count; i++)
+		{
+			int k = tree.getObject(results[i]).intValue();
+
+			if(found[k])
+			{
+				wrong++;
+			}
+			found[k] = true;
+		}
+
+		for(int i = 0; i < MAX_BOXES; i++)
+		{
+			if(handles[i] < 0)
+			{
+				wrong += found[i] ? 1 : 0;
+				continue;
+			}
+
+			float[] box = boxes[i];
+			boolean touches;
+
+			if(sphere)
+			{
+				float dx = Math.max(Math.abs(box[0] - x) - box[3], 0);
+				float dy = Math.max(Math.abs(box[1] - y) - box[4], 0);
+				float dz = Math.max(Math.abs(box[2] - z) - box[5], 0);
+				touches = dx * dx + dy * dy + dz * dz <= size * size;
+			}
+			else
+			{
+				touches = Math.abs(box[0] - x) <= size + box[3] && Math.abs(box[1] - y) <= size + box[4] &&
+						  Math.abs(box[2] - z) <= size + box[5];
+			}
+
+			if(touches != found[i])
+			{
+				wrong++;
+			}
+		}
+
+		return wrong;
+	}
+}
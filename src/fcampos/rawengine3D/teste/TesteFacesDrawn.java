@@ -0,0 +1,199 @@
+package fcampos.rawengine3D.teste;
+
+import java.io.IOException;
+
+import fcampos.rawengine3D.bsp.quake3.BitSet;
+import fcampos.rawengine3D.bsp.quake3.Quake3BSP;
+import fcampos.rawengine3D.bsp.quake3.VisibleFaceList;
+import fcampos.rawengine3D.graficos.Frustum;
+
+/**
+ * Headless check and benchmark of the face bitset used by Quake3BSP.findVisibleFaces.
+ * 
+ * It puts cameras in the clusters of the bundled maps, loaded with
+ * Quake3BSP.loadHeadlessBSP, and walks the faces of the leafs left by the PVS
+ * and the frustum in the same order the level does, duplicates and all.
+ * Taking the duplicates out of that walk has to give exactly the faces the
+ * level found.  The same walks are then timed with the old int bitset, which
+ * was cleared word by word every frame, and with the generation stamped
+ * BitSet, so only the cost of the two ways of skipping duplicates differs.
+ * 
+ * Usage: TesteFacesDrawn [map.bsp ...]
+ */
+public class TesteFacesDrawn {
+
+	private static final int MAX_CAMERAS = 64;
+	private static final int PASSES = 50;			// The times each round goes through all the views
+	
+	public static void main(String[] args) throws IOException
+	{
+		String[] maps = BSPTestMaps.getMaps(args);
+		
+		for(int i = 0; i < maps.length; i++)
+		{
+			run(maps[i]);
+		}
+	}
+	
+	private static void run(String map) throws IOException
+	{
+		Quake3BSP level = BSPTestMaps.load(map);
+		level.setBatching(false);
+		level.setOcclusionCulling(false);
+		
+		BSPTestMaps.View[] views = BSPTestMaps.makeViews(level, MAX_CAMERAS);
+		int numOfFaces = level.getNumOfFaces();
+		int[][] walks = new int[views.length][];
+		long walked = 0;
+		
+		for(int v = 0; v < views.length; v++)
+		{
+			VisibleFaceList list = level.findVisibleFaces(views[v].position, views[v].frustum);
+			walks[v] = walkFaces(level, list.getCameraLeaf(), views[v].frustum);
+			walked += walks[v].length;
+			
+			// The walk without it's duplicates is the list the level made
+			BitSet drawn = new BitSet();
+			drawn.resize(numOfFaces);
+			int count = 0;
+			
+			for(int i = 0; i < walks[v].length; i++)
+			{
+				int face = walks[v][i];
+				if(!drawn.testAndSet(face)) continue;
+				
+				if(count >= list.getNumOfFaces() || list.getFace(count) != face)
+				{
+					throw new IllegalStateException(map + ": view " + v + " found face " + face + " out of place");
+				}
+				count++;
+			}
+			
+			if(count != list.getNumOfFaces())
+			{
+				throw new IllegalStateException(map + ": view " + v + " found " + list.getNumOfFaces() + " faces, not " + count);
+			}
+		}
+		
+		// Alternate both ways a few times and keep the best run of each,
+		// the first rounds double as the warm up
+		long oldTime = Long.MAX_VALUE;
+		long newTime = Long.MAX_VALUE;
+		long newCount = 0;
+		
+		for(int round = 0; round < BSPTestMaps.ROUNDS; round++)
+		{
+			long start = System.nanoTime();
+			long oldCount = runOld(walks, numOfFaces);
+			oldTime = Math.min(oldTime, System.nanoTime() - start);
+			
+			start = System.nanoTime();
+			newCount = runNew(walks, numOfFaces);
+			newTime = Math.min(newTime, System.nanoTime() - start);
+			
+			if(oldCount != newCount)
+			{
+				throw new IllegalStateException("Face counts differ: " + oldCount + " != " + newCount);
+			}
+		}
+		
+		long frames = Math.max(views.length, 1) * (long)PASSES;
+		
+		System.out.println(map + ": " + numOfFaces + " faces, " + views.length + " views, "
+						   + (walked / Math.max(views.length, 1)) + " leaf faces walked and " + (newCount / frames) + " kept per frame");
+		System.out.println("    clearAll() int bitset:   " + (oldTime / frames) + " ns/frame");
+		System.out.println("    generation stamps:       " + (newTime / frames) + " ns/frame");
+		System.out.println("    speedup:                 " + ((float)oldTime / newTime) + "x");
+	}
+	
+	// This returns the polygons and curves of the leafs in the camera's PVS and
+	// the frustum, in the order findVisibleFaces() goes through them
+	private static int[] walkFaces(Quake3BSP level, int cameraLeaf, Frustum frustum)
+	{
+		int cluster = level.getLeafCluster(cameraLeaf);
+		long[] rows = level.getVisibilityRows();
+		int words = level.getWordsPerCluster();
+		float[] bounds = new float[6];
+		int[] walk = new int[64];
+		int count = 0;
+		
+		for(int leaf = level.getNumOfLeafs() - 1; leaf >= 0; leaf--)
+		{
+			int test = level.getLeafCluster(leaf);
+			if(test < 0) continue;
+			if(rows != null && cluster >= 0 && ((rows[cluster*words + (test >> 6)] >>> test) & 1) == 0) continue;
+			
+			level.getLeafBounds(leaf, bounds);
+			if(!frustum.boxInFrustum(bounds[0], bounds[1], bounds[2], bounds[3], bounds[4], bounds[5])) continue;
+			
+			int faceCount = level.getNumOfLeafFaces(leaf);
+			while(faceCount-- > 0)
+			{
+				int face = level.getLeafFace(leaf, faceCount);
+				int type = level.getFaces()[face].getType();
+				if(type != Quake3BSP.FACE_POLYGON && type != Quake3BSP.FACE_PATCH) continue;
+				
+				if(count == walk.length)
+				{
+					int[] grown = new int[count * 2];
+					System.arraycopy(walk, 0, grown, 0, count);
+					walk = grown;
+				}
+				walk[count++] = face;
+			}
+		}
+		
+		int[] result = new int[count];
+		System.arraycopy(walk, 0, result, 0, count);
+		return result;
+	}
+	
+	// The bitset renderLevel used before: one int per 32 faces, cleared every frame
+	private static long runOld(int[][] walks, int numOfFaces)
+	{
+		int[] bits = new int[(numOfFaces - 1) / 32 + 1];
+		long drawn = 0;
+		
+		for(int frame = 0; frame < walks.length * PASSES; frame++)
+		{
+			for(int i = 0; i < bits.length; i++)
+			{
+				bits[i] = 0;
+			}
+			
+			int[] walk = walks[frame % walks.length];
+			for(int i = 0; i < walk.length; i++)
+			{
+				int face = walk[i];
+				if((bits[face >> 5] & (1 << (face & 31))) == 0)
+				{
+					bits[face >> 5] |= (1 << (face & 31));
+					drawn++;
+				}
+			}
+		}
+		return drawn;
+	}
+	
+	private static long runNew(int[][] walks, int numOfFaces)
+	{
+		BitSet bits = new BitSet();
+		bits.resize(numOfFaces);
+		long drawn = 0;
+		
+		for(int frame = 0; frame < walks.length * PASSES; frame++)
+		{
+			bits.clearAll();
+			
+			int[] walk = walks[frame % walks.length];
+			for(int i = 0; i < walk.length; i++)
+			{
+				if(bits.testAndSet(walk[i]))
+				{
+					drawn++;
+				}
+			}
+		}
+		return drawn;
+	}
+}
@@ -22,9 +22,11 @@ import org.lwjgl.input.Mouse;
 
 import fcampos.rawengine3D.gamecore.GameCore;
 import fcampos.rawengine3D.graficos.Octree;
+import fcampos.rawengine3D.graficos.OctreeConfig;
+import fcampos.rawengine3D.graficos.OctreeStats;
+import fcampos.rawengine3D.graficos.VisibleNodes;
 import fcampos.rawengine3D.input.Camera;
 import fcampos.rawengine3D.input.GameAction;
-import fcampos.rawengine3D.model.BoundingBox;
 import fcampos.rawengine3D.model.ModelObj;
 import fcampos.rawengine3D.resource.Conversion;
 
@@ -71,7 +73,15 @@ public class TesteObj extends GameCore {
        
     private FloatBuffer posLuz1F;	// posio da fonte de luz
 
-    Octree octree = new Octree();
+    // The maximum amount of triangles per node is 1000 and the maximum amount of
+    // subdivisions is 5
+    Octree octree = new Octree(new OctreeConfig(1000, 5));
+    
+    // This counts the nodes that are in the frustum each frame
+    OctreeStats drawStats = new OctreeStats();
+
+    // The end nodes in the frustum each frame, from the closest to the furthest
+    VisibleNodes visibleNodes = new VisibleNodes();
     
 	
     @Override
@@ -120,33 +130,8 @@ public class TesteObj extends GameCore {
     	// We need to specify our camera's radius in the beginning, I chose 1.
     	camera.setRadius(1.5f);
   
-    	Octree.debug = new BoundingBox();
-    	Octree.debug.setColor(BoundingBox.YELLOW);
-    	
-    	// Turn lighting on initially
-    	Octree.turnLighting     = true;	
-
-    	// The current amount of end nodes in our tree (The nodes with vertices stored in them)
-    	Octree.totalNodesCount = 0;
-
-    	// This stores the amount of nodes that are in the frustum
-    	Octree.totalNodesDrawn = 0;
-
-    	// The maximum amount of triangles per node.  If a node has equal or less 
-    	// than this, stop subdividing and store the face indices in that node
-    	Octree.maxTriangles = 1000;
-
-    	// The maximum amount of subdivisions allowed (Levels of subdivision)
-    	Octree.maxSubdivisions = 5;
-
-    	// The number of Nodes we've checked for collision.
-    	Octree.numNodesCollided = 0;
-
-    	// Wheter the Object is Colliding with anything in the World or not.
-    	//TOctree.setObjectColliding(true);
-
     	// Wheter we test the whole world for collision or just the nodes we are in.
-    	Octree.octreeCollisionDetection = true;
+    	octree.setOctreeCollisionDetection(true);
     	
     	cadeira = new ModelObj();
     	
@@ -159,7 +144,7 @@ public class TesteObj extends GameCore {
     	  
     	int TotalTriangleCount = octree.getSceneTriangleCount(cadeira);
     	octree.createNode(cadeira, TotalTriangleCount, octree.getCenter(), octree.getWidth());
-    	octree.setDisplayListID(glGenLists(Octree.totalNodesCount) );
+    	octree.setDisplayListID(glGenLists(octree.getNumOfEndNodes()) );
     	octree.createDisplayList(octree, cadeira, octree.getDisplayListID());
     	
     	// Hide our cursor since we are using first person camera mode
@@ -228,7 +213,6 @@ public class TesteObj extends GameCore {
             if (drawMode.isPressed())
         	{
         		octree.setRenderMode(!octree.isRenderMode());
-        		octree.setObjectColliding(false);
         		if(octree.isRenderMode())
         		{
         			glPolygonMode(GL_FRONT_AND_BACK, GL_FILL);	// Render the triangles in fill mode
@@ -297,21 +281,20 @@ public class TesteObj extends GameCore {
     	//		camera.getPosition()[1].x,	camera.getPosition()[1].y,	 camera.getPosition()[1].z,
     	//		camera.getPosition()[2].x, camera.getPosition()[2].y, camera.getPosition()[2].z);	
     	// Initialize the total node count that is being draw per frame
-    	Octree.totalNodesDrawn = 0;
+    	drawStats.reset();
     	
     	glPushMatrix();
-    		// Here we draw the octree, starting with the root node and recursing down each node.
-    		// This time, we pass in the root node and just the original world model.  You could
-    		// just store the world in the root node and not have to keep the original data around.
-    		// This is up to you.  I like this way better because it's easy, though it could be 
-    		// more error prone.
-    		octree.drawOctree(octree, cadeira );
+    		// Here we draw the octree.  First we find the end nodes that are in the frustum,
+    		// sorted from the closest to the camera to the furthest, and then we draw them in
+    		// that order, so what is in front is drawn first and hides what is behind it.
+    		octree.findVisibleNodes(GameCore.gFrustum, camera.getPosition(), visibleNodes);
+    		octree.drawVisibleNodes(visibleNodes, drawStats);
     	glPopMatrix();
     	
     	// Render the cubed nodes to visualize the octree (in wire frame mode)
     	if( displayNodes )
     	{
-    		Octree.debug.drawBoundingBox();
+    		octree.getDebug().drawBoundingBox();
     		
     	}
     	
@@ -0,0 +1,193 @@
+package fcampos.rawengine3D.teste;
+
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+
+import fcampos.rawengine3D.bsp.quake3.Quake3BSP;
+import fcampos.rawengine3D.bsp.quake3.VisibleFaceList;
+import fcampos.rawengine3D.graficos.OcclusionBuffer;
+
+/**
+ * Headless check of the occlusion buffer used by Quake3BSP.renderLevel.
+ *
+ * It first draws a wall in front of a few boxes and makes sure only the ones
+ * behind it are hidden, and that the tiles drawn on a ForkJoin pool give the
+ * same depth as drawing them on one thread.  Then it loads the bundled maps
+ * with Quake3BSP.loadHeadlessBSP and, from the middle of their clusters
+ * looking 4 ways, finds the visible faces with the occlusion culling off and
+ * on.  The faces left with it on have to be some of the ones found without
+ * it, and the leaf the camera is in can never be hidden.
+ *
+ * Usage: TesteOcclusion [map.bsp ...]
+ */
+public class TesteOcclusion {
+
+	private static final int MAX_CAMERAS = 64;
+
+	public static void main(String[] args) throws IOException
+	{
+		checkWall();
+
+		String[] maps = BSPTestMaps.getMaps(args);
+		boolean passed = true;
+
+		for(int i = 0; i < maps.length; i++)
+		{
+			passed &= run(maps[i]);
+		}
+
+		TestUtil.finish(passed);
+	}
+
+	// A 200x200 wall 100 units down the -z axis, with boxes around it
+	private static void checkWall()
+	{
+		float[] clip = new float[16];
+		BSPTestMaps.lookAt(clip, 0, 0, 0, 0, 0, -1, 0, 1, 0);
+		float[] wall = { -100, -100, -100,  100, -100, -100,  100, 100, -100,  -100, 100, -100 };
+
+		OcclusionBuffer single = new OcclusionBuffer();
+		OcclusionBuffer parallel = new OcclusionBuffer();
+		OcclusionBuffer[] buffers = { single, parallel };
+
+		for(int i = 0; i < buffers.length; i++)
+		{
+			buffers[i].begin(clip);
+			buffers[i].addPolygon(wall, 0, 4);
+		}
+		single.render(null);
+		parallel.render(ForkJoinPool.commonPool());
+
+		for(int y = 0; y < single.getHeight(); y++)
+		{
+			for(int x = 0; x < single.getWidth(); x++)
+			{
+				if(single.getDepth(x, y) != parallel.getDepth(x, y))
+				{
+					throw new IllegalStateException("The tiles drawn in parallel differ at " + x + ", " + y);
+				}
+			}
+		}
+
+		expect(single, "box behind the wall", false, -10, -10, -300, 10, 10, -280);
+		expect(single, "box in front of the wall", true, -10, -10, -60, 10, 10, -40);
+		expect(single, "box beside the wall", true, 500, -10, -300, 520, 10, -280);
+		expect(single, "box poking out behind the wall", true, 90, -10, -300, 400, 10, -280);
+		expect(single, "box around the camera", true, -10, -10, -10, 10, 10, 10);
+
+		// The wall's sides land at x = 36.6 and 219.4 on the screen, so the
+		// columns 36 and 219 are only partly covered and must stay empty
+		int row = single.getHeight() / 2;
+		if(single.getDepth(36, row) != 0 || single.getDepth(219, row) != 0 ||
+		   single.getDepth(37, row) == 0 || single.getDepth(218, row) == 0)
+		{
+			throw new IllegalStateException("The wall filled pixels it doesn't cover completely");
+		}
+
+		// A box 300 units away that starts just past the side of the wall
+		// lands at x = 219.5, in the column the wall only partly covers
+		expect(single, "box grazing the side of the wall", true, 300.3f, -10, -300, 310, 10, -280);
+
+		// Drawn as two triangles, the pixels on the diagonal are covered by
+		// neither of them completely, so the box behind the middle shows through
+		single.begin(clip);
+		single.addTriangle(-100, -100, -100,  100, -100, -100,  100, 100, -100);
+		single.addTriangle(-100, -100, -100,  100, 100, -100,  -100, 100, -100);
+		single.render(null);
+		expect(single, "box behind the diagonal of the wall", true, -10, -10, -300, 10, 10, -280);
+		expect(single, "box behind one triangle of the wall", false, 40, -60, -300, 60, -40, -280);
+
+		// A sliver thinner than a pixel covers no pixel completely, so it hides nothing
+		single.begin(clip);
+		single.addTriangle(-100, -100, -100,  100, -100, -100,  100, -99.9f, -100);
+		single.render(null);
+		expect(single, "box behind the sliver", true, 0, -100, -300, 1, -99.95f, -280);
+
+		System.out.println("Wall test passed");
+	}
+
+	private static void expect(OcclusionBuffer buffer, String name, boolean visible,
+							   float minX, float minY, float minZ, float maxX, float maxY, float maxZ)
+	{
+		if(buffer.isBoxVisible(minX, minY, minZ, maxX, maxY, maxZ) != visible)
+		{
+			throw new IllegalStateException("The " + name + " should be " + (visible ? "visible" : "hidden"));
+		}
+	}
+
+	private static boolean run(String map) throws IOException
+	{
+		Quake3BSP level = BSPTestMaps.load(map);
+		level.setBatching(false);
+
+		BSPTestMaps.View[] views = BSPTestMaps.makeViews(level, MAX_CAMERAS);
+		int[] seen = new int[level.getNumOfFaces()];
+		float[] bounds = new float[6];
+		long allFaces = 0, shownFaces = 0, hiddenLeafs = 0;
+		int wrong = 0;
+
+		for(int v = 0; v < views.length; v++)
+		{
+			// Without the occluders first, stamping the faces with the view
+			level.setOcclusionCulling(false);
+			VisibleFaceList list = level.findVisibleFaces(views[v].position, views[v].frustum);
+			for(int i = 0; i < list.getNumOfFaces(); i++)
+			{
+				seen[list.getFace(i)] = v + 1;
+			}
+			allFaces += list.getNumOfFaces();
+
+			// The occluders can only take faces away
+			level.setOcclusionCulling(true);
+			list = level.findVisibleFaces(views[v].position, views[v].frustum);
+			for(int i = 0; i < list.getNumOfFaces(); i++)
+			{
+				if(seen[list.getFace(i)] != v + 1)
+				{
+					wrong++;
+				}
+			}
+			shownFaces += list.getNumOfFaces();
+			hiddenLeafs += list.getOccludedLeafs();
+
+			// The leaf we stand in can never be hidden
+			level.getLeafBounds(list.getCameraLeaf(), bounds);
+			if(!level.getOcclusionBuffer().isBoxVisible(bounds[0], bounds[1], bounds[2], bounds[3], bounds[4], bounds[5]))
+			{
+				System.out.println("    the camera leaf " + list.getCameraLeaf() + " was hidden");
+				wrong++;
+			}
+		}
+
+		long offTime = time(level, views, false);
+		long onTime = time(level, views, true);
+		int frames = Math.max(views.length, 1);
+
+		System.out.println(map + ": " + views.length + " views, " + (allFaces / frames) + " faces without occlusion, "
+						   + (shownFaces / frames) + " with it, " + (hiddenLeafs / frames) + " leafs hidden per frame, "
+						   + wrong + " wrong");
+		System.out.println("    without occlusion: " + (offTime / frames / 1000) + " us/frame");
+		System.out.println("    with occlusion:    " + (onTime / frames / 1000) + " us/frame");
+
+		return wrong == 0 && views.length > 0;
+	}
+
+	// This returns the best time of a few rounds of finding the faces of all the views
+	private static long time(Quake3BSP level, BSPTestMaps.View[] views, boolean occlusion)
+	{
+		level.setOcclusionCulling(occlusion);
+		long best = Long.MAX_VALUE;
+
+		for(int round = 0; round < BSPTestMaps.ROUNDS; round++)
+		{
+			long start = System.nanoTime();
+			for(int v = 0; v < views.length; v++)
+			{
+				level.findVisibleFaces(views[v].position, views[v].frustum);
+			}
+			best = Math.min(best, System.nanoTime() - start);
+		}
+
+		return best;
+	}
+}
@@ -0,0 +1,270 @@
+package fcampos.rawengine3D.teste;
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+import fcampos.rawengine3D.MathUtil.Vector3f;
+import fcampos.rawengine3D.graficos.Octree;
+import fcampos.rawengine3D.graficos.OctreeConfig;
+import fcampos.rawengine3D.graficos.SphereContacts;
+import fcampos.rawengine3D.model.Face;
+import fcampos.rawengine3D.model.Model3DS;
+import fcampos.rawengine3D.model.Model3d;
+import fcampos.rawengine3D.model.Object3d;
+
+/**
+ * Headless check for Octree.findSphereContacts.
+ *
+ * It drops spheres around the corners of random triangles of a .3ds scene,
+ * and at random points inside random triangles, and first makes sure the
+ * octree finds the same contacts as testing every triangle of the world.  It
+ * does the same on a floor made of small triangles with a few big ones across
+ * it, that reach far out of the nodes they are kept in.  Then it warms the
+ * query up and counts the bytes the thread allocates over many more calls,
+ * which must be none.  No OpenGL context is needed.
+ *
+ * Usage: TesteSphereContacts [file.3ds] [spheres]
+ */
+public class TesteSphereContacts {
+
+	public static void main(String[] args) throws Exception
+	{
+		String file = args.length > 0 ? args[0] : "Park.3ds";
+		int spheres = args.length > 1 ? Integer.parseInt(args[1]) : 4096;
+
+		Model3DS world = new Model3DS();
+		world.load(file);
+
+		Octree octree = buildOctree(world);
+		Random random = new Random(1);
+		float[] positions = makeSpheres(world, random, spheres);
+
+		boolean passed = checkContacts(octree, world, positions, spheres);
+
+		Model3d floor = makeFloor(40, 10, random);
+		passed &= checkContacts(buildOctree(floor), floor, makeSpheres(floor, random, spheres), spheres);
+
+		passed &= checkAllocation(octree, world, positions, spheres);
+
+		TestUtil.finish(passed);
+	}
+
+	private static Octree buildOctree(Model3d world)
+	{
+		Octree octree = new Octree(new OctreeConfig(100, 8));
+		octree.getSceneDimensions(world);
+		octree.createNode(world, octree.getSceneTriangleCount(world), octree.getCenter(), octree.getWidth());
+
+		return octree;
+	}
+
+	// This puts half the spheres near the corners of random triangles, so most of
+	// them touch something, and the other half at random points inside the triangles
+	private static float[] makeSpheres(Model3d world, Random random, int spheres)
+	{
+		float[] positions = new float[spheres * 4];
+
+		for(int i = 0; i < spheres; i++)
+		{
+			Object3d object;
+			do
+			{
+				object = world.getObject(random.nextInt(world.getNumOfObjects()));
+			}
+			while(object.getNumFaces() == 0);
+
+			Face face = object.getFace(random.nextInt(object.getNumFaces()));
+			float radius = 0.5f + random.nextFloat() * 4;
+
+			if(i % 2 == 0)
+			{
+				Vector3f corner = object.getVertices(face.getVertices(random.nextInt(3)));
+
+				positions[i * 4] = corner.x + (random.nextFloat() - 0.5f) * radius * 2;
+				positions[i * 4 + 1] = corner.y + (random.nextFloat() - 0.5f) * radius * 2;
+				positions[i * 4 + 2] = corner.z + (random.nextFloat() - 0.5f) * radius * 2;
+			}
+			else
+			{
+				// Folding the point back when u + v > 1 keeps it inside and spread evenly
+				Vector3f a = object.getVertices(face.getVertices(0));
+				Vector3f b = object.getVertices(face.getVertices(1));
+				Vector3f c = object.getVertices(face.getVertices(2));
+				float u = random.nextFloat();
+				float v = random.nextFloat();
+				if(u + v > 1)
+				{
+					u = 1 - u;
+					v = 1 - v;
+				}
+
+				positions[i * 4] = a.x + (b.x - a.x) * u + (c.x - a.x) * v;
+				positions[i * 4 + 1] = a.y + (b.y - a.y) * u + (c.y - a.y) * v;
+				positions[i * 4 + 2] = a.z + (b.z - a.z) * u + (c.z - a.z) * v;
+			}
+			positions[i * 4 + 3] = radius;
+		}
+
+		return positions;
+	}
+
+	// This makes a bumpy floor of size by size squares, 10 units wide, with big
+	// triangles going across it from one edge to another.  The small triangles
+	// make the tree split, and each big one is only kept in the few small nodes
+	// it's corners are in, far away from most of it.
+	private static Model3d makeFloor(int size, int bigTriangles, Random random)
+	{
+		int numOfVertices = (size + 1) * (size + 1) + bigTriangles * 3;
+		int numOfFaces = size * size * 2 + bigTriangles;
+		float width = size * 10;
+
+		Object3d object = new Object3d();
+		object.setNumVertices(numOfVertices);
+		object.setNumVert(numOfVertices);
+		object.setNumFaces(numOfFaces);
+
+		for(int z = 0; z <= size; z++)
+		{
+			for(int x = 0; x <= size; x++)
+			{
+				object.setVertices(new Vector3f(x * 10, random.nextFloat() * 2, z * 10), z * (size + 1) + x);
+			}
+		}
+
+		int f = 0;
+		for(int z = 0; z < size; z++)
+		{
+			for(int x = 0; x < size; x++)
+			{
+				int corner = z * (size + 1) + x;
+
+				object.getFace(f++).setVertices(new int[] {corner, corner + 1, corner + size + 1});
+				object.getFace(f++).setVertices(new int[] {corner + 1, corner + size + 2, corner + size + 1});
+			}
+		}
+
+		// The big ones lie just over the floor, so they cross the small nodes of it
+		int v = (size + 1) * (size + 1);
+		for(int i = 0; i < bigTriangles; i++)
+		{
+			object.setVertices(new Vector3f(random.nextFloat() * width, random.nextFloat() * 2, 0), v);
+			object.setVertices(new Vector3f(width, random.nextFloat() * 2, random.nextFloat() * width), v + 1);
+			object.setVertices(new Vector3f(0, random.nextFloat() * 2, width), v + 2);
+
+			object.getFace(f++).setVertices(new int[] {v, v + 1, v + 2});
+			v += 3;
+		}
+
+		Model3d world = new Model3d();
+		world.addObject(object);
+		world.setNumOfObjects(1);
+
+		return world;
+	}
+
+	// This compares the contacts found through the octree with the ones found
+	// testing every triangle of the world
+	private static boolean checkContacts(Octree octree, Model3d world, float[] positions, int spheres)
+	{
+		SphereContacts contacts = new SphereContacts();
+		SphereContacts allContacts = new SphereContacts();
+		int different = 0;
+		long found = 0;
+		long tested = 0;
+
+		for(int i = 0; i < spheres; i++)
+		{
+			float x = positions[i * 4], y = positions[i * 4 + 1], z = positions[i * 4 + 2], radius = positions[i * 4 + 3];
+
+			octree.setOctreeCollisionDetection(true);
+			int count = octree.findSphereContacts(world, x, y, z, radius, contacts);
+			octree.setOctreeCollisionDetection(false);
+			int allCount = octree.findSphereContacts(world, x, y, z, radius, allContacts);
+
+			found += count;
+			tested += contacts.getNumOfTrianglesTested();
+
+			if(count != allCount || !sameContacts(contacts, allContacts, count))
+			{
+				different++;
+			}
+		}
+
+		octree.setOctreeCollisionDetection(true);
+
+		System.out.println(spheres + " spheres, " + found + " contacts, " + (tested / spheres) + " of " +
+						   octree.getSceneTriangleCount(world) + " triangles tested per sphere, " +
+						   different + " different from testing every triangle");
+
+		return different == 0;
+	}
+
+	private static boolean sameContacts(SphereContacts a, SphereContacts b, int count)
+	{
+		// The whole world is tested in face order, so look each contact of a up in b
+		for(int i = 0; i < count; i++)
+		{
+			boolean match = false;
+			for(int j = 0; j < count && !match; j++)
+			{
+				match = a.getObjects()[i] == b.getObjects()[j] && a.getFaces()[i] == b.getFaces()[j] &&
+						a.getDepths()[i] == b.getDepths()[j];
+			}
+
+			if(!match)
+			{
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	// This runs the query until it's warmed up and then counts the bytes this thread allocates
+	private static boolean checkAllocation(Octree octree, Model3DS world, float[] positions, int spheres)
+	{
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+		long thread = Thread.currentThread().getId();
+		SphereContacts contacts = new SphereContacts();
+		int rounds = 20;
+		long sum = 0;
+
+		// Warm up, so the arrays in contacts are as big as they need to be and the query is compiled
+		for(int r = 0; r < rounds; r++)
+		{
+			sum += query(octree, world, positions, spheres, contacts);
+		}
+
+		// Asking for the count allocates a little too, so take that away
+		long start = threads.getThreadAllocatedBytes(thread);
+		long overhead = threads.getThreadAllocatedBytes(thread) - start;
+
+		start = threads.getThreadAllocatedBytes(thread);
+		long time = System.nanoTime();
+		for(int r = 0; r < rounds; r++)
+		{
+			sum += query(octree, world, positions, spheres, contacts);
+		}
+		time = System.nanoTime() - time;
+		long allocated = threads.getThreadAllocatedBytes(thread) - start - overhead;
+
+		long calls = (long)rounds * spheres;
+		System.out.println(calls + " calls, " + (time / calls) + " ns per call, " + allocated + " bytes allocated" +
+						   " (checksum " + sum + ")");
+
+		return allocated <= 0;
+	}
+
+	private static long query(Octree octree, Model3DS world, float[] positions, int spheres, SphereContacts contacts)
+	{
+		long sum = 0;
+
+		for(int i = 0; i < spheres; i++)
+		{
+			sum += octree.findSphereContacts(world, positions[i * 4], positions[i * 4 + 1], positions[i * 4 + 2],
+											 positions[i * 4 + 3], contacts);
+		}
+
+		return sum;
+	}
+}
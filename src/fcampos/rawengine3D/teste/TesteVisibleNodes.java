@@ -0,0 +1,172 @@
+package fcampos.rawengine3D.teste;
+
+import java.nio.IntBuffer;
+import java.util.Random;
+
+import fcampos.rawengine3D.MathUtil.Vector3f;
+import fcampos.rawengine3D.graficos.Frustum;
+import fcampos.rawengine3D.graficos.Octree;
+import fcampos.rawengine3D.graficos.OctreeConfig;
+import fcampos.rawengine3D.graficos.VisibleNodes;
+import fcampos.rawengine3D.model.Model3DS;
+
+/**
+ * Headless check and benchmark for Octree.findVisibleNodes.
+ *
+ * It puts cameras at random places of a .3ds scene looking random ways, makes
+ * their frustums from a projection and modelview matrix made by hand, and
+ * checks that every node found is in the frustum, that the node the eye is in
+ * comes first, and that the runs of indices of each node are sorted by
+ * material and cover all it's triangles.  A frustum around the whole scene
+ * must find every end node.  No OpenGL context is needed.
+ *
+ * Usage: TesteVisibleNodes [file.3ds] [cameras]
+ */
+public class TesteVisibleNodes {
+
+	public static void main(String[] args) throws Exception
+	{
+		String file = args.length > 0 ? args[0] : "Park.3ds";
+		int cameras = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+
+		Model3DS world = new Model3DS();
+		world.load(file);
+
+		Octree octree = new Octree(new OctreeConfig(100, 8));
+		octree.getSceneDimensions(world);
+		octree.createNode(world, octree.getSceneTriangleCount(world), octree.getCenter(), octree.getWidth());
+
+		Vector3f center = octree.getCenter();
+		float width = octree.getWidth();
+		Random random = new Random(1);
+		float[] clip = new float[16];
+		Frustum frustum = new Frustum();
+		VisibleNodes visible = new VisibleNodes();
+		boolean passed = true;
+
+		// From far away, looking at the center, everything is in the frustum
+		Vector3f eye = new Vector3f(center.x, center.y, center.z + width * 4);
+		TestUtil.lookAt(clip, eye, center, 60, width * 10);
+		frustum.calculateFrustum(clip);
+		int found = octree.findVisibleNodes(frustum, eye, visible);
+		System.out.println("whole scene: " + found + " of " + octree.getNumOfEndNodes() + " end nodes");
+		passed &= found == octree.getNumOfEndNodes();
+		passed &= checkRanges(visible);
+
+		// Then cameras inside the scene
+		Vector3f[] eyes = new Vector3f[cameras];
+		Vector3f[] targets = new Vector3f[cameras];
+		int wrong = 0;
+		long total = 0;
+
+		for(int i = 0; i < cameras; i++)
+		{
+			eyes[i] = TestUtil.randomPoint(random, center, width);
+			targets[i] = TestUtil.randomPoint(random, center, width);
+
+			TestUtil.lookAt(clip, eyes[i], targets[i], 60, width * 0.5f);
+			frustum.calculateFrustum(clip);
+			found = octree.findVisibleNodes(frustum, eyes[i], visible);
+			total += found;
+
+			for(int j = 0; j < found; j++)
+			{
+				Octree node = visible.getNode(j);
+
+				if(!frustum.cubeInFrustum(node.getCenter(), node.getWidth() / 2))
+				{
+					wrong++;
+				}
+
+				// Only the first node can have the eye in it
+				if(j > 0 && contains(node, eyes[i]))
+				{
+					wrong++;
+				}
+			}
+		}
+
+		System.out.println(cameras + " cameras, " + (total / cameras) + " nodes in view on average, " +
+						   wrong + " wrong");
+		passed &= wrong == 0;
+
+		benchmark(octree, eyes, targets, width, visible);
+
+		TestUtil.finish(passed);
+	}
+
+	private static boolean contains(Octree node, Vector3f point)
+	{
+		float half = node.getWidth() / 2;
+		Vector3f center = node.getCenter();
+
+		return Math.abs(point.x - center.x) < half && Math.abs(point.y - center.y) < half &&
+			   Math.abs(point.z - center.z) < half;
+	}
+
+	// This checks that the runs of every node are sorted by material and are one
+	// after the other, covering all the node's triangles
+	private static boolean checkRanges(VisibleNodes visible)
+	{
+		int wrong = 0;
+		int ranges = 0;
+
+		for(int i = 0; i < visible.getNumOfNodes(); i++)
+		{
+			Octree node = visible.getNode(i);
+			IntBuffer indices = node.getDrawIndices();
+			int next = 0;
+
+			for(int r = 0; r < node.getNumOfDrawRanges(); r++)
+			{
+				if(node.getDrawRangeFirst(r) != next ||
+				   (r > 0 && node.getDrawRangeMaterial(r) < node.getDrawRangeMaterial(r - 1)))
+				{
+					wrong++;
+				}
+				next += node.getDrawRangeCount(r);
+			}
+
+			if(next != node.getTriangleCount() * 3 || indices.remaining() != next)
+			{
+				wrong++;
+			}
+			ranges += node.getNumOfDrawRanges();
+		}
+
+		System.out.println(ranges + " runs of indices in " + visible.getNumOfNodes() + " nodes, " + wrong + " wrong");
+
+		return wrong == 0;
+	}
+
+	private static void benchmark(Octree octree, Vector3f[] eyes, Vector3f[] targets, float width, VisibleNodes visible)
+	{
+		Frustum[] frustums = new Frustum[eyes.length];
+		float[] clip = new float[16];
+
+		for(int i = 0; i < eyes.length; i++)
+		{
+			TestUtil.lookAt(clip, eyes[i], targets[i], 60, width * 0.5f);
+			frustums[i] = new Frustum();
+			frustums[i].calculateFrustum(clip);
+		}
+
+		int rounds = 20;
+		long sum = 0;
+
+		for(int pass = 0; pass < 2; pass++)
+		{
+			long time = System.nanoTime();
+			for(int r = 0; r < rounds; r++)
+			{
+				for(int i = 0; i < eyes.length; i++)
+				{
+					sum += octree.findVisibleNodes(frustums[i], eyes[i], visible);
+				}
+			}
+			time = System.nanoTime() - time;
+
+			System.out.println("ns per frame: " + (time / ((long)rounds * eyes.length)) + "  (checksum " + sum + ")");
+		}
+	}
+}
@@ -1,6 +1,5 @@
 package fcampos.rawengine3D.teste;
 import fcampos.rawengine3D.input.*;
-import fcampos.rawengine3D.model.BoundingBox;
 import fcampos.rawengine3D.model.Model3d;
 import fcampos.rawengine3D.resource.*;
 import fcampos.rawengine3D.gamecore.GameCore;
@@ -77,8 +76,30 @@ public class Testesala extends GameCore {
     
  
 
-    // Here we initialize our single Octree object.  This will hold all of our vertices
-    Octree octree = new Octree();;
+    // Here we initialize our single Octree object.  This will hold all of our vertices.
+    // We stop subdividing a node when it has 800 triangles or less, or when it is
+    // 5 levels down.
+    Octree octree = new Octree(new OctreeConfig(800, 5));
+    
+    // This counts the nodes of the octree that were in the frustum this frame
+    OctreeStats drawStats = new OctreeStats();
+
+    // The end nodes in the frustum each frame, from the closest to the furthest
+    VisibleNodes visibleNodes = new VisibleNodes();
+
+    // The ball's lines are traced through this tree of the world's triangles,
+    // which is a lot faster for rays than the octree.  We keep one ray and set
+    // it again for every line.
+    TriangleBVH bvh;
+    Ray ray = new Ray();
+
+    // Enter switches the ball's lines between the BVH and the octree, so we can
+    // compare them.  This counts the nodes the octree tested the lines against.
+    boolean traceThroughOctree = false;
+    OctreeStats collisionStats = new OctreeStats();
+
+    // Wheter one of the ball's lines hit something this frame
+    boolean ballColliding = false;
 
     
 
@@ -184,9 +205,12 @@ public class Testesala extends GameCore {
     	
     	int TotalTriangleCount = octree.getSceneTriangleCount(g_World);
     	octree.createNode(g_World, TotalTriangleCount, octree.getCenter(), octree.getWidth());
-    	octree.setDisplayListID( glGenLists(Octree.totalNodesCount) );
+    	octree.setDisplayListID( glGenLists(octree.getNumOfEndNodes()) );
     	octree.createDisplayList(octree, g_World, octree.getDisplayListID());
 
+    	// Build the tree we trace the ball's lines through
+    	bvh = new TriangleBVH(g_World);
+
     	// Hide our cursor since we are using first person camera mode
     	Mouse.setGrabbed(true);
 
@@ -222,31 +246,8 @@ public class Testesala extends GameCore {
     	pObj = new Sphere();
     	pObj.setOrientation(GLU_OUTSIDE);
     	
-    	Octree.debug = new BoundingBox();
-    	// Turn lighting on initially
-    	Octree.turnLighting     = true;	
-
-    	// The current amount of end nodes in our tree (The nodes with vertices stored in them)
-    	Octree.totalNodesCount = 0;
-
-    	// This stores the amount of nodes that are in the frustum
-    	Octree.totalNodesDrawn = 0;
-
-    	// The maximum amount of triangles per node.  If a node has equal or less 
-    	// than this, stop subdividing and store the face indices in that node
-    	Octree.maxTriangles = 800;
-
-    	// The maximum amount of subdivisions allowed (Levels of subdivision)
-    	Octree.maxSubdivisions = 5;
-
-    	// The number of Nodes we've checked for collision.
-    	Octree.numNodesCollided = 0;
-
-    	// Wheter the Object is Colliding with anything in the World or not.
-    	octree.setObjectColliding(false);
-
-    	// Wheter we test the whole world for collision or just the nodes we are in.
-    	Octree.octreeCollisionDetection = true;
+    	// When the lines go through the octree, just test the nodes they are in.
+    	octree.setOctreeCollisionDetection(true);
     	
     	LoadWorld();
     	
@@ -335,7 +336,7 @@ public class Testesala extends GameCore {
         	if (drawMode.isPressed())
         	{
         		octree.setRenderMode(!octree.isRenderMode());
-        		octree.setObjectColliding(false);
+        		ballColliding = false;
         		if(octree.isRenderMode())
         		{
         			glPolygonMode(GL_FRONT_AND_BACK, GL_FILL);	// Render the triangles in fill mode		
@@ -352,7 +353,7 @@ public class Testesala extends GameCore {
             
             if(enter.isPressed())
             {
-            	Octree.octreeCollisionDetection = !Octree.octreeCollisionDetection;
+            	traceThroughOctree = !traceThroughOctree;
             }
           
             if (left.isPressed())
@@ -430,7 +431,7 @@ public class Testesala extends GameCore {
             }
           
         	// Apply Gravity to this Entity (using time based motion) if he's not colliding with anything.
-        	if ( !octree.isObjectColliding() )
+        	if ( !ballColliding )
         		g_BallEntity.fVelY += (GRAVITY * elapsedTime);
         	
         	
@@ -503,15 +504,16 @@ public class Testesala extends GameCore {
         	// A temporary Vector holding the Intersection Point of our Intersection Check.
         	vIntersectionPt = new Vector3f();
 
-        	// Reset the Status of the Object (wheter it is colliding or not).
-        	octree.setObjectColliding(false);
-
-        	// Reset the Nodes collided to zero so we can start with a fresh count.
-        	Octree.numNodesCollided = 0;
+        	// Reset the Status of the Object (wheter it is colliding or not) and the
+        	// Nodes collided to zero so we can start with a fresh count.
+        	ballColliding = false;
+        	collisionStats.reset();
 
-        	// Test the line for an intersection with the Octree Geometry.
-        	if ( octree.intersectLineWithOctree( octree, g_World, vGroundLine, vIntersectionPt ) )
+        	// Test the line for an intersection with the world.
+        	if ( traceLine( vGroundLine, vIntersectionPt ) )
         	{
+        		ballColliding = true;
+
         		// Move the Ball up from the point at which it collided with the ground. This is what
         		// ground clamping is!
         		g_BallEntity.x = vIntersectionPt.x;
@@ -524,9 +526,11 @@ public class Testesala extends GameCore {
         		g_BallEntity.fVelY = 0.0f;
         	}
         	
-        	// Test the line for an intersection with the Octree Geometry.
-        	if ( octree.intersectLineWithOctree( octree, g_World, vForwardLine, vIntersectionPt ) )
+        	// Test the line for an intersection with the world.
+        	if ( traceLine( vForwardLine, vIntersectionPt ) )
         	{
+        		ballColliding = true;
+
         		// Move the Ball up from the point at which it collided with the ground. This is what
         		// ground clamping is!
         		g_BallEntity.x = vIntersectionPt.x;
@@ -557,24 +561,23 @@ public class Testesala extends GameCore {
         	GameCore.gFrustum.calculateFrustum();
 
         	// Initialize the total node count that is being draw per frame
-        	Octree.totalNodesDrawn = 0;
+        	drawStats.reset();
 
         	glPushMatrix();
-        		// Here we draw the octree, starting with the root node and recursing down each node.
-        		// This time, we pass in the root node and just the original world model.  You could
-        		// just store the world in the root node and not have to keep the original data around.
-        		// This is up to you.  I like this way better because it's easy, though it could be 
-        		// more error prone.
-        		octree.drawOctree(octree, g_World );
+        		// Here we draw the octree.  First we find the end nodes that are in the frustum,
+        		// sorted from the closest to the camera to the furthest, and then we draw them in
+        		// that order, so what is in front is drawn first and hides what is behind it.
+        		octree.findVisibleNodes(GameCore.gFrustum, camera.getPosition(), visibleNodes);
+        		octree.drawVisibleNodes(visibleNodes, drawStats);
         	glPopMatrix();
 
         	// Render the cubed nodes to visualize the octree (in wire frame mode)
         	if( g_bDisplayNodes )
-        		Octree.debug.drawBoundingBox();
+        		octree.getDebug().drawBoundingBox();
 
         	glPushMatrix();
         		// If there was a collision, make the Orange ball Red.
-        		if ( octree.isObjectColliding() )
+        		if ( ballColliding )
         		{
         			glColor3f( 1.0f, 0.0f, 0.0f );
         		}else{
@@ -613,14 +616,33 @@ public class Testesala extends GameCore {
         	glPopMatrix();
 
         
-        	screen.setTitle("Triangles: " + Octree.maxTriangles + "  -Total Draw: " + Octree.totalNodesDrawn + "  -Subdivisions: " +  Octree.maxSubdivisions +
-        			 "  -FPS: " + FPSCounter.get() + "  -Node Collisions: " + Octree.numNodesCollided + "  -Object Colliding? " +
-        				   octree.isObjectColliding() ); 	
+        	screen.setTitle("Triangles: " + octree.getConfig().getMaxTriangles() + "  -Total Draw: " + drawStats.getNodesDrawn() +
+        			 "  -Subdivisions: " +  octree.getConfig().getMaxSubdivisions() + "  -FPS: " + FPSCounter.get() + "  -Tracing: " +
+        			 (traceThroughOctree ? "Octree (" + collisionStats.getNodesCollided() + " nodes)" : "BVH") +
+        			 "  -Object Colliding? " + ballColliding ); 	
         	
         }
             
         
        
+      // This traces one of the ball's lines through the BVH, or through the octree
+      // if Enter switched to it, and puts where it hit something in point
+      private boolean traceLine(Vector3f[] line, Vector3f point)
+      {
+    	  if ( traceThroughOctree )
+    	  {
+    		  return octree.intersectLineWithOctree( octree, g_World, line, point, collisionStats );
+    	  }
+
+    	  ray.setLine( line[0], line[1] );
+    	  if ( !bvh.intersect( ray ) )
+    	  {
+    		  return false;
+    	  }
+    	  ray.getHitPoint( point );
+    	  return true;
+      }
+
       public void createGameActions()
         {
            